@@ -0,0 +1,243 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.test.web.servlet.setup.StandaloneMockMvcBuilder;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import travelling.with.code.restful.phonebook.PhoneBookController;
+import travelling.with.code.restful.phonebook.SearchExecutor;
+import travelling.with.code.restful.phonebook.cache.EncodedListingCache;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.metrics.MetricsInterceptor;
+import travelling.with.code.restful.phonebook.metrics.PhoneBookMetrics;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+import travelling.with.code.restful.phonebook.wire.ContactDecoder;
+import travelling.with.code.restful.phonebook.wire.ContactEncoder;
+import travelling.with.code.restful.phonebook.wire.ContactsHttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures requests to {@link PhoneBookController} from dispatching to a serialized response, with {@link MockMvc}
+ * and without a network, so that the cost of the controller and its JSON serialization can be told apart from the
+ * cost of the {@link PhoneBook} underneath it. {@link #serializePage()} serializes the same page of contacts
+ * straight with Jackson, as a baseline for the overhead of Spring MVC. With <code>-p metrics=true</code>, every request
+ * is timed by the {@link MetricsInterceptor}, as in the server, which shows the overhead of the metrics. With
+ * <code>-p async=false</code>, the searches run on the benchmark's threads instead of the {@link SearchExecutor}.
+ * The lookups and listings are measured both as JSON and as {@link PhoneBookController#APPLICATION_CONTACTS}, and
+ * {@link #encodePage()} and {@link #decodePage()} measure the binary form of a page against its JSON baselines. With
+ * <code>-p listingCache=false</code>, the listings are serialized on every request, and with <code>-p acceptEncoding=gzip</code>,
+ * the cached listings are sent compressed.
+ * <p/>
+ * <code>mvn -Pbenchmarks compile exec:exec -Djmh.args="ControllerBenchmark -p size=1000000"</code>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ControllerBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "100000"})
+    private int size;
+
+    @Param({"in-memory"})
+    private String store;
+
+    @Param({"false"})
+    private boolean metrics;
+
+    @Param({"true"})
+    private boolean async;
+
+    @Param({"application/json", PhoneBookController.APPLICATION_CONTACTS})
+    private String mediaType;
+
+    @Param({"true"})
+    private boolean listingCache;
+
+    @Param({"identity"})
+    private String acceptEncoding;
+
+    private SearchExecutor searchExecutor;
+
+    private GeneratedContactsFactory contactsFactory;
+
+    private ObjectMapper objectMapper;
+
+    private MockMvc mockMvc;
+
+    private List<IndexedContact> page;
+
+    private byte[] jsonPage;
+
+    private byte[] encodedPage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        contactsFactory = new GeneratedContactsFactory(size);
+        PhoneBook phoneBook = PhoneBooks.create(store, contactsFactory);
+        objectMapper = new ObjectMapper();
+
+        PhoneBookController controller = new PhoneBookController();
+        ReflectionTestUtils.setField(controller, "phoneBook", phoneBook);
+        ReflectionTestUtils.setField(controller, "objectMapper", objectMapper);
+        PhoneBookMetrics phoneBookMetrics = new PhoneBookMetrics();
+        ReflectionTestUtils.setField(controller, "metrics", phoneBookMetrics);
+        searchExecutor = new SearchExecutor();
+        searchExecutor.setEnabled(async);
+        searchExecutor.init();
+        ReflectionTestUtils.setField(controller, "searchExecutor", searchExecutor);
+        EncodedListingCache encodedListingCache = new EncodedListingCache();
+        encodedListingCache.setEnabled(listingCache);
+        encodedListingCache.init();
+        ReflectionTestUtils.setField(controller, "listingCache", encodedListingCache);
+        StandaloneMockMvcBuilder mockMvcBuilder = MockMvcBuilders.standaloneSetup(controller)
+                .setMessageConverters(new ByteArrayHttpMessageConverter(), new ContactsHttpMessageConverter(),
+                                      new MappingJackson2HttpMessageConverter(objectMapper));
+        if (metrics) {
+            mockMvcBuilder.addInterceptors(new MetricsInterceptor(phoneBookMetrics));
+        }
+        mockMvc = mockMvcBuilder.build();
+        page = phoneBook.findContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), PAGE_SIZE);
+        jsonPage = serializePage();
+        encodedPage = encodePage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        searchExecutor.shutdown();
+    }
+
+    @Benchmark
+    public byte[] getContact() throws Exception {
+        return perform(get("/phonebook/contacts/{id}", randomId()).accept(mediaType));
+    }
+
+    @Benchmark
+    public byte[] getContactsPage() throws Exception {
+        return perform(get("/phonebook/contacts?limit={limit}", PAGE_SIZE).accept(mediaType));
+    }
+
+    @Benchmark
+    public byte[] getContactsPageBySurname() throws Exception {
+        String surname = contactsFactory.createContact(randomId()).getSurname();
+        return perform(get("/phonebook/contacts?surname={surname}&limit={limit}", surname, PAGE_SIZE).accept(mediaType));
+    }
+
+    /**
+     * Lists all the contacts with a surname, which the {@link EncodedListingCache} serves after the first time that it is
+     * requested, unless <code>-p listingCache=false</code>.
+     */
+    @Benchmark
+    public byte[] getContactsBySurname() throws Exception {
+        String surname = contactsFactory.createContact(randomId()).getSurname();
+        return perform(get("/phonebook/contacts?surname={surname}", surname).accept(mediaType).header(HttpHeaders.ACCEPT_ENCODING, acceptEncoding));
+    }
+
+    @Benchmark
+    public byte[] getContactsByPhone() throws Exception {
+        String phone = contactsFactory.createContact(randomId()).getPhone();
+        return perform(get("/phonebook/contacts?phone={phone}", phone).accept(mediaType));
+    }
+
+    @Benchmark
+    public byte[] streamContactsByNameAndSurname() throws Exception {
+        IndexedContact contact = contactsFactory.createContact(randomId());
+        return perform(get("/phonebook/contacts?name={name}&surname={surname}", contact.getName(), contact.getSurname())
+                    .accept(PhoneBookController.APPLICATION_NDJSON));
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws Exception {
+        return objectMapper.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public byte[] encodePage() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ContactEncoder encoder = new ContactEncoder(output);
+        for (IndexedContact contact : page) {
+            encoder.write(contact);
+        }
+        encoder.flush();
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserializePage() throws Exception {
+        return objectMapper.readValue(jsonPage, IndexedContact[].class);
+    }
+
+    @Benchmark
+    public Object decodePage() throws Exception {
+        ContactDecoder decoder = new ContactDecoder(new ByteArrayInputStream(encodedPage));
+        List<IndexedContact> contacts = new ArrayList<>(PAGE_SIZE);
+        for (IndexedContact contact = decoder.read(); contact != null; contact = decoder.read()) {
+            contacts.add(contact);
+        }
+        return contacts;
+    }
+
+    /**
+     * Performs a request, waiting for the searches that the controller completes asynchronously. The wait spins on the
+     * request's {@link WebAsyncManager}, since {@link MvcResult#getAsyncResult()} polls with sleeps that would dwarf the request.
+     */
+    private byte[] perform(RequestBuilder requestBuilder) throws Exception {
+        MvcResult mvcResult = mockMvc.perform(requestBuilder).andReturn();
+        if (mvcResult.getRequest().isAsyncStarted()) {
+            WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(mvcResult.getRequest());
+            while (!asyncManager.hasConcurrentResult()) {
+                Thread.yield();
+            }
+            if (mvcResult.getResponse().getContentType() == null) {
+                mvcResult = mockMvc.perform(asyncDispatch(mvcResult)).andReturn();
+            }
+        }
+        return mvcResult.getResponse().getContentAsByteArray();
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(size);
+    }
+
+}
@@ -0,0 +1,56 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.metrics.Histogram;
+import travelling.with.code.restful.phonebook.metrics.PhoneBookMetrics;
+
+/**
+ * Measures what the metrics add to every request: recording a latency in a {@link Histogram} and counting a search
+ * in {@link PhoneBookMetrics}. Run it with several threads to see the cost under contention, for example:
+ * <p/>
+ * <code>mvn -Pbenchmarks compile exec:exec -Djmh.args="MetricsBenchmark -t 8"</code>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final Histogram histogram = new Histogram(TimeUnit.MINUTES.toNanos(1));
+
+    private final PhoneBookMetrics metrics = new PhoneBookMetrics();
+
+    @Benchmark
+    public void recordLatency() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1_000_000));
+    }
+
+    @Benchmark
+    public void recordRequest() {
+        metrics.recordRequest("getContacts", ThreadLocalRandom.current().nextLong(1_000_000));
+    }
+
+    @Benchmark
+    public void recordSearch() {
+        metrics.recordSearch(MatchMode.EXACT, Optional.of("name"), Optional.empty(), Optional.empty());
+    }
+
+}
@@ -0,0 +1,157 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+
+/**
+ * Measures the hot paths of the {@link PhoneBook} implementations over a phone book filled by a {@link GeneratedContactsFactory}.
+ * <p/>
+ * Every benchmark picks a random contact of the generated phone book per invocation, so lookups are spread over the whole
+ * phone book instead of hitting the same cache lines. The writes keep the size of the phone book steady: a contact is
+ * either replaced, or added and then deleted again.
+ * <p/>
+ * The store and the size of the phone book are JMH parameters, and the number of threads is the usual JMH option,
+ * for example:
+ * <p/>
+ * <code>mvn -Pbenchmarks compile exec:exec -Djmh.args="PhoneBookBenchmark.findContactsBySurname -p store=compact -p size=10000000 -t 4 -jvmArgs -Xmx8g"</code>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PhoneBookBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int size;
+
+    @Param({"in-memory", "compact", "sharded"})
+    private String store;
+
+    private PhoneBook phoneBook;
+
+    private GeneratedContactsFactory contactsFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        contactsFactory = new GeneratedContactsFactory(size);
+        phoneBook = PhoneBooks.create(store, contactsFactory);
+    }
+
+    @Benchmark
+    public Optional<IndexedContact> findContact() {
+        return phoneBook.findContact(randomId());
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByName() {
+        return findContacts(true, false, false);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsBySurname() {
+        return findContacts(false, true, false);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByPhone() {
+        return findContacts(false, false, true);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByNameAndSurname() {
+        return findContacts(true, true, false);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByNameAndPhone() {
+        return findContacts(true, false, true);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsBySurnameAndPhone() {
+        return findContacts(false, true, true);
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByNameSurnameAndPhone() {
+        return findContacts(true, true, true);
+    }
+
+    @Benchmark
+    public IndexedContact replaceContact() {
+        return phoneBook.addContact(contactsFactory.createContact(randomId()));
+    }
+
+    @Benchmark
+    public IndexedContact addAndDeleteContact() {
+        IndexedContact contact = phoneBook.addContact(new Contact("Benchmark", "Contact", "+1-800-555-0000"));
+        phoneBook.deleteContact(contact.getId());
+        return contact;
+    }
+
+    @Benchmark
+    public IndexedContact deleteAndRestoreContact() {
+        IndexedContact contact = contactsFactory.createContact(randomId());
+        phoneBook.deleteContact(contact.getId());
+        return phoneBook.addContact(contact);
+    }
+
+    /**
+     * The reading side of a mixed workload, with three readers for every writer by default.
+     * The ratio can be changed with the <code>-tg</code> option of JMH.
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Optional<IndexedContact> mixedRead() {
+        return phoneBook.findContact(randomId());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public IndexedContact mixedWrite() {
+        return phoneBook.addContact(contactsFactory.createContact(randomId()));
+    }
+
+    /**
+     * Searches with the attributes of a random contact of the generated phone book.
+     */
+    private Collection<IndexedContact> findContacts(boolean byName, boolean bySurname, boolean byPhone) {
+        IndexedContact contact = contactsFactory.createContact(randomId());
+        return phoneBook.findContacts(byName ? Optional.of(contact.getName()) : Optional.empty(),
+                                      bySurname ? Optional.of(contact.getSurname()) : Optional.empty(),
+                                      byPhone ? Optional.of(contact.getPhone()) : Optional.empty());
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(size);
+    }
+
+}
@@ -0,0 +1,66 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.compact.CompactPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.file.DurablePhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.sharded.ShardedPhoneBook;
+
+/**
+ * Creates the {@link PhoneBook} implementations that the benchmarks compare, by the same names that
+ * the <code>phonebook.store</code> property uses.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+final class PhoneBooks {
+
+    private PhoneBooks() {
+    }
+
+    /**
+     * Creates and fills a phone book.
+     *
+     * @param store - <code>in-memory</code>, <code>compact</code>, <code>compact-off-heap</code>, <code>durable</code> or <code>sharded</code>.
+     * @param contactsFactory - the factory that fills the phone book.
+     * @return the initialized phone book.
+     */
+    static PhoneBook create(String store, ContactsFactory contactsFactory) {
+        switch (store) {
+            case "in-memory":
+                InMemoryPhoneBook inMemoryPhoneBook = new InMemoryPhoneBook();
+                inMemoryPhoneBook.setContactsFactory(contactsFactory);
+                inMemoryPhoneBook.init();
+                return inMemoryPhoneBook;
+            case "compact":
+            case "compact-off-heap":
+                CompactPhoneBook compactPhoneBook = new CompactPhoneBook();
+                compactPhoneBook.setContactsFactory(contactsFactory);
+                compactPhoneBook.setOffHeap(store.equals("compact-off-heap"));
+                compactPhoneBook.init();
+                return compactPhoneBook;
+            case "durable":
+                try {
+                    DurablePhoneBook durablePhoneBook = new DurablePhoneBook();
+                    durablePhoneBook.setContactsFactory(contactsFactory);
+                    durablePhoneBook.setDirectory(Files.createTempDirectory("phonebook-benchmark").toString());
+                    durablePhoneBook.init();
+                    return durablePhoneBook;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            case "sharded":
+                ShardedPhoneBook shardedPhoneBook = new ShardedPhoneBook();
+                shardedPhoneBook.setContactsFactory(contactsFactory);
+                shardedPhoneBook.init();
+                return shardedPhoneBook;
+            default:
+                throw new IllegalArgumentException("Unknown phone book store '" + store + "'.");
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import travelling.with.code.restful.phonebook.admission.RateLimitFilter;
+import travelling.with.code.restful.phonebook.admission.RateLimiter;
+
+/**
+ * Measures what the rate limiting adds to every request: admitting a request of one of <code>clients</code> clients through
+ * the {@link RateLimiter}, and the whole {@link RateLimitFilter}, which also weighs the request and tells its client apart.
+ * The rate is high enough that every request is admitted, so the scores are the cost of the admitted requests. Run it with
+ * several threads to see the cost when the same clients are admitted concurrently, for example:
+ * <p/>
+ * <code>mvn -Pbenchmarks compile exec:exec -Djmh.args="RateLimitBenchmark -t 8 -p clients=1,1000"</code>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimitBenchmark {
+
+    private static final FilterChain NO_OP_CHAIN = (request, response) -> { };
+
+    @Param({"1", "1000", "100000"})
+    private int clients;
+
+    private String[] clientIds;
+
+    private RateLimiter rateLimiter;
+
+    private RateLimitFilter filter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clientIds = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            clientIds[i] = "client-" + i;
+        }
+        rateLimiter = new RateLimiter(1e12, Integer.MAX_VALUE, clients);
+        filter = new RateLimitFilter(rateLimiter);
+    }
+
+    @Benchmark
+    public long tryAcquire() {
+        return rateLimiter.tryAcquire(randomClient(), 5);
+    }
+
+    /**
+     * Weighs and admits a search, as the filter does before every request to the contacts. Creating the mock request
+     * is part of the score, as a baseline of which is {@link #createRequest()}.
+     */
+    @Benchmark
+    public MockHttpServletResponse filterSearch() throws IOException, ServletException {
+        MockHttpServletRequest request = createRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, NO_OP_CHAIN);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletRequest createRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/phonebook/contacts");
+        request.setParameter("surname", "Simpson");
+        request.setRemoteAddr(randomClient());
+        return request;
+    }
+
+    private String randomClient() {
+        return clientIds[ThreadLocalRandom.current().nextInt(clients)];
+    }
+
+}
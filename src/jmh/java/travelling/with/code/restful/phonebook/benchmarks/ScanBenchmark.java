@@ -0,0 +1,98 @@
+package travelling.with.code.restful.phonebook.benchmarks;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.persistent.compact.CompactPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+
+/**
+ * Measures how the full scans of the {@link CompactPhoneBook} scale with the number of threads that scan it.
+ * <p/>
+ * One scan thread is the sequential scan, and the searches run on a single JMH thread, so the scores show the latency
+ * of a single search as more cores join it, for example:
+ * <p/>
+ * <code>mvn -Pbenchmarks compile exec:exec -Djmh.args="ScanBenchmark -p scanThreads=1,2,4,8 -p size=1000000"</code>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ScanBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int size;
+
+    @Param({"1", "2", "4", "8"})
+    private int scanThreads;
+
+    private CompactPhoneBook phoneBook;
+
+    private GeneratedContactsFactory contactsFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        contactsFactory = new GeneratedContactsFactory(size);
+        phoneBook = new CompactPhoneBook();
+        phoneBook.setContactsFactory(contactsFactory);
+        phoneBook.setScanThreads(scanThreads);
+        phoneBook.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        phoneBook.shutdown();
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsBySurname() {
+        return phoneBook.findContacts(Optional.empty(), Optional.of(randomContact().getSurname()), Optional.empty());
+    }
+
+    @Benchmark
+    public Collection<IndexedContact> findContactsByPhone() {
+        return phoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.of(randomContact().getPhone()));
+    }
+
+    /**
+     * Decodes every contact while it scans, so it shows the scaling of the scans that do the most work per contact.
+     */
+    @Benchmark
+    public List<IndexedContact> streamContactsByPhonePrefix() {
+        String phone = randomContact().getPhone();
+        try (Stream<IndexedContact> contacts = phoneBook.streamContacts(MatchMode.PREFIX, Optional.empty(), Optional.empty(),
+                                                                        Optional.of(phone.substring(0, phone.length() - 2)))) {
+            return contacts.collect(Collectors.toList());
+        }
+    }
+
+    private IndexedContact randomContact() {
+        return contactsFactory.createContact(ThreadLocalRandom.current().nextLong(size));
+    }
+
+}
@@ -0,0 +1,89 @@
+package travelling.with.code.restful.phonebook;
+
+import org.springframework.http.HttpStatus;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The outcome of a single item of a batch request to {@link PhoneBookController}.
+ * <p/>
+ * Every item of a batch is reported with its position in the request and the HTTP status that the equivalent
+ * single contact request would have returned, together with the id of the contact it affected, or an error message
+ * if the item could not be applied. A failed item never fails the rest of the batch.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@JsonInclude(Include.NON_NULL)
+public class BatchResult {
+
+    private int index;
+    private int status;
+    private Long id;
+    private String error;
+
+    public BatchResult(int index, HttpStatus status, Long id, String error) {
+        this.index = index;
+        this.status = status.value();
+        this.id = id;
+        this.error = error;
+    }
+
+    public BatchResult() {
+        super();
+    }
+
+    /**
+     * @param index - the position of the item in the batch.
+     * @param status - the status of the applied item.
+     * @param id - the id of the contact that the item affected.
+     * @return the result of an item that was applied.
+     */
+    public static BatchResult applied(int index, HttpStatus status, Long id) {
+        return new BatchResult(index, status, id, null);
+    }
+
+    /**
+     * @param index - the position of the item in the batch.
+     * @param status - the status that explains why the item was not applied.
+     * @param id - the id of the contact that the item refers to, if any.
+     * @param error - a message that describes the failure.
+     * @return the result of an item that was not applied.
+     */
+    public static BatchResult failed(int index, HttpStatus status, Long id, String error) {
+        return new BatchResult(index, status, id, error);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+}
@@ -0,0 +1,47 @@
+package travelling.with.code.restful.phonebook;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import travelling.with.code.restful.phonebook.exceptions.IllegalQueryException;
+
+/**
+ * Encodes and decodes the opaque cursors that {@link PhoneBookController} hands out to page through the contacts.
+ * <p/>
+ * A cursor is the id of the last contact of a page, encoded as URL safe base64, so that clients treat it as a token
+ * instead of an id they could compute, and the phone book is free to change what a cursor holds.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class ContactsCursor {
+
+    private ContactsCursor() {
+    }
+
+    /**
+     * @param lastId - the id of the last contact of a page.
+     * @return the cursor of the page that follows.
+     */
+    public static String encode(long lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(Long.BYTES).putLong(lastId).array());
+    }
+
+    /**
+     * @param cursor - a cursor returned by {@link #encode(long)}.
+     * @return the id of the last contact of the previous page.
+     * @throws IllegalQueryException if the cursor was not produced by {@link #encode(long)}.
+     */
+    public static long decode(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalQueryException("Invalid cursor '" + cursor + "'.");
+        }
+        if (bytes.length != Long.BYTES) {
+            throw new IllegalQueryException("Invalid cursor '" + cursor + "'.");
+        }
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+}
@@ -0,0 +1,120 @@
+package travelling.with.code.restful.phonebook;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * Creates and compares the ETags that {@link PhoneBookController} sends for a contact, from its {@link IndexedContact#getVersion()},
+ * and for a listing of contacts, from the {@link PhoneBook#getModificationCount()} at the time of the request.
+ * <p/>
+ * Versions and modification counts start over when the server restarts, so every ETag is prefixed with the time that this
+ * class was loaded. An ETag of an earlier run never matches, and its clients simply get the contacts again.
+ * <p/>
+ * A listing that is sent compressed, or a contact or listing that is sent in the binary form of contacts, is a different
+ * representation from the same resource sent as JSON, so its ETag has the content coding or {@link #BINARY} appended to the
+ * version, such as <code>-gzip</code>, and is still matched by the resource's version.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class EntityTags {
+
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private static final String PREFIX = "\"" + EPOCH + "-";
+
+    /**
+     * The suffix of the ETags of the representations in {@link PhoneBookController#APPLICATION_CONTACTS}.
+     */
+    public static final String BINARY = "bin";
+
+    private EntityTags() {
+    }
+
+    /**
+     * @param version - the version of a contact, or the modification count of a listing.
+     * @return the strong ETag of the version.
+     */
+    public static String of(long version) {
+        return PREFIX + Long.toString(version, Character.MAX_RADIX) + "\"";
+    }
+
+    /**
+     * @param version - the version of a contact, or the modification count of a listing.
+     * @param representation - the content coding or {@link #BINARY}, or <code>null</code> for JSON sent as it is.
+     * @return the strong ETag of the version in that representation.
+     */
+    public static String of(long version, String representation) {
+        return representation == null ? of(version) : PREFIX + Long.toString(version, Character.MAX_RADIX) + "-" + representation + "\"";
+    }
+
+    /**
+     * Checks an <code>If-None-Match</code> header against the current ETag of a resource. Weak ETags match too,
+     * as the weak comparison of conditional GETs demands, and so do the ETags of the resource in any content coding.
+     *
+     * @param ifNoneMatch - the value of the header, or <code>null</code> if the request had none.
+     * @param eTag - the current ETag of the resource, without a content coding.
+     * @return true if the client already has a current representation of the resource.
+     */
+    public static boolean matchesAny(String ifNoneMatch, String eTag) {
+        return matching(ifNoneMatch, eTag) != null;
+    }
+
+    /**
+     * Works like {@link #matchesAny(String, String)}, but tells which representation the client has.
+     *
+     * @param ifNoneMatch - the value of the header, or <code>null</code> if the request had none.
+     * @param eTag - the current ETag of the resource, without a content coding.
+     * @return the strong ETag of the representation that the client has, or <code>null</code> if it has none that is current.
+     */
+    public static String matching(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return null;
+        }
+        String codedPrefix = eTag.substring(0, eTag.length() - 1) + "-";
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return eTag;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(eTag) || (tag.startsWith(codedPrefix) && tag.endsWith("\"") && tag.length() > codedPrefix.length() + 1)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses an <code>If-Match</code> header into the versions that it accepts, in any representation. Weak ETags and ETags
+     * of an earlier run of the server accept no version.
+     *
+     * @param ifMatch - the value of the header.
+     * @return a predicate that accepts the versions of the header's ETags, or any version for <code>*</code>.
+     */
+    public static LongPredicate versions(String ifMatch) {
+        Set<Long> versions = new HashSet<>();
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return version -> true;
+            }
+            if (tag.startsWith(PREFIX) && tag.endsWith("\"") && tag.length() > PREFIX.length() + 1) {
+                String version = tag.substring(PREFIX.length(), tag.length() - 1);
+                int representation = version.indexOf('-');
+                try {
+                    versions.add(Long.parseLong(representation < 0 ? version : version.substring(0, representation), Character.MAX_RADIX));
+                } catch (NumberFormatException e) {
+                    // Not an ETag of this server, so it accepts no version.
+                }
+            }
+        }
+        return versions::contains;
+    }
+
+}
@@ -3,26 +3,68 @@ package travelling.with.code.restful.phonebook;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.DispatcherServlet;
 import org.springframework.web.servlet.mvc.Controller;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import travelling.with.code.restful.phonebook.cache.EncodedListingCache;
+import travelling.with.code.restful.phonebook.cache.EncodedListingCache.EncodedListing;
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
 import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
 import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.exceptions.ContactChangedException;
 import travelling.with.code.restful.phonebook.exceptions.ContactNotFoundException;
 import travelling.with.code.restful.phonebook.exceptions.IllegalContactException;
+import travelling.with.code.restful.phonebook.exceptions.IllegalQueryException;
+import travelling.with.code.restful.phonebook.exceptions.ServiceUnavailableException;
+import travelling.with.code.restful.phonebook.metrics.PhoneBookMetrics;
+import travelling.with.code.restful.phonebook.wire.ContactsHttpMessageConverter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 /**
  * A controller that will handle HTTP requests to the server, following Spring’s approach to building RESTful web services.
@@ -41,38 +83,279 @@ import travelling.with.code.restful.phonebook.exceptions.IllegalContactException
 @RequestMapping("/phonebook/contacts")
 public class PhoneBookController {
 
+    /**
+     * The media type of newline delimited JSON, where every line of the response is a single JSON contact.
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    /**
+     * The media type of the compact binary form of contacts, which the lookups, the listings and the writes of single contacts
+     * accept besides JSON. See {@link ContactsHttpMessageConverter}.
+     */
+    public static final String APPLICATION_CONTACTS = ContactsHttpMessageConverter.APPLICATION_CONTACTS;
+
+    /**
+     * The number of contacts of a page, when a request has a cursor but no limit.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The largest limit that a request may ask for.
+     */
+    public static final int MAX_PAGE_SIZE = 10_000;
+
+    /**
+     * The number of contacts of a newline delimited JSON batch request that are applied to the phone book at once.
+     */
+    public static final int STREAMED_BATCH_SIZE = 1_000;
+
+    /**
+     * The media type of server-sent events.
+     */
+    public static final String TEXT_EVENT_STREAM = "text/event-stream";
+
+    /**
+     * The longest time, in seconds, that a request may follow the change feed for.
+     */
+    public static final int MAX_CHANGES_TIMEOUT = 300;
+
+    /**
+     * The time, in seconds, after which a keep-alive comment is written to a change feed without changes.
+     */
+    public static final int CHANGES_HEARTBEAT = 15;
+
+    private static final MediaType CONTACTS_MEDIA_TYPE = MediaType.valueOf(APPLICATION_CONTACTS);
+
+    private static final MediaType JSON_UTF8 = new MediaType("application", "json", StandardCharsets.UTF_8);
+
+    private static final List<MediaType> PRODUCED_MEDIA_TYPES = Arrays.asList(MediaType.APPLICATION_JSON, CONTACTS_MEDIA_TYPE);
+
 	@Autowired
     private PhoneBook phoneBook;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PhoneBookMetrics metrics;
+
+    @Autowired
+    private SearchExecutor searchExecutor;
+
+    @Autowired
+    private EncodedListingCache listingCache;
+
+    @Value("${phonebook.changes.max-subscribers:16}")
+    private int maxChangeSubscribers = 16;
+
+    private final AtomicInteger changeSubscribers = new AtomicInteger();
+
     /**
      * Exposes the URI "phonebook/contacts" and "listens" for GET reqeusts. If the request does not contain any more parameters,
      * the method will return all contacts that exist in the phonebook. If some of the optional parameters "name", "surname" or "phone" exist in the HTTP request,
      * it will return the contacts matching these values.
+     * <p/>
+     * The "match" parameter chooses how the search values are compared with the contacts, which by default is an exact match.
+     * With <code>match=prefix</code>, names and surnames that start with the search value, ignoring case, and phones whose digits
+     * start with the search value's digits are returned, which serves type-ahead searches.
+     * <p/>
+     * If the request contains a "limit" or a "cursor" parameter, only a single page of the matching contacts is returned, in id order.
+     * When more contacts follow, the response has a <code>Link</code> header with <code>rel="next"</code>, whose URI repeats the request
+     * with the cursor of the next page.
+     * <p/>
+     * The response has an ETag made of the phone book's modification count. When a client sends it back in an
+     * <code>If-None-Match</code> header and the phone book has not changed since, the response is a bodyless 304,
+     * without searching or serializing any contact. A compressed listing, or one in {@link #APPLICATION_CONTACTS}, has an ETag of its own,
+     * which names its content coding or <code>bin</code>.
+     * <p/>
+     * The search runs on the {@link SearchExecutor}, which responds with a 503 when too many searches are queued.
+     * <p/>
+     * A client that accepts {@link #APPLICATION_CONTACTS} gets the contacts in their compact binary form instead of JSON.
+     * <p/>
+     * The JSON of a listing that is not paged is kept in the {@link EncodedListingCache} until the phone book changes, so a repeated
+     * listing is written as it is, without searching or serializing. A client that sends <code>Accept-Encoding: gzip</code> or
+     * <code>deflate</code> gets a large listing compressed.
      *
      * @param name - the name to be looked up in phonebook contacts.
      * @param surname - the surname to be looked up in phonebook contacts.
      * @param phone - the phone to be looked up in phonebook contacts.
+     * @param match - the match mode, either "exact" or "prefix".
+     * @param limit - the maximum number of contacts of a page.
+     * @param cursor - the cursor of the page to be returned, as found in the <code>Link</code> header of the previous page.
+     * @param ifNoneMatch - the ETag of a listing that the client already has.
+     * @param request - the request that the URI of the next page is built from.
      * @return a collection of contacts that match with the name, surname and/or phone provided by the request. If no parameters are provided returns all the contacts in the phonebook.
+     * @throws IllegalQueryException if the match mode is unknown, the limit is out of range or the cursor is invalid.
+     * @throws ServiceUnavailableException if too many searches are queued.
+     */
+	@ApiOperation("Search inside the phone book contacts by name, surname or phone, either exactly or by prefix. If you provide no search criteria all the contacts will be returned. Provide a limit to get the contacts page by page.")
+    @RequestMapping(method=RequestMethod.GET, produces={"application/json", APPLICATION_CONTACTS})
+    public DeferredResult<ResponseEntity<?>> getContacts(@ApiParam(value="Search contacts by name") @RequestParam(value="name", required=false) String name,
+                                                         @ApiParam(value="Search contacts by surname") @RequestParam(value="surname", required=false) String surname,
+                                                         @ApiParam(value="Search contacts by phone") @RequestParam(value="phone", required=false) String phone,
+                                                         @ApiParam(value="How to match the search values: exact or prefix") @RequestParam(value="match", defaultValue="exact") String match,
+                                                         @ApiParam(value="The maximum number of contacts of a page") @RequestParam(value="limit", required=false) Integer limit,
+                                                         @ApiParam(value="The cursor of the page, from the Link header of the previous page") @RequestParam(value="cursor", required=false) String cursor,
+                                                         @ApiParam(value="The ETag of a listing that the client already has") @RequestHeader(value="If-None-Match", required=false) String ifNoneMatch,
+                                                         HttpServletRequest request) throws IllegalQueryException, ServiceUnavailableException {
+        MatchMode matchMode = parseMatchMode(match);
+        long modificationCount = phoneBook.getModificationCount();
+        String matchingETag = EntityTags.matching(ifNoneMatch, EntityTags.of(modificationCount));
+        if (matchingETag != null) {
+            return searchExecutor.completed(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(matchingETag)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING).body(null));
+        }
+        boolean binary = negotiatesContacts(request);
+        if (limit == null && cursor == null && listingCache.isEnabled() && !binary) {
+            String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+            EncodedListing listing = listingCache.get(matchMode, name, surname, phone, modificationCount);
+            if (listing != null) {
+                metrics.recordSearch(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+                metrics.recordResponseSize("getContacts", listing.getContacts());
+                return searchExecutor.completed(encodedListing(listing, acceptEncoding, modificationCount));
+            }
+            return searchExecutor.submit(() -> {
+                Collection<IndexedContact> contacts = findContacts(matchMode, name, surname, phone, null, null, request, null);
+                metrics.recordSearch(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+                metrics.recordResponseSize("getContacts", contacts.size());
+                EncodedListing encodedListing = listingCache.put(matchMode, name, surname, phone, modificationCount,
+                                                                 objectMapper.writeValueAsBytes(contacts), contacts.size());
+                return encodedListing(encodedListing, acceptEncoding, modificationCount);
+            });
+        }
+        return searchExecutor.submit(() -> {
+            HttpHeaders headers = new HttpHeaders();
+            headers.setETag(EntityTags.of(modificationCount, binary ? EntityTags.BINARY : null));
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+            Collection<IndexedContact> contacts = findContacts(matchMode, name, surname, phone, limit, cursor, request, headers);
+            metrics.recordSearch(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+            metrics.recordResponseSize("getContacts", contacts.size());
+            return new ResponseEntity<>(contacts, headers, HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Searches the phone book for {@link #getContacts(String, String, String, String, Integer, String, String, HttpServletRequest)}.
+     */
+    private Collection<IndexedContact> findContacts(MatchMode matchMode, String name, String surname, String phone, Integer limit, String cursor,
+                                                    HttpServletRequest request, HttpHeaders headers) throws IllegalQueryException {
+        if (limit == null && cursor == null) {
+            if (matchMode == MatchMode.EXACT) {
+                return phoneBook.findContacts(Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+            }
+            try (Stream<IndexedContact> contacts = phoneBook.streamContacts(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone))) {
+                return contacts.collect(Collectors.toList());
+            }
+        }
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalQueryException("The limit should be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        Optional<Long> afterId = Optional.ofNullable(cursor).map(ContactsCursor::decode);
+        List<IndexedContact> page = phoneBook.findContacts(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone),
+                                                           afterId, pageSize + 1);
+        if (page.size() > pageSize) {
+            page = page.subList(0, pageSize);
+            String nextPage = ServletUriComponentsBuilder.fromRequest(request)
+                    .replaceQueryParam("cursor", ContactsCursor.encode(page.get(pageSize - 1).getId()))
+                    .build().toUriString();
+            headers.add(HttpHeaders.LINK, "<" + nextPage + ">; rel=\"next\"");
+        }
+        return page;
+    }
+
+    /**
+     * Works like {@link #getContacts(String, String, String, String, Integer, String, String, HttpServletRequest)}, but is chosen when the client accepts newline delimited JSON.
+     * The contacts are taken one by one from {@link PhoneBook#streamContacts(MatchMode, Optional, Optional, Optional)} and each one is
+     * written straight to the response as a line of JSON, so the memory that a request needs does not grow with the
+     * number of contacts it returns. The contacts are written by a thread of the {@link SearchExecutor}, so a slow client
+     * holds back that thread instead of one of the server's. The stream is not bound by the timeout of the searches: once its
+     * response is committed, it can only end by closing it, so it stops writing and closes it when its own timeout, if any, expires.
+     *
+     * @param name - the name to be looked up in phonebook contacts.
+     * @param surname - the surname to be looked up in phonebook contacts.
+     * @param phone - the phone to be looked up in phonebook contacts.
+     * @param match - the match mode, either "exact" or "prefix".
+     * @param response - the response that the contacts will be written to.
+     * @return the result that is set once all contacts have been written.
+     * @throws IllegalQueryException if the match mode is unknown.
+     * @throws ServiceUnavailableException if too many searches are queued.
      */
-	@ApiOperation("Search inside the phone book contacts by name, surname or phone. If you provide no search criteria all the contacts will be returned.")
-    @RequestMapping(method=RequestMethod.GET, produces="application/json")
-    public Collection<IndexedContact> getContacts(@ApiParam(value="Search contacts by name") @RequestParam(value="name", required=false) String name,
-                                                  @ApiParam(value="Search contacts by surname") @RequestParam(value="surname", required=false) String surname,
-                                                  @ApiParam(value="Search contacts by phone") @RequestParam(value="phone", required=false) String phone) {
-        return phoneBook.findContacts(Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+	@ApiOperation("Stream the contacts of the phone book as newline delimited JSON, with the same search criteria as the JSON listing.")
+    @RequestMapping(method=RequestMethod.GET, produces=APPLICATION_NDJSON)
+    public DeferredResult<ResponseEntity<Void>> streamContacts(@ApiParam(value="Search contacts by name") @RequestParam(value="name", required=false) String name,
+                                                               @ApiParam(value="Search contacts by surname") @RequestParam(value="surname", required=false) String surname,
+                                                               @ApiParam(value="Search contacts by phone") @RequestParam(value="phone", required=false) String phone,
+                                                               @ApiParam(value="How to match the search values: exact or prefix") @RequestParam(value="match", defaultValue="exact") String match,
+                                                               HttpServletResponse response) throws IllegalQueryException, ServiceUnavailableException {
+        MatchMode matchMode = parseMatchMode(match);
+        return searchExecutor.submitStream(expired -> {
+            response.setContentType(APPLICATION_NDJSON + ";charset=UTF-8");
+            ObjectWriter contactWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            try (Stream<IndexedContact> contacts = phoneBook.streamContacts(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+                 JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+                generator.setRootValueSeparator(null);
+                Iterator<IndexedContact> contactIterator = contacts.iterator();
+                long writtenContacts = 0;
+                while (contactIterator.hasNext() && !expired.getAsBoolean()) {
+                    contactWriter.writeValue(generator, contactIterator.next());
+                    generator.writeRaw('\n');
+                    writtenContacts++;
+                }
+                metrics.recordSearch(matchMode, Optional.ofNullable(name), Optional.ofNullable(surname), Optional.ofNullable(phone));
+                metrics.recordResponseSize("streamContacts", writtenContacts);
+            }
+            return ResponseEntity.ok().<Void>body(null);
+        });
     }
 
     /**
      * Searches in phonebook for a contact that maches the GET reqeust's id and if such a contact exists, returns it.
+     * <p/>
+     * The response has an ETag made of the contact's version, and of <code>bin</code> when the contact is sent in {@link #APPLICATION_CONTACTS}.
+     * When a client sends it back in an <code>If-None-Match</code> header and the contact has not changed since, the response is a bodyless 304.
      *
      * @param id - the contact id to be looked up in the phone book.
+     * @param ifNoneMatch - the ETag of the contact that the client already has.
+     * @param request - the request whose <code>Accept</code> header picks the form of the contact.
      * @return the contact that matches request's id, if such contact exists.
      * @throws ContactNotFoundException if no contact is found with this id.
      */
-	@ApiOperation("Get a single contact using its id.")
-    @RequestMapping(value="{id}", method=RequestMethod.GET, produces="application/json")
-    public IndexedContact getContact(@ApiParam(value="The id of the contact to be retrieved") @PathVariable String id) throws ContactNotFoundException {
-        return phoneBook.findContact(Long.valueOf(id)).orElseThrow(() -> new ContactNotFoundException(id));
+	@ApiOperation("Get a single contact using its id. Send its ETag in If-None-Match to get a 304 if it has not changed.")
+    @RequestMapping(value="{id}", method=RequestMethod.GET, produces={"application/json", APPLICATION_CONTACTS})
+    public ResponseEntity<IndexedContact> getContact(@ApiParam(value="The id of the contact to be retrieved") @PathVariable String id,
+                                                     @ApiParam(value="The ETag of the contact that the client already has") @RequestHeader(value="If-None-Match", required=false) String ifNoneMatch,
+                                                     HttpServletRequest request) throws ContactNotFoundException {
+        IndexedContact contact = phoneBook.findContact(Long.valueOf(id)).orElseThrow(() -> new ContactNotFoundException(id));
+        String matchingETag = EntityTags.matching(ifNoneMatch, EntityTags.of(contact.getVersion()));
+        if (matchingETag != null) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(matchingETag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(null);
+        }
+        return ResponseEntity.ok().eTag(eTagOf(contact, request)).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(contact);
+    }
+
+    /**
+     * Looks up many contacts at once, so that a client can gather the lookups of single contacts into a single request.
+     * The contacts that exist are returned in the order of the ids, while the ids without a contact are left out.
+     *
+     * @param ids - the ids of the contacts to be looked up, at most {@link #MAX_PAGE_SIZE}.
+     * @return the contacts that were found.
+     * @throws IllegalQueryException if there are more ids than {@link #MAX_PAGE_SIZE}.
+     */
+	@ApiOperation("Get many contacts at once using their ids. The contacts that exist are returned in the order of the ids.")
+    @RequestMapping(value="batch", method=RequestMethod.GET, produces={"application/json", APPLICATION_CONTACTS})
+    public ResponseEntity<List<IndexedContact>> getContactsByIds(@ApiParam(value="The ids of the contacts to be retrieved") @RequestParam(value="id") List<Long> ids) throws IllegalQueryException {
+        if (ids.size() > MAX_PAGE_SIZE) {
+            throw new IllegalQueryException("At most " + MAX_PAGE_SIZE + " ids may be looked up at once.");
+        }
+        List<IndexedContact> contacts = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (id != null) {
+                phoneBook.findContact(id).ifPresent(contacts::add);
+            }
+        }
+        metrics.recordResponseSize("getContactsByIds", contacts.size());
+        return ResponseEntity.ok().header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(contacts);
     }
 
     /**
@@ -85,10 +368,9 @@ public class PhoneBookController {
      * @return an {@link IndexedContact}, which has the same details with the contact provided, but also the unique id that identifies it in the phone book.
      */
 	@ApiOperation("Add an un-indexed contact to the phone book. Provide just name, surname and phone the the phone book will handle its indexing.")
-    @RequestMapping(method=RequestMethod.POST, consumes="application/json", produces="application/json")
-    @ResponseStatus(HttpStatus.CREATED)
-    public IndexedContact addContact(@ApiParam(value="The contact to be added in the phone book") @RequestBody Contact contact) {
-        return phoneBook.addContact(contact);
+    @RequestMapping(method=RequestMethod.POST, consumes={"application/json", APPLICATION_CONTACTS}, produces={"application/json", APPLICATION_CONTACTS})
+    public ResponseEntity<IndexedContact> addContact(@ApiParam(value="The contact to be added in the phone book") @RequestBody Contact contact) {
+        return ResponseEntity.status(HttpStatus.CREATED).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(phoneBook.addContact(contact));
     }
 
     /**
@@ -96,20 +378,90 @@ public class PhoneBookController {
      * under the specific URI it will update the contact. For this reason the URI's id and the {@link IndexedContact}'s id
      * should be the same. If there is not contact yet, it will create it with
      * the request body.
+     * <p/>
+     * With an <code>If-Match</code> header, the contact is only replaced if it exists and its current ETag is one of the header's,
+     * so that a client never overwrites a change it has not seen. The check and the replacement are a single step of the
+     * {@link PhoneBook}. The response has the ETag of the stored contact, in the form that the contact is sent back in.
      *
      * @param id - the id that identifies the resource (contact) to be added.
      * @param indexedContact - the contact to be added under the specific URI.
+     * @param ifMatch - the ETags of the contact that may be replaced, or <code>*</code> for any existing contact.
+     * @param request - the request whose <code>Accept</code> header picks the form of the contact.
      * @return the contact added to the phone book.
      * @throws IllegalContactException if the URI's id and the {@link IndexedContact}'s id are not the same.
+     * @throws ContactChangedException if there is an <code>If-Match</code> header, but no contact with one of its ETags.
      */
-	@ApiOperation("Add an indexed contact to the phone book. If the id belongs to an older contact, the contact will be replaced.")
-    @RequestMapping(value="{id}", method=RequestMethod.PUT, consumes="application/json", produces="application/json")
-    public IndexedContact addContact(@ApiParam(value="The id of the contact to be added") @PathVariable String id,
-                                     @ApiParam(value="The contact to be added, or replace the older one with the same id") @RequestBody IndexedContact indexedContact) throws IllegalContactException {
+	@ApiOperation("Add an indexed contact to the phone book. If the id belongs to an older contact, the contact will be replaced. Send an ETag in If-Match to replace the contact only if it has not changed.")
+    @RequestMapping(value="{id}", method=RequestMethod.PUT, consumes={"application/json", APPLICATION_CONTACTS}, produces={"application/json", APPLICATION_CONTACTS})
+    public ResponseEntity<IndexedContact> addContact(@ApiParam(value="The id of the contact to be added") @PathVariable String id,
+                                                     @ApiParam(value="The contact to be added, or replace the older one with the same id") @RequestBody IndexedContact indexedContact,
+                                                     @ApiParam(value="The ETag of the contact to be replaced") @RequestHeader(value="If-Match", required=false) String ifMatch,
+                                                     HttpServletRequest request) throws IllegalContactException, ContactChangedException {
         if (indexedContact.getId() == null || !id.equals(indexedContact.getId().toString())) {
             throw new IllegalContactException("The contact's id should be the same with the URI's id.");
         }
-        return phoneBook.addContact(indexedContact);
+        IndexedContact addedContact = ifMatch == null
+                ? phoneBook.addContact(indexedContact)
+                : phoneBook.replaceContact(indexedContact, EntityTags.versions(ifMatch)).orElseThrow(() -> new ContactChangedException(id));
+        return ResponseEntity.ok().eTag(eTagOf(addedContact, request)).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(addedContact);
+    }
+
+    /**
+     * Adds a batch of contacts, given as a JSON array, to the phone book. The ids of the whole batch are allocated
+     * at once and the batch is applied with a single call to {@link PhoneBook#addContacts(List)}, so a large import
+     * does not pay the cost of a request per contact.
+     *
+     * @param contacts - the contacts to be added in the phone book.
+     * @return the result of every contact, in the order of the request, with the id it was given.
+     */
+	@ApiOperation("Add a batch of un-indexed contacts to the phone book. The result of every contact is reported in the order of the request.")
+    @RequestMapping(value="batch", method=RequestMethod.POST, consumes="application/json", produces="application/json")
+    public List<BatchResult> addContacts(@ApiParam(value="The contacts to be added in the phone book") @RequestBody List<Contact> contacts) {
+        return addContacts(contacts, 0);
+    }
+
+    /**
+     * Works like {@link #addContacts(List)}, but reads the contacts from a newline delimited JSON stream, applies them
+     * to the phone book in batches of {@link #STREAMED_BATCH_SIZE} and streams back a line of JSON with the result of
+     * every contact, so a request may carry any number of contacts. A line that is not a valid contact ends the stream: the
+     * lines before it are applied, and it is reported as a bad request, as the last line of the response.
+     *
+     * @param request - the request that the contacts will be read from.
+     * @param response - the response that the results will be written to.
+     * @throws IOException if the contacts could not be read or the results could not be written.
+     */
+	@ApiOperation("Add a stream of un-indexed contacts to the phone book, given as newline delimited JSON.")
+    @RequestMapping(value="batch", method=RequestMethod.POST, consumes=APPLICATION_NDJSON, produces=APPLICATION_NDJSON)
+    public void addStreamedContacts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        applyStreamedBatches(Contact.class, this::addContacts, request, response);
+    }
+
+    /**
+     * Adds or replaces a batch of {@link IndexedContact}s, given as a JSON array, with a single call
+     * to {@link PhoneBook#putContacts(List)}. A contact without an id is reported as a bad request,
+     * while the rest of the batch is still applied.
+     *
+     * @param contacts - the contacts to be added, or to replace the older ones with the same ids.
+     * @return the result of every contact, in the order of the request.
+     */
+	@ApiOperation("Add a batch of indexed contacts to the phone book, replacing the older contacts with the same ids.")
+    @RequestMapping(value="batch", method=RequestMethod.PUT, consumes="application/json", produces="application/json")
+    public List<BatchResult> putContacts(@ApiParam(value="The contacts to be added, or replace the older ones with the same ids") @RequestBody List<IndexedContact> contacts) {
+        return putContacts(contacts, 0);
+    }
+
+    /**
+     * Works like {@link #putContacts(List)}, but reads the contacts from a newline delimited JSON stream
+     * and streams back the results, as {@link #addStreamedContacts(HttpServletRequest, HttpServletResponse)} does.
+     *
+     * @param request - the request that the contacts will be read from.
+     * @param response - the response that the results will be written to.
+     * @throws IOException if the contacts could not be read or the results could not be written.
+     */
+	@ApiOperation("Add a stream of indexed contacts to the phone book, given as newline delimited JSON.")
+    @RequestMapping(value="batch", method=RequestMethod.PUT, consumes=APPLICATION_NDJSON, produces=APPLICATION_NDJSON)
+    public void putStreamedContacts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        applyStreamedBatches(IndexedContact.class, this::putContacts, request, response);
     }
 
     /**
@@ -124,4 +476,268 @@ public class PhoneBookController {
         phoneBook.deleteContact(Long.valueOf(id));
     }
 
+    /**
+     * Deletes a batch of contacts, given as a JSON array of ids, with a single call to {@link PhoneBook#deleteContacts(List)}.
+     * The ids without a contact are reported as not found.
+     *
+     * @param ids - the ids of the contacts to be deleted.
+     * @return the result of every id, in the order of the request.
+     */
+	@ApiOperation("Delete a batch of contacts from the phone book using their ids.")
+    @RequestMapping(value="batch", method=RequestMethod.DELETE, consumes="application/json", produces="application/json")
+    public List<BatchResult> deleteContacts(@ApiParam(value="The ids of the contacts to be deleted") @RequestBody List<Long> ids) {
+        return deleteContacts(ids, 0);
+    }
+
+    /**
+     * Works like {@link #deleteContacts(List)}, but reads the ids from a newline delimited JSON stream
+     * and streams back the results, as {@link #addStreamedContacts(HttpServletRequest, HttpServletResponse)} does.
+     *
+     * @param request - the request that the ids will be read from.
+     * @param response - the response that the results will be written to.
+     * @throws IOException if the ids could not be read or the results could not be written.
+     */
+	@ApiOperation("Delete a stream of contacts from the phone book, given as newline delimited JSON ids.")
+    @RequestMapping(value="batch", method=RequestMethod.DELETE, consumes=APPLICATION_NDJSON, produces=APPLICATION_NDJSON)
+    public void deleteStreamedContacts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        applyStreamedBatches(Long.class, this::deleteContacts, request, response);
+    }
+
+    /**
+     * Follows the {@link ChangeFeed} of the phone book and writes every change as a server-sent event, whose id can be sent back
+     * as the <code>after</code> parameter or the <code>Last-Event-ID</code> header of the next request, to continue where this one stopped.
+     * Without either of them, the feed is followed from its next change, and the stream starts with the id of the change before it.
+     * <p/>
+     * Every event is named after its type, <code>added</code>, <code>updated</code> or <code>deleted</code>, and its data is the change as JSON.
+     * When the changes after the given id are no longer kept, a <code>gap</code> event is written instead, with the id that the
+     * changes after it continue from, and the client should load the phone book again before applying them.
+     * <p/>
+     * The request waits for new changes until its timeout, writing a keep-alive comment every {@link #CHANGES_HEARTBEAT} seconds
+     * without changes. A timeout of zero writes the changes that had been published when the request arrived and returns. The changes
+     * are read in batches of {@link #STREAMED_BATCH_SIZE}, and the response is flushed after every batch, so a slow client holds
+     * back the request instead of the changes piling up in memory.
+     * <p/>
+     * Every request holds one of the server's threads while it follows the feed, so at most <code>phonebook.changes.max-subscribers</code>
+     * requests (16 by default) follow it at once, and further ones get a 503, leaving the rest of the threads to the other requests.
+     *
+     * @param after - the id of the last event that the client has applied.
+     * @param lastEventId - the id of the last event that the client has applied, as sent by a reconnecting event source.
+     * @param timeout - how many seconds to follow the feed for.
+     * @param response - the response that the events will be written to.
+     * @throws IOException if the events could not be written to the response.
+     * @throws IllegalQueryException if the timeout is out of range.
+     * @throws ServiceUnavailableException if too many requests follow the feed.
+     */
+	@ApiOperation("Follow the changes to the phone book's contacts as server-sent events, after the event id of the last change you have applied.")
+    @RequestMapping(value="changes", method=RequestMethod.GET, produces=TEXT_EVENT_STREAM)
+    public void streamChanges(@ApiParam(value="The id of the last event that you have applied") @RequestParam(value="after", required=false) String after,
+                              @ApiParam(value="The id of the last event that you have applied, when reconnecting") @RequestHeader(value="Last-Event-ID", required=false) String lastEventId,
+                              @ApiParam(value="How many seconds to wait for changes") @RequestParam(value="timeout", defaultValue="30") int timeout,
+                              HttpServletResponse response) throws IOException, IllegalQueryException, ServiceUnavailableException {
+        if (timeout < 0 || timeout > MAX_CHANGES_TIMEOUT) {
+            throw new IllegalQueryException("The timeout should be between 0 and " + MAX_CHANGES_TIMEOUT + " seconds.");
+        }
+        if (changeSubscribers.incrementAndGet() > maxChangeSubscribers) {
+            changeSubscribers.decrementAndGet();
+            throw new ServiceUnavailableException("Too many requests follow the changes.");
+        }
+        try {
+            writeChanges(after, lastEventId, timeout, response);
+        } finally {
+            changeSubscribers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the changes for {@link #streamChanges(String, String, int, HttpServletResponse)}.
+     */
+    private void writeChanges(String after, String lastEventId, int timeout, HttpServletResponse response) throws IOException {
+        ChangeFeed changeFeed = phoneBook.getChangeFeed();
+        String lastId = after != null ? after : lastEventId;
+        long sequence = lastId != null ? changeFeed.sequenceAfter(lastId) : changeFeed.getNextSequence();
+        long lastSequence = changeFeed.getNextSequence();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+
+        response.setContentType(TEXT_EVENT_STREAM + ";charset=UTF-8");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        ObjectWriter changeWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        PrintWriter writer = response.getWriter();
+        if (lastId == null) {
+            writer.write("id: " + changeFeed.eventId(sequence - 1) + "\n\n");
+        }
+        try {
+            do {
+                long wait = Math.max(0, Math.min(deadline - System.nanoTime(), TimeUnit.SECONDS.toNanos(CHANGES_HEARTBEAT)));
+                ChangeFeed.Changes changes = changeFeed.read(sequence, STREAMED_BATCH_SIZE, wait, TimeUnit.NANOSECONDS);
+                if (changes.isGap()) {
+                    writer.write("id: " + changeFeed.eventId(changes.getFirstSequence() - 1) + "\nevent: gap\ndata: {}\n\n");
+                }
+                for (ContactChange change : changes.getChanges()) {
+                    writer.write("id: " + changeFeed.eventId(change.getSequence()) + "\nevent: " + change.getType().getName()
+                            + "\ndata: " + changeWriter.writeValueAsString(change) + "\n\n");
+                }
+                if (timeout > 0 && !changes.isGap() && changes.getChanges().isEmpty()) {
+                    writer.write(": keep-alive\n\n");
+                }
+                if (writer.checkError()) {
+                    return;
+                }
+                sequence = changes.getNextSequence();
+            } while (deadline - System.nanoTime() > 0 || (timeout == 0 && sequence < lastSequence));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setMaxChangeSubscribers(int maxChangeSubscribers) {
+        this.maxChangeSubscribers = maxChangeSubscribers;
+    }
+
+    /**
+     * Picks the form of the contacts of a response the way that Spring does for the handlers that produce JSON and
+     * {@link #APPLICATION_CONTACTS}: the acceptable types are sorted by quality and specificity, and JSON wins a tie.
+     *
+     * @return true if the response to the request will have the contacts in their binary form.
+     */
+    private static boolean negotiatesContacts(HttpServletRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (accept == null || !accept.contains(APPLICATION_CONTACTS)) {
+            return false;
+        }
+        List<MediaType> compatibleMediaTypes = new ArrayList<>();
+        for (MediaType acceptedMediaType : MediaType.parseMediaTypes(accept)) {
+            for (MediaType producedMediaType : PRODUCED_MEDIA_TYPES) {
+                if (acceptedMediaType.getQualityValue() > 0 && acceptedMediaType.isCompatibleWith(producedMediaType)) {
+                    compatibleMediaTypes.add(producedMediaType.copyQualityValue(acceptedMediaType));
+                }
+            }
+        }
+        MediaType.sortBySpecificityAndQuality(compatibleMediaTypes);
+        return !compatibleMediaTypes.isEmpty() && CONTACTS_MEDIA_TYPE.isCompatibleWith(compatibleMediaTypes.get(0));
+    }
+
+    /**
+     * @return the ETag of a contact, in the form that the response to the request will have it.
+     */
+    private static String eTagOf(IndexedContact contact, HttpServletRequest request) {
+        return EntityTags.of(contact.getVersion(), negotiatesContacts(request) ? EntityTags.BINARY : null);
+    }
+
+    /**
+     * Writes the JSON of a cached listing as it is, compressed if the client accepts it, with the ETag of the content coding.
+     */
+    private static ResponseEntity<byte[]> encodedListing(EncodedListing listing, String acceptEncoding, long modificationCount) {
+        String encoding = listing.encodingFor(acceptEncoding);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(EntityTags.of(modificationCount, encoding));
+        headers.setContentType(JSON_UTF8);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (encoding != null) {
+            headers.add(HttpHeaders.CONTENT_ENCODING, encoding);
+        }
+        return new ResponseEntity<>(listing.getBody(encoding), headers, HttpStatus.OK);
+    }
+
+    private MatchMode parseMatchMode(String match) throws IllegalQueryException {
+        try {
+            return MatchMode.valueOf(match.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalQueryException("Unknown match mode '" + match + "'.");
+        }
+    }
+
+    private List<BatchResult> addContacts(List<Contact> contacts, int firstIndex) {
+        Iterator<IndexedContact> addedContacts = phoneBook.addContacts(
+                contacts.stream().filter(Objects::nonNull).collect(Collectors.toList())).iterator();
+        List<BatchResult> results = new ArrayList<>(contacts.size());
+        for (int i = 0; i < contacts.size(); i++) {
+            results.add(contacts.get(i) == null
+                    ? BatchResult.failed(firstIndex + i, HttpStatus.BAD_REQUEST, null, "The contact is missing.")
+                    : BatchResult.applied(firstIndex + i, HttpStatus.CREATED, addedContacts.next().getId()));
+        }
+        return results;
+    }
+
+    private List<BatchResult> putContacts(List<IndexedContact> contacts, int firstIndex) {
+        phoneBook.putContacts(contacts.stream().filter(contact -> contact != null && contact.getId() != null).collect(Collectors.toList()));
+        List<BatchResult> results = new ArrayList<>(contacts.size());
+        for (int i = 0; i < contacts.size(); i++) {
+            IndexedContact contact = contacts.get(i);
+            if (contact == null) {
+                results.add(BatchResult.failed(firstIndex + i, HttpStatus.BAD_REQUEST, null, "The contact is missing."));
+            } else if (contact.getId() == null) {
+                results.add(BatchResult.failed(firstIndex + i, HttpStatus.BAD_REQUEST, null, "The contact should have an id."));
+            } else {
+                results.add(BatchResult.applied(firstIndex + i, HttpStatus.OK, contact.getId()));
+            }
+        }
+        return results;
+    }
+
+    private List<BatchResult> deleteContacts(List<Long> ids, int firstIndex) {
+        Iterator<Boolean> deleted = phoneBook.deleteContacts(ids.stream().filter(Objects::nonNull).collect(Collectors.toList())).iterator();
+        List<BatchResult> results = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            if (id == null) {
+                results.add(BatchResult.failed(firstIndex + i, HttpStatus.BAD_REQUEST, null, "The id is missing."));
+            } else if (deleted.next()) {
+                results.add(BatchResult.applied(firstIndex + i, HttpStatus.NO_CONTENT, id));
+            } else {
+                results.add(BatchResult.failed(firstIndex + i, HttpStatus.NOT_FOUND, id, "No such contact."));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads the items of a newline delimited JSON request, applies them in batches of {@link #STREAMED_BATCH_SIZE}
+     * and writes the result of every item as a line of JSON, flushing the response after every batch.
+     *
+     * @param itemType - the type of the request's items.
+     * @param applyBatch - applies a batch of items, given the position of its first item in the request, and returns their results.
+     * @param request - the request that the items will be read from.
+     * @param response - the response that the results will be written to.
+     * @throws IOException if the items could not be read or the results could not be written.
+     * @throws IllegalContactException if a line is not a valid item.
+     */
+    private <T> void applyStreamedBatches(Class<T> itemType, BiFunction<List<T>, Integer, List<BatchResult>> applyBatch,
+                                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(APPLICATION_NDJSON + ";charset=UTF-8");
+        ObjectWriter resultWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        List<T> batch = new ArrayList<>(STREAMED_BATCH_SIZE);
+        int firstIndex = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(request.getInputStream());
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.setRootValueSeparator(null);
+            try {
+                JsonToken token = parser.nextToken();
+                while (token != null) {
+                    batch.add(token == JsonToken.VALUE_NULL ? null : objectMapper.readValue(parser, itemType));
+                    token = parser.nextToken();
+                    if (batch.size() == STREAMED_BATCH_SIZE || token == null) {
+                        writeResults(resultWriter, generator, applyBatch.apply(batch, firstIndex));
+                        firstIndex += batch.size();
+                        batch.clear();
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                // The parser cannot find the next line after invalid JSON, so the lines so far are applied and the stream ends.
+                int invalidIndex = firstIndex + batch.size();
+                List<BatchResult> results = new ArrayList<>(applyBatch.apply(batch, firstIndex));
+                results.add(BatchResult.failed(invalidIndex, HttpStatus.BAD_REQUEST, null, "The item is not valid JSON, so it and the items after it were not applied."));
+                writeResults(resultWriter, generator, results);
+            }
+        }
+    }
+
+    private static void writeResults(ObjectWriter resultWriter, JsonGenerator generator, List<BatchResult> results) throws IOException {
+        for (BatchResult result : results) {
+            resultWriter.writeValue(generator, result);
+            generator.writeRaw('\n');
+        }
+        generator.flush();
+    }
+
 }
@@ -0,0 +1,253 @@
+package travelling.with.code.restful.phonebook;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import travelling.with.code.restful.phonebook.exceptions.ServiceUnavailableException;
+
+/**
+ * Runs the searches of {@link PhoneBookController} that may return any number of contacts on a dedicated, bounded pool of threads,
+ * so that a burst of large listings cannot take up all the threads of the server, and lookups of single contacts, which stay
+ * on the server's threads, keep their latency while the listings are in flight.
+ * <p/>
+ * A search is handed over as a {@link DeferredResult}, which frees the server's thread as soon as the search is queued. The pool has
+ * <code>phonebook.async.threads</code> threads (the number of processors by default) and queues up to
+ * <code>phonebook.async.queue-capacity</code> searches (100 by default). When the queue is full, the search is rejected with a
+ * {@link ServiceUnavailableException}, so clients get a 503 right away instead of waiting behind a queue they cannot see.
+ * A search that has not finished after <code>phonebook.async.timeout-millis</code> (30 seconds by default) is interrupted and
+ * gets a 503 too.
+ * <p/>
+ * A search that writes its contacts straight to the response is submitted with {@link #submitStream(StreamingSearch)} instead. Its
+ * response is committed as soon as the first contacts are written, so it cannot turn into a 503 any more, and a large stream to a
+ * slow client may rightly take longer than any search. Streams have no timeout unless <code>phonebook.async.stream-timeout-millis</code>
+ * is set, and a stream that outlives it is not interrupted, but told to stop writing, so that it closes its response before the
+ * request completes.
+ * <p/>
+ * Setting <code>phonebook.async.enabled</code> to false runs every search on the server's thread that received it, as if there was no pool.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+public class SearchExecutor {
+
+    @Value("${phonebook.async.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${phonebook.async.threads:0}")
+    private int threads;
+
+    @Value("${phonebook.async.queue-capacity:100}")
+    private int queueCapacity = 100;
+
+    @Value("${phonebook.async.timeout-millis:30000}")
+    private long timeoutMillis = 30_000;
+
+    @Value("${phonebook.async.stream-timeout-millis:0}")
+    private long streamTimeoutMillis;
+
+    private ThreadPoolExecutor executor;
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * The longest time that the timeout of a stream waits for the stream to stop writing, before the stream is interrupted.
+     */
+    private static final long STREAM_STOP_MILLIS = 1_000;
+
+    /**
+     * A search that writes its results to the response itself.
+     */
+    @FunctionalInterface
+    public interface StreamingSearch<T> {
+
+        /**
+         * @param expired - tells whether the request has timed out, after which the search should stop writing and return.
+         * @return the result of the request once everything has been written.
+         * @throws Exception if the search fails.
+         */
+        T call(BooleanSupplier expired) throws Exception;
+
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "phonebook-search-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, queue, threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues a search on the pool.
+     *
+     * @param search - the search, whose result or exception becomes the result of the request.
+     * @return the result that the search will set once it has run.
+     * @throws ServiceUnavailableException if the queue is full.
+     */
+    public <T> DeferredResult<T> submit(Callable<T> search) throws ServiceUnavailableException {
+        DeferredResult<T> result = new DeferredResult<>(timeoutMillis);
+        if (executor == null) {
+            run(search, result);
+            return result;
+        }
+        Future<?> future;
+        try {
+            future = executor.submit(() -> run(search, result));
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw new ServiceUnavailableException("The queue of searches is full.");
+        }
+        result.onTimeout(() -> {
+            future.cancel(true);
+            result.setErrorResult(new ServiceUnavailableException("The search did not finish in " + timeoutMillis + " ms."));
+        });
+        return result;
+    }
+
+    /**
+     * Queues a search that writes its results straight to the response on the pool. The result has no timeout unless
+     * <code>phonebook.async.stream-timeout-millis</code> is set. When it times out, a stream that has not started yet gets a 503,
+     * and a running stream is told to stop writing, and is waited for, so that it is no longer writing when the request completes.
+     *
+     * @param search - the search, whose result or exception becomes the result of the request.
+     * @return the result that the search will set once it has written everything.
+     * @throws ServiceUnavailableException if the queue is full.
+     */
+    public <T> DeferredResult<T> submitStream(StreamingSearch<T> search) throws ServiceUnavailableException {
+        DeferredResult<T> result = new DeferredResult<>(Math.max(streamTimeoutMillis, 0));
+        AtomicBoolean expired = new AtomicBoolean();
+        if (executor == null) {
+            run(() -> search.call(expired::get), result);
+            return result;
+        }
+        AtomicBoolean started = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    run(() -> search.call(expired::get), result);
+                } finally {
+                    finished.countDown();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw new ServiceUnavailableException("The queue of searches is full.");
+        }
+        result.onTimeout(() -> {
+            expired.set(true);
+            if (started.compareAndSet(false, true)) {
+                future.cancel(false);
+                result.setErrorResult(new ServiceUnavailableException("The stream did not start in " + streamTimeoutMillis + " ms."));
+                return;
+            }
+            try {
+                if (!finished.await(STREAM_STOP_MILLIS, TimeUnit.MILLISECONDS)) {
+                    future.cancel(true);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            result.setErrorResult(new ServiceUnavailableException("The stream did not finish in " + streamTimeoutMillis + " ms."));
+        });
+        return result;
+    }
+
+    /**
+     * @param value - the result of a request that needs no search.
+     * @return a result that is already set to the value.
+     */
+    public <T> DeferredResult<T> completed(T value) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
+
+    private <T> void run(Callable<T> search, DeferredResult<T> result) {
+        try {
+            result.setResult(search.call());
+        } catch (Exception e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    /**
+     * @return the number of searches that are running.
+     */
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of searches that wait for a thread.
+     */
+    public int getQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of searches that were rejected because the queue was full.
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void setStreamTimeoutMillis(long streamTimeoutMillis) {
+        this.streamTimeoutMillis = streamTimeoutMillis;
+    }
+
+}
@@ -0,0 +1,73 @@
+package travelling.with.code.restful.phonebook.admission;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+/**
+ * Registers the {@link RateLimitFilter} for the requests to the phone book's contacts, in front of every other filter,
+ * so that a request that is not admitted costs the server as little as possible.
+ * <p/>
+ * The rate limiting is enabled by setting the <code>phonebook.ratelimit.enabled</code> property to true. Every client gets
+ * <code>phonebook.ratelimit.tokens-per-second</code> tokens per second (100 by default) and can save up to
+ * <code>phonebook.ratelimit.burst</code> of them (200 by default). Up to <code>phonebook.ratelimit.max-clients</code> clients
+ * (10000 by default) are remembered after they are not limited anymore. The weights of the requests and the header that
+ * may tell the clients apart, instead of their address, are set as described in {@link RateLimitFilter}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Configuration
+@ConditionalOnProperty(name = "phonebook.ratelimit.enabled", havingValue = "true")
+public class RateLimitConfiguration {
+
+    @Value("${phonebook.ratelimit.tokens-per-second:100}")
+    private double tokensPerSecond;
+
+    @Value("${phonebook.ratelimit.burst:200}")
+    private int burst;
+
+    @Value("${phonebook.ratelimit.max-clients:10000}")
+    private int maxClients;
+
+    @Value("${phonebook.ratelimit.client-header:}")
+    private String clientHeader;
+
+    @Value("${phonebook.ratelimit.weight.lookup:1}")
+    private int lookupWeight;
+
+    @Value("${phonebook.ratelimit.weight.search:5}")
+    private int searchWeight;
+
+    @Value("${phonebook.ratelimit.weight.scan:50}")
+    private int scanWeight;
+
+    @Value("${phonebook.ratelimit.weight.write:2}")
+    private int writeWeight;
+
+    @Value("${phonebook.ratelimit.weight.batch:20}")
+    private int batchWeight;
+
+    @Bean
+    public RateLimiter rateLimiter() {
+        return new RateLimiter(tokensPerSecond, burst, maxClients);
+    }
+
+    @Bean
+    public FilterRegistrationBean rateLimitFilter() {
+        RateLimitFilter filter = new RateLimitFilter(rateLimiter());
+        filter.setClientHeader(clientHeader);
+        filter.setLookupWeight(lookupWeight);
+        filter.setSearchWeight(searchWeight);
+        filter.setScanWeight(scanWeight);
+        filter.setWriteWeight(writeWeight);
+        filter.setBatchWeight(batchWeight);
+        FilterRegistrationBean registration = new FilterRegistrationBean(filter);
+        registration.addUrlPatterns(RateLimitFilter.CONTACTS_PATH, RateLimitFilter.CONTACTS_PATH + "/*");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+
+}
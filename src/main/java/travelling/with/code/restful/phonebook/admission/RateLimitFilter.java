@@ -0,0 +1,137 @@
+package travelling.with.code.restful.phonebook.admission;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Admits the requests to the phone book's contacts through a {@link RateLimiter}, before they reach the controller, and answers
+ * the requests that it does not admit with a <code>429 Too Many Requests</code> and a <code>Retry-After</code> header with the
+ * seconds until the client will have enough tokens.
+ * <p/>
+ * Every request takes as many tokens as the work it asks for, by its method and URI:
+ * <ul>
+ * <li>a lookup of a single contact, or following the changes: <code>phonebook.ratelimit.weight.lookup</code> (1 by default),</li>
+ * <li>a search by name, surname or phone, or a page of a listing: <code>phonebook.ratelimit.weight.search</code> (5 by default),</li>
+ * <li>a listing of all contacts, which reads the whole phone book: <code>phonebook.ratelimit.weight.scan</code> (50 by default),</li>
+ * <li>a single write: <code>phonebook.ratelimit.weight.write</code> (2 by default),</li>
+ * <li>a batch of lookups or writes: <code>phonebook.ratelimit.weight.batch</code> (20 by default).</li>
+ * </ul>
+ * Clients are told apart by their address. Any client can send any header, so a header that names the client is only trusted
+ * when it is set with <code>phonebook.ratelimit.client-header</code>, which is meant for a server behind a proxy that sets the
+ * header itself, and the address is used for the requests without it. The asynchronous dispatches of a request that has already
+ * been admitted are not limited again.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    /**
+     * The path of the contacts, which every limited request starts with.
+     */
+    public static final String CONTACTS_PATH = "/phonebook/contacts";
+
+    private final RateLimiter rateLimiter;
+
+    private String clientHeader;
+
+    private int lookupWeight = 1;
+
+    private int searchWeight = 5;
+
+    private int scanWeight = 50;
+
+    private int writeWeight = 2;
+
+    private int batchWeight = 20;
+
+    public RateLimitFilter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long waitNanos = rateLimiter.tryAcquire(clientOf(request), weightOf(request));
+        if (waitNanos > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1))));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests, please try again later.");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !pathOf(request).startsWith(CONTACTS_PATH);
+    }
+
+    /**
+     * @param request - a request to the contacts.
+     * @return the client that sent the request.
+     */
+    public String clientOf(HttpServletRequest request) {
+        String client = clientHeader != null ? request.getHeader(clientHeader) : null;
+        return client != null ? client : request.getRemoteAddr();
+    }
+
+    /**
+     * @param request - a request to the contacts.
+     * @return the number of tokens that the request takes.
+     */
+    public int weightOf(HttpServletRequest request) {
+        String path = pathOf(request);
+        String resource = path.length() > CONTACTS_PATH.length() + 1 ? path.substring(CONTACTS_PATH.length() + 1) : "";
+        if (resource.equals("batch")) {
+            return batchWeight;
+        }
+        if (!"GET".equals(request.getMethod())) {
+            return writeWeight;
+        }
+        if (!resource.isEmpty()) {
+            return lookupWeight;
+        }
+        if (request.getParameter("name") != null || request.getParameter("surname") != null || request.getParameter("phone") != null
+                || request.getParameter("limit") != null || request.getParameter("cursor") != null) {
+            return searchWeight;
+        }
+        return scanWeight;
+    }
+
+    private static String pathOf(HttpServletRequest request) {
+        return request.getRequestURI().substring(request.getContextPath().length());
+    }
+
+    public void setClientHeader(String clientHeader) {
+        this.clientHeader = clientHeader == null || clientHeader.isEmpty() ? null : clientHeader;
+    }
+
+    public void setLookupWeight(int lookupWeight) {
+        this.lookupWeight = lookupWeight;
+    }
+
+    public void setSearchWeight(int searchWeight) {
+        this.searchWeight = searchWeight;
+    }
+
+    public void setScanWeight(int scanWeight) {
+        this.scanWeight = scanWeight;
+    }
+
+    public void setWriteWeight(int writeWeight) {
+        this.writeWeight = writeWeight;
+    }
+
+    public void setBatchWeight(int batchWeight) {
+        this.batchWeight = batchWeight;
+    }
+
+}
@@ -0,0 +1,108 @@
+package travelling.with.code.restful.phonebook.admission;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admits the requests of every client at its own rate, with a {@link TokenBucket} per client, so that a client that sends
+ * more than its share of requests is held back without slowing down the others.
+ * <p/>
+ * Every client gets <code>tokensPerSecond</code> tokens per second and can save up to <code>burst</code> of them. A request
+ * takes as many tokens as its weight, so a request that costs the phone book more can be given a greater weight, and a request
+ * that weighs more than a burst takes a whole burst, so that it is still admitted when the client has saved up. Admitting
+ * a request looks up the bucket of its client in a concurrent map and takes the tokens with a compare-and-set, so
+ * requests of different clients never contend, and requests of the same client only contend on their bucket.
+ * <p/>
+ * A bucket that is full again is no different from a new one, so once more than <code>maxClients</code> clients have
+ * buckets, the full buckets are dropped. The buckets are swept again when their number has doubled since the last sweep,
+ * so that many busy clients do not cause a sweep on every new client.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class RateLimiter {
+
+    private final double tokensPerSecond;
+
+    private final int burst;
+
+    private final int maxClients;
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * The number of buckets above which they are swept. Is written without synchronization, since a sweep more or less does not matter.
+     */
+    private volatile int sweepThreshold;
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param tokensPerSecond - the rate at which the tokens of every client refill.
+     * @param burst - the most tokens that a client can save up.
+     * @param maxClients - the number of clients above which the clients that are not limited anymore are forgotten.
+     */
+    public RateLimiter(double tokensPerSecond, int burst, int maxClients) {
+        if (tokensPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate should be positive and the burst at least 1.");
+        }
+        this.tokensPerSecond = tokensPerSecond;
+        this.burst = burst;
+        this.maxClients = maxClients;
+        this.sweepThreshold = maxClients;
+    }
+
+    /**
+     * Admits a request of a client, if the client has enough tokens left.
+     *
+     * @param client - the client that sent the request.
+     * @param weight - the number of tokens that the request takes.
+     * @return 0 if the request is admitted, or else the nanoseconds until the client will have enough tokens.
+     */
+    public long tryAcquire(String client, int weight) {
+        return tryAcquire(client, weight, System.nanoTime());
+    }
+
+    /**
+     * Works like {@link #tryAcquire(String, int)} at the given time.
+     *
+     * @param client - the client that sent the request.
+     * @param weight - the number of tokens that the request takes.
+     * @param now - the current time, as of {@link System#nanoTime()}.
+     * @return 0 if the request is admitted, or else the nanoseconds until the client will have enough tokens.
+     */
+    public long tryAcquire(String client, int weight, long now) {
+        TokenBucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= sweepThreshold) {
+                sweep(now);
+            }
+            bucket = buckets.computeIfAbsent(client, key -> new TokenBucket(tokensPerSecond, burst));
+        }
+        long waitNanos = bucket.tryAcquire(Math.min(weight, burst), now);
+        if (waitNanos > 0) {
+            rejections.increment();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * @return the number of requests that were not admitted.
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * @return the number of clients that have a bucket.
+     */
+    public int getClientCount() {
+        return buckets.size();
+    }
+
+    private void sweep(long now) {
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+        sweepThreshold = Math.max(maxClients, buckets.size() * 2);
+    }
+
+}
@@ -0,0 +1,68 @@
+package travelling.with.code.restful.phonebook.admission;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket of a single client, which holds up to a burst of tokens and refills at a steady rate.
+ * <p/>
+ * Instead of a number of tokens and the time they were last refilled, the bucket keeps a single number: the time at which
+ * it will be full again, which is known as the theoretical arrival time of the generic cell rate algorithm. Taking tokens
+ * pushes that time forward by the time they take to refill, and is allowed as long as it does not end up more than a
+ * burst's worth of refilling ahead of now. So taking tokens is a single compare-and-set, without a lock or a timer.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class TokenBucket {
+
+    private final long nanosPerToken;
+
+    private final long burstNanos;
+
+    /**
+     * The time, as of {@link System#nanoTime()}, at which the bucket is full again.
+     */
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param tokensPerSecond - the rate at which the bucket refills.
+     * @param burst - the number of tokens that the bucket holds when it is full.
+     */
+    public TokenBucket(double tokensPerSecond, int burst) {
+        if (tokensPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate should be positive and the burst at least 1.");
+        }
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000 / tokensPerSecond));
+        this.burstNanos = burst * nanosPerToken;
+    }
+
+    /**
+     * Takes tokens from the bucket, if it holds enough of them.
+     *
+     * @param tokens - the number of tokens to be taken.
+     * @param now - the current time, as of {@link System#nanoTime()}.
+     * @return 0 if the tokens were taken, or else the nanoseconds until the bucket will hold enough of them.
+     */
+    public long tryAcquire(int tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + tokens * nanosPerToken;
+            long excess = next - now - burstNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @param now - the current time, as of {@link System#nanoTime()}.
+     * @return true if the bucket is full, so it is no different from a new bucket.
+     */
+    public boolean isFull(long now) {
+        long current = fullAt.get();
+        return current == Long.MIN_VALUE || current <= now;
+    }
+
+}
@@ -0,0 +1,131 @@
+package travelling.with.code.restful.phonebook.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * A cache that holds up to a maximum number of entries, evicting the least recently used entry when it is full,
+ * but only in favour of a key that a {@link FrequencySketch} estimates to be requested more often than the entry
+ * it would evict. This admission policy (TinyLFU) keeps one-off lookups, such as a scan over many ids, from flushing
+ * the hot entries out of the cache.
+ * <p/>
+ * Loads and invalidations may race: a value loaded before a write could be put after the write has invalidated it.
+ * To prevent this, a caller takes a {@link #stamp()} before it loads a value and passes it to {@link #put(Object, Object, long)},
+ * which drops the value if the cache was invalidated in the meantime.
+ * <p/>
+ * All methods are guarded by the cache's monitor, which is only held for a few map operations.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class BoundedCache<K, V> {
+
+    private final int maximumSize;
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+
+    private long invalidations;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long rejections;
+
+    public BoundedCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("The maximum size of a cache should be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Looks up a key and counts the request, whether it is a hit or a miss.
+     *
+     * @param key - the key to be looked up.
+     * @return the value of the key, or null if it is not cached.
+     */
+    public synchronized V get(K key) {
+        sketch.increment(key);
+        V value = entries.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a stamp that should be taken before a value is loaded and then passed to {@link #put(Object, Object, long)}.
+     *
+     * @return the number of invalidations so far.
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Puts a loaded value in the cache, unless the cache was invalidated since the stamp was taken.
+     * When the cache is full, the value is only admitted if its key is requested more often than the
+     * least recently used key, which is then evicted.
+     *
+     * @param key - the key of the value.
+     * @param value - the value loaded for the key.
+     * @param stamp - the {@link #stamp()} taken before the value was loaded.
+     */
+    public synchronized void put(K key, V value, long stamp) {
+        if (stamp != invalidations) {
+            return;
+        }
+        if (entries.size() >= maximumSize && !entries.containsKey(key)) {
+            Iterator<K> leastRecentlyUsed = entries.keySet().iterator();
+            K victim = leastRecentlyUsed.next();
+            if (sketch.frequency(key) <= sketch.frequency(victim)) {
+                rejections++;
+                return;
+            }
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+        entries.put(key, value);
+    }
+
+    /**
+     * Removes a key from the cache.
+     *
+     * @param key - the key to be removed.
+     */
+    public synchronized void invalidate(K key) {
+        invalidations++;
+        entries.remove(key);
+    }
+
+    /**
+     * Removes every entry that matches a predicate.
+     *
+     * @param predicate - the predicate that entries to be removed match.
+     */
+    public synchronized void invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        invalidations++;
+        entries.entrySet().removeIf(entry -> predicate.test(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Removes every entry of the cache.
+     */
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, rejections, entries.size());
+    }
+
+}
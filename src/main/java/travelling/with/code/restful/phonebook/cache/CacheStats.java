@@ -0,0 +1,76 @@
+package travelling.with.code.restful.phonebook.cache;
+
+/**
+ * A snapshot of the counters of a cache of a {@link CachingPhoneBook}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class CacheStats {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final long rejections;
+
+    private final int size;
+
+    public CacheStats(long hits, long misses, long evictions, long rejections, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of lookups that were served by the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to be served by the cached phone book.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries that were dropped to make room for new ones.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries that were not admitted because the cache was full and they were requested less often than the entry they would have evicted.
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return the number of entries in the cache.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the share of lookups that were served by the cache, or 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, rejections=%d, size=%d", hits, misses, evictions, rejections, size);
+    }
+
+}
@@ -0,0 +1,305 @@
+package travelling.with.code.restful.phonebook.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * A {@link PhoneBook} that serves repeated lookups from memory and passes everything else on to the phone book it wraps,
+ * which makes slow phone books, such as the ones reading from disk or from a snapshot, cheap for hot contacts and searches.
+ * <p/>
+ * There are two caches, both bounded with the admission and eviction policy of {@link BoundedCache}:
+ * <ul>
+ * <li>the contacts cache maps ids to the results of {@link #findContact(Long)}, including the ids that were not found,</li>
+ * <li>the searches cache maps the (name, surname, phone) values of exact searches to their results, as long as a result
+ * has no more than <code>maxCachedResultSize</code> contacts, so searches for large parts of the phone book pass through.</li>
+ * </ul>
+ * Every write goes to the wrapped phone book first and then invalidates the cached contacts it changed, along with the
+ * cached searches that either returned one of them or that their new values now match. Paged and prefix searches are
+ * always passed through. The phone book counts its own modifications, after the invalidation of every write, so that
+ * a cached result that was read after the count was taken is never older than the count.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class CachingPhoneBook implements PhoneBook {
+
+    /**
+     * Batches of more contacts than this clear the whole searches cache, instead of checking every search against every contact.
+     */
+    private static final int MAX_BATCH_TO_INVALIDATE_SELECTIVELY = 64;
+
+    private final PhoneBook phoneBook;
+
+    private final BoundedCache<Long, Optional<IndexedContact>> contacts;
+
+    private final BoundedCache<Search, SearchResult> searches;
+
+    private final int maxCachedResultSize;
+
+    private final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * @param phoneBook - the phone book to be cached.
+     * @param maxCachedContacts - the maximum number of ids in the contacts cache.
+     * @param maxCachedSearches - the maximum number of searches in the searches cache.
+     * @param maxCachedResultSize - the maximum number of contacts of a search result that is cached.
+     */
+    public CachingPhoneBook(PhoneBook phoneBook, int maxCachedContacts, int maxCachedSearches, int maxCachedResultSize) {
+        this.phoneBook = phoneBook;
+        this.contacts = new BoundedCache<>(maxCachedContacts);
+        this.searches = new BoundedCache<>(maxCachedSearches);
+        this.maxCachedResultSize = maxCachedResultSize;
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        Optional<IndexedContact> contact = contacts.get(id);
+        if (contact == null) {
+            long stamp = contacts.stamp();
+            contact = phoneBook.findContact(id);
+            contacts.put(id, contact, stamp);
+        }
+        return contact;
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        Search search = new Search(name, surname, phone);
+        SearchResult result = searches.get(search);
+        if (result != null) {
+            return result.contacts;
+        }
+        long stamp = searches.stamp();
+        Collection<IndexedContact> foundContacts = phoneBook.findContacts(name, surname, phone);
+        if (foundContacts.size() > maxCachedResultSize) {
+            return foundContacts;
+        }
+        result = new SearchResult(foundContacts);
+        searches.put(search, result, stamp);
+        return result.contacts;
+    }
+
+    /**
+     * Streams a cached search result if there is one, and otherwise streams from the wrapped phone book without caching,
+     * since a stream is not collected up front and may be of any size.
+     */
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        SearchResult result = searches.get(new Search(name, surname, phone));
+        return result != null ? result.contacts.stream() : phoneBook.streamContacts(name, surname, phone);
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        if (matchMode == MatchMode.EXACT) {
+            return streamContacts(name, surname, phone);
+        }
+        return phoneBook.streamContacts(matchMode, name, surname, phone);
+    }
+
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        return phoneBook.findContacts(matchMode, name, surname, phone, afterId, limit);
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        IndexedContact indexedContact = phoneBook.addContact(contact);
+        invalidate(indexedContact);
+        return indexedContact;
+    }
+
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        IndexedContact indexedContact = phoneBook.addContact(contact);
+        invalidate(indexedContact);
+        return indexedContact;
+    }
+
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        Optional<IndexedContact> replacedContact = phoneBook.replaceContact(contact, expectedVersion);
+        replacedContact.ifPresent(this::invalidate);
+        return replacedContact;
+    }
+
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        List<IndexedContact> indexedContacts = phoneBook.addContacts(contacts);
+        invalidate(indexedContacts);
+        return indexedContacts;
+    }
+
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        List<IndexedContact> indexedContacts = phoneBook.putContacts(contacts);
+        invalidate(indexedContacts);
+        return indexedContacts;
+    }
+
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        List<Boolean> deleted = phoneBook.deleteContacts(ids);
+        for (Long id : ids) {
+            contacts.invalidate(id);
+        }
+        if (ids.size() > MAX_BATCH_TO_INVALIDATE_SELECTIVELY) {
+            searches.invalidateAll();
+        } else {
+            searches.invalidateIf((search, result) -> ids.stream().anyMatch(result::contains));
+        }
+        modifications.incrementAndGet();
+        return deleted;
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        phoneBook.deleteContact(contact);
+        contacts.invalidate(contact.getId());
+        searches.invalidateIf((search, result) -> result.contains(contact.getId()));
+        modifications.incrementAndGet();
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        phoneBook.deleteContact(id);
+        contacts.invalidate(id);
+        searches.invalidateIf((search, result) -> result.contains(id));
+        modifications.incrementAndGet();
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return phoneBook.getChangeFeed();
+    }
+
+    @Override
+    public long countContacts() {
+        return phoneBook.countContacts();
+    }
+
+    /**
+     * @return the counters of the contacts cache.
+     */
+    public CacheStats getContactsCacheStats() {
+        return contacts.stats();
+    }
+
+    /**
+     * @return the counters of the searches cache.
+     */
+    public CacheStats getSearchesCacheStats() {
+        return searches.stats();
+    }
+
+    /**
+     * @return the phone book that this phone book caches.
+     */
+    public PhoneBook getPhoneBook() {
+        return phoneBook;
+    }
+
+    /**
+     * Invalidates a contact that was added or replaced: the searches that returned its old values and the
+     * searches that its new values match.
+     */
+    private void invalidate(IndexedContact contact) {
+        contacts.invalidate(contact.getId());
+        searches.invalidateIf((search, result) -> result.contains(contact.getId()) || search.matches(contact));
+        modifications.incrementAndGet();
+    }
+
+    private void invalidate(List<IndexedContact> changedContacts) {
+        for (IndexedContact contact : changedContacts) {
+            contacts.invalidate(contact.getId());
+        }
+        if (changedContacts.size() > MAX_BATCH_TO_INVALIDATE_SELECTIVELY) {
+            searches.invalidateAll();
+        } else {
+            searches.invalidateIf((search, result) -> changedContacts.stream()
+                    .anyMatch(contact -> result.contains(contact.getId()) || search.matches(contact)));
+        }
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * The values of an exact search, which is the key of the searches cache.
+     */
+    private static class Search {
+
+        private final Optional<String> name;
+
+        private final Optional<String> surname;
+
+        private final Optional<String> phone;
+
+        private final int hashCode;
+
+        public Search(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+            this.name = name;
+            this.surname = surname;
+            this.phone = phone;
+            this.hashCode = Objects.hash(name, surname, phone);
+        }
+
+        public boolean matches(Contact contact) {
+            return MatchMode.EXACT.matches(contact, name, surname, phone);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Search)) {
+                return false;
+            }
+            Search search = (Search) other;
+            return name.equals(search.name) && surname.equals(search.surname) && phone.equals(search.phone);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+    /**
+     * The contacts found by a search, along with their sorted ids, so that a write can tell in O(log n)
+     * whether it changed one of them.
+     */
+    private static class SearchResult {
+
+        private final Collection<IndexedContact> contacts;
+
+        private final long[] ids;
+
+        public SearchResult(Collection<IndexedContact> foundContacts) {
+            this.contacts = Collections.unmodifiableList(new ArrayList<>(foundContacts));
+            this.ids = contacts.stream().mapToLong(IndexedContact::getId).sorted().toArray();
+        }
+
+        public boolean contains(long id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+package travelling.with.code.restful.phonebook.cache;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * Wraps whichever {@link PhoneBook} the <code>phonebook.store</code> property chose with a {@link CachingPhoneBook},
+ * once the phone book has been initialized, so the controller and every other bean see the cached phone book.
+ * <p/>
+ * The caching is enabled by setting the <code>phonebook.cache.enabled</code> property to true. The sizes of the caches are set with
+ * <code>phonebook.cache.contacts</code>, <code>phonebook.cache.searches</code> and <code>phonebook.cache.max-result-size</code>.
+ * The post processor runs first, so that any other decorator of the phone book wraps the cached one.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+@ConditionalOnProperty(name = "phonebook.cache.enabled", havingValue = "true")
+public class CachingPhoneBookPostProcessor implements BeanPostProcessor, Ordered {
+
+    @Value("${phonebook.cache.contacts:10000}")
+    private int maxCachedContacts;
+
+    @Value("${phonebook.cache.searches:1000}")
+    private int maxCachedSearches;
+
+    @Value("${phonebook.cache.max-result-size:1000}")
+    private int maxCachedResultSize;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof PhoneBook && !(bean instanceof CachingPhoneBook)) {
+            return new CachingPhoneBook((PhoneBook) bean, maxCachedContacts, maxCachedSearches, maxCachedResultSize);
+        }
+        return bean;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+}
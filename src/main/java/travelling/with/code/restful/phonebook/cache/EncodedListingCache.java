@@ -0,0 +1,295 @@
+package travelling.with.code.restful.phonebook.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import travelling.with.code.restful.phonebook.PhoneBookController;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * Keeps the JSON of the most requested listings of {@link PhoneBookController}, already serialized and, for the clients
+ * that accept it, already compressed with gzip or deflate, so that a listing that has not changed is written to the
+ * response as it is, without searching the phone book or serializing a single contact.
+ * <p/>
+ * A listing is kept along with the {@link PhoneBook#getModificationCount()} that was read before it was searched, and is
+ * only served while the phone book is still at that modification count. So any write to the phone book invalidates every
+ * listing, without telling the cache, and a listing is built again the first time that it is requested after a write.
+ * The compressed forms of a listing are built the first time that a client asks for them.
+ * <p/>
+ * The cache holds <code>phonebook.listing-cache.entries</code> listings (100 by default), admitted like in a {@link CachingPhoneBook},
+ * of up to <code>phonebook.listing-cache.max-bytes</code> bytes of JSON each (8 MiB by default). Listings smaller than
+ * <code>phonebook.listing-cache.min-compress-bytes</code> (1024 by default) are never compressed, since their headers would
+ * cost more than compressing saves. Setting <code>phonebook.listing-cache.enabled</code> to false turns the cache off.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+public class EncodedListingCache {
+
+    /**
+     * The content coding of gzip.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * The content coding of deflate, which HTTP defines as the zlib format.
+     */
+    public static final String DEFLATE = "deflate";
+
+    @Value("${phonebook.listing-cache.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${phonebook.listing-cache.entries:100}")
+    private int maxEntries = 100;
+
+    @Value("${phonebook.listing-cache.max-bytes:8388608}")
+    private int maxBytes = 8 << 20;
+
+    @Value("${phonebook.listing-cache.min-compress-bytes:1024}")
+    private int minCompressBytes = 1024;
+
+    private BoundedCache<Listing, EncodedListing> listings;
+
+    @PostConstruct
+    public void init() {
+        listings = new BoundedCache<>(maxEntries);
+    }
+
+    /**
+     * @return true if the listings are cached.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Looks up the JSON of a listing.
+     *
+     * @param matchMode - the match mode of the listing.
+     * @param name - the name that the listing searched for, or <code>null</code>.
+     * @param surname - the surname that the listing searched for, or <code>null</code>.
+     * @param phone - the phone that the listing searched for, or <code>null</code>.
+     * @param modificationCount - the current modification count of the phone book.
+     * @return the listing, if it is cached and the phone book has not changed since it was searched, or else <code>null</code>.
+     */
+    public EncodedListing get(MatchMode matchMode, String name, String surname, String phone, long modificationCount) {
+        EncodedListing listing = listings.get(new Listing(matchMode, name, surname, phone));
+        return listing != null && listing.modificationCount == modificationCount ? listing : null;
+    }
+
+    /**
+     * Keeps the JSON of a listing that has just been searched, if it is small enough and its query is requested often enough.
+     *
+     * @param matchMode - the match mode of the listing.
+     * @param name - the name that the listing searched for, or <code>null</code>.
+     * @param surname - the surname that the listing searched for, or <code>null</code>.
+     * @param phone - the phone that the listing searched for, or <code>null</code>.
+     * @param modificationCount - the modification count of the phone book, read before the listing was searched.
+     * @param json - the listing serialized as JSON.
+     * @param contacts - the number of contacts in the listing.
+     * @return the listing, whether it was kept or not.
+     */
+    public EncodedListing put(MatchMode matchMode, String name, String surname, String phone, long modificationCount, byte[] json, int contacts) {
+        EncodedListing listing = new EncodedListing(modificationCount, json, contacts, json.length >= minCompressBytes);
+        if (json.length <= maxBytes) {
+            listings.put(new Listing(matchMode, name, surname, phone), listing, listings.stamp());
+        }
+        return listing;
+    }
+
+    public CacheStats getStats() {
+        return listings.stats();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMinCompressBytes(int minCompressBytes) {
+        this.minCompressBytes = minCompressBytes;
+    }
+
+    /**
+     * Chooses the content coding of a response from the <code>Accept-Encoding</code> header of its request: the coding
+     * with the highest quality, preferring gzip to deflate when they are equal. A coding that the header does not name
+     * has the quality of <code>*</code>, if it names it.
+     *
+     * @param acceptEncoding - the value of the header, or <code>null</code> if the request had none.
+     * @return {@link #GZIP}, {@link #DEFLATE}, or <code>null</code> if the response should not be compressed.
+     */
+    public static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double anyQuality = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            String name = parameters[0].trim();
+            if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip")) {
+                gzipQuality = quality;
+            } else if (name.equalsIgnoreCase(DEFLATE)) {
+                deflateQuality = quality;
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        gzipQuality = gzipQuality < 0 ? anyQuality : gzipQuality;
+        deflateQuality = deflateQuality < 0 ? anyQuality : deflateQuality;
+        if (gzipQuality <= 0 && deflateQuality <= 0) {
+            return null;
+        }
+        return gzipQuality >= deflateQuality ? GZIP : DEFLATE;
+    }
+
+    /**
+     * The serialized JSON of a listing, and its compressed forms once they have been asked for.
+     */
+    public static class EncodedListing {
+
+        private final long modificationCount;
+
+        private final byte[] json;
+
+        private final int contacts;
+
+        private final boolean compressible;
+
+        private volatile byte[] gzip;
+
+        private volatile byte[] deflate;
+
+        private EncodedListing(long modificationCount, byte[] json, int contacts, boolean compressible) {
+            this.modificationCount = modificationCount;
+            this.json = json;
+            this.contacts = contacts;
+            this.compressible = compressible;
+        }
+
+        /**
+         * @return the number of contacts in the listing.
+         */
+        public int getContacts() {
+            return contacts;
+        }
+
+        /**
+         * @param acceptEncoding - the <code>Accept-Encoding</code> header of a request, or <code>null</code> if it had none.
+         * @return the content coding that the listing is sent with to the request, or <code>null</code> if it is sent as it is.
+         */
+        public String encodingFor(String acceptEncoding) {
+            return compressible ? negotiateEncoding(acceptEncoding) : null;
+        }
+
+        /**
+         * Returns the listing in a content coding. The returned array is shared, and must not be changed.
+         *
+         * @param encoding - {@link #GZIP}, {@link #DEFLATE}, or <code>null</code> for the JSON as it is.
+         * @return the listing in the content coding.
+         */
+        public byte[] getBody(String encoding) {
+            if (GZIP.equals(encoding)) {
+                byte[] body = gzip;
+                if (body == null) {
+                    gzip = body = compress(GZIP);
+                }
+                return body;
+            }
+            if (DEFLATE.equals(encoding)) {
+                byte[] body = deflate;
+                if (body == null) {
+                    deflate = body = compress(DEFLATE);
+                }
+                return body;
+            }
+            return json;
+        }
+
+        /**
+         * Compresses the JSON. Threads that ask for the same coding at once may compress it more than once, which wastes some
+         * work but never blocks a thread behind another.
+         */
+        private byte[] compress(String encoding) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4 + 64);
+            try (OutputStream out = GZIP.equals(encoding) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+                out.write(json);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+    }
+
+    /**
+     * The query of a listing, which is the key of the cache.
+     */
+    private static class Listing {
+
+        private final MatchMode matchMode;
+
+        private final String name;
+
+        private final String surname;
+
+        private final String phone;
+
+        private final int hashCode;
+
+        public Listing(MatchMode matchMode, String name, String surname, String phone) {
+            this.matchMode = matchMode;
+            this.name = name;
+            this.surname = surname;
+            this.phone = phone;
+            this.hashCode = Objects.hash(matchMode, name, surname, phone);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Listing)) {
+                return false;
+            }
+            Listing listing = (Listing) other;
+            return matchMode == listing.matchMode && Objects.equals(name, listing.name) && Objects.equals(surname, listing.surname)
+                    && Objects.equals(phone, listing.phone);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+package travelling.with.code.restful.phonebook.cache;
+
+/**
+ * A count-min sketch that estimates how often keys have been requested lately, in a fixed amount of memory
+ * no matter how many distinct keys it sees.
+ * <p/>
+ * Every key is counted in four saturating counters of a single table, picked by four different hashes, and its
+ * frequency is the smallest of them. Once the sketch has counted ten times as many requests as the cache it serves
+ * can hold, all counters are halved, so keys that were popular long ago fade away. The sketch is not thread-safe;
+ * callers should guard it themselves.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final byte[] counters;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param maximumSize - the number of entries of the cache that the sketch serves.
+     */
+    public FrequencySketch(int maximumSize) {
+        int width = Integer.highestOneBit(Math.max(16, maximumSize - 1) << 1);
+        counters = new byte[width];
+        mask = width - 1;
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(1, maximumSize));
+    }
+
+    /**
+     * Counts a request for a key.
+     *
+     * @param key - the requested key.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = indexOf(hash, row);
+            if (counters[index] < MAX_FREQUENCY) {
+                counters[index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Estimates how often a key has been requested lately.
+     *
+     * @param key - the key to be looked up.
+     * @return the estimated frequency of the key, from 0 to 15.
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long index = (hash + SEEDS[row]) * SEEDS[row];
+        index += index >>> 32;
+        return (int) index & mask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
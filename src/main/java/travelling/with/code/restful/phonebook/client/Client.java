@@ -1,43 +1,392 @@
 package travelling.with.code.restful.phonebook.client;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import travelling.with.code.restful.phonebook.dao.Contact;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.wire.ContactsHttpMessageConverter;
 
-public class Client {
+/**
+ * A client of the phone book. The contacts are asked for in their compact binary form, which the client reads
+ * with a {@link ContactsHttpMessageConverter} and which skips JSON on both ends, while JSON is still understood
+ * from a server that does not offer the binary form.
+ * <p/>
+ * The requests go through a pool of up to <code>maxConnections</code> keep-alive connections, which are shared by all the threads
+ * that use the client, and the asynchronous methods run the requests on as many threads of the client. The lookups of single
+ * contacts are gathered: a lookup is sent on its own while there is a free connection, but the lookups that arrive while
+ * every connection is busy are sent together, as a single request of up to <code>maxBatchSize</code> ids, once a connection
+ * frees up. So a lightly loaded client pays no extra latency, and a heavily loaded one sends far fewer requests.
+ * <p/>
+ * The lookups of single contacts and the listings are kept in a small cache of up to <code>cacheSize</code> responses, along with their
+ * ETags. A cached response is sent back in an <code>If-None-Match</code> header, so that it is only downloaded again when it
+ * has changed. The contacts that are returned are shared with the cache and should not be modified.
+ * <p/>
+ * The client should be closed when it is no longer needed, to close its connections and stop its threads.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class Client implements Closeable {
 
-    private RestTemplate restTemplate;
-    private String targetUrl = "http://localhost:8080/phonebook/contacts";
+    public static final String DEFAULT_TARGET_URL = "http://localhost:8080/phonebook/contacts";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_CACHE_SIZE = 1_000;
+
+    private final String targetUrl;
+
+    private final int maxBatchSize;
+
+    private final CloseableHttpClient httpClient;
+
+    private final RestTemplate restTemplate;
+
+    private final ExecutorService executor;
+
+    /**
+     * The cached responses by their URI, or <code>null</code> if there is no cache.
+     */
+    private final Map<URI, CachedResponse> cache;
+
+    /**
+     * The lookups of single contacts that wait for a connection.
+     */
+    private final Queue<PendingLookup> pendingLookups = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A permit for every lookup request that may be in flight at once.
+     */
+    private final Semaphore lookupPermits;
 
     public Client() {
-        restTemplate = new RestTemplate();
+        this(DEFAULT_TARGET_URL);
+    }
+
+    /**
+     * @param targetUrl - the URL of the phone book's contacts, like {@link #DEFAULT_TARGET_URL}.
+     */
+    public Client(String targetUrl) {
+        this(targetUrl, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param targetUrl - the URL of the phone book's contacts, like {@link #DEFAULT_TARGET_URL}.
+     * @param maxConnections - the number of connections to the server, and of threads that run the asynchronous requests.
+     * @param maxBatchSize - the largest number of lookups of single contacts that are sent as a single request.
+     * @param cacheSize - the number of responses that are cached along with their ETags, or 0 for no cache.
+     */
+    public Client(String targetUrl, int maxConnections, int maxBatchSize, int cacheSize) {
+        if (maxConnections < 1 || maxBatchSize < 1 || cacheSize < 0) {
+            throw new IllegalArgumentException("The client needs at least one connection and a batch size of at least one.");
+        }
+        this.targetUrl = targetUrl;
+        this.maxBatchSize = maxBatchSize;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+        restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+        restTemplate.getMessageConverters().add(0, new ContactsHttpMessageConverter());
         restTemplate.getMessageConverters().add(new MappingJackson2HttpMessageConverter());
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "phonebook-client-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        lookupPermits = new Semaphore(maxConnections);
+        cache = cacheSize == 0 ? null : Collections.synchronizedMap(new LinkedHashMap<URI, CachedResponse>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, CachedResponse> eldest) {
+                return size() > cacheSize;
+            }
+
+        });
     }
 
+    /**
+     * Looks up a contact, possibly together with the lookups of other threads, and waits for it.
+     *
+     * @param id - the id of the contact.
+     * @return the contact.
+     * @throws HttpClientErrorException with a 404 status if there is no such contact.
+     */
     public IndexedContact getContact(long id) {
-        return restTemplate.getForObject(targetUrl + "/" + id, IndexedContact.class);
+        return await(getContactAsync(id));
+    }
+
+    /**
+     * Looks up a contact, possibly together with other lookups, as described in {@link Client}.
+     *
+     * @param id - the id of the contact.
+     * @return the contact, or a future that fails with an {@link HttpClientErrorException} with a 404 status if there is no such contact.
+     */
+    public CompletableFuture<IndexedContact> getContactAsync(long id) {
+        CompletableFuture<IndexedContact> contact = new CompletableFuture<>();
+        pendingLookups.add(new PendingLookup(id, contact));
+        sendLookups();
+        return contact;
     }
 
+    /**
+     * Searches the phone book by name, surname or phone, or returns all of its contacts if no search value is given.
+     *
+     * @param name - the name to be looked up.
+     * @param surname - the surname to be looked up.
+     * @param phone - the phone to be looked up.
+     * @return the contacts that match all the given search values.
+     */
     public Collection<IndexedContact> getContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
-        Map<String, String> requestParameters = new HashMap<>();
-        if (name.isPresent()) {
-            requestParameters.put("name", name.get());
+        UriComponentsBuilder uri = UriComponentsBuilder.fromHttpUrl(targetUrl);
+        name.ifPresent(value -> uri.queryParam("name", value));
+        surname.ifPresent(value -> uri.queryParam("surname", value));
+        phone.ifPresent(value -> uri.queryParam("phone", value));
+        IndexedContact[] contacts = getCached(uri.build().encode().toUri(), IndexedContact[].class);
+        return Collections.unmodifiableList(Arrays.asList(contacts));
+    }
+
+    /**
+     * Works like {@link #getContacts(Optional, Optional, Optional)}, on a thread of the client.
+     */
+    public CompletableFuture<Collection<IndexedContact>> getContactsAsync(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return supplyAsync(() -> getContacts(name, surname, phone));
+    }
+
+    /**
+     * Adds a contact to the phone book.
+     *
+     * @param contact - the contact to be added.
+     * @return the added contact, with the id that the phone book gave it.
+     */
+    public IndexedContact addContact(Contact contact) {
+        return restTemplate.postForObject(targetUrl, contact, IndexedContact.class);
+    }
+
+    /**
+     * Works like {@link #addContact(Contact)}, on a thread of the client.
+     */
+    public CompletableFuture<IndexedContact> addContactAsync(Contact contact) {
+        return supplyAsync(() -> addContact(contact));
+    }
+
+    /**
+     * Adds a contact with a given id, or replaces the contact that has its id.
+     *
+     * @param contact - the contact to be put.
+     * @return the contact as the phone book stored it.
+     */
+    public IndexedContact putContact(IndexedContact contact) {
+        URI uri = contactUri(contact.getId());
+        if (cache != null) {
+            cache.remove(uri);
+        }
+        return restTemplate.exchange(uri, HttpMethod.PUT, new HttpEntity<>(contact), IndexedContact.class).getBody();
+    }
+
+    /**
+     * Works like {@link #putContact(IndexedContact)}, on a thread of the client.
+     */
+    public CompletableFuture<IndexedContact> putContactAsync(IndexedContact contact) {
+        return supplyAsync(() -> putContact(contact));
+    }
+
+    /**
+     * Deletes a contact. Deleting a contact that does not exist is not an error.
+     *
+     * @param id - the id of the contact to be deleted.
+     */
+    public void deleteContact(long id) {
+        URI uri = contactUri(id);
+        if (cache != null) {
+            cache.remove(uri);
         }
-        if (surname.isPresent()) {
-            requestParameters.put("surname", surname.get());
+        restTemplate.delete(uri);
+    }
+
+    /**
+     * Works like {@link #deleteContact(long)}, on a thread of the client.
+     */
+    public CompletableFuture<Void> deleteContactAsync(long id) {
+        return supplyAsync(() -> {
+            deleteContact(id);
+            return null;
+        });
+    }
+
+    /**
+     * Closes the connections of the client and stops its threads. The asynchronous requests that have not finished fail.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        httpClient.close();
+        for (PendingLookup lookup = pendingLookups.poll(); lookup != null; lookup = pendingLookups.poll()) {
+            lookup.contact.completeExceptionally(new IllegalStateException("The client is closed."));
+        }
+    }
+
+    /**
+     * Sends the pending lookups for as long as there are lookups and free connections. Whoever frees a permit calls this again,
+     * so a lookup that was queued while every permit was taken is sent by the request that frees the next one.
+     */
+    private void sendLookups() {
+        while (!pendingLookups.isEmpty() && lookupPermits.tryAcquire()) {
+            List<PendingLookup> batch = new ArrayList<>();
+            for (PendingLookup lookup = pendingLookups.poll(); lookup != null; lookup = batch.size() < maxBatchSize ? pendingLookups.poll() : null) {
+                batch.add(lookup);
+            }
+            if (batch.isEmpty()) {
+                lookupPermits.release();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        lookUp(batch);
+                    } finally {
+                        lookupPermits.release();
+                        sendLookups();
+                    }
+                });
+            } catch (RuntimeException e) {
+                lookupPermits.release();
+                batch.forEach(lookup -> lookup.contact.completeExceptionally(e));
+            }
+        }
+    }
+
+    private void lookUp(List<PendingLookup> batch) {
+        try {
+            Map<Long, List<CompletableFuture<IndexedContact>>> lookups = new LinkedHashMap<>();
+            batch.forEach(lookup -> lookups.computeIfAbsent(lookup.id, id -> new ArrayList<>(1)).add(lookup.contact));
+            if (lookups.size() == 1) {
+                long id = batch.get(0).id;
+                IndexedContact contact = getCached(contactUri(id), IndexedContact.class);
+                lookups.get(id).forEach(future -> future.complete(contact));
+                return;
+            }
+            URI uri = UriComponentsBuilder.fromHttpUrl(targetUrl).pathSegment("batch").queryParam("id", lookups.keySet().toArray()).build().toUri();
+            for (IndexedContact contact : restTemplate.getForObject(uri, IndexedContact[].class)) {
+                List<CompletableFuture<IndexedContact>> futures = lookups.remove(contact.getId());
+                if (futures != null) {
+                    futures.forEach(future -> future.complete(contact));
+                }
+            }
+            lookups.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(new HttpClientErrorException(HttpStatus.NOT_FOUND))));
+        } catch (RuntimeException e) {
+            batch.forEach(lookup -> lookup.contact.completeExceptionally(e));
+        }
+    }
+
+    private URI contactUri(long id) {
+        return UriComponentsBuilder.fromHttpUrl(targetUrl).pathSegment(Long.toString(id)).build().toUri();
+    }
+
+    /**
+     * Gets a resource, with an <code>If-None-Match</code> header when it is cached, and caches the response when it has an ETag.
+     */
+    private <T> T getCached(URI uri, Class<T> type) {
+        CachedResponse cached = cache == null ? null : cache.get(uri);
+        HttpHeaders headers = new HttpHeaders();
+        if (cached != null) {
+            headers.setIfNoneMatch(cached.eTag);
+        }
+        ResponseEntity<T> response = restTemplate.exchange(uri, HttpMethod.GET, new HttpEntity<Void>(headers), type);
+        if (cached != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+            return type.cast(cached.body);
+        }
+        String eTag = response.getHeaders().getETag();
+        if (cache != null && eTag != null) {
+            cache.put(uri, new CachedResponse(eTag, response.getBody()));
+        }
+        return response.getBody();
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RuntimeException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class PendingLookup {
+
+        private final long id;
+
+        private final CompletableFuture<IndexedContact> contact;
+
+        private PendingLookup(long id, CompletableFuture<IndexedContact> contact) {
+            this.id = id;
+            this.contact = contact;
         }
-        if (phone.isPresent()) {
-            requestParameters.put("phone", phone.get());
+
+    }
+
+    private static class CachedResponse {
+
+        private final String eTag;
+
+        private final Object body;
+
+        private CachedResponse(String eTag, Object body) {
+            this.eTag = eTag;
+            this.body = body;
         }
-        IndexedContact[] contactsArray = restTemplate.getForObject(targetUrl, IndexedContact[].class, requestParameters);
-        return Arrays.asList(contactsArray);
+
     }
 
 //    public static void main(String[] args) {
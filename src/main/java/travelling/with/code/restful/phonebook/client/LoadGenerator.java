@@ -0,0 +1,473 @@
+package travelling.with.code.restful.phonebook.client;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import travelling.with.code.restful.phonebook.Application;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.metrics.Histogram;
+import travelling.with.code.restful.phonebook.metrics.PhoneBookMetrics;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+
+/**
+ * Sends a mix of requests to a phone book through a {@link Client}, at a constant rate, and measures their latency per
+ * {@link Operation}, so that the capacity of a server can be measured instead of guessed.
+ * <p/>
+ * The load is open-loop: the start time of every request is fixed in advance, one every <code>1 / requestsPerSecond</code>
+ * seconds, and a request is sent at its start time whether the earlier requests have completed or not. The latency of a request
+ * is measured from its start time, not from the time it was sent, so a request that waited behind a slow one is charged for
+ * the wait. A closed loop, which only sends a request when the previous one has completed, sends fewer requests exactly when
+ * the server slows down, and so hides the latency that the users of a slow server would see, which is known as coordinated
+ * omission. The requests are sent asynchronously, so they wait for a connection of the client, as they would in a service
+ * that uses the client.
+ * <p/>
+ * The server is expected to hold the contacts of a {@link GeneratedContactsFactory} of the same size. The lookups, searches and
+ * updates pick one of its contacts at random. The updates put a generated contact back unchanged, so the data set does not drift.
+ * The additions add new generated contacts, and the deletions delete the contacts that the run added. A deletion is sent as an
+ * addition while there is no such contact.
+ * <p/>
+ * The requests of the first <code>warmup</code> are sent but not measured, to let the server and the client warm up.
+ * At most <code>maxOutstanding</code> requests are in flight at once. A request that would exceed them is counted as failed
+ * without being sent, so that an overloaded server cannot exhaust the memory of the generator.
+ * <p/>
+ * Usage: <code>java -cp restful.phonebook.jar travelling.with.code.restful.phonebook.client.LoadGenerator --rate=1000 --duration=60</code>
+ * <p/>
+ * The options are <code>--url</code> of the contacts of a running server, <code>--contacts</code> that it holds (100000 by default),
+ * <code>--rate</code> in requests per second, <code>--duration</code> and <code>--warmup</code> in seconds, <code>--connections</code>
+ * of the client and <code>--mix</code>, like <code>--mix=lookup=90,search=10</code>. Without <code>--url</code>, a server is started
+ * in the same JVM, on a free port of the loopback interface, with the contacts of a {@link GeneratedContactsFactory}, and any other
+ * option is passed to it, like <code>--phonebook.store=compact</code>.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class LoadGenerator {
+
+    /**
+     * The requests that the generator sends.
+     */
+    public enum Operation {
+
+        /**
+         * Looks up a contact by its id.
+         */
+        LOOKUP,
+
+        /**
+         * Searches for a contact by phone, or by name and surname.
+         */
+        SEARCH,
+
+        /**
+         * Adds a new contact.
+         */
+        ADD,
+
+        /**
+         * Puts a contact with a given id.
+         */
+        UPDATE,
+
+        /**
+         * Deletes a contact that the run added.
+         */
+        DELETE
+
+    }
+
+    /**
+     * The longest time that the generator waits for the requests in flight once it has sent the last one.
+     */
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Client client;
+
+    private final GeneratedContactsFactory contactsFactory;
+
+    private double requestsPerSecond = 100;
+
+    private long durationNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private long warmupNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private int maxOutstanding = 100_000;
+
+    private final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+
+    /**
+     * @param client - the client that the requests are sent through.
+     * @param contactsFactory - the factory of the contacts that the server holds.
+     */
+    public LoadGenerator(Client client, GeneratedContactsFactory contactsFactory) {
+        this.client = client;
+        this.contactsFactory = contactsFactory;
+        weights.put(Operation.LOOKUP, 70);
+        weights.put(Operation.SEARCH, 20);
+        weights.put(Operation.ADD, 4);
+        weights.put(Operation.UPDATE, 4);
+        weights.put(Operation.DELETE, 2);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String url = null;
+        int contacts = 100_000;
+        double rate = 100;
+        long duration = 60;
+        long warmup = 10;
+        int connections = Client.DEFAULT_MAX_CONNECTIONS;
+        String mix = null;
+        List<String> serverArgs = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println("Usage: LoadGenerator [--url=<contacts url>] [--contacts=<n>] [--rate=<requests/s>] [--duration=<s>] "
+                        + "[--warmup=<s>] [--connections=<n>] [--mix=lookup=70,search=20,add=4,update=4,delete=2] [--<server property>=<value>]");
+                System.exit(1);
+            }
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "url": url = value; break;
+                case "contacts": contacts = Integer.parseInt(value); break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "duration": duration = Long.parseLong(value); break;
+                case "warmup": warmup = Long.parseLong(value); break;
+                case "connections": connections = Integer.parseInt(value); break;
+                case "mix": mix = value; break;
+                default: serverArgs.add(arg);
+            }
+        }
+
+        GeneratedContactsFactory contactsFactory = new GeneratedContactsFactory(contacts);
+        ConfigurableApplicationContext server = null;
+        if (url == null) {
+            serverArgs.add("--server.port=0");
+            serverArgs.add("--server.address=127.0.0.1");
+            SpringApplication application = new SpringApplication(Application.class);
+            application.addInitializers((ApplicationContextInitializer<ConfigurableApplicationContext>) context ->
+                    context.getBeanFactory().registerSingleton("contactsFactory", contactsFactory));
+            server = application.run(serverArgs.toArray(new String[serverArgs.size()]));
+            url = "http://127.0.0.1:" + ((EmbeddedWebApplicationContext) server).getEmbeddedServletContainer().getPort() + "/phonebook/contacts";
+        }
+        try (Client client = new Client(url, connections, Client.DEFAULT_MAX_BATCH_SIZE, Client.DEFAULT_CACHE_SIZE)) {
+            LoadGenerator generator = new LoadGenerator(client, contactsFactory);
+            generator.setRequestsPerSecond(rate);
+            generator.setDuration(duration, TimeUnit.SECONDS);
+            generator.setWarmup(warmup, TimeUnit.SECONDS);
+            if (mix != null) {
+                for (Operation operation : Operation.values()) {
+                    generator.setWeight(operation, 0);
+                }
+                for (String weight : mix.split(",")) {
+                    String[] operationAndWeight = weight.split("=");
+                    generator.setWeight(Operation.valueOf(operationAndWeight[0].trim().toUpperCase()), Integer.parseInt(operationAndWeight[1].trim()));
+                }
+            }
+            System.out.printf("Sending requests to %s for %d s of warmup and %d s of measurement...%n", url, warmup, duration);
+            generator.run().print(System.out);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the requests for the warmup and the duration of the run, waits for them to complete, and reports their latencies.
+     *
+     * @return the report of the measured requests.
+     * @throws InterruptedException if the thread is interrupted while it waits for the requests in flight.
+     */
+    public Report run() throws InterruptedException {
+        int totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+        if (totalWeight <= 0 || requestsPerSecond <= 0) {
+            throw new IllegalStateException("The rate and at least one of the weights should be positive.");
+        }
+        Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+        Map<Operation, LongAdder> failures = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram(Long.MAX_VALUE));
+            failures.put(operation, new LongAdder());
+        }
+        Queue<Long> addedIds = new ConcurrentLinkedQueue<>();
+        AtomicInteger outstanding = new AtomicInteger();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        long sent = 0;
+        for (long request = 0; ; request++) {
+            long startTime = start + (long) (request * 1e9 / requestsPerSecond);
+            if (startTime - end >= 0) {
+                break;
+            }
+            for (long remaining = startTime - System.nanoTime(); remaining > 0; remaining = startTime - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+            Long deletedId = null;
+            Operation operation = pick(random.nextInt(totalWeight));
+            if (operation == Operation.DELETE && (deletedId = addedIds.poll()) == null) {
+                operation = Operation.ADD;
+            }
+            boolean measured = startTime - measureStart >= 0;
+            if (measured) {
+                sent++;
+            }
+            if (outstanding.get() >= maxOutstanding) {
+                if (measured) {
+                    failures.get(operation).increment();
+                }
+                continue;
+            }
+            outstanding.incrementAndGet();
+            Operation sentOperation = operation;
+            send(operation, deletedId, random, addedIds).whenComplete((result, failure) -> {
+                if (measured) {
+                    if (failure == null) {
+                        latencies.get(sentOperation).record(System.nanoTime() - startTime);
+                    } else {
+                        failures.get(sentOperation).increment();
+                    }
+                }
+                outstanding.decrementAndGet();
+            });
+        }
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (outstanding.get() > 0 && System.nanoTime() - drainDeadline < 0) {
+            Thread.sleep(10);
+        }
+
+        Map<Operation, OperationReport> operations = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationReport(latencies.get(operation).snapshot(), failures.get(operation).sum()));
+        }
+        return new Report(requestsPerSecond, durationNanos, sent, outstanding.get(), operations);
+    }
+
+    private Operation pick(int draw) {
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            draw -= weight.getValue();
+            if (draw < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException("The draw exceeds the total weight.");
+    }
+
+    private CompletableFuture<?> send(Operation operation, Long deletedId, ThreadLocalRandom random, Queue<Long> addedIds) {
+        IndexedContact contact = contactsFactory.createContact(random.nextLong(contactsFactory.getSize()));
+        try {
+            switch (operation) {
+                case LOOKUP:
+                    return client.getContactAsync(contact.getId());
+                case SEARCH:
+                    return random.nextBoolean()
+                            ? client.getContactsAsync(Optional.empty(), Optional.empty(), Optional.of(contact.getPhone()))
+                            : client.getContactsAsync(Optional.of(contact.getName()), Optional.of(contact.getSurname()), Optional.empty());
+                case ADD:
+                    IndexedContact newContact = contactsFactory.createContact(contactsFactory.getSize() + random.nextInt(contactsFactory.getSize() + 1));
+                    return client.addContactAsync(new Contact(newContact)).thenAccept(added -> addedIds.add(added.getId()));
+                case UPDATE:
+                    return client.putContactAsync(contact);
+                case DELETE:
+                    return client.deleteContactAsync(deletedId);
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation + ".");
+            }
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * @param requestsPerSecond - the rate at which the requests are sent, 100 by default.
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * @param duration - the time that the requests are measured for, after the warmup, 60 seconds by default.
+     * @param unit - the unit of the duration.
+     */
+    public void setDuration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * @param warmup - the time that the requests are sent without being measured, 10 seconds by default.
+     * @param unit - the unit of the warmup.
+     */
+    public void setWarmup(long warmup, TimeUnit unit) {
+        this.warmupNanos = unit.toNanos(warmup);
+    }
+
+    /**
+     * Sets the share of an operation in the mix, which is its weight over the sum of all weights.
+     * By default, the mix is 70 lookups, 20 searches, 4 additions, 4 updates and 2 deletions.
+     *
+     * @param operation - the operation.
+     * @param weight - the weight of the operation, or 0 to not send it.
+     */
+    public void setWeight(Operation operation, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("The weight of an operation cannot be negative.");
+        }
+        weights.put(operation, weight);
+    }
+
+    /**
+     * @param maxOutstanding - the most requests that may be in flight at once, 100000 by default.
+     */
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * The measured requests of an operation.
+     */
+    public static class OperationReport {
+
+        private final Histogram.Snapshot latencies;
+
+        private final long failures;
+
+        private OperationReport(Histogram.Snapshot latencies, long failures) {
+            this.latencies = latencies;
+            this.failures = failures;
+        }
+
+        /**
+         * @return the number of requests that completed successfully.
+         */
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        /**
+         * @return the number of requests that failed, or were not sent because too many requests were in flight.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @param quantile - the quantile, between 0 and 1.
+         * @return the latency in nanoseconds that the given fraction of the successful requests did not exceed.
+         */
+        public long getLatencyAtQuantile(double quantile) {
+            return latencies.valueAtQuantile(quantile);
+        }
+
+        /**
+         * @return the highest latency of a successful request, in nanoseconds.
+         */
+        public long getMaxLatency() {
+            return latencies.getMax();
+        }
+
+    }
+
+    /**
+     * The results of a run, per operation.
+     */
+    public static class Report {
+
+        private final double requestsPerSecond;
+
+        private final long durationNanos;
+
+        private final long sent;
+
+        private final int unfinished;
+
+        private final Map<Operation, OperationReport> operations;
+
+        private Report(double requestsPerSecond, long durationNanos, long sent, int unfinished, Map<Operation, OperationReport> operations) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.durationNanos = durationNanos;
+            this.sent = sent;
+            this.unfinished = unfinished;
+            this.operations = operations;
+        }
+
+        /**
+         * @return the number of measured requests that were due, which is the rate times the duration.
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return the number of requests that had not completed when the generator stopped waiting for them.
+         */
+        public int getUnfinished() {
+            return unfinished;
+        }
+
+        /**
+         * @param operation - an operation.
+         * @return the measured requests of the operation.
+         */
+        public OperationReport getOperation(Operation operation) {
+            return operations.get(operation);
+        }
+
+        /**
+         * @param operation - an operation.
+         * @return the number of requests of the operation that completed successfully per second.
+         */
+        public double getThroughput(Operation operation) {
+            return operations.get(operation).getCount() * 1e9 / durationNanos;
+        }
+
+        /**
+         * Prints the throughput, the failures and the latency percentiles of every operation, in milliseconds.
+         *
+         * @param out - the stream that the report is printed to.
+         */
+        public void print(PrintStream out) {
+            out.printf("Target rate %,.1f requests/s for %,.1f s: %,d requests, %,d unfinished%n",
+                    requestsPerSecond, durationNanos / 1e9, sent, unfinished);
+            out.printf("%-8s %10s %8s %12s", "", "requests", "failed", "requests/s");
+            for (double quantile : PhoneBookMetrics.QUANTILES) {
+                out.printf(" %10s", "p" + (quantile * 100 == Math.rint(quantile * 100) ? Long.toString(Math.round(quantile * 100)) : Double.toString(quantile * 100)));
+            }
+            out.printf(" %10s%n", "max (ms)");
+            for (Map.Entry<Operation, OperationReport> operation : operations.entrySet()) {
+                OperationReport report = operation.getValue();
+                if (report.getCount() == 0 && report.getFailures() == 0) {
+                    continue;
+                }
+                out.printf("%-8s %,10d %,8d %,12.1f", operation.getKey().name().toLowerCase(), report.getCount(), report.getFailures(),
+                        getThroughput(operation.getKey()));
+                for (double quantile : PhoneBookMetrics.QUANTILES) {
+                    out.printf(" %10.3f", report.getLatencyAtQuantile(quantile) / 1e6);
+                }
+                out.printf(" %10.3f%n", report.getMaxLatency() / 1e6);
+            }
+        }
+
+    }
+
+}
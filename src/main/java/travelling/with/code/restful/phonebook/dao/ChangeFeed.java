@@ -0,0 +1,189 @@
+package travelling.with.code.restful.phonebook.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, in-memory feed of the changes to the contacts of a {@link PhoneBook}, which lets consumers follow
+ * the phone book incrementally instead of downloading all of its contacts again.
+ * <p/>
+ * A phone book publishes every change while it still holds the lock of the changed contact, so the changes of
+ * a contact appear in the feed in the order they were applied. Every change gets the next sequence number, and
+ * the feed keeps the latest changes in a ring of a fixed capacity, overwriting the oldest ones. A consumer that
+ * asks for changes which have already been overwritten gets a gap instead, which tells it to load the
+ * phone book again before it follows the feed from the oldest change that is still kept.
+ * <p/>
+ * Consumers identify the last change they have applied with an event id, made of the sequence number and the
+ * time the feed was created, so that the ids handed out before a restart of the server lead to a gap too,
+ * instead of silently skipping the changes of the new feed.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class ChangeFeed {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private final ContactChange[] ring;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next change. Sequence numbers start at 1.
+     */
+    private long nextSequence = 1;
+
+    /**
+     * The sequence number of the oldest change that can still be read.
+     */
+    private long oldestSequence = 1;
+
+    /**
+     * @param capacity - the number of changes that the feed keeps, rounded up to a power of two.
+     */
+    public ChangeFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of a change feed should be positive: " + capacity);
+        }
+        ring = new ContactChange[Integer.highestOneBit(Math.max(1, capacity - 1) << 1)];
+        mask = ring.length - 1;
+    }
+
+    /**
+     * Publishes a change and wakes up the consumers that wait for it.
+     *
+     * @param type - the kind of the change.
+     * @param id - the id of the changed contact.
+     * @param contact - the contact as it was added or updated, or <code>null</code> if it was deleted.
+     * @return the published change, with its sequence number.
+     */
+    public synchronized ContactChange publish(ContactChange.Type type, long id, IndexedContact contact) {
+        ContactChange change = new ContactChange(nextSequence, type, id, contact);
+        ring[(int) nextSequence & mask] = change;
+        nextSequence++;
+        oldestSequence = Math.max(oldestSequence, nextSequence - ring.length);
+        notifyAll();
+        return change;
+    }
+
+    /**
+     * Drops every change, when the contents of the phone book are replaced as a whole. A sequence number is skipped,
+     * so that every consumer gets a gap, even the ones that had read all the changes.
+     */
+    public synchronized void clear() {
+        Arrays.fill(ring, null);
+        nextSequence++;
+        oldestSequence = nextSequence;
+        notifyAll();
+    }
+
+    /**
+     * Reads the changes that follow a sequence number, waiting for one to be published if there is none yet.
+     *
+     * @param fromSequence - the sequence number of the first change to be read.
+     * @param maxChanges - the maximum number of changes to be read.
+     * @param timeout - how long to wait for a change, which may be zero.
+     * @param unit - the unit of the timeout.
+     * @return the changes, which are empty if none was published in time, or start after a gap.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized Changes read(long fromSequence, int maxChanges, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (fromSequence == nextSequence) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        boolean gap = fromSequence < oldestSequence || fromSequence > nextSequence;
+        long firstSequence = gap ? oldestSequence : fromSequence;
+        int size = (int) Math.min(maxChanges, nextSequence - firstSequence);
+        List<ContactChange> changes = new ArrayList<>(size);
+        for (long sequence = firstSequence; sequence < firstSequence + size; sequence++) {
+            changes.add(ring[(int) sequence & mask]);
+        }
+        return new Changes(gap, firstSequence, changes);
+    }
+
+    /**
+     * @return the sequence number that the next change will get.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * @param sequence - the sequence number of a change.
+     * @return the event id of the change.
+     */
+    public String eventId(long sequence) {
+        return epoch + "-" + sequence;
+    }
+
+    /**
+     * Finds where a consumer should continue reading.
+     *
+     * @param lastEventId - the event id of the last change that the consumer has applied.
+     * @return the sequence number that follows the event id, or 0 if the id was not handed out by this feed,
+     * which is always a gap.
+     */
+    public long sequenceAfter(String lastEventId) {
+        String prefix = epoch + "-";
+        if (lastEventId == null || !lastEventId.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(lastEventId.substring(prefix.length())) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The changes returned by a single {@link ChangeFeed#read(long, int, long, TimeUnit)}.
+     */
+    public static class Changes {
+
+        private final boolean gap;
+        private final long firstSequence;
+        private final List<ContactChange> changes;
+
+        private Changes(boolean gap, long firstSequence, List<ContactChange> changes) {
+            this.gap = gap;
+            this.firstSequence = firstSequence;
+            this.changes = Collections.unmodifiableList(changes);
+        }
+
+        /**
+         * @return true if the changes do not follow the requested sequence number, because the changes in between are no longer kept.
+         */
+        public boolean isGap() {
+            return gap;
+        }
+
+        /**
+         * @return the sequence number of the first change, which follows the gap if there is one.
+         */
+        public long getFirstSequence() {
+            return firstSequence;
+        }
+
+        public List<ContactChange> getChanges() {
+            return changes;
+        }
+
+        /**
+         * @return the sequence number to read from next.
+         */
+        public long getNextSequence() {
+            return firstSequence + changes.size();
+        }
+
+    }
+
+}
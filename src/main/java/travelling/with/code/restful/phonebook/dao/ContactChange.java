@@ -0,0 +1,89 @@
+package travelling.with.code.restful.phonebook.dao;
+
+import java.util.Locale;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * A change to a single contact of a {@link PhoneBook}, as it is published to the phone book's {@link ChangeFeed}.
+ * <p/>
+ * Every change has the sequence number that the feed gave it, so a consumer can tell which changes it has already
+ * applied. Added and updated contacts are carried whole, while a deleted contact is only identified by its id.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@JsonInclude(Include.NON_NULL)
+public class ContactChange {
+
+    /**
+     * The kinds of changes to a contact.
+     */
+    public enum Type {
+        ADDED, UPDATED, DELETED;
+
+        @JsonValue
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        @JsonCreator
+        public static Type fromName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private long sequence;
+    private Type type;
+    private long id;
+    private IndexedContact contact;
+
+    public ContactChange(long sequence, Type type, long id, IndexedContact contact) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.contact = contact;
+    }
+
+    public ContactChange() {
+        super();
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the contact as it was added or updated, or <code>null</code> for a deleted contact.
+     */
+    public IndexedContact getContact() {
+        return contact;
+    }
+
+    public void setContact(IndexedContact contact) {
+        this.contact = contact;
+    }
+
+}
@@ -1,5 +1,7 @@
 package travelling.with.code.restful.phonebook.dao;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * A class that extends {@link Contact}, in order to provide the {@link IndexedContact#id} field.
  * <p/>
@@ -9,6 +11,9 @@ package travelling.with.code.restful.phonebook.dao;
  * <p/>
  * There may be contacts with the same name and surname, since this is something that happens in the real world too,
  * and the {@link IndexedContact#id} will be used to separate them.
+ * <p/>
+ * Every time a contact is stored, the {@link PhoneBook} gives it a new {@link IndexedContact#version}, so two versions of the
+ * same contact never share a version number. The version is not part of the contact's JSON, but it is sent in the ETag header.
  *
  * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
  */
@@ -16,6 +21,8 @@ public class IndexedContact extends Contact {
 
     private Long id;
 
+    private long version;
+
     public IndexedContact(long id, String name, String surname, String phone) {
         super(name, surname, phone);
         this.id = id;
@@ -38,4 +45,17 @@ public class IndexedContact extends Contact {
         this.id = id;
     }
 
+    /**
+     * @return the version that the phone book gave the contact when it was stored, or 0 for the contacts it was filled with.
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return version;
+    }
+
+    @JsonIgnore
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
 }
@@ -0,0 +1,120 @@
+package travelling.with.code.restful.phonebook.dao;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * The ways that the search values of a {@link PhoneBook} query can be compared against the contacts' attributes.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public enum MatchMode {
+
+    /**
+     * An attribute matches when it is equal to the search value, and a phone also matches when it is the same number
+     * written differently, that is when it has the same canonical key as the search value, as {@link PhoneNumbers} computes it.
+     */
+    EXACT {
+        @Override
+        public boolean matchesText(String contactAttribute, String value) {
+            return value.equals(contactAttribute);
+        }
+
+        @Override
+        public boolean matchesPhone(String contactPhone, String value) {
+            return contactPhone != null && PhoneNumbers.sameNumber(contactPhone, value);
+        }
+    },
+
+    /**
+     * A name or surname matches when it starts with the search value, ignoring case, and a phone matches when its digits
+     * start with the digits of the search value, so that "+1-877" and "1877" find the same phones. Serves type-ahead searches.
+     */
+    PREFIX {
+        @Override
+        public boolean matchesText(String contactAttribute, String value) {
+            return contactAttribute != null && contactAttribute.regionMatches(true, 0, value, 0, value.length());
+        }
+
+        /**
+         * Walks the digits of both phones side by side, so that checking a contact allocates nothing.
+         */
+        @Override
+        public boolean matchesPhone(String contactPhone, String value) {
+            if (contactPhone == null) {
+                return false;
+            }
+            int contactPosition = 0;
+            for (int valuePosition = 0; valuePosition < value.length(); valuePosition++) {
+                char digit = value.charAt(valuePosition);
+                if (!Character.isDigit(digit)) {
+                    continue;
+                }
+                while (contactPosition < contactPhone.length() && !Character.isDigit(contactPhone.charAt(contactPosition))) {
+                    contactPosition++;
+                }
+                if (contactPosition == contactPhone.length() || contactPhone.charAt(contactPosition) != digit) {
+                    return false;
+                }
+                contactPosition++;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Checks a name or a surname against a search value.
+     *
+     * @param contactAttribute - the contact's name or surname.
+     * @param value - the search value.
+     * @return true if the attribute matches the search value.
+     */
+    public abstract boolean matchesText(String contactAttribute, String value);
+
+    /**
+     * Checks a phone against a search value.
+     *
+     * @param contactPhone - the contact's phone.
+     * @param value - the search value.
+     * @return true if the phone matches the search value.
+     */
+    public abstract boolean matchesPhone(String contactPhone, String value);
+
+    /**
+     * Checks a contact against the optional search values, where an empty value matches every contact.
+     *
+     * @param contact - the contact to be checked.
+     * @param name - optional value to be compared with the contact's name.
+     * @param surname - optional value to be compared with the contact's surname.
+     * @param phone - optional value to be compared with the contact's phone.
+     * @return true if every non empty value matches the contact.
+     */
+    public boolean matches(Contact contact, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return (!name.isPresent() || matchesText(contact.getName(), name.get()))
+                && (!surname.isPresent() || matchesText(contact.getSurname(), surname.get()))
+                && (!phone.isPresent() || matchesPhone(contact.getPhone(), phone.get()));
+    }
+
+    /**
+     * @param text - a name or a surname.
+     * @return the form of the text that {@link #PREFIX} compares.
+     */
+    public static String normalizeText(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param phone - a phone.
+     * @return the digits of the phone, which is the form that {@link #PREFIX} compares.
+     */
+    public static String normalizePhone(String phone) {
+        StringBuilder digits = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            if (Character.isDigit(phone.charAt(i))) {
+                digits.append(phone.charAt(i));
+            }
+        }
+        return digits.toString();
+    }
+
+}
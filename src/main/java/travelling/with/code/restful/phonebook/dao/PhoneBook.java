@@ -1,7 +1,13 @@
 package travelling.with.code.restful.phonebook.dao;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * An interface that should be implemented to interact with the data layer that contains the contacts.
@@ -22,6 +28,69 @@ public interface PhoneBook {
      */
     public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone);
 
+    /**
+     * Works like {@link #findContacts(Optional, Optional, Optional)}, but returns the matching contacts as a lazy {@link Stream},
+     * so that they can be written to a response one by one, without first collecting all of them.
+     * <p/>
+     * By default, streams the collection returned by {@link #findContacts(Optional, Optional, Optional)}. Implementations that
+     * can produce their contacts lazily should override it.
+     *
+     * @param name - optional parameter that when not empty will be used to filter contacts with this specific name.
+     * @param surname - optional parameter that when not empty will be used to filter contacts with this specific surname.
+     * @param phone - optional parameter that when not empty will be used to filter contacts with this specific phone.
+     * @return a stream of all contacts if all parameters are empty, or of the contacts that match the non empty parameters.
+     */
+    public default Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return findContacts(name, surname, phone).stream();
+    }
+
+    /**
+     * Works like {@link #streamContacts(Optional, Optional, Optional)}, but compares the search values with the given {@link MatchMode}.
+     * <p/>
+     * By default, delegates exact searches to {@link #streamContacts(Optional, Optional, Optional)}, and checks every contact of
+     * the phone book for other modes. Implementations that index their contacts should override it.
+     *
+     * @param matchMode - the way the search values are compared with the contacts' attributes.
+     * @param name - optional parameter that when not empty will be used to filter contacts by name.
+     * @param surname - optional parameter that when not empty will be used to filter contacts by surname.
+     * @param phone - optional parameter that when not empty will be used to filter contacts by phone.
+     * @return a stream of all contacts if all parameters are empty, or of the contacts that match the non empty parameters.
+     */
+    public default Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        if (matchMode == MatchMode.EXACT) {
+            return streamContacts(name, surname, phone);
+        }
+        return streamContacts(Optional.empty(), Optional.empty(), Optional.empty())
+                .filter(contact -> matchMode.matches(contact, name, surname, phone));
+    }
+
+    /**
+     * Returns a single page of the contacts that match the optional parameters, in ascending id order. A page starts
+     * right after the id of the last contact of the previous page, so contacts that are added or deleted while a client
+     * walks through the pages never make the following pages skip or repeat a contact that was there all along.
+     * <p/>
+     * By default, sorts the contacts returned by {@link #streamContacts(MatchMode, Optional, Optional, Optional)}, which takes
+     * O(n log n) for every page. Implementations that keep their contacts ordered by id should override it, so that
+     * a page is found in O(log n).
+     *
+     * @param matchMode - the way the search values are compared with the contacts' attributes.
+     * @param name - optional parameter that when not empty will be used to filter contacts by name.
+     * @param surname - optional parameter that when not empty will be used to filter contacts by surname.
+     * @param phone - optional parameter that when not empty will be used to filter contacts by phone.
+     * @param afterId - optional parameter that when not empty means that only contacts with a greater id will be returned.
+     * @param limit - the maximum number of contacts to be returned.
+     * @return up to <code>limit</code> matching contacts, with ids greater than <code>afterId</code>, in ascending id order.
+     */
+    public default List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                                     Optional<Long> afterId, int limit) {
+        try (Stream<IndexedContact> contacts = streamContacts(matchMode, name, surname, phone)) {
+            return contacts.filter(contact -> !afterId.isPresent() || contact.getId() > afterId.get())
+                    .sorted(Comparator.comparing(IndexedContact::getId))
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+    }
+
     /**
      * Will return a contact with the specific id, or an empty optional if no match could be made.
      *
@@ -50,6 +119,99 @@ public interface PhoneBook {
      */
     public IndexedContact addContact(IndexedContact contact);
 
+    /**
+     * Will replace the contact with the same id, as {@link #addContact(IndexedContact)} does, but only if the phone book
+     * has a contact with this id and its version is accepted by <code>expectedVersion</code>. Serves conditional updates,
+     * which must not overwrite a change that their client has not seen.
+     * <p/>
+     * By default, checks the version with {@link #findContact(Long)} and then calls {@link #addContact(IndexedContact)}, so
+     * a concurrent write may slip in between. Implementations should override it to check and replace in one step.
+     *
+     * @param contact - the contact to replace the old one with the same id.
+     * @param expectedVersion - accepts the versions of the old contact that may be replaced.
+     * @return the contact added in the phone book, or an empty optional if there is no contact with this id or its version was not accepted.
+     */
+    public default Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        return findContact(contact.getId())
+                .filter(oldContact -> expectedVersion.test(oldContact.getVersion()))
+                .map(oldContact -> addContact(contact));
+    }
+
+    /**
+     * Will add a batch of contacts in the phone book, as {@link #addContact(Contact)} does for a single contact.
+     * Implementations should reserve the ids of the whole batch at once and apply it with as little
+     * coordination per contact as they can.
+     * <p/>
+     * By default, calls {@link #addContact(Contact)} for every contact.
+     *
+     * @param contacts - the contacts that will be added in the phone book. No id information should be given here.
+     * @return the indexed contacts, in the same order as the contacts provided.
+     */
+    public default List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        return contacts.stream().map(this::addContact).collect(Collectors.toList());
+    }
+
+    /**
+     * Will add or replace a batch of {@link IndexedContact}s, as {@link #addContact(IndexedContact)} does for a single contact.
+     * <p/>
+     * By default, calls {@link #addContact(IndexedContact)} for every contact.
+     *
+     * @param contacts - the contacts to be put in the phone book. Every contact already has an id assigned to it.
+     * @return the contacts added in the phone book, in the same order as the contacts provided.
+     */
+    public default List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        return contacts.stream().map(this::addContact).collect(Collectors.toList());
+    }
+
+    /**
+     * Will delete a batch of contacts, reporting for each id whether there was a contact to be deleted.
+     * <p/>
+     * By default, looks up and then deletes every contact, so a concurrent write may make the report inaccurate.
+     * Implementations should override it to check and delete every contact in one step.
+     *
+     * @param ids - the ids of the contacts to be deleted.
+     * @return for every id, in the same order, true if a contact was deleted or false if there was no such contact.
+     */
+    public default List<Boolean> deleteContacts(List<Long> ids) {
+        List<Boolean> deleted = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            deleted.add(findContact(id).isPresent());
+            deleteContact(id);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the number of changes to the phone book so far. The count grows after every added, replaced or deleted contact
+     * has become visible, so contacts that are read after the count was taken reflect at least the changes it counts,
+     * and an unchanged count means that a search would return the same contacts again.
+     *
+     * @return the number of changes to the phone book since it was created.
+     */
+    public long getModificationCount();
+
+    /**
+     * Returns the feed that every change to the phone book's contacts is published to, in the order that the changes
+     * of each contact were applied.
+     *
+     * @return the change feed of the phone book.
+     */
+    public ChangeFeed getChangeFeed();
+
+    /**
+     * Returns the number of contacts in the phone book.
+     * <p/>
+     * By default, counts the contacts of {@link #streamContacts(Optional, Optional, Optional)} without search values,
+     * which visits every contact. Implementations should override it with a count that they keep.
+     *
+     * @return the number of contacts.
+     */
+    public default long countContacts() {
+        try (Stream<IndexedContact> contacts = streamContacts(Optional.empty(), Optional.empty(), Optional.empty())) {
+            return contacts.count();
+        }
+    }
+
     /**
      * Will delete the {@link IndexedContact} from the phone book.
      *
@@ -0,0 +1,111 @@
+package travelling.with.code.restful.phonebook.dao;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Canonicalizes phones to numeric keys, so that the different ways of writing the same number, such as "+1-877-555-2501",
+ * "+1 (877) 555 2501" and "+18775552501", are compared as the same phone.
+ * <p/>
+ * A phone has a key when it only consists of digits and of the separators that people write between them (spaces,
+ * hyphens, dots, parentheses and slashes), optionally after a leading plus sign, and has at most 15 digits, which is
+ * the longest number that E.164 allows. The international prefix "00" is read as the plus sign. The key packs the digits,
+ * country code included, into a <code>long</code>, along with the number of digits, so that leading zeros are kept apart.
+ * A number without a country code is kept as it is written, since its country is not known. Every other phone, for example
+ * one with an extension written in letters, has {@link #NO_KEY} and is only ever equal to the same string.
+ * <p/>
+ * Computing a key allocates nothing, so it can be done for every contact of a scan.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class PhoneNumbers {
+
+    /**
+     * The key of the phones that cannot be canonicalized. No canonical key is negative.
+     */
+    public static final long NO_KEY = -1;
+
+    /**
+     * The most digits of an E.164 number.
+     */
+    public static final int MAX_DIGITS = 15;
+
+    /**
+     * The bits of the key that hold the digits. 10<sup>15</sup> is less than 2<sup>50</sup>.
+     */
+    private static final int DIGITS_BITS = 50;
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * @param phone - a phone, or <code>null</code>.
+     * @return the canonical key of the phone, or {@link #NO_KEY} if it has none.
+     */
+    public static long key(CharSequence phone) {
+        return phone == null ? NO_KEY : keyBetween(phone, 0, phone.length());
+    }
+
+    /**
+     * Computes the key of a phone that is encoded in UTF-8 in a buffer, without decoding it. A phone with any byte
+     * outside of ASCII has no key, since it cannot consist of digits and separators only.
+     *
+     * @param buffer - the buffer that holds the phone.
+     * @param position - the position of the phone's first byte.
+     * @param length - the number of bytes of the phone.
+     * @return the canonical key of the phone, or {@link #NO_KEY} if it has none.
+     */
+    public static long key(ByteBuffer buffer, int position, int length) {
+        return keyBetween(buffer, position, position + length);
+    }
+
+    /**
+     * @param first - a phone, or <code>null</code>.
+     * @param second - another phone, or <code>null</code>.
+     * @return true if both phones are equal, or have the same canonical key.
+     */
+    public static boolean sameNumber(String first, String second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        if (first.equals(second)) {
+            return true;
+        }
+        long firstKey = key(first);
+        return firstKey != NO_KEY && firstKey == key(second);
+    }
+
+    /**
+     * Reads the characters of a {@link CharSequence} or the bytes of a {@link ByteBuffer}, between two positions.
+     */
+    private static long keyBetween(Object phone, int from, int to) {
+        long digits = 0;
+        int digitCount = 0;
+        int leadingZeros = 0;
+        boolean plus = false;
+        for (int i = from; i < to; i++) {
+            char c = phone instanceof CharSequence ? ((CharSequence) phone).charAt(i) : (char) (((ByteBuffer) phone).get(i) & 0xff);
+            if (c >= '0' && c <= '9') {
+                if (digitCount == MAX_DIGITS + 2) {
+                    return NO_KEY;
+                }
+                if (c == '0' && digits == 0) {
+                    leadingZeros++;
+                }
+                digits = digits * 10 + (c - '0');
+                digitCount++;
+            } else if (c == '+' && digitCount == 0 && !plus) {
+                plus = true;
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')' && c != '/') {
+                return NO_KEY;
+            }
+        }
+        if (!plus && leadingZeros >= 2) {
+            digitCount -= 2;
+        }
+        if (digitCount == 0 || digitCount > MAX_DIGITS) {
+            return NO_KEY;
+        }
+        return (long) digitCount << DIGITS_BITS | digits;
+    }
+
+}
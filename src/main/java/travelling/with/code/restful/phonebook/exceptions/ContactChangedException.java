@@ -0,0 +1,15 @@
+package travelling.with.code.restful.phonebook.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value=HttpStatus.PRECONDITION_FAILED, reason="The contact has changed.")
+public class ContactChangedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ContactChangedException(String contactId) {
+        super("Contact '" + contactId + "' does not exist or has changed since it was read.");
+    }
+
+}
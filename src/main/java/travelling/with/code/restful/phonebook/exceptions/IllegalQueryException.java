@@ -0,0 +1,15 @@
+package travelling.with.code.restful.phonebook.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value=HttpStatus.BAD_REQUEST)
+public class IllegalQueryException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public IllegalQueryException(String message) {
+        super(message);
+    }
+
+}
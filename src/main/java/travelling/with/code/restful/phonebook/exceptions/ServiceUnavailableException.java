@@ -0,0 +1,15 @@
+package travelling.with.code.restful.phonebook.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value=HttpStatus.SERVICE_UNAVAILABLE, reason="The server is too busy, please try again later.")
+public class ServiceUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,189 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds or sizes of responses, that records a value
+ * with a few atomic increments and no allocation, so it can be used on the hot path of every request.
+ * <p/>
+ * As in an HDR histogram, the buckets are log-linear: the values up to {@link #SUB_BUCKETS} have a bucket each, and every
+ * power of two above them is split in {@link #SUB_BUCKETS} equal buckets, so any value is reported with a relative error
+ * of at most 1/{@value #SUB_BUCKETS}, whatever its magnitude. Values above {@link #MAX_TRACKABLE_VALUE} are counted in the last bucket.
+ * <p/>
+ * The percentiles are taken over a sliding window, so that they follow regressions instead of being diluted by the whole
+ * history of the server. The counts go to one of two sets of buckets, and every time a {@link #snapshot()} finds that the
+ * window has elapsed, it clears the older set and records into it from then on. A snapshot reads both sets, which covers
+ * between one and two windows. The count, sum and maximum are kept for the whole lifetime of the histogram.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class Histogram {
+
+    /**
+     * The number of buckets that every power of two is split into.
+     */
+    public static final int SUB_BUCKETS = 32;
+
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /**
+     * The largest value that is told apart from the larger ones, which is more than 18 minutes in nanoseconds.
+     */
+    public static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKETS = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray[] windows = {new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS)};
+
+    private final long windowNanos;
+
+    private volatile int activeWindow;
+
+    private volatile long windowStart = System.nanoTime();
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param windowNanos - the length of the window that the percentiles are taken over, in nanoseconds.
+     */
+    public Histogram(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value - the value to be recorded. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        long recordedValue = Math.max(0, value);
+        windows[activeWindow].incrementAndGet(bucketIndex(Math.min(recordedValue, MAX_TRACKABLE_VALUE)));
+        count.increment();
+        sum.add(recordedValue);
+        if (recordedValue > max.get()) {
+            max.accumulateAndGet(recordedValue, Math::max);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the histogram, sliding its window first if it has elapsed.
+     *
+     * @return the snapshot.
+     */
+    public synchronized Snapshot snapshot() {
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos) {
+            int olderWindow = 1 - activeWindow;
+            AtomicLongArray buckets = windows[olderWindow];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            activeWindow = olderWindow;
+            windowStart = now;
+        }
+        long[] counts = new long[BUCKETS];
+        long windowCount = 0;
+        for (AtomicLongArray buckets : windows) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = buckets.get(i);
+                counts[i] += bucketCount;
+                windowCount += bucketCount;
+            }
+        }
+        return new Snapshot(counts, windowCount, count.sum(), sum.sum(), max.get());
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle of the values that a bucket counts.
+     */
+    private static long bucketValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (SUB_BUCKETS + index % SUB_BUCKETS) * width;
+        return lowest + width / 2;
+    }
+
+    /**
+     * The counts of a {@link Histogram} at some point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long windowCount;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long windowCount, long count, long sum, long max) {
+            this.counts = counts;
+            this.windowCount = windowCount;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @param quantile - the quantile, between 0 and 1.
+         * @return the value that the given fraction of the values recorded in the window does not exceed, or 0 if none was recorded.
+         */
+        public long valueAtQuantile(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * windowCount));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketValue(i), max);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the number of values recorded in the window.
+         */
+        public long getWindowCount() {
+            return windowCount;
+        }
+
+        /**
+         * @return the number of values ever recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values ever recorded.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the largest value ever recorded.
+         */
+        public long getMax() {
+            return max;
+        }
+
+    }
+
+}
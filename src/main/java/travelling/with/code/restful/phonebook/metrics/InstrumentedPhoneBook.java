@@ -0,0 +1,187 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * A {@link PhoneBook} that times every operation of the phone book it wraps and records the time in {@link PhoneBookMetrics},
+ * under the name of the operation. A stream is timed from the call that returned it until it is closed, so its time includes
+ * the consumption of its contacts.
+ * <p/>
+ * Reading the modification count, the change feed and the number of contacts is not timed, since it is only done by
+ * the controllers and never touches the contacts.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class InstrumentedPhoneBook implements PhoneBook {
+
+    private final PhoneBook phoneBook;
+
+    private final PhoneBookMetrics metrics;
+
+    /**
+     * @param phoneBook - the phone book to be instrumented.
+     * @param metrics - the metrics that the time of every operation is recorded in.
+     */
+    public InstrumentedPhoneBook(PhoneBook phoneBook, PhoneBookMetrics metrics) {
+        this.phoneBook = phoneBook;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.findContact(id);
+        } finally {
+            metrics.recordStoreOperation("findContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.findContacts(name, surname, phone);
+        } finally {
+            metrics.recordStoreOperation("findContacts", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        long start = System.nanoTime();
+        return phoneBook.streamContacts(name, surname, phone)
+                .onClose(() -> metrics.recordStoreOperation("streamContacts", System.nanoTime() - start));
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        long start = System.nanoTime();
+        return phoneBook.streamContacts(matchMode, name, surname, phone)
+                .onClose(() -> metrics.recordStoreOperation("streamContacts", System.nanoTime() - start));
+    }
+
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.findContacts(matchMode, name, surname, phone, afterId, limit);
+        } finally {
+            metrics.recordStoreOperation("findContactsPage", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.addContact(contact);
+        } finally {
+            metrics.recordStoreOperation("addContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.addContact(contact);
+        } finally {
+            metrics.recordStoreOperation("putContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.replaceContact(contact, expectedVersion);
+        } finally {
+            metrics.recordStoreOperation("replaceContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.addContacts(contacts);
+        } finally {
+            metrics.recordStoreOperation("addContacts", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.putContacts(contacts);
+        } finally {
+            metrics.recordStoreOperation("putContacts", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        long start = System.nanoTime();
+        try {
+            return phoneBook.deleteContacts(ids);
+        } finally {
+            metrics.recordStoreOperation("deleteContacts", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        long start = System.nanoTime();
+        try {
+            phoneBook.deleteContact(contact);
+        } finally {
+            metrics.recordStoreOperation("deleteContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        long start = System.nanoTime();
+        try {
+            phoneBook.deleteContact(id);
+        } finally {
+            metrics.recordStoreOperation("deleteContact", System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public long getModificationCount() {
+        return phoneBook.getModificationCount();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return phoneBook.getChangeFeed();
+    }
+
+    @Override
+    public long countContacts() {
+        return phoneBook.countContacts();
+    }
+
+    /**
+     * @return the phone book that this phone book instruments.
+     */
+    public PhoneBook getPhoneBook() {
+        return phoneBook;
+    }
+
+}
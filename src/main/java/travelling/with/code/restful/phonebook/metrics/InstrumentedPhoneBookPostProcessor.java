@@ -0,0 +1,46 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * Wraps the {@link PhoneBook} with an {@link InstrumentedPhoneBook}, once the phone book has been initialized, so that the time
+ * of every phone book operation is recorded in the {@link PhoneBookMetrics}.
+ * <p/>
+ * The instrumentation is enabled by setting the <code>phonebook.metrics.store.enabled</code> property to true. The post processor
+ * runs last, so when the phone book is cached too, the instrumented phone book wraps the cached one and its times include the cache hits.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+@ConditionalOnProperty(name = "phonebook.metrics.store.enabled", havingValue = "true")
+public class InstrumentedPhoneBookPostProcessor implements BeanPostProcessor, Ordered {
+
+    @Autowired
+    private PhoneBookMetrics metrics;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof PhoneBook && !(bean instanceof InstrumentedPhoneBook)) {
+            return new InstrumentedPhoneBook((PhoneBook) bean, metrics);
+        }
+        return bean;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+}
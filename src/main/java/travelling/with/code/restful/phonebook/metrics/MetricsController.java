@@ -0,0 +1,104 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import travelling.with.code.restful.phonebook.SearchExecutor;
+import travelling.with.code.restful.phonebook.admission.RateLimiter;
+import travelling.with.code.restful.phonebook.cache.CacheStats;
+import travelling.with.code.restful.phonebook.cache.CachingPhoneBook;
+import travelling.with.code.restful.phonebook.cache.EncodedListingCache;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+
+/**
+ * Exposes the {@link PhoneBookMetrics} under the URI "metrics", in the Prometheus text format, along with gauges of the
+ * phone book's size, of the {@link SearchExecutor}, of the {@link EncodedListingCache}, of the {@link RateLimiter} when the requests
+ * are rate limited and, when the phone book is cached, the counters of its caches.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@RestController
+public class MetricsController {
+
+    /**
+     * The media type of the Prometheus text format.
+     */
+    public static final String TEXT_PROMETHEUS = "text/plain;version=0.0.4";
+
+    @Autowired
+    private PhoneBook phoneBook;
+
+    @Autowired
+    private PhoneBookMetrics metrics;
+
+    @Autowired
+    private SearchExecutor searchExecutor;
+
+    @Autowired
+    private EncodedListingCache listingCache;
+
+    @Autowired(required = false)
+    private RateLimiter rateLimiter;
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @param response - the response that the metrics will be written to.
+     * @throws IOException if the metrics could not be written to the response.
+     */
+    @RequestMapping(value="/metrics", method=RequestMethod.GET, produces="text/plain")
+    public void getMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType(TEXT_PROMETHEUS + ";charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        metrics.writeTo(writer);
+        PhoneBookMetrics.writeSample(writer, "phonebook_contacts", "The number of contacts in the phone book.", "gauge",
+                phoneBook.countContacts());
+        PhoneBookMetrics.writeSample(writer, "phonebook_modifications_total", "The number of changes to the phone book.", "counter",
+                phoneBook.getModificationCount());
+        PhoneBookMetrics.writeSample(writer, "phonebook_searches_active", "The number of searches running on the search executor.", "gauge",
+                searchExecutor.getActiveCount());
+        PhoneBookMetrics.writeSample(writer, "phonebook_searches_queued", "The number of searches waiting for the search executor.", "gauge",
+                searchExecutor.getQueueSize());
+        PhoneBookMetrics.writeSample(writer, "phonebook_searches_rejected_total", "The number of searches rejected with a 503, because the queue was full.", "counter",
+                searchExecutor.getRejectionCount());
+        if (rateLimiter != null) {
+            PhoneBookMetrics.writeSample(writer, "phonebook_requests_throttled_total", "The number of requests rejected with a 429, because their client ran out of tokens.", "counter",
+                    rateLimiter.getRejectionCount());
+            PhoneBookMetrics.writeSample(writer, "phonebook_ratelimit_clients", "The number of clients that the rate limiter keeps tokens for.", "gauge",
+                    rateLimiter.getClientCount());
+        }
+        writeCacheStats(writer, "listings", listingCache.getStats());
+        PhoneBook decoratedPhoneBook = phoneBook;
+        while (decoratedPhoneBook instanceof InstrumentedPhoneBook || decoratedPhoneBook instanceof CachingPhoneBook) {
+            if (decoratedPhoneBook instanceof CachingPhoneBook) {
+                writeCacheStats(writer, "contacts", ((CachingPhoneBook) decoratedPhoneBook).getContactsCacheStats());
+                writeCacheStats(writer, "searches", ((CachingPhoneBook) decoratedPhoneBook).getSearchesCacheStats());
+                decoratedPhoneBook = ((CachingPhoneBook) decoratedPhoneBook).getPhoneBook();
+            } else {
+                decoratedPhoneBook = ((InstrumentedPhoneBook) decoratedPhoneBook).getPhoneBook();
+            }
+        }
+        writer.flush();
+    }
+
+    private void writeCacheStats(PrintWriter writer, String cache, CacheStats stats) {
+        PhoneBookMetrics.writeSample(writer, "phonebook_cache_" + cache + "_hits_total", "The lookups found in the " + cache + " cache.", "counter",
+                stats.getHits());
+        PhoneBookMetrics.writeSample(writer, "phonebook_cache_" + cache + "_misses_total", "The lookups missed by the " + cache + " cache.", "counter",
+                stats.getMisses());
+        PhoneBookMetrics.writeSample(writer, "phonebook_cache_" + cache + "_evictions_total", "The entries evicted from the " + cache + " cache.", "counter",
+                stats.getEvictions());
+        PhoneBookMetrics.writeSample(writer, "phonebook_cache_" + cache + "_rejections_total", "The entries not admitted to the " + cache + " cache.", "counter",
+                stats.getRejections());
+        PhoneBookMetrics.writeSample(writer, "phonebook_cache_" + cache + "_size", "The number of entries in the " + cache + " cache.", "gauge",
+                stats.getSize());
+    }
+
+}
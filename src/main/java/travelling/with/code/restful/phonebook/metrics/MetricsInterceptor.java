@@ -0,0 +1,42 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Times every request that a controller method handles, from before the method is called until the response is complete,
+ * and records the time in {@link PhoneBookMetrics} under the name of the method. When the method completes the request
+ * asynchronously, the time includes both dispatches of the request and the time in between.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class MetricsInterceptor extends HandlerInterceptorAdapter {
+
+    private static final String START_ATTRIBUTE = MetricsInterceptor.class.getName() + ".start";
+
+    private final PhoneBookMetrics metrics;
+
+    public MetricsInterceptor(PhoneBookMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getAttribute(START_ATTRIBUTE) == null) {
+            request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object start = request.getAttribute(START_ATTRIBUTE);
+        if (start instanceof Long && handler instanceof HandlerMethod) {
+            metrics.recordRequest(((HandlerMethod) handler).getMethod().getName(), System.nanoTime() - (Long) start);
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package travelling.with.code.restful.phonebook.metrics;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+
+/**
+ * Collects the metrics of the phone book's hot paths and writes them in the Prometheus text format:
+ * <ul>
+ * <li>the latency of every request, per controller method, and of every phone book operation, when the phone book is instrumented,</li>
+ * <li>the number of contacts that every search returns, per controller method,</li>
+ * <li>the number of searches, per match mode and combination of search values, which shows which indexes the searches use.</li>
+ * </ul>
+ * Latencies and sizes are recorded in {@link Histogram}s, which are written as Prometheus summaries with the {@link #QUANTILES}
+ * of the last <code>phonebook.metrics.window-seconds</code> (60 by default). Recording a value allocates nothing once the histogram
+ * of its operation exists.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+public class PhoneBookMetrics {
+
+    /**
+     * The quantiles written for every histogram.
+     */
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Value("${phonebook.metrics.window-seconds:60}")
+    private long windowSeconds = 60;
+
+    private final ConcurrentNavigableMap<String, Histogram> requestLatencies = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentNavigableMap<String, Histogram> storeLatencies = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentNavigableMap<String, Histogram> responseSizes = new ConcurrentSkipListMap<>();
+
+    /**
+     * Counts the searches, by the ordinal of their match mode and by which search values they have, as the bits of {@link #filter(boolean, boolean, boolean)}.
+     */
+    private final LongAdder[][] searches = new LongAdder[MatchMode.values().length][8];
+
+    public PhoneBookMetrics() {
+        for (LongAdder[] matchModeSearches : searches) {
+            for (int filter = 0; filter < matchModeSearches.length; filter++) {
+                matchModeSearches[filter] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * @param operation - the controller method that handled the request.
+     * @param nanos - the time that the request took, in nanoseconds.
+     */
+    public void recordRequest(String operation, long nanos) {
+        histogram(requestLatencies, operation).record(nanos);
+    }
+
+    /**
+     * @param operation - the phone book method that was called.
+     * @param nanos - the time that the call took, in nanoseconds.
+     */
+    public void recordStoreOperation(String operation, long nanos) {
+        histogram(storeLatencies, operation).record(nanos);
+    }
+
+    /**
+     * @param operation - the controller method that returned the contacts.
+     * @param contacts - the number of contacts in the response.
+     */
+    public void recordResponseSize(String operation, long contacts) {
+        histogram(responseSizes, operation).record(contacts);
+    }
+
+    /**
+     * Counts a search by its match mode and by which of the search values it has.
+     *
+     * @param matchMode - the match mode of the search.
+     * @param name - the name to be looked up, if any.
+     * @param surname - the surname to be looked up, if any.
+     * @param phone - the phone to be looked up, if any.
+     */
+    public void recordSearch(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        searches[matchMode.ordinal()][filter(name.isPresent(), surname.isPresent(), phone.isPresent())].increment();
+    }
+
+    /**
+     * Writes the collected metrics in the Prometheus text format.
+     *
+     * @param writer - the writer that the metrics will be written to.
+     */
+    public void writeTo(PrintWriter writer) {
+        writeSummary(writer, "phonebook_request_duration_seconds", "The time that the requests took, per controller method.",
+                requestLatencies, NANOS_PER_SECOND);
+        writeSummary(writer, "phonebook_store_operation_duration_seconds", "The time that the phone book operations took, per method.",
+                storeLatencies, NANOS_PER_SECOND);
+        writeSummary(writer, "phonebook_response_contacts", "The number of contacts that the responses returned, per controller method.",
+                responseSizes, 1);
+        writeHeader(writer, "phonebook_searches_total", "The number of searches, per match mode and combination of search values.", "counter");
+        for (MatchMode matchMode : MatchMode.values()) {
+            for (int filter = 0; filter < 8; filter++) {
+                long count = searches[matchMode.ordinal()][filter].sum();
+                if (count > 0) {
+                    writer.print("phonebook_searches_total{match=\"" + matchMode.name().toLowerCase(Locale.ROOT) + "\",filter=\""
+                            + filterLabel(filter) + "\"} " + count + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a single sample metric, such as a gauge.
+     *
+     * @param writer - the writer that the metric will be written to.
+     * @param name - the name of the metric.
+     * @param help - the description of the metric.
+     * @param type - the Prometheus type of the metric, either "gauge" or "counter".
+     * @param value - the value of the metric.
+     */
+    public static void writeSample(PrintWriter writer, String name, String help, String type, double value) {
+        writeHeader(writer, name, help, type);
+        writer.print(name + " " + value + "\n");
+    }
+
+    private static int filter(boolean name, boolean surname, boolean phone) {
+        return (name ? 1 : 0) | (surname ? 2 : 0) | (phone ? 4 : 0);
+    }
+
+    private static String filterLabel(int filter) {
+        if (filter == 0) {
+            return "none";
+        }
+        StringBuilder label = new StringBuilder();
+        String[] values = {"name", "surname", "phone"};
+        for (int i = 0; i < values.length; i++) {
+            if ((filter & (1 << i)) != 0) {
+                label.append(label.length() > 0 ? "+" : "").append(values[i]);
+            }
+        }
+        return label.toString();
+    }
+
+    private Histogram histogram(ConcurrentNavigableMap<String, Histogram> histograms, String operation) {
+        Histogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(operation, key -> new Histogram(TimeUnit.SECONDS.toNanos(windowSeconds)));
+        }
+        return histogram;
+    }
+
+    private static void writeSummary(PrintWriter writer, String name, String help, Map<String, Histogram> histograms, double scale) {
+        writeHeader(writer, name, help, "summary");
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            String operation = "operation=\"" + histogram.getKey() + "\"";
+            Histogram.Snapshot snapshot = histogram.getValue().snapshot();
+            for (double quantile : QUANTILES) {
+                writer.print(name + "{" + operation + ",quantile=\"" + quantile + "\"} " + snapshot.valueAtQuantile(quantile) / scale + "\n");
+            }
+            writer.print(name + "_sum{" + operation + "} " + snapshot.getSum() / scale + "\n");
+            writer.print(name + "_count{" + operation + "} " + snapshot.getCount() + "\n");
+        }
+    }
+
+    private static void writeHeader(PrintWriter writer, String name, String help, String type) {
+        writer.print("# HELP " + name + " " + help + "\n");
+        writer.print("# TYPE " + name + " " + type + "\n");
+    }
+
+    public void setWindowSeconds(long windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+}
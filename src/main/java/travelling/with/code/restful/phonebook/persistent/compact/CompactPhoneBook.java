@@ -0,0 +1,447 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.dao.PhoneNumbers;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.SimpsonsContactsFactory;
+
+/**
+ * An implementation of {@link PhoneBook} that keeps its contacts in a compact binary form, to hold
+ * many millions of contacts with a fraction of the memory that {@link InMemoryPhoneBook} needs.
+ * <p/>
+ * Contacts are encoded into a {@link ContactSlab}, which can live on the heap or off-heap, and their ids are
+ * mapped to the offsets of their records with a {@link LongIntHashTable}, so no key is ever boxed and there is no
+ * object per contact for the garbage collector to trace. {@link IndexedContact} objects are only decoded when
+ * a contact is returned: searches compare the encoded fields in place and return an {@link EncodedContactList},
+ * which materializes each contact while the controller serializes it.
+ * <p/>
+ * Since there are no secondary indexes, every search scans the whole table. Phone books with at least
+ * <code>phonebook.compact.parallel-scan-threshold</code> contacts (32768 by default) are scanned in parallel by
+ * a {@link ParallelScanner}, on <code>phonebook.compact.scan-threads</code> threads (the number of processors by default),
+ * and the matches come back in the same order as a sequential scan.
+ * <p/>
+ * The phone book is used instead of {@link InMemoryPhoneBook} when the <code>phonebook.store</code> property
+ * is set to <code>compact</code>. Setting <code>phonebook.compact.off-heap</code> to true moves the slab to a
+ * direct buffer. Like {@link InMemoryPhoneBook}, it is filled by a {@link ContactsFactory} that can be set with
+ * {@link CompactPhoneBook#setContactsFactory(ContactsFactory)}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Repository
+@ConditionalOnProperty(name = "phonebook.store", havingValue = "compact")
+public class CompactPhoneBook implements PhoneBook {
+
+    /**
+     * The slab is compacted when more than half of it is garbage and the garbage exceeds this size.
+     */
+    private static final int MIN_GARBAGE_TO_COMPACT = 1 << 20;
+
+    private static final int NAME = 0;
+    private static final int SURNAME = 1;
+    private static final int PHONE = 2;
+
+    /**
+     * Guards the table and the slab. Readers share it, so they only wait for writers.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Maps the id of every contact to the offset of its record in the {@link #slab}.
+     */
+    private LongIntHashTable offsets;
+
+    /**
+     * Holds the records of the contacts.
+     */
+    private ContactSlab slab;
+
+    /**
+     * Is used to create contacts for this phone book.
+     */
+    private ContactsFactory contactsFactory;
+
+    /**
+     * Is set to the {@link ContactsFactory} on {@link #init()}, unless it is <code>null</code>.
+     */
+    private IdAllocator idAllocator;
+
+    /**
+     * Gives every stored contact its version, which is encoded in its record.
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Counts the changes, which grows while the write lock is still held, so before any reader can see them.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    private ChangeFeed changeFeed;
+
+    @Value("${phonebook.compact.off-heap:false}")
+    private boolean offHeap;
+
+    @Value("${phonebook.changes.capacity:65536}")
+    private int changeFeedCapacity = ChangeFeed.DEFAULT_CAPACITY;
+
+    @Value("${phonebook.compact.scan-threads:0}")
+    private int scanThreads;
+
+    @Value("${phonebook.compact.parallel-scan-threshold:32768}")
+    private int parallelScanThreshold = 1 << 15;
+
+    private ParallelScanner scanner;
+
+    public CompactPhoneBook() {
+        contactsFactory = new SimpsonsContactsFactory();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (scanner == null) {
+            scanner = new ParallelScanner(scanThreads > 0 ? scanThreads : Runtime.getRuntime().availableProcessors(), parallelScanThreshold);
+        }
+        if (idAllocator != null) {
+            contactsFactory.setIdAllocator(idAllocator);
+        }
+        LongIntHashTable initOffsets = new LongIntHashTable(16);
+        ContactSlab initSlab = new ContactSlab(1 << 16, offHeap);
+        long initVersion = versions.incrementAndGet();
+        contactsFactory.forEachInitContact(contact -> {
+            contact.setVersion(initVersion);
+            int oldOffset = initOffsets.put(contact.getId(), initSlab.append(contact));
+            if (oldOffset != LongIntHashTable.NO_VALUE) {
+                initSlab.release(oldOffset);
+            }
+        });
+        lock.writeLock().lock();
+        try {
+            offsets = initOffsets;
+            slab = initSlab;
+            modifications.incrementAndGet();
+            if (changeFeed == null) {
+                changeFeed = new ChangeFeed(changeFeedCapacity);
+            } else {
+                changeFeed.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scanner != null) {
+            scanner.shutdown();
+        }
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        lock.readLock().lock();
+        try {
+            int offset = offsets.get(id);
+            if (offset == LongIntHashTable.NO_VALUE) {
+                return Optional.empty();
+            }
+            return Optional.of(ContactSlab.decode(slab.buffer(), offset));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        byte[] encodedName = ContactSlab.encode(name.orElse(null));
+        byte[] encodedSurname = ContactSlab.encode(surname.orElse(null));
+        byte[] encodedPhone = ContactSlab.encode(phone.orElse(null));
+        long phoneKey = phone.map(PhoneNumbers::key).orElse(PhoneNumbers.NO_KEY);
+
+        lock.readLock().lock();
+        try {
+            ByteBuffer buffer = slab.buffer();
+            int[] matches = scanner.scan(offsets, offset -> ContactSlab.fieldEquals(buffer, offset, NAME, encodedName)
+                    && ContactSlab.fieldEquals(buffer, offset, SURNAME, encodedSurname)
+                    && (ContactSlab.fieldEquals(buffer, offset, PHONE, encodedPhone)
+                        || phoneKey != PhoneNumbers.NO_KEY && ContactSlab.phoneKey(buffer, offset) == phoneKey));
+            return new EncodedContactList(buffer, matches, matches.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scans the table in parallel for the other match modes too, decoding every contact on the threads of the scan,
+     * instead of decoding the whole phone book on the calling thread and filtering it there.
+     */
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        if (matchMode == MatchMode.EXACT) {
+            return findContacts(name, surname, phone).stream();
+        }
+        lock.readLock().lock();
+        try {
+            ByteBuffer buffer = slab.buffer();
+            int[] matches = scanner.scan(offsets, offset -> matchMode.matches(ContactSlab.decode(buffer, offset), name, surname, phone));
+            return new EncodedContactList(buffer, matches, matches.length).stream();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        return putContact(contactsFactory.createIndexedContact(contact));
+    }
+
+    /**
+     * Reserves the id of the contact with the {@link ContactsFactory}, so that it is never given to a new contact, and puts it.
+     */
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        contactsFactory.reserveId(contact.getId());
+        return putContact(contact);
+    }
+
+    private IndexedContact putContact(IndexedContact contact) {
+        lock.writeLock().lock();
+        try {
+            append(contact);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return contact;
+    }
+
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        lock.writeLock().lock();
+        try {
+            int oldOffset = offsets.get(contact.getId());
+            if (oldOffset == LongIntHashTable.NO_VALUE || !expectedVersion.test(ContactSlab.version(slab.buffer(), oldOffset))) {
+                return Optional.empty();
+            }
+            append(contact);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return Optional.of(contact);
+    }
+
+    /**
+     * Indexes the whole batch with a single block of ids from the {@link ContactsFactory} and then puts its contacts.
+     */
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        return putIndexedContacts(contactsFactory.createIndexedContacts(contacts));
+    }
+
+    /**
+     * Reserves the ids of the batch with the {@link ContactsFactory} and then puts it, like {@link #addContact(IndexedContact)}.
+     */
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        contacts.forEach(contact -> contactsFactory.reserveId(contact.getId()));
+        return putIndexedContacts(contacts);
+    }
+
+    /**
+     * Appends the whole batch while holding the write lock once.
+     */
+    private List<IndexedContact> putIndexedContacts(List<IndexedContact> contacts) {
+        lock.writeLock().lock();
+        try {
+            contacts.forEach(this::append);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return contacts;
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        deleteContact(contact.getId());
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        lock.writeLock().lock();
+        try {
+            int oldOffset = offsets.remove(id);
+            if (oldOffset != LongIntHashTable.NO_VALUE) {
+                slab.release(oldOffset);
+                changeFeed.publish(ContactChange.Type.DELETED, id, null);
+                modifications.incrementAndGet();
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the whole batch while holding the write lock once.
+     */
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        List<Boolean> deleted = new ArrayList<>(ids.size());
+        lock.writeLock().lock();
+        try {
+            for (Long id : ids) {
+                int oldOffset = offsets.remove(id);
+                if (oldOffset != LongIntHashTable.NO_VALUE) {
+                    slab.release(oldOffset);
+                    changeFeed.publish(ContactChange.Type.DELETED, id, null);
+                    modifications.incrementAndGet();
+                }
+                deleted.add(oldOffset != LongIntHashTable.NO_VALUE);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return deleted;
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public long countContacts() {
+        return size();
+    }
+
+    /**
+     * Returns the number of bytes that the phone book's structures take, either on the heap or off-heap.
+     *
+     * @return the size of the id table plus the capacity of the slab.
+     */
+    public long footprint() {
+        lock.readLock().lock();
+        try {
+            return offsets.footprint() + slab.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes that the phone book holds outside of the heap.
+     */
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return slab.isDirect() ? slab.capacity() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of contacts in the phone book.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return offsets.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gives a contact a new version and appends it to the slab, releasing the record it replaces. Should be called with the write lock held.
+     */
+    private void append(IndexedContact contact) {
+        contact.setVersion(versions.incrementAndGet());
+        int oldOffset = offsets.put(contact.getId(), slab.append(contact));
+        if (oldOffset != LongIntHashTable.NO_VALUE) {
+            slab.release(oldOffset);
+        }
+        changeFeed.publish(oldOffset == LongIntHashTable.NO_VALUE ? ContactChange.Type.ADDED : ContactChange.Type.UPDATED, contact.getId(), contact);
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Copies the live records to a new slab, when most of the current one is taken by replaced or deleted contacts.
+     * The old slab is left untouched for any reader that still decodes contacts from it. Should be called while
+     * holding the write lock.
+     */
+    private void compactIfNeeded() {
+        int garbage = slab.garbageBytes();
+        if (garbage < MIN_GARBAGE_TO_COMPACT || garbage < slab.usedBytes() / 2) {
+            return;
+        }
+        ByteBuffer oldBuffer = slab.buffer();
+        ContactSlab compactedSlab = new ContactSlab(slab.usedBytes() - garbage, slab.isDirect());
+        offsets.replaceAllValues(offset -> compactedSlab.copy(oldBuffer, offset));
+        slab = compactedSlab;
+    }
+
+    @Autowired(required = false)
+    public void setContactsFactory(ContactsFactory contactsFactory) {
+        this.contactsFactory = contactsFactory;
+    }
+
+    /**
+     * Sets the {@link IdAllocator} that the {@link ContactsFactory} gives the ids of new contacts from, on the next {@link #init()}.
+     */
+    @Autowired(required = false)
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Sets the number of threads that scan the phone book, before the first {@link #init()}.
+     */
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * Sets the number of contacts from which on the phone book is scanned in parallel, before the first {@link #init()}.
+     */
+    public void setParallelScanThreshold(int parallelScanThreshold) {
+        this.parallelScanThreshold = parallelScanThreshold;
+    }
+
+}
@@ -0,0 +1,338 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.PhoneNumbers;
+
+/**
+ * An append-only slab of bytes that holds contacts in a compact binary form, either on the heap
+ * or off-heap in a direct {@link ByteBuffer}.
+ * <p/>
+ * Every contact is encoded as a record with the following layout:
+ * <p/>
+ * <pre>id (8 bytes) | version | name | surname | phone</pre>
+ * <p/>
+ * where the version is a varint, and every other field is a varint with the field's length plus one, followed by the
+ * field's UTF-8 bytes. A zero length stands for a <code>null</code> field.
+ * <p/>
+ * Records are never overwritten: a replaced or deleted contact only counts as garbage, and when the slab
+ * runs out of space its records are copied to a new, larger buffer. This means that a buffer returned by
+ * {@link #buffer()} stays valid for every record it already holds, so readers can decode records without
+ * holding a lock, after the record's offset has been safely published to them.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class ContactSlab {
+
+    private static final int ID_BYTES = Long.BYTES;
+
+    private final boolean direct;
+
+    private ByteBuffer buffer;
+
+    /**
+     * The offset right after the last record of the slab.
+     */
+    private int end;
+
+    /**
+     * The number of bytes that belong to replaced or deleted records.
+     */
+    private int garbage;
+
+    public ContactSlab(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(Math.max(64, initialCapacity));
+    }
+
+    /**
+     * Appends a contact to the slab.
+     *
+     * @param contact - the contact to be appended.
+     * @return the offset of the contact's record.
+     */
+    public int append(IndexedContact contact) {
+        byte[] name = encode(contact.getName());
+        byte[] surname = encode(contact.getSurname());
+        byte[] phone = encode(contact.getPhone());
+        long length = (long) ID_BYTES + varlongLength(contact.getVersion()) + fieldLength(name) + fieldLength(surname) + fieldLength(phone);
+        ensureCapacity(length);
+
+        int offset = end;
+        buffer.putLong(offset, contact.getId());
+        int position = putVarlong(offset + ID_BYTES, contact.getVersion());
+        position = putField(position, name);
+        position = putField(position, surname);
+        end = putField(position, phone);
+        return offset;
+    }
+
+    /**
+     * Marks a record as garbage. The record's bytes stay untouched, since there might still be readers of it.
+     *
+     * @param offset - the offset of the record.
+     */
+    public void release(int offset) {
+        garbage += recordLength(buffer, offset);
+    }
+
+    /**
+     * @return the buffer that holds the records of the slab.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int usedBytes() {
+        return end;
+    }
+
+    public int garbageBytes() {
+        return garbage;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Decodes a record to an {@link IndexedContact}.
+     *
+     * @param buffer - the buffer that holds the record.
+     * @param offset - the offset of the record.
+     * @return the decoded contact.
+     */
+    public static IndexedContact decode(ByteBuffer buffer, int offset) {
+        long id = buffer.getLong(offset);
+        long version = getVarlong(buffer, offset + ID_BYTES);
+        int[] position = {offset + ID_BYTES + varlongLength(version)};
+        String name = getField(buffer, position);
+        String surname = getField(buffer, position);
+        String phone = getField(buffer, position);
+        IndexedContact contact = new IndexedContact(id, name, surname, phone);
+        contact.setVersion(version);
+        return contact;
+    }
+
+    /**
+     * Returns the version of a record, without decoding any of its other fields.
+     */
+    public static long version(ByteBuffer buffer, int offset) {
+        return getVarlong(buffer, offset + ID_BYTES);
+    }
+
+    /**
+     * Returns the id of a record, without decoding any of its other fields.
+     */
+    public static long id(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * Checks whether a field of a record is equal to a value, without decoding the field.
+     *
+     * @param buffer - the buffer that holds the record.
+     * @param offset - the offset of the record.
+     * @param field - 0 for the name, 1 for the surname and 2 for the phone.
+     * @param value - the UTF-8 bytes of the value, or <code>null</code> to match any field.
+     * @return true if the value is <code>null</code> or equal to the field, false otherwise.
+     */
+    public static boolean fieldEquals(ByteBuffer buffer, int offset, int field, byte[] value) {
+        if (value == null) {
+            return true;
+        }
+        int position = skipVarlong(buffer, offset + ID_BYTES);
+        for (int i = 0; i < field; i++) {
+            position = skipField(buffer, position);
+        }
+        int encodedLength = getVarint(buffer, position);
+        if (encodedLength - 1 != value.length) {
+            return false;
+        }
+        position += varintLength(encodedLength);
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(position + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the canonical key of the phone of a record, without decoding the phone.
+     *
+     * @param buffer - the buffer that holds the record.
+     * @param offset - the offset of the record.
+     * @return the key of the phone, as {@link PhoneNumbers#key(ByteBuffer, int, int)} computes it.
+     */
+    public static long phoneKey(ByteBuffer buffer, int offset) {
+        int position = skipVarlong(buffer, offset + ID_BYTES);
+        for (int i = 0; i < 2; i++) {
+            position = skipField(buffer, position);
+        }
+        int encodedLength = getVarint(buffer, position);
+        if (encodedLength == 0) {
+            return PhoneNumbers.NO_KEY;
+        }
+        return PhoneNumbers.key(buffer, position + varintLength(encodedLength), encodedLength - 1);
+    }
+
+    /**
+     * Returns the number of bytes taken by a record.
+     */
+    public static int recordLength(ByteBuffer buffer, int offset) {
+        int position = skipVarlong(buffer, offset + ID_BYTES);
+        for (int i = 0; i < 3; i++) {
+            position = skipField(buffer, position);
+        }
+        return position - offset;
+    }
+
+    /**
+     * Copies a record from another buffer to the end of this slab.
+     *
+     * @param source - the buffer that holds the record.
+     * @param offset - the offset of the record.
+     * @return the offset of the copied record in this slab.
+     */
+    public int copy(ByteBuffer source, int offset) {
+        int length = recordLength(source, offset);
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(end + i, source.get(offset + i));
+        }
+        int copyOffset = end;
+        end += length;
+        return copyOffset;
+    }
+
+    public static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(long length) {
+        if (end + length <= buffer.capacity()) {
+            return;
+        }
+        long newCapacity = Math.max((long) buffer.capacity() * 2, end + length);
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The contact slab cannot grow beyond " + Integer.MAX_VALUE + " bytes.");
+        }
+        ByteBuffer newBuffer = allocate((int) newCapacity);
+        ByteBuffer usedBytes = buffer.duplicate();
+        usedBytes.position(0).limit(end);
+        newBuffer.put(usedBytes);
+        buffer = newBuffer;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private int putField(int position, byte[] value) {
+        int encodedLength = value == null ? 0 : value.length + 1;
+        position = putVarint(position, encodedLength);
+        if (value != null) {
+            for (byte b : value) {
+                buffer.put(position++, b);
+            }
+        }
+        return position;
+    }
+
+    private int putVarint(int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put(position++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    private int putVarlong(int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put(position++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    private static String getField(ByteBuffer buffer, int[] position) {
+        int encodedLength = getVarint(buffer, position[0]);
+        position[0] += varintLength(encodedLength);
+        if (encodedLength == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[encodedLength - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position[0] + i);
+        }
+        position[0] += bytes.length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int skipField(ByteBuffer buffer, int position) {
+        int encodedLength = getVarint(buffer, position);
+        return position + varintLength(encodedLength) + Math.max(0, encodedLength - 1);
+    }
+
+    private static int getVarint(ByteBuffer buffer, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long getVarlong(ByteBuffer buffer, int position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int skipVarlong(ByteBuffer buffer, int position) {
+        while ((buffer.get(position) & 0x80) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static int varlongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int fieldLength(byte[] value) {
+        int encodedLength = value == null ? 0 : value.length + 1;
+        return varintLength(encodedLength) + Math.max(0, encodedLength - 1);
+    }
+
+}
@@ -0,0 +1,43 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * An immutable list of contacts, backed by the records of a {@link ContactSlab}.
+ * <p/>
+ * The list only holds the offsets of its records, and decodes an {@link IndexedContact} every time
+ * one of its elements is requested. So, when the list is serialized by the controller, every contact
+ * is materialized just for the time it takes to be written to the response.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class EncodedContactList extends AbstractList<IndexedContact> implements RandomAccess {
+
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final int size;
+
+    public EncodedContactList(ByteBuffer buffer, int[] offsets, int size) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    @Override
+    public IndexedContact get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return ContactSlab.decode(buffer, offsets[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+}
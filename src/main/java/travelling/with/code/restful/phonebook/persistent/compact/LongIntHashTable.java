@@ -0,0 +1,232 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * An open-addressing hash table that maps primitive <code>long</code> keys to non-negative <code>int</code> values,
+ * without boxing either of them.
+ * <p/>
+ * Collisions are resolved with linear probing. Removed keys leave a tombstone behind, which is dropped
+ * the next time the table is rehashed. The table is not thread-safe; callers should guard it themselves.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class LongIntHashTable {
+
+    /**
+     * Returned by the lookup methods when a key is not in the table.
+     */
+    public static final int NO_VALUE = -1;
+
+    private static final int FREE = -1;
+    private static final int REMOVED = -2;
+    private static final float MAX_LOAD_FACTOR = 0.7f;
+
+    private long[] keys;
+    private int[] values;
+
+    /**
+     * The number of keys in the table.
+     */
+    private int size;
+
+    /**
+     * The number of slots that are either taken by a key or by a tombstone.
+     */
+    private int usedSlots;
+
+    public LongIntHashTable(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key - the key to be looked up.
+     * @return the value of the key, or {@link #NO_VALUE} if the key is not in the table.
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            int value = values[slot];
+            if (value == FREE) {
+                return NO_VALUE;
+            }
+            if (value != REMOVED && keys[slot] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Puts a key in the table, replacing its old value if there is one.
+     *
+     * @param key - the key to be put.
+     * @param value - the value of the key. Should not be negative.
+     * @return the old value of the key, or {@link #NO_VALUE} if the key was not in the table.
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values should not be negative: " + value);
+        }
+        int mask = keys.length - 1;
+        int firstRemovedSlot = -1;
+        int slot = slotOf(key, mask);
+        for (; ; slot = (slot + 1) & mask) {
+            int slotValue = values[slot];
+            if (slotValue == FREE) {
+                break;
+            }
+            if (slotValue == REMOVED) {
+                if (firstRemovedSlot < 0) {
+                    firstRemovedSlot = slot;
+                }
+            } else if (keys[slot] == key) {
+                values[slot] = value;
+                return slotValue;
+            }
+        }
+        if (firstRemovedSlot >= 0) {
+            slot = firstRemovedSlot;
+        } else {
+            usedSlots++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (usedSlots > keys.length * MAX_LOAD_FACTOR) {
+            rehash(capacityFor(size));
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes a key from the table.
+     *
+     * @param key - the key to be removed.
+     * @return the value of the removed key, or {@link #NO_VALUE} if the key was not in the table.
+     */
+    public int remove(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            int value = values[slot];
+            if (value == FREE) {
+                return NO_VALUE;
+            }
+            if (value != REMOVED && keys[slot] == key) {
+                values[slot] = REMOVED;
+                size--;
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Passes the value of every key in the table to the given action.
+     *
+     * @param action - the action to be performed for each value.
+     */
+    public void forEachValue(IntConsumer action) {
+        for (int value : values) {
+            if (value >= 0) {
+                action.accept(value);
+            }
+        }
+    }
+
+    /**
+     * Replaces the value of every key with the one returned by the given function.
+     *
+     * @param function - maps the current value of a key to its new value.
+     */
+    public void replaceAllValues(IntUnaryOperator function) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] >= 0) {
+                values[slot] = function.applyAsInt(values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Returns the value in a slot of the table, so that callers can walk ranges of slots on their own.
+     *
+     * @param slot - a slot between 0 and {@link #capacity()}.
+     * @return the value of the key in the slot, or {@link #NO_VALUE} if the slot holds no key.
+     */
+    public int valueAt(int slot) {
+        int value = values[slot];
+        return value >= 0 ? value : NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots of the table.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the number of bytes taken by the table's arrays.
+     */
+    public long footprint() {
+        return (long) keys.length * (Long.BYTES + Integer.BYTES);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldValues[oldSlot] >= 0) {
+                int slot = slotOf(oldKeys[oldSlot], mask);
+                while (values[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[oldSlot];
+                values[slot] = oldValues[oldSlot];
+                size++;
+                usedSlots++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, FREE);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    /**
+     * @return a power of two capacity that keeps the given number of keys at a load factor of at most one half.
+     */
+    private static int capacityFor(int expectedSize) {
+        long minCapacity = Math.max(16, expectedSize * 2L);
+        if (minCapacity > (1 << 30)) {
+            throw new IllegalStateException("Too many keys for a single table: " + expectedSize);
+        }
+        return Integer.highestOneBit((int) minCapacity - 1) << 1;
+    }
+
+    /**
+     * Spreads the key's bits with the finalizer of MurmurHash3, so that sequential ids do not cluster.
+     */
+    private static int slotOf(long key, int mask) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+
+}
@@ -0,0 +1,57 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+
+/**
+ * Prints how many bytes every contact takes in a {@link HashMap} of {@link IndexedContact} objects, the structure that
+ * backs the in-memory phone book, and in a {@link CompactPhoneBook}, both on the heap and off-heap.
+ * <p/>
+ * Usage: <code>java -cp restful.phonebook.jar travelling.with.code.restful.phonebook.persistent.compact.MemoryFootprintReport [contacts]</code>
+ * <p/>
+ * The heap sizes are measured after requesting a garbage collection, so they are an approximation. Run the report
+ * with a heap large enough for the baseline, for example <code>-Xmx4g</code> for ten million contacts.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class MemoryFootprintReport {
+
+    public static void main(String[] args) {
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        GeneratedContactsFactory contactsFactory = new GeneratedContactsFactory(contacts);
+
+        long heapBefore = usedHeap();
+        Map<Long, IndexedContact> baseline = new HashMap<>(contactsFactory.createInitContactsMap());
+        long baselineBytes = usedHeap() - heapBefore;
+        report("HashMap<Long, IndexedContact>", baseline.size(), baselineBytes, 0);
+        baseline = null;
+
+        for (boolean offHeap : new boolean[] {false, true}) {
+            heapBefore = usedHeap();
+            CompactPhoneBook phoneBook = new CompactPhoneBook();
+            phoneBook.setContactsFactory(contactsFactory);
+            phoneBook.setOffHeap(offHeap);
+            phoneBook.init();
+            long heapBytes = usedHeap() - heapBefore;
+            report(offHeap ? "CompactPhoneBook (off-heap)" : "CompactPhoneBook (heap)", phoneBook.size(), heapBytes, phoneBook.offHeapBytes());
+            phoneBook = null;
+        }
+    }
+
+    private static void report(String store, int contacts, long heapBytes, long offHeapBytes) {
+        System.out.printf("%-32s %,12d contacts %,16d heap bytes %,16d off-heap bytes %10.1f bytes/contact%n",
+                store, contacts, heapBytes, offHeapBytes, (heapBytes + offHeapBytes) / (double) Math.max(1, contacts));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,137 @@
+package travelling.with.code.restful.phonebook.persistent.compact;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Finds the values of a {@link LongIntHashTable} that match a predicate, by scanning the slots of the table in chunks
+ * that are checked in parallel on a dedicated {@link ForkJoinPool}.
+ * <p/>
+ * Tables with fewer keys than the threshold are scanned on the calling thread, since splitting a small scan costs more
+ * than it saves. Larger tables are cut into a few chunks per thread of the pool, so that a chunk with more matches, which
+ * takes longer, is balanced by the threads that steal the rest. Every chunk keeps its matches apart, and the chunks are
+ * joined in slot order, so the values come out in the same order as a sequential scan of the table, whatever
+ * the number of threads.
+ * <p/>
+ * The table and whatever the predicate reads should not change during a scan; the caller keeps them still, for example
+ * with a lock that it holds until the scan returns. The pool has its own threads, so scans never compete with
+ * the common pool of parallel streams.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class ParallelScanner {
+
+    /**
+     * The number of chunks per thread of the pool.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    private final int threshold;
+
+    /**
+     * @param parallelism - the number of threads of the pool.
+     * @param threshold - the number of keys below which a table is scanned on the calling thread.
+     */
+    ParallelScanner(int parallelism, int threshold) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("phonebook-scan-" + threadNumber.incrementAndGet());
+            return thread;
+        }, null, false);
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param table - the table to be scanned.
+     * @param matches - checks the value of a key.
+     * @return the matching values, in the order of their slots.
+     */
+    int[] scan(LongIntHashTable table, IntPredicate matches) {
+        int capacity = table.capacity();
+        if (table.size() < threshold || pool.getParallelism() == 1) {
+            return scanChunk(table, matches, 0, capacity);
+        }
+        int chunkCount = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, capacity);
+        int[][] chunkMatches = new int[chunkCount][];
+        pool.invoke(new ScanTask(table, matches, chunkMatches, 0, chunkCount));
+
+        int size = 0;
+        for (int[] values : chunkMatches) {
+            size += values.length;
+        }
+        int[] values = new int[size];
+        int position = 0;
+        for (int[] chunkValues : chunkMatches) {
+            System.arraycopy(chunkValues, 0, values, position, chunkValues.length);
+            position += chunkValues.length;
+        }
+        return values;
+    }
+
+    /**
+     * Stops the threads of the pool. Scans that are still running are interrupted.
+     */
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static int[] scanChunk(LongIntHashTable table, IntPredicate matches, int fromSlot, int toSlot) {
+        int[] values = new int[16];
+        int size = 0;
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            int value = table.valueAt(slot);
+            if (value != LongIntHashTable.NO_VALUE && matches.test(value)) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = value;
+            }
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Splits a range of chunks in halves until a single chunk is left, which it scans into its place in the matches of the chunks.
+     */
+    private static class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final LongIntHashTable table;
+        private final IntPredicate matches;
+        private final int[][] chunkMatches;
+        private final int fromChunk;
+        private final int toChunk;
+
+        private ScanTask(LongIntHashTable table, IntPredicate matches, int[][] chunkMatches, int fromChunk, int toChunk) {
+            this.table = table;
+            this.matches = matches;
+            this.chunkMatches = chunkMatches;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int middleChunk = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ScanTask(table, matches, chunkMatches, fromChunk, middleChunk),
+                          new ScanTask(table, matches, chunkMatches, middleChunk, toChunk));
+                return;
+            }
+            long capacity = table.capacity();
+            int fromSlot = (int) (capacity * fromChunk / chunkMatches.length);
+            int toSlot = (int) (capacity * toChunk / chunkMatches.length);
+            chunkMatches[fromChunk] = scanChunk(table, matches, fromSlot, toSlot);
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * Encodes and decodes the contact records that are shared by the {@link WriteAheadLog} and the {@link ContactSnapshot}.
+ * <p/>
+ * A record has the following layout, in big-endian order:
+ * <p/>
+ * <pre>id (8 bytes) | name | surname | phone</pre>
+ * <p/>
+ * where every field is a 4 byte length, or -1 for a <code>null</code> field, followed by the field's UTF-8 bytes.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+final class ContactRecords {
+
+    private ContactRecords() {
+    }
+
+    /**
+     * Writes the record of a contact.
+     *
+     * @param output - where the record will be written.
+     * @param contact - the contact to be written.
+     * @throws IOException if the record could not be written.
+     */
+    public static void write(DataOutput output, IndexedContact contact) throws IOException {
+        output.writeLong(contact.getId());
+        writeField(output, contact.getName());
+        writeField(output, contact.getSurname());
+        writeField(output, contact.getPhone());
+    }
+
+    /**
+     * Reads a record from the buffer's current position and advances the position after it.
+     *
+     * @param buffer - the buffer that holds the record.
+     * @return the decoded contact.
+     */
+    public static IndexedContact read(ByteBuffer buffer) {
+        long id = buffer.getLong();
+        String name = readField(buffer);
+        String surname = readField(buffer);
+        String phone = readField(buffer);
+        return new IndexedContact(id, name, surname, phone);
+    }
+
+    private static void writeField(DataOutput output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readField(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
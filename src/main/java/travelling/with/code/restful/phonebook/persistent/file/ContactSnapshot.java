@@ -0,0 +1,242 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * A read-only, memory-mapped file with a snapshot of the contacts of a phone book.
+ * <p/>
+ * The file has the following layout:
+ * <p/>
+ * <pre>
+ * header:  magic (4 bytes) | contacts count (4 bytes) | highest id (8 bytes)
+ * records: one record per contact, sorted by id, encoded by {@link ContactRecords}
+ * index:   one (id, record offset) pair of longs per contact, sorted by id
+ * trailer: index offset (8 bytes)
+ * </pre>
+ * <p/>
+ * The sorted index lets a single contact be found with a binary search over the mapping, without decoding
+ * any other record, while the records can also be read sequentially to load the whole phone book.
+ * A single snapshot file cannot be larger than 2GB, the limit of a {@link MappedByteBuffer}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class ContactSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x50425331;
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int TRAILER_BYTES = 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final int size;
+    private final long highestId;
+    private final int indexOffset;
+
+    private ContactSnapshot(FileChannel channel, MappedByteBuffer mapping) throws IOException {
+        this.channel = channel;
+        this.mapping = mapping;
+        if (mapping.capacity() < HEADER_BYTES + TRAILER_BYTES || mapping.getInt(0) != MAGIC) {
+            throw new IOException("Not a contact snapshot file.");
+        }
+        this.size = mapping.getInt(4);
+        this.highestId = mapping.getLong(8);
+        this.indexOffset = (int) mapping.getLong(mapping.capacity() - TRAILER_BYTES);
+        if (indexOffset < HEADER_BYTES || indexOffset + (long) size * INDEX_ENTRY_BYTES + TRAILER_BYTES != mapping.capacity()) {
+            throw new IOException("The contact snapshot file is corrupted.");
+        }
+    }
+
+    /**
+     * Maps a snapshot file to memory. Only the header and the trailer of the file are read.
+     *
+     * @param path - the snapshot file.
+     * @return the mapped snapshot.
+     * @throws IOException if the file could not be mapped, or is not a valid snapshot.
+     */
+    public static ContactSnapshot open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Contact snapshots larger than 2GB are not supported.");
+            }
+            return new ContactSnapshot(channel, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the given contacts to a snapshot file. The snapshot is first written and synced to a temporary file,
+     * which then atomically replaces the target file, so a crash never leaves a half written snapshot behind.
+     *
+     * @param path - the snapshot file.
+     * @param contacts - the contacts to be written.
+     * @param highestId - the highest id that has ever been given to a contact, which may belong to a deleted contact.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public static void write(Path path, Collection<IndexedContact> contacts, long highestId) throws IOException {
+        List<IndexedContact> sortedContacts = new ArrayList<>(contacts);
+        sortedContacts.sort(Comparator.comparing(IndexedContact::getId));
+        long[] recordOffsets = new long[sortedContacts.size()];
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(temporaryPath.toFile())) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 1 << 16));
+            output.writeInt(MAGIC);
+            output.writeInt(sortedContacts.size());
+            output.writeLong(highestId);
+            for (int i = 0; i < sortedContacts.size(); i++) {
+                recordOffsets[i] = output.size();
+                ContactRecords.write(output, sortedContacts.get(i));
+            }
+            long indexOffset = output.size();
+            if (indexOffset + (long) sortedContacts.size() * INDEX_ENTRY_BYTES + TRAILER_BYTES > Integer.MAX_VALUE) {
+                throw new IOException("Contact snapshots larger than 2GB are not supported.");
+            }
+            for (int i = 0; i < sortedContacts.size(); i++) {
+                output.writeLong(sortedContacts.get(i).getId());
+                output.writeLong(recordOffsets[i]);
+            }
+            output.writeLong(indexOffset);
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finds a contact with a binary search over the snapshot's index.
+     *
+     * @param id - the id of the contact.
+     * @return the contact with this id, or an empty optional if the snapshot has no such contact.
+     */
+    public Optional<IndexedContact> find(long id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = indexOffset + middle * INDEX_ENTRY_BYTES;
+            long middleId = mapping.getLong(entry);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return Optional.of(readRecord((int) mapping.getLong(entry + 8)));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns an iterator that decodes the contacts of the snapshot one by one, in id order.
+     *
+     * @return an iterator over the snapshot's contacts.
+     */
+    public Iterator<IndexedContact> iterator() {
+        return iterator(HEADER_BYTES);
+    }
+
+    /**
+     * Returns an iterator that decodes, in id order, the contacts of the snapshot with an id greater than the given one.
+     * The first of them is found with a binary search over the snapshot's index.
+     *
+     * @param afterId - only contacts with a greater id will be returned.
+     * @return an iterator over the snapshot's contacts after the given id.
+     */
+    public Iterator<IndexedContact> iteratorAfter(long afterId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mapping.getLong(indexOffset + middle * INDEX_ENTRY_BYTES) <= afterId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return iterator(low == size ? indexOffset : (int) mapping.getLong(indexOffset + low * INDEX_ENTRY_BYTES + 8));
+    }
+
+    private Iterator<IndexedContact> iterator(int firstRecordOffset) {
+        ByteBuffer records = mapping.duplicate();
+        records.position(firstRecordOffset).limit(indexOffset);
+        return new Iterator<IndexedContact>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasRemaining();
+            }
+
+            @Override
+            public IndexedContact next() {
+                if (!records.hasRemaining()) {
+                    throw new NoSuchElementException();
+                }
+                return ContactRecords.read(records);
+            }
+        };
+    }
+
+    /**
+     * Decodes every contact of the snapshot, in id order, and passes it to the given action.
+     *
+     * @param action - the action to be performed for each contact.
+     */
+    public void forEach(Consumer<IndexedContact> action) {
+        ByteBuffer records = mapping.duplicate();
+        records.position(HEADER_BYTES).limit(indexOffset);
+        while (records.hasRemaining()) {
+            action.accept(ContactRecords.read(records));
+        }
+    }
+
+    /**
+     * @return the number of contacts in the snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the highest id that had ever been given to a contact when the snapshot was written.
+     */
+    public long getHighestId() {
+        return highestId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private IndexedContact readRecord(int offset) {
+        ByteBuffer record = mapping.duplicate();
+        record.position(offset);
+        return ContactRecords.read(record);
+    }
+
+}
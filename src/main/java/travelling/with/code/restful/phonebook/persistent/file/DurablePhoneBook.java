@@ -0,0 +1,420 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.SimpsonsContactsFactory;
+
+/**
+ * An implementation of {@link PhoneBook} that keeps its contacts in an {@link InMemoryPhoneBook}, but also
+ * survives restarts, by writing every change to a {@link WriteAheadLog} before it is acknowledged.
+ * <p/>
+ * The log is periodically folded into a {@link ContactSnapshot}: once the log grows past a configured size,
+ * a checkpoint briefly blocks the writers, writes a snapshot of the whole phone book and empties the log.
+ * On startup, the phone book maps the snapshot, replays the tail of the log on top of it and continues giving ids past
+ * the highest id it has seen, from the {@link IdAllocator} of the application if there is one. A crash between writing
+ * a snapshot and emptying the log is harmless, since replaying puts and deletes that are already in the snapshot leads
+ * to the same contacts.
+ * <p/>
+ * The phone book is used when the <code>phonebook.store</code> property is set to <code>durable</code>.
+ * Its files are kept under <code>phonebook.durable.directory</code>. On the very first start, when there are
+ * no files yet, it is filled by a {@link ContactsFactory}, which can be set with
+ * {@link DurablePhoneBook#setContactsFactory(ContactsFactory)}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Repository
+@ConditionalOnProperty(name = "phonebook.store", havingValue = "durable")
+public class DurablePhoneBook implements PhoneBook {
+
+    private static final String SNAPSHOT_FILE = "contacts.snapshot";
+    private static final String LOG_FILE = "contacts.wal";
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    /**
+     * Holds the contacts, while the files only make them durable.
+     */
+    private final InMemoryPhoneBook contacts = new InMemoryPhoneBook();
+
+    /**
+     * Writers share this lock, while a checkpoint holds it exclusively.
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    /**
+     * Keep the writes of the same id in the same order in the log and in the phone book.
+     */
+    private final Object[] writeLocks;
+
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+
+    private final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "phonebook-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Is used to fill the phone book on its first start.
+     */
+    private ContactsFactory contactsFactory;
+
+    /**
+     * Provides the recovered contacts to {@link #contacts} and indexes the new ones.
+     */
+    private RecoveredContactsFactory recoveredContactsFactory;
+
+    /**
+     * Gives the ids of new contacts, or <code>null</code> to give them consecutive ids.
+     */
+    private IdAllocator idAllocator;
+
+    private WriteAheadLog log;
+
+    @Value("${phonebook.durable.directory:phonebook-data}")
+    private String directory;
+
+    @Value("${phonebook.durable.checkpoint-bytes:67108864}")
+    private long checkpointBytes;
+
+    @Value("${phonebook.changes.capacity:65536}")
+    private int changeFeedCapacity = ChangeFeed.DEFAULT_CAPACITY;
+
+    public DurablePhoneBook() {
+        contactsFactory = new SimpsonsContactsFactory();
+        writeLocks = new Object[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Recovers the contacts from the snapshot and the log, or fills the phone book from the {@link ContactsFactory}
+     * if there are no files yet.
+     *
+     * @throws IOException if the files could not be read.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        Path directoryPath = Paths.get(directory);
+        Files.createDirectories(directoryPath);
+        Path snapshotPath = directoryPath.resolve(SNAPSHOT_FILE);
+        Path logPath = directoryPath.resolve(LOG_FILE);
+        boolean firstStart = !Files.exists(snapshotPath) && !Files.exists(logPath);
+
+        Map<Long, IndexedContact> recoveredContacts = new HashMap<>();
+        long[] highestId = {-1};
+        if (firstStart) {
+            contactsFactory.forEachInitContact(contact -> {
+                recoveredContacts.put(contact.getId(), contact);
+                highestId[0] = Math.max(highestId[0], contact.getId());
+            });
+        } else if (Files.exists(snapshotPath)) {
+            try (ContactSnapshot snapshot = ContactSnapshot.open(snapshotPath)) {
+                snapshot.forEach(contact -> recoveredContacts.put(contact.getId(), contact));
+                highestId[0] = snapshot.getHighestId();
+            }
+        }
+        long validLogLength = WriteAheadLog.replay(logPath, new WriteAheadLog.Visitor() {
+            @Override
+            public void put(IndexedContact contact) {
+                recoveredContacts.put(contact.getId(), contact);
+                highestId[0] = Math.max(highestId[0], contact.getId());
+            }
+
+            @Override
+            public void delete(long id) {
+                recoveredContacts.remove(id);
+            }
+        });
+
+        recoveredContactsFactory = new RecoveredContactsFactory(recoveredContacts, highestId[0], idAllocator);
+        contacts.setContactsFactory(recoveredContactsFactory);
+        contacts.setChangeFeedCapacity(changeFeedCapacity);
+        contacts.init();
+        log = new WriteAheadLog(logPath, validLogLength);
+        if (firstStart) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        return contacts.findContact(id);
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return contacts.findContacts(name, surname, phone);
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return contacts.streamContacts(name, surname, phone);
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return contacts.streamContacts(matchMode, name, surname, phone);
+    }
+
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        return contacts.findContacts(matchMode, name, surname, phone, afterId, limit);
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        return addContact(recoveredContactsFactory.createIndexedContact(contact));
+    }
+
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        CompletableFuture<Void> durable;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (writeLock(contact.getId())) {
+                durable = log.appendPut(contact);
+                contacts.addContact(contact);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitDurable(durable);
+        return contact;
+    }
+
+    /**
+     * Checks the version of the old contact and then replaces it, while holding the lock of its id,
+     * so the log never records a replacement that was not applied.
+     */
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        CompletableFuture<Void> durable;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (writeLock(contact.getId())) {
+                if (!contacts.findContact(contact.getId()).filter(oldContact -> expectedVersion.test(oldContact.getVersion())).isPresent()) {
+                    return Optional.empty();
+                }
+                durable = log.appendPut(contact);
+                contacts.addContact(contact);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitDurable(durable);
+        return Optional.of(contact);
+    }
+
+    /**
+     * Indexes the whole batch with a single block of ids and then puts its contacts.
+     */
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        return putContacts(recoveredContactsFactory.createIndexedContacts(contacts));
+    }
+
+    /**
+     * Appends and applies every contact of the batch, and then waits once for the whole batch to become durable,
+     * which the log's group commit usually achieves with a single sync.
+     */
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        CompletableFuture<?>[] durable = new CompletableFuture<?>[contacts.size()];
+        checkpointLock.readLock().lock();
+        try {
+            for (int i = 0; i < contacts.size(); i++) {
+                IndexedContact contact = contacts.get(i);
+                synchronized (writeLock(contact.getId())) {
+                    durable[i] = log.appendPut(contact);
+                    this.contacts.addContact(contact);
+                }
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitDurable(CompletableFuture.allOf(durable));
+        return contacts;
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        deleteContact(contact.getId());
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        CompletableFuture<Void> durable;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (writeLock(id)) {
+                durable = log.appendDelete(id);
+                contacts.deleteContact(id);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitDurable(durable);
+    }
+
+    /**
+     * Deletes every contact of the batch that exists, and then waits once for the whole batch to become durable.
+     */
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        List<Boolean> deleted = new ArrayList<>(ids.size());
+        List<CompletableFuture<Void>> durable = new ArrayList<>(ids.size());
+        checkpointLock.readLock().lock();
+        try {
+            for (Long id : ids) {
+                synchronized (writeLock(id)) {
+                    boolean exists = contacts.findContact(id).isPresent();
+                    if (exists) {
+                        durable.add(log.appendDelete(id));
+                        contacts.deleteContact(id);
+                    }
+                    deleted.add(exists);
+                }
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitDurable(CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[durable.size()])));
+        return deleted;
+    }
+
+    @Override
+    public long getModificationCount() {
+        return contacts.getModificationCount();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return contacts.getChangeFeed();
+    }
+
+    @Override
+    public long countContacts() {
+        return contacts.countContacts();
+    }
+
+    /**
+     * Writes a snapshot of the whole phone book and empties the log. Writers wait while the checkpoint runs.
+     *
+     * @throws IOException if the snapshot could not be written or the log could not be emptied.
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            log.sync();
+            Path snapshotPath = Paths.get(directory).resolve(SNAPSHOT_FILE);
+            ContactSnapshot.write(snapshotPath, contacts.findContacts(Optional.empty(), Optional.empty(), Optional.empty()),
+                    recoveredContactsFactory.getHighestId());
+            log.truncate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the phone book durable one last time, so the next start does not have to replay the log. The log is closed
+     * while writers wait, so no change is appended after the final checkpoint and before the log is closed.
+     *
+     * @throws IOException if the final checkpoint failed.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        checkpointExecutor.shutdown();
+        checkpointLock.writeLock().lock();
+        try {
+            checkpoint();
+        } finally {
+            try {
+                log.close();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for a change to become durable, and schedules a checkpoint if the log has grown too much.
+     */
+    private void awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            WriteAheadLog.await(durable);
+            if (log.size() >= checkpointBytes && checkpointScheduled.compareAndSet(false, true)) {
+                checkpointExecutor.execute(() -> {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        checkpointScheduled.set(false);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("The change could not be made durable.", e);
+        }
+    }
+
+    private Object writeLock(Long id) {
+        int hash = id.hashCode();
+        return writeLocks[(hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    @Autowired(required = false)
+    public void setContactsFactory(ContactsFactory contactsFactory) {
+        this.contactsFactory = contactsFactory;
+    }
+
+    @Autowired(required = false)
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public void setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+    }
+
+}
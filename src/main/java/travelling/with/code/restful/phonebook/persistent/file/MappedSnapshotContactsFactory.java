@@ -0,0 +1,120 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.in.memory.AllocatingContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+
+/**
+ * A {@link ContactsFactory} that serves its initial contacts straight from a memory-mapped {@link ContactSnapshot}.
+ * <p/>
+ * Opening the factory only maps the file and reads its header, so it takes the same few milliseconds for a handful
+ * of contacts and for many millions of them. The map returned by {@link #createInitContactsMap()} is a read-only view
+ * of the snapshot, which finds a single contact with a binary search over the file's index and decodes it only when
+ * it is requested. New contacts are given ids right after the highest id of the snapshot.
+ * <p/>
+ * Snapshot files can be produced from a JSON array of contacts with {@link SnapshotTool}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class MappedSnapshotContactsFactory extends AllocatingContactsFactory implements Closeable {
+
+    private final ContactSnapshot snapshot;
+
+    public MappedSnapshotContactsFactory(Path snapshotPath) throws IOException {
+        this(ContactSnapshot.open(snapshotPath));
+    }
+
+    private MappedSnapshotContactsFactory(ContactSnapshot snapshot) {
+        super(snapshot.getHighestId() + 1);
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public Collection<IndexedContact> createInitContactsCollection() {
+        return createInitContactsMap().values();
+    }
+
+    @Override
+    public Map<Long, IndexedContact> createInitContactsMap() {
+        return new SnapshotContactsMap();
+    }
+
+    @Override
+    public void forEachInitContact(Consumer<IndexedContact> action) {
+        snapshot.forEach(action);
+    }
+
+    /**
+     * @return the snapshot that the factory's contacts come from.
+     */
+    public ContactSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshot.close();
+    }
+
+    /**
+     * A read-only map view of the snapshot. Lookups by id decode a single contact, while iterating the map
+     * decodes the contacts one by one, in id order.
+     */
+    private class SnapshotContactsMap extends AbstractMap<Long, IndexedContact> {
+
+        @Override
+        public IndexedContact get(Object key) {
+            return key instanceof Long ? snapshot.find((Long) key).orElse(null) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return snapshot.size();
+        }
+
+        @Override
+        public Set<Entry<Long, IndexedContact>> entrySet() {
+            return new AbstractSet<Entry<Long, IndexedContact>>() {
+                @Override
+                public Iterator<Entry<Long, IndexedContact>> iterator() {
+                    Iterator<IndexedContact> contacts = snapshot.iterator();
+                    return new Iterator<Entry<Long, IndexedContact>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return contacts.hasNext();
+                        }
+
+                        @Override
+                        public Entry<Long, IndexedContact> next() {
+                            IndexedContact contact = contacts.next();
+                            return new SimpleImmutableEntry<>(contact.getId(), contact);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return snapshot.size();
+                }
+            };
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+import travelling.with.code.restful.phonebook.persistent.in.memory.AllocatingContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+
+/**
+ * A {@link ContactsFactory} that provides the contacts recovered from the files of a {@link DurablePhoneBook},
+ * and continues indexing new contacts right after the highest id that the files have ever seen.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class RecoveredContactsFactory extends AllocatingContactsFactory {
+
+    private final Map<Long, IndexedContact> recoveredContacts;
+
+    /**
+     * @param recoveredContacts - the contacts recovered from the files.
+     * @param highestId - the highest id that the files have ever seen.
+     * @param idAllocator - the allocator of the ids of new contacts, or <code>null</code> to give them consecutive ids.
+     */
+    public RecoveredContactsFactory(Map<Long, IndexedContact> recoveredContacts, long highestId, IdAllocator idAllocator) {
+        super(highestId + 1);
+        this.recoveredContacts = recoveredContacts;
+        if (idAllocator != null) {
+            setIdAllocator(idAllocator);
+        }
+    }
+
+    @Override
+    public Collection<IndexedContact> createInitContactsCollection() {
+        return new ArrayList<>(recoveredContacts.values());
+    }
+
+    @Override
+    public Map<Long, IndexedContact> createInitContactsMap() {
+        return new HashMap<>(recoveredContacts);
+    }
+
+    /**
+     * @return the highest id that has been given to a contact so far.
+     */
+    public long getHighestId() {
+        return getIdAllocator().getHighestId();
+    }
+
+}
@@ -0,0 +1,313 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+
+/**
+ * An implementation of {@link PhoneBook} that is ready as soon as a prebuilt {@link ContactSnapshot} is mapped,
+ * no matter how many contacts the snapshot holds.
+ * <p/>
+ * The snapshot is read through a {@link MappedSnapshotContactsFactory} and is never copied to the heap. Changes are
+ * kept in an in-memory overlay on top of it, where a deleted contact of the snapshot is recorded as an empty optional, so the
+ * snapshot file itself stays read-only. A contact is looked up in the overlay first and then with a binary search
+ * in the snapshot, while searches lazily scan the snapshot and merge the overlay into the results. A write to an id
+ * holds a striped lock, so that it can check the old contact and publish to the {@link ChangeFeed} in one step.
+ * <p/>
+ * The phone book is used when the <code>phonebook.store</code> property is set to <code>snapshot</code>,
+ * and it maps the file set with <code>phonebook.snapshot.file</code>.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Repository
+@ConditionalOnProperty(name = "phonebook.store", havingValue = "snapshot")
+public class SnapshotPhoneBook implements PhoneBook {
+
+    /**
+     * The number of locks guarding the writes to the overlay, a power of two.
+     */
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    /**
+     * Holds the contacts added, replaced or deleted since the snapshot was mapped.
+     */
+    private final ConcurrentNavigableMap<Long, Optional<IndexedContact>> changedContacts = new ConcurrentSkipListMap<>();
+
+    /**
+     * Gives every contact that is put in the overlay its version. The contacts of the snapshot have none.
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Counts the changes that have become visible.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * The number of contacts added by the overlay, minus the number of contacts it deleted.
+     */
+    private final AtomicLong addedContactsCount = new AtomicLong();
+
+    /**
+     * Guard the writes to the phone book. A write to a contact id holds the lock returned by {@link #writeLock(Long)}.
+     */
+    private final Object[] writeLocks;
+
+    private MappedSnapshotContactsFactory contactsFactory;
+
+    /**
+     * Gives the ids of new contacts, or <code>null</code> to give them the ids after the snapshot's highest id.
+     */
+    private IdAllocator idAllocator;
+
+    private ChangeFeed changeFeed;
+
+    @Value("${phonebook.snapshot.file:contacts.snapshot}")
+    private String snapshotFile;
+
+    @Value("${phonebook.changes.capacity:65536}")
+    private int changeFeedCapacity = ChangeFeed.DEFAULT_CAPACITY;
+
+    public SnapshotPhoneBook() {
+        writeLocks = new Object[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (contactsFactory != null) {
+            contactsFactory.close();
+        }
+        contactsFactory = new MappedSnapshotContactsFactory(Paths.get(snapshotFile));
+        if (idAllocator != null) {
+            contactsFactory.setIdAllocator(idAllocator);
+        }
+        changedContacts.clear();
+        addedContactsCount.set(0);
+        modifications.incrementAndGet();
+        if (changeFeed == null) {
+            changeFeed = new ChangeFeed(changeFeedCapacity);
+        } else {
+            changeFeed.clear();
+        }
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        Optional<IndexedContact> changedContact = changedContacts.get(id);
+        if (changedContact != null) {
+            return changedContact;
+        }
+        return contactsFactory.getSnapshot().find(id);
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return streamContacts(name, surname, phone).collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        ContactSnapshot snapshot = contactsFactory.getSnapshot();
+        Stream<IndexedContact> snapshotContacts = StreamSupport.stream(
+                Spliterators.spliterator(snapshot.iterator(), snapshot.size(), Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .filter(contact -> !changedContacts.containsKey(contact.getId()));
+        Stream<IndexedContact> changedContactsStream = changedContacts.values().stream()
+                .filter(Optional::isPresent)
+                .map(Optional::get);
+        return Stream.concat(snapshotContacts, changedContactsStream)
+                .filter(contact -> MatchMode.EXACT.matches(contact, name, surname, phone));
+    }
+
+    /**
+     * Takes up to <code>limit</code> matching contacts after the given id from the snapshot and from the overlay,
+     * and merges the two ordered runs into a single page.
+     */
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        ContactSnapshot snapshot = contactsFactory.getSnapshot();
+        Iterator<IndexedContact> snapshotContacts = afterId.isPresent() ? snapshot.iteratorAfter(afterId.get()) : snapshot.iterator();
+        List<IndexedContact> page = new ArrayList<>();
+        while (snapshotContacts.hasNext() && page.size() < limit) {
+            IndexedContact contact = snapshotContacts.next();
+            if (!changedContacts.containsKey(contact.getId()) && matchMode.matches(contact, name, surname, phone)) {
+                page.add(contact);
+            }
+        }
+        (afterId.isPresent() ? changedContacts.tailMap(afterId.get(), false) : changedContacts).values().stream()
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .filter(contact -> matchMode.matches(contact, name, surname, phone))
+                .limit(limit)
+                .forEach(page::add);
+        page.sort(Comparator.comparing(IndexedContact::getId));
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        return addContact(contactsFactory.createIndexedContact(contact));
+    }
+
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        contactsFactory.reserveId(contact.getId());
+        synchronized (writeLock(contact.getId())) {
+            putContact(findContact(contact.getId()), contact);
+        }
+        return contact;
+    }
+
+    /**
+     * Checks the version of the old contact, either in the overlay or in the snapshot, and puts the new one
+     * in the overlay, while the lock of its id is held.
+     */
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        synchronized (writeLock(contact.getId())) {
+            Optional<IndexedContact> oldContact = findContact(contact.getId());
+            if (!oldContact.filter(old -> expectedVersion.test(old.getVersion())).isPresent()) {
+                return Optional.empty();
+            }
+            putContact(oldContact, contact);
+        }
+        return Optional.of(contact);
+    }
+
+    /**
+     * Indexes the whole batch with a single block of ids and then puts its contacts.
+     */
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        return putContacts(contactsFactory.createIndexedContacts(contacts));
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        deleteContact(contact.getId());
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        removeContact(id);
+    }
+
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        return ids.stream().map(this::removeContact).collect(Collectors.toList());
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public long countContacts() {
+        return contactsFactory.getSnapshot().size() + addedContactsCount.get();
+    }
+
+    /**
+     * Records a contact as deleted in the overlay. Only a contact of the snapshot leaves a tombstone behind, while a contact
+     * that only lived in the overlay is dropped from it, so that deleting ids that do not exist never grows the overlay.
+     *
+     * @param id - the id of the contact to be removed.
+     * @return true if there was a contact with this id, false otherwise.
+     */
+    private boolean removeContact(Long id) {
+        synchronized (writeLock(id)) {
+            if (!findContact(id).isPresent()) {
+                return false;
+            }
+            if (contactsFactory.getSnapshot().find(id).isPresent()) {
+                changedContacts.put(id, Optional.empty());
+            } else {
+                changedContacts.remove(id);
+            }
+            addedContactsCount.decrementAndGet();
+            changeFeed.publish(ContactChange.Type.DELETED, id, null);
+            modifications.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Gives a contact a new version and puts it in the overlay, while the lock of its id is held.
+     *
+     * @param oldContact - the contact that is going to be replaced, which is empty if there is no such contact.
+     * @param contact - the contact to be put.
+     */
+    private void putContact(Optional<IndexedContact> oldContact, IndexedContact contact) {
+        contact.setVersion(versions.incrementAndGet());
+        changedContacts.put(contact.getId(), Optional.of(contact));
+        if (!oldContact.isPresent()) {
+            addedContactsCount.incrementAndGet();
+        }
+        changeFeed.publish(oldContact.isPresent() ? ContactChange.Type.UPDATED : ContactChange.Type.ADDED, contact.getId(), contact);
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns the lock that guards the writes to a contact id.
+     *
+     * @param id - the id of the contact to be written.
+     * @return the lock stripe of the id.
+     */
+    private Object writeLock(Long id) {
+        int hash = id.hashCode();
+        return writeLocks[(hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        contactsFactory.close();
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @Autowired(required = false)
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+}
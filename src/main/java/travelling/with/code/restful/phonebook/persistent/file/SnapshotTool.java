@@ -0,0 +1,65 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A command line tool that builds a {@link ContactSnapshot} from a JSON array of contacts, for example the response
+ * of <code>GET /phonebook/contacts</code>. Contacts without an id are given ids right after the highest id of the file.
+ * <p/>
+ * Usage: <code>java -cp restful.phonebook.jar travelling.with.code.restful.phonebook.persistent.file.SnapshotTool contacts.json contacts.snapshot</code>
+ * <p/>
+ * The JSON file is read one contact at a time with a streaming parser.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class SnapshotTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SnapshotTool <contacts.json> <contacts.snapshot>");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        List<IndexedContact> contacts = readContacts(new File(args[0]));
+        long highestId = contacts.stream().filter(contact -> contact.getId() != null).mapToLong(IndexedContact::getId).max().orElse(-1);
+        for (IndexedContact contact : contacts) {
+            if (contact.getId() == null) {
+                contact.setId(++highestId);
+            }
+        }
+        ContactSnapshot.write(Paths.get(args[1]), contacts, highestId);
+        System.out.printf("Wrote %,d contacts to %s in %d ms.%n", contacts.size(), args[1], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Reads a JSON array of contacts, one element at a time.
+     *
+     * @param jsonFile - the JSON file.
+     * @return the contacts of the file.
+     * @throws IOException if the file could not be read or is not a JSON array.
+     */
+    public static List<IndexedContact> readContacts(File jsonFile) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<IndexedContact> contacts = new ArrayList<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(jsonFile)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array of contacts in " + jsonFile + ".");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                contacts.add(objectMapper.readValue(parser, IndexedContact.class));
+            }
+        }
+        return contacts;
+    }
+
+}
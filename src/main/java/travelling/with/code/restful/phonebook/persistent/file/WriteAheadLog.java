@@ -0,0 +1,362 @@
+package travelling.with.code.restful.phonebook.persistent.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * An append-only log of the changes made to a phone book, that makes them durable with group commit.
+ * <p/>
+ * Writers never touch the file themselves. They enqueue their entries and receive a future, while a single
+ * flusher thread drains every entry that is waiting, writes them with one call and syncs the file once for
+ * the whole batch. So, under concurrent requests, one fsync makes many changes durable at once and durability
+ * does not cap the phone book's throughput.
+ * <p/>
+ * Every entry has the following layout:
+ * <p/>
+ * <pre>payload length (4 bytes) | CRC32 of payload (4 bytes) | payload</pre>
+ * <p/>
+ * where the payload is a type byte followed by a record of {@link ContactRecords} for a put, or by the contact's id
+ * for a delete. During {@link #replay(Path, Visitor)} the log is read up to the first incomplete or corrupted entry,
+ * which is what a crash in the middle of a write leaves behind.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int ENTRY_HEADER_BYTES = 8;
+    private static final int MAX_BATCH_ENTRIES = 4096;
+
+    /**
+     * Is notified for every valid entry while a log is replayed.
+     */
+    public interface Visitor {
+
+        public void put(IndexedContact contact);
+
+        public void delete(long id);
+
+    }
+
+    /**
+     * An entry waiting to be written, together with the future of the writer that waits for it.
+     * Entries without bytes are barriers, which complete once every entry before them is durable.
+     */
+    private static class PendingEntry {
+        private final byte[] bytes;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private PendingEntry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final FileChannel channel;
+    private final BlockingQueue<PendingEntry> pendingEntries = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+
+    /**
+     * Is set when the log fails to write or sync. After that, no entry will be accepted.
+     */
+    private volatile IOException failure;
+
+    private volatile boolean closed;
+
+    /**
+     * Opens a log for appending, dropping any incomplete entry at its tail.
+     *
+     * @param path - the log file, which is created if it does not exist.
+     * @param validLength - the length of the log's valid entries, as returned by {@link #replay(Path, Visitor)}.
+     * @throws IOException if the log could not be opened.
+     */
+    public WriteAheadLog(Path path, long validLength) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        flusher = new Thread(this::flushEntries, "phonebook-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Reads all the valid entries of a log with a memory mapping and passes them to the visitor.
+     *
+     * @param path - the log file.
+     * @param visitor - will be notified for every entry, in the order they were written.
+     * @return the length of the log's valid entries, or zero if the log does not exist.
+     * @throws IOException if the log could not be read.
+     */
+    public static long replay(Path path, Visitor visitor) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel logChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = logChannel.size();
+            long position = 0;
+            while (position < length) {
+                long mappingLength = Math.min(length - position, Integer.MAX_VALUE);
+                int consumed = replayMapping(logChannel.map(MapMode.READ_ONLY, position, mappingLength), visitor);
+                position += consumed;
+                if (consumed == 0 || mappingLength == length - position + consumed) {
+                    break;
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Appends a put entry for a contact.
+     *
+     * @param contact - the contact that was added or replaced.
+     * @return a future that completes when the entry is durable.
+     */
+    public CompletableFuture<Void> appendPut(IndexedContact contact) {
+        return append(encode(PUT, output -> ContactRecords.write(output, contact)));
+    }
+
+    /**
+     * Appends a delete entry for a contact.
+     *
+     * @param id - the id of the deleted contact.
+     * @return a future that completes when the entry is durable.
+     */
+    public CompletableFuture<Void> appendDelete(long id) {
+        return append(encode(DELETE, output -> output.writeLong(id)));
+    }
+
+    /**
+     * Waits until every entry appended so far is durable.
+     *
+     * @throws IOException if the log has failed.
+     */
+    public void sync() throws IOException {
+        await(append(null));
+    }
+
+    /**
+     * Drops every entry of the log. Should only be called after {@link #sync()}, while no other entry is appended,
+     * for example after the entries have been written to a snapshot.
+     *
+     * @throws IOException if the log could not be truncated.
+     */
+    public void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /**
+     * @return the current size of the log in bytes.
+     * @throws IOException if the size could not be read.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Waits for an entry to become durable, rethrowing the failure of the log if it could not be written.
+     *
+     * @param durable - the future returned when the entry was appended.
+     * @throws IOException if the entry could not be written.
+     */
+    public static void await(CompletableFuture<Void> durable) throws IOException {
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the write-ahead log.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Makes the entries appended so far durable and stops the flusher. An entry that is appended meanwhile is either
+     * written before the log closes or fails with an exception, so that no writer waits for it forever.
+     *
+     * @throws IOException if the entries could not be made durable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (pendingEntries) {
+                closed = true;
+            }
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            failPendingEntries();
+            channel.close();
+        }
+    }
+
+    /**
+     * Enqueues an entry for the flusher. The check of the state and the enqueueing are a single step with respect to
+     * {@link #close()}, so that no entry is enqueued after the flusher has drained the queue for the last time.
+     */
+    private CompletableFuture<Void> append(byte[] bytes) {
+        PendingEntry entry = new PendingEntry(bytes);
+        synchronized (pendingEntries) {
+            if (failure == null && !closed) {
+                pendingEntries.add(entry);
+                return entry.durable;
+            }
+        }
+        entry.durable.completeExceptionally(failure != null ? failure : new IOException("The write-ahead log is closed."));
+        return entry.durable;
+    }
+
+    /**
+     * Completes every entry that the flusher will never write with an exception.
+     */
+    private void failPendingEntries() {
+        IOException e = failure != null ? failure : new IOException("The write-ahead log is closed.");
+        for (PendingEntry entry = pendingEntries.poll(); entry != null; entry = pendingEntries.poll()) {
+            entry.durable.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * The flusher thread's loop: waits for an entry, drains every other entry that is already waiting,
+     * and makes them durable with a single write and a single sync.
+     */
+    private void flushEntries() {
+        List<PendingEntry> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                try {
+                    batch.add(pendingEntries.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pendingEntries.drainTo(batch, MAX_BATCH_ENTRIES - 1);
+                try {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    writeBatch(batch);
+                    batch.forEach(entry -> entry.durable.complete(null));
+                } catch (IOException e) {
+                    failure = e;
+                    batch.forEach(entry -> entry.durable.completeExceptionally(e));
+                }
+                batch.clear();
+            }
+        } finally {
+            failPendingEntries();
+        }
+    }
+
+    private void writeBatch(List<PendingEntry> batch) throws IOException {
+        int batchBytes = 0;
+        for (PendingEntry entry : batch) {
+            batchBytes += entry.bytes == null ? 0 : entry.bytes.length;
+        }
+        if (batchBytes == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+        for (PendingEntry entry : batch) {
+            if (entry.bytes != null) {
+                buffer.put(entry.bytes);
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Writes a payload of some type, and prepends it with its length and checksum.
+     */
+    private static byte[] encode(byte type, PayloadWriter payloadWriter) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(type);
+            payloadWriter.write(payload);
+            byte[] payloadArray = payloadBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payloadArray);
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_BYTES + payloadArray.length);
+            entry.putInt(payloadArray.length).putInt((int) crc.getValue()).put(payloadArray);
+            return entry.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replays the valid entries of a mapped part of the log.
+     *
+     * @return the number of bytes taken by the valid entries.
+     */
+    private static int replayMapping(ByteBuffer log, Visitor visitor) {
+        CRC32 crc = new CRC32();
+        while (log.remaining() >= ENTRY_HEADER_BYTES) {
+            int entryStart = log.position();
+            int payloadLength = log.getInt();
+            int checksum = log.getInt();
+            if (payloadLength <= 0 || payloadLength > log.remaining()) {
+                return entryStart;
+            }
+            ByteBuffer payload = log.slice();
+            payload.limit(payloadLength);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return entryStart;
+            }
+            byte type = payload.get();
+            if (type == PUT) {
+                visitor.put(ContactRecords.read(payload));
+            } else if (type == DELETE) {
+                visitor.delete(payload.getLong());
+            } else {
+                return entryStart;
+            }
+            log.position(entryStart + ENTRY_HEADER_BYTES + payloadLength);
+        }
+        return log.position();
+    }
+
+    /**
+     * Writes the payload of an entry.
+     */
+    @FunctionalInterface
+    private interface PayloadWriter {
+        void write(DataOutputStream payload) throws IOException;
+    }
+
+}
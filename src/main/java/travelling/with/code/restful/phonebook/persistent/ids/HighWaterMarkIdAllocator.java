@@ -0,0 +1,110 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out consecutive ids that are never handed out again, even after a restart, by keeping a high-water mark in a file:
+ * an id that is higher than every id that has ever been allocated or reserved.
+ * <p/>
+ * The mark is written ahead of the ids, <code>blockSize</code> ids at a time, and the ids below it are handed out with a
+ * single increment of an {@link AtomicLong}, so only one allocation in a block waits for the file to be written and synced.
+ * On startup, the allocator continues from the mark of the file, so the ids that were below the mark but had not been
+ * handed out yet are skipped.
+ * <p/>
+ * The file holds the mark as text, and is replaced atomically, so a crash never leaves a half written mark behind.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class HighWaterMarkIdAllocator implements IdAllocator {
+
+    private final Path file;
+
+    private final int blockSize;
+
+    private final AtomicLong nextId;
+
+    /**
+     * The mark of the file. Every id below it may be handed out without writing the file.
+     */
+    private volatile long mark;
+
+    /**
+     * @param file - the file of the high-water mark, which is created if it does not exist.
+     * @param blockSize - the number of ids that the mark is moved ahead by at once.
+     * @throws IOException if the file could not be read, or its directory could not be created.
+     */
+    public HighWaterMarkIdAllocator(Path file, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The mark should be moved ahead by at least one id.");
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.file = file;
+        this.blockSize = blockSize;
+        this.mark = Files.exists(file) ? Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim()) : 0;
+        this.nextId = new AtomicLong(mark);
+    }
+
+    @Override
+    public long allocate() {
+        long id = nextId.getAndIncrement();
+        if (id >= mark) {
+            moveMarkPast(id);
+        }
+        return id;
+    }
+
+    @Override
+    public long[] allocate(int count) {
+        long firstId = nextId.getAndAdd(count);
+        if (firstId + count > mark) {
+            moveMarkPast(firstId + count - 1);
+        }
+        return IdAllocator.consecutiveIds(firstId, count);
+    }
+
+    @Override
+    public void reserve(long id) {
+        if (id >= nextId.get()) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+        if (id >= mark) {
+            moveMarkPast(id);
+        }
+    }
+
+    @Override
+    public long getHighestId() {
+        return nextId.get() - 1;
+    }
+
+    /**
+     * Writes a mark of a whole block past the id, unless another thread has already done so.
+     *
+     * @throws UncheckedIOException if the file could not be written, in which case the id must not be used.
+     */
+    private synchronized void moveMarkPast(long id) {
+        if (id < mark) {
+            return;
+        }
+        long newMark = id + blockSize;
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileOutputStream output = new FileOutputStream(temporaryFile.toFile())) {
+                output.write(Long.toString(newMark).getBytes(StandardCharsets.US_ASCII));
+                output.getFD().sync();
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The high-water mark of the ids could not be written to " + file + ".", e);
+        }
+        mark = newMark;
+    }
+
+}
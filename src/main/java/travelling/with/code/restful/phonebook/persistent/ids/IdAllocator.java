@@ -0,0 +1,63 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+
+/**
+ * Hands out the ids of new contacts to a {@link ContactsFactory}. Implementations are called concurrently by every thread
+ * that adds contacts, so they should never hand out the same id twice, and should do so without a global lock.
+ * <p/>
+ * Contacts may also be put with ids that their clients chose. Such ids are passed to {@link #reserve(long)}, and an
+ * allocation that starts after the reservation has returned never hands them out.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public interface IdAllocator {
+
+    /**
+     * @return a new id.
+     */
+    public long allocate();
+
+    /**
+     * Allocates the ids of a batch of contacts. The ids are unique, but need not be consecutive.
+     * <p/>
+     * By default, calls {@link #allocate()} for every id.
+     *
+     * @param count - the number of ids.
+     * @return the new ids.
+     */
+    public default long[] allocate(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = allocate();
+        }
+        return ids;
+    }
+
+    /**
+     * Makes sure that an id that is used by a contact is never handed out later on.
+     *
+     * @param id - an id that a contact was put with.
+     */
+    public void reserve(long id);
+
+    /**
+     * @return an id that is at least as high as every id that has been allocated or reserved so far, or -1 if there is none,
+     *         which another allocator can {@link #reserve(long)} to continue past this one.
+     */
+    public long getHighestId();
+
+    /**
+     * @param firstId - the first id of a block.
+     * @param count - the number of ids in the block.
+     * @return the ids from <code>firstId</code> to <code>firstId + count - 1</code>.
+     */
+    public static long[] consecutiveIds(long firstId, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = firstId + i;
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,62 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+
+/**
+ * Creates the {@link IdAllocator} that the phone book's {@link ContactsFactory} gives the ids of new contacts from.
+ * <p/>
+ * The allocator is chosen with the <code>phonebook.ids.strategy</code> property:
+ * <ul>
+ *   <li><code>sequential</code> (default): a {@link SequentialIdAllocator}.</li>
+ *   <li><code>striped</code>: a {@link StripedIdAllocator} with <code>phonebook.ids.stripes</code> stripes (four per processor
+ *   by default) that take <code>phonebook.ids.block-size</code> ids at once (1024 by default).</li>
+ *   <li><code>snowflake</code>: a {@link SnowflakeIdAllocator} for the node <code>phonebook.ids.node</code> (0 by default).</li>
+ *   <li><code>high-water-mark</code>: a {@link HighWaterMarkIdAllocator} that keeps its mark in <code>phonebook.ids.file</code>
+ *   (<code>phonebook-data/ids.hwm</code> by default) and moves it ahead by <code>phonebook.ids.block-size</code> ids at once.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Configuration
+public class IdAllocatorConfiguration {
+
+    @Value("${phonebook.ids.strategy:sequential}")
+    private String strategy;
+
+    @Value("${phonebook.ids.block-size:1024}")
+    private int blockSize;
+
+    @Value("${phonebook.ids.stripes:0}")
+    private int stripes;
+
+    @Value("${phonebook.ids.node:0}")
+    private int node;
+
+    @Value("${phonebook.ids.file:phonebook-data/ids.hwm}")
+    private String file;
+
+    @Bean
+    public IdAllocator idAllocator() throws IOException {
+        switch (strategy) {
+            case "sequential":
+                return new SequentialIdAllocator();
+            case "striped":
+                return new StripedIdAllocator(0, stripes > 0 ? stripes : 4 * Runtime.getRuntime().availableProcessors(), blockSize);
+            case "snowflake":
+                return new SnowflakeIdAllocator(node);
+            case "high-water-mark":
+                return new HighWaterMarkIdAllocator(Paths.get(file), blockSize);
+            default:
+                throw new IllegalArgumentException("Unknown id allocation strategy " + strategy
+                        + ", expected one of sequential, striped, snowflake or high-water-mark.");
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out consecutive ids from a single {@link AtomicLong}. The ids are dense and in the order of their allocations,
+ * but every allocation increments the same counter, which becomes contended when many threads add contacts at once.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class SequentialIdAllocator implements IdAllocator {
+
+    private final AtomicLong nextId;
+
+    public SequentialIdAllocator() {
+        this(0);
+    }
+
+    /**
+     * @param firstId - the first id to be handed out.
+     */
+    public SequentialIdAllocator(long firstId) {
+        nextId = new AtomicLong(firstId);
+    }
+
+    @Override
+    public long allocate() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Allocates a block of consecutive ids with a single increment.
+     */
+    @Override
+    public long[] allocate(int count) {
+        return IdAllocator.consecutiveIds(nextId.getAndAdd(count), count);
+    }
+
+    @Override
+    public void reserve(long id) {
+        if (id >= nextId.get()) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+    }
+
+    @Override
+    public long getHighestId() {
+        return nextId.get() - 1;
+    }
+
+}
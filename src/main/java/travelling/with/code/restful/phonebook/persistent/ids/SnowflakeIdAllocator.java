@@ -0,0 +1,109 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out time ordered ids, which are unique across the nodes of a deployment without any coordination between them,
+ * as long as every node has its own node number.
+ * <p/>
+ * An id is made of the milliseconds since {@link #EPOCH_MILLIS} in its upper 41 bits, the node number in the next
+ * {@value #NODE_BITS} bits and a sequence number in the lowest {@value #SEQUENCE_BITS} bits, so a node hands out up to
+ * 4096 ids per millisecond. The last id is kept in an {@link AtomicLong} and every id is taken with a compare-and-set, so
+ * the ids of a node always increase. A node that runs out of sequence numbers, or whose clock goes back, borrows the
+ * milliseconds after its last id until its clock catches up.
+ * <p/>
+ * Reserving an id of this node moves its last id past it. The ids of other nodes and the ids that do not follow the layout
+ * never collide with the ids of this node, unless their node bits happen to be this node's number.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class SnowflakeIdAllocator implements IdAllocator {
+
+    /**
+     * The time that the ids count their milliseconds from, which is 2015-01-01T00:00:00Z.
+     */
+    public static final long EPOCH_MILLIS = 1_420_070_400_000L;
+
+    /**
+     * The number of bits of the node number.
+     */
+    public static final int NODE_BITS = 10;
+
+    /**
+     * The number of bits of the sequence number.
+     */
+    public static final int SEQUENCE_BITS = 12;
+
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final long NODE_MASK = ((1L << NODE_BITS) - 1) << SEQUENCE_BITS;
+
+    private final long nodeBits;
+
+    private final AtomicLong lastId;
+
+    /**
+     * @param node - the number of the node, from 0 to 1023.
+     */
+    public SnowflakeIdAllocator(int node) {
+        if (node < 0 || node >= 1 << NODE_BITS) {
+            throw new IllegalArgumentException("The node number should be between 0 and " + ((1 << NODE_BITS) - 1) + ".");
+        }
+        this.nodeBits = (long) node << SEQUENCE_BITS;
+        this.lastId = new AtomicLong(nodeBits);
+    }
+
+    @Override
+    public long allocate() {
+        while (true) {
+            long last = lastId.get();
+            long timestamp = System.currentTimeMillis() - EPOCH_MILLIS;
+            long lastTimestamp = last >>> TIMESTAMP_SHIFT;
+            long id;
+            if (timestamp > lastTimestamp) {
+                id = timestamp << TIMESTAMP_SHIFT | nodeBits;
+            } else if ((last & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                id = last + 1;
+            } else {
+                id = (lastTimestamp + 1) << TIMESTAMP_SHIFT | nodeBits;
+            }
+            if (lastId.compareAndSet(last, id)) {
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public void reserve(long id) {
+        if ((id & NODE_MASK) == nodeBits && id > lastId.get()) {
+            lastId.accumulateAndGet(id, Math::max);
+        }
+    }
+
+    /**
+     * @return the last id of this node, since the reserved ids of other nodes are never handed out by this node anyway.
+     */
+    @Override
+    public long getHighestId() {
+        return lastId.get();
+    }
+
+    /**
+     * @param id - an id handed out by a {@link SnowflakeIdAllocator}.
+     * @return the number of the node that handed it out.
+     */
+    public static int nodeOf(long id) {
+        return (int) ((id & NODE_MASK) >>> SEQUENCE_BITS);
+    }
+
+    /**
+     * @param id - an id handed out by a {@link SnowflakeIdAllocator}.
+     * @return the time that it was handed out, in milliseconds since the Unix epoch.
+     */
+    public static long timeOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH_MILLIS;
+    }
+
+}
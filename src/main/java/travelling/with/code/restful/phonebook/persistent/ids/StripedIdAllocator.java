@@ -0,0 +1,134 @@
+package travelling.with.code.restful.phonebook.persistent.ids;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out ids from blocks, so that the threads that add contacts at once rarely touch the same counter.
+ * <p/>
+ * The allocator has a number of stripes, and every thread allocates from the stripe of its thread id. A stripe holds a block
+ * of <code>blockSize</code> consecutive ids, which it takes from a shared counter, and hands them out one by one with an
+ * increment of its own counter. So the shared counter is incremented once per block, and the counter of a stripe is only
+ * contended by the threads of the stripe. Batches take their ids straight from the shared counter, in a single block.
+ * <p/>
+ * The ids are unique but not in the order of their allocations, and the ids that are left in the blocks when the server
+ * stops are never used. Reserving an id that falls in the block of a stripe moves the stripe past it, which wastes the ids
+ * of the block before it.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class StripedIdAllocator implements IdAllocator {
+
+    private static final Block EMPTY_BLOCK = new Block(0, 0);
+
+    /**
+     * The first id that has not been handed out to a block, a batch or a reservation.
+     */
+    private final AtomicLong ceiling;
+
+    private final Stripe[] stripes;
+
+    private final int blockSize;
+
+    /**
+     * @param firstId - the first id to be handed out.
+     * @param stripes - the number of stripes, which is rounded up to a power of two.
+     * @param blockSize - the number of ids that a stripe takes at once.
+     */
+    public StripedIdAllocator(long firstId, int stripes, int blockSize) {
+        if (stripes < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("The allocator needs at least one stripe and blocks of at least one id.");
+        }
+        this.ceiling = new AtomicLong(firstId);
+        this.stripes = new Stripe[stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public long allocate() {
+        long threadId = Thread.currentThread().getId();
+        Stripe stripe = stripes[(int) (threadId ^ (threadId >>> 16)) & (stripes.length - 1)];
+        while (true) {
+            Block block = stripe.block;
+            long id = block.nextId.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            stripe.refill(block);
+        }
+    }
+
+    @Override
+    public long[] allocate(int count) {
+        return IdAllocator.consecutiveIds(ceiling.getAndAdd(count), count);
+    }
+
+    /**
+     * Moves the shared counter past the id, or else moves past it the stripe whose block holds it. A stripe that is taking
+     * a new block is waited for, since the block may hold the id.
+     */
+    @Override
+    public void reserve(long id) {
+        if (ceiling.getAndAccumulate(id + 1, Math::max) > id) {
+            for (Stripe stripe : stripes) {
+                if (stripe.refilling) {
+                    synchronized (stripe) {
+                        stripe.block.skipPast(id);
+                    }
+                } else {
+                    stripe.block.skipPast(id);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getHighestId() {
+        return ceiling.get() - 1;
+    }
+
+    private class Stripe {
+
+        private volatile Block block = EMPTY_BLOCK;
+
+        /**
+         * Is set while the stripe takes a new block from the shared counter and until the block is visible to {@link #reserve(long)}.
+         */
+        private volatile boolean refilling;
+
+        /**
+         * Takes a new block, unless another thread of the stripe has already replaced the exhausted one.
+         */
+        private synchronized void refill(Block exhausted) {
+            if (block == exhausted) {
+                refilling = true;
+                long start = ceiling.getAndAdd(blockSize);
+                block = new Block(start, start + blockSize);
+                refilling = false;
+            }
+        }
+
+    }
+
+    private static class Block {
+
+        private final AtomicLong nextId;
+
+        private final long end;
+
+        private Block(long start, long end) {
+            this.nextId = new AtomicLong(start);
+            this.end = end;
+        }
+
+        private void skipPast(long id) {
+            if (id < end && nextId.get() <= id) {
+                nextId.accumulateAndGet(id + 1, Math::max);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.List;
+
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+import travelling.with.code.restful.phonebook.persistent.ids.SequentialIdAllocator;
+
+/**
+ * A {@link ContactsFactory} that indexes new contacts with the ids of an {@link IdAllocator}, which is a
+ * {@link SequentialIdAllocator} until another one is set with {@link #setIdAllocator(IdAllocator)}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public abstract class AllocatingContactsFactory implements ContactsFactory {
+
+    private volatile IdAllocator idAllocator;
+
+    /**
+     * @param firstId - the first id that the factory gives to new contacts, until another allocator is set.
+     */
+    protected AllocatingContactsFactory(long firstId) {
+        this.idAllocator = new SequentialIdAllocator(firstId);
+    }
+
+    @Override
+    public IndexedContact createIndexedContact(Contact contact) {
+        return new IndexedContact(idAllocator.allocate(), contact);
+    }
+
+    @Override
+    public List<IndexedContact> createIndexedContacts(List<? extends Contact> contacts) {
+        return ContactsFactory.indexContacts(idAllocator.allocate(contacts.size()), contacts);
+    }
+
+    @Override
+    public void reserveId(long id) {
+        idAllocator.reserve(id);
+    }
+
+    @Override
+    public void setIdAllocator(IdAllocator idAllocator) {
+        idAllocator.reserve(this.idAllocator.getHighestId());
+        this.idAllocator = idAllocator;
+    }
+
+    /**
+     * @return the allocator that new contacts are given their ids from.
+     */
+    public IdAllocator getIdAllocator() {
+        return idAllocator;
+    }
+
+}
@@ -0,0 +1,164 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * A secondary hash index over a single String attribute of the contacts, for example their surname.
+ * <p/>
+ * For every distinct value of the attribute, the index keeps a posting set with the ids of the contacts
+ * that have this value, so that an exact match lookup costs O(1) instead of a scan over the whole phone book.
+ * The ids of a posting set are kept in ascending order, so a page of results can start from any id in O(log n).
+ * Contacts whose attribute is <code>null</code> are not indexed, since they can never match a search value.
+ * <p/>
+ * The index can be read and updated by many threads at once. Posting sets are created and dropped atomically
+ * per value, and lookups never block.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class AttributeIndex {
+
+    /**
+     * The ids of the contacts that share an attribute value, in ascending order.
+     */
+    static class PostingSet {
+
+        static final PostingSet EMPTY = new PostingSet();
+
+        private final NavigableSet<Long> ids = new ConcurrentSkipListSet<>();
+
+        /**
+         * Counts the ids, since counting the elements of a skip list takes linear time. Is only updated
+         * while the index holds the posting set's value, so it never disagrees with the ids for long.
+         */
+        private volatile int size;
+
+        /**
+         * @return an unmodifiable, ordered view of the ids.
+         */
+        public NavigableSet<Long> ids() {
+            return Collections.unmodifiableNavigableSet(ids);
+        }
+
+        public boolean contains(Long id) {
+            return ids.contains(id);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Adds an id to the set. Should only be called while the index holds the posting set's value.
+         *
+         * @return true if the id was not in the set.
+         */
+        boolean add(Long id) {
+            if (ids.add(id)) {
+                size++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes an id from the set. Should only be called while the index holds the posting set's value.
+         *
+         * @return true if the id was in the set.
+         */
+        boolean remove(Long id) {
+            if (ids.remove(id)) {
+                size--;
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Maps every attribute value to the ids of the contacts that have it.
+     */
+    private final Map<String, PostingSet> postings;
+
+    /**
+     * Turns an attribute value to the key that it is indexed under.
+     */
+    private final Function<String, String> normalizer;
+
+    public AttributeIndex() {
+        this(new ConcurrentHashMap<>(), Function.identity());
+    }
+
+    /**
+     * @param postings - the concurrent map that will hold the index's posting sets.
+     * @param normalizer - turns an attribute value to the key that it is indexed and looked up under.
+     */
+    protected AttributeIndex(Map<String, PostingSet> postings, Function<String, String> normalizer) {
+        this.postings = postings;
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * @param value - an attribute value.
+     * @return the key that the value is indexed under, or <code>null</code> if the value is <code>null</code>.
+     */
+    public String key(String value) {
+        return value == null ? null : normalizer.apply(value);
+    }
+
+    /**
+     * Adds the id of a contact under the value of its attribute.
+     *
+     * @param value - the contact's attribute value.
+     * @param id - the id of the contact.
+     */
+    public void add(String value, Long id) {
+        if (value != null) {
+            postings.compute(normalizer.apply(value), (key, postingSet) -> {
+                PostingSet updatedSet = postingSet == null ? new PostingSet() : postingSet;
+                updatedSet.add(id);
+                return updatedSet;
+            });
+        }
+    }
+
+    /**
+     * Removes the id of a contact from the value of its attribute. When the last id of a value is removed,
+     * the value is removed from the index too.
+     *
+     * @param value - the contact's attribute value.
+     * @param id - the id of the contact.
+     */
+    public void remove(String value, Long id) {
+        if (value != null) {
+            postings.computeIfPresent(normalizer.apply(value), (key, postingSet) -> {
+                postingSet.remove(id);
+                return postingSet.size == 0 ? null : postingSet;
+            });
+        }
+    }
+
+    /**
+     * Returns the ids of the contacts that have the given attribute value.
+     *
+     * @param value - the attribute value to be looked up.
+     * @return the posting set of the value, or an empty posting set if no contact has this value.
+     */
+    public PostingSet lookup(String value) {
+        PostingSet postingSet = value == null ? null : postings.get(normalizer.apply(value));
+        return postingSet == null ? PostingSet.EMPTY : postingSet;
+    }
+
+    /**
+     * Removes all the values from the index.
+     */
+    public void clear() {
+        postings.clear();
+    }
+
+}
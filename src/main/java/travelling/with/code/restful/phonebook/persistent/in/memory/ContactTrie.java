@@ -0,0 +1,378 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * An immutable map of contacts by id, which is changed by creating a new version that shares everything but the changed
+ * paths with the old one, so that a version can be read by any number of threads, without locks, for as long as they need,
+ * while newer versions are created next to it.
+ * <p/>
+ * The map is a trie of bitmap nodes over the 64 bits of the ids, like a hash array mapped trie, but keyed by the ids
+ * themselves instead of their hashes, so the contacts are iterated in ascending id order and an iteration can start right
+ * after any id. Every level takes 6 bits of the id, from the highest to the lowest, and a node only holds the children
+ * that exist, in an array indexed by the number of bits of its bitmap below the child's bit. A lookup or a change visits
+ * the 11 levels of the trie, and a change copies one node per level.
+ * <p/>
+ * Many changes are applied at once through an {@link Editor}, which changes the nodes that it has already copied in place,
+ * so that building a large map or applying a batch does not copy the same nodes again for every contact.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+final class ContactTrie implements Iterable<IndexedContact> {
+
+    /**
+     * The map without contacts.
+     */
+    static final ContactTrie EMPTY = new ContactTrie(null, 0);
+
+    private static final int BITS = 6;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int TOP_SHIFT = 60;
+    private static final int LEVELS = TOP_SHIFT / BITS + 1;
+
+    private final Node root;
+
+    private final int size;
+
+    private ContactTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param id - the id of a contact.
+     * @return the contact with the id, or <code>null</code> if there is no such contact.
+     */
+    IndexedContact get(long id) {
+        long key = key(id);
+        Node node = root;
+        for (int shift = TOP_SHIFT; node != null; shift -= BITS) {
+            long bit = 1L << ((int) (key >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = node.slots[Long.bitCount(node.bitmap & (bit - 1))];
+            if (shift == 0) {
+                return (IndexedContact) child;
+            }
+            node = (Node) child;
+        }
+        return null;
+    }
+
+    /**
+     * @param contact - the contact to be put, replacing the contact with the same id if there is one.
+     * @return the new version of the map.
+     */
+    ContactTrie put(IndexedContact contact) {
+        Editor editor = new Editor(false);
+        editor.put(contact);
+        return editor.publish();
+    }
+
+    /**
+     * @param id - the id of the contact to be removed.
+     * @return the new version of the map, or this map if there was no contact with the id.
+     */
+    ContactTrie remove(long id) {
+        Editor editor = new Editor(false);
+        editor.remove(id);
+        return editor.publish();
+    }
+
+    /**
+     * @return an editor that applies many changes to this map and then publishes them as a new version.
+     */
+    Editor edit() {
+        return new Editor(true);
+    }
+
+    /**
+     * @return the number of contacts in the map.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the contacts in ascending id order.
+     */
+    @Override
+    public Iterator<IndexedContact> iterator() {
+        return new TrieIterator(root, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param afterId - the id after which the iteration starts.
+     * @return an iterator over the contacts with greater ids than the given one, in ascending id order.
+     */
+    Iterator<IndexedContact> iteratorAfter(long afterId) {
+        return new TrieIterator(afterId == Long.MAX_VALUE ? null : root, afterId + 1);
+    }
+
+    Stream<IndexedContact> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), size,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    Stream<IndexedContact> streamAfter(long afterId) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iteratorAfter(afterId),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    /**
+     * Flips the sign bit of an id, so that the unsigned order of the keys, which the trie follows, is the signed order of the ids.
+     */
+    private static long key(long id) {
+        return id ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Applies changes to a map, copying every node that it changes for the first time and changing the copies in place
+     * after that. The map it was created from is never changed, and the changes become visible as a new version with
+     * {@link #publish()}, after which the editor cannot be used anymore. An editor is meant to be used by a single thread.
+     */
+    final class Editor {
+
+        /**
+         * Marks the nodes that the editor has copied, or <code>null</code> to copy every node that is changed.
+         */
+        private final Object owner;
+
+        private Node editedRoot;
+
+        private int editedSize;
+
+        private boolean published;
+
+        private Editor(boolean transientNodes) {
+            this.owner = transientNodes ? new Object() : null;
+            this.editedRoot = root;
+            this.editedSize = size;
+        }
+
+        /**
+         * @param id - the id of a contact.
+         * @return the contact with the id, including the changes of the editor, or <code>null</code> if there is no such contact.
+         */
+        IndexedContact get(long id) {
+            return new ContactTrie(editedRoot, editedSize).get(id);
+        }
+
+        /**
+         * @param contact - the contact to be put, replacing the contact with the same id if there is one.
+         */
+        void put(IndexedContact contact) {
+            checkNotPublished();
+            boolean[] added = new boolean[1];
+            editedRoot = (editedRoot == null ? new Node(owner) : editedRoot).put(TOP_SHIFT, key(contact.getId()), contact, owner, added);
+            if (added[0]) {
+                editedSize++;
+            }
+        }
+
+        /**
+         * @param id - the id of the contact to be removed.
+         * @return true if there was a contact with the id.
+         */
+        boolean remove(long id) {
+            checkNotPublished();
+            if (editedRoot == null) {
+                return false;
+            }
+            boolean[] removed = new boolean[1];
+            editedRoot = editedRoot.remove(TOP_SHIFT, key(id), owner, removed);
+            if (removed[0]) {
+                editedSize--;
+            }
+            return removed[0];
+        }
+
+        /**
+         * @return the version of the map with all the changes of the editor.
+         */
+        ContactTrie publish() {
+            checkNotPublished();
+            published = true;
+            return editedRoot == root && editedSize == size ? ContactTrie.this : new ContactTrie(editedRoot, editedSize);
+        }
+
+        private void checkNotPublished() {
+            if (published) {
+                throw new IllegalStateException("The changes of the editor have already been published.");
+            }
+        }
+
+    }
+
+    /**
+     * A node of the trie, which holds other nodes or, on the lowest level, contacts. A node is only changed in place
+     * by the editor that created it, before the editor publishes it.
+     */
+    private static final class Node {
+
+        private static final Object[] NO_SLOTS = new Object[0];
+
+        private final Object owner;
+
+        private long bitmap;
+
+        private Object[] slots;
+
+        private Node(Object owner) {
+            this.owner = owner;
+            this.slots = owner == null ? NO_SLOTS : new Object[4];
+        }
+
+        private Node(Object owner, long bitmap, Object[] slots) {
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private Node put(int shift, long key, IndexedContact contact, Object owner, boolean[] added) {
+            long bit = 1L << ((int) (key >>> shift) & MASK);
+            int position = Long.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) != 0) {
+                Object child = slots[position];
+                Object newChild = shift == 0 ? contact : ((Node) child).put(shift - BITS, key, contact, owner, added);
+                if (newChild == child) {
+                    return this;
+                }
+                Node node = editable(owner, 0);
+                node.slots[position] = newChild;
+                return node;
+            }
+            added[0] = true;
+            Object newChild = shift == 0 ? contact : new Node(owner).put(shift - BITS, key, contact, owner, added);
+            int count = Long.bitCount(bitmap);
+            Node node = editable(owner, 1);
+            System.arraycopy(node.slots, position, node.slots, position + 1, count - position);
+            node.slots[position] = newChild;
+            node.bitmap |= bit;
+            return node;
+        }
+
+        /**
+         * @return the node without the key, or <code>null</code> if the node is left without children.
+         */
+        private Node remove(int shift, long key, Object owner, boolean[] removed) {
+            long bit = 1L << ((int) (key >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int position = Long.bitCount(bitmap & (bit - 1));
+            Object child = slots[position];
+            Object newChild = shift == 0 ? null : ((Node) child).remove(shift - BITS, key, owner, removed);
+            if (shift == 0) {
+                removed[0] = true;
+            } else if (newChild == child) {
+                return this;
+            }
+            if (newChild != null) {
+                Node node = editable(owner, 0);
+                node.slots[position] = newChild;
+                return node;
+            }
+            int count = Long.bitCount(bitmap);
+            if (count == 1) {
+                return null;
+            }
+            Node node = editable(owner, 0);
+            System.arraycopy(node.slots, position + 1, node.slots, position, count - position - 1);
+            node.slots[count - 1] = null;
+            node.bitmap &= ~bit;
+            return node;
+        }
+
+        /**
+         * @param owner - the editor that changes the node, or <code>null</code> if the change should copy it.
+         * @param extraSlots - the number of children that are about to be added.
+         * @return this node if the editor owns it and it has room for the extra children, or a copy of it that has.
+         */
+        private Node editable(Object owner, int extraSlots) {
+            int count = Long.bitCount(bitmap);
+            if (owner != null && this.owner == owner) {
+                if (count + extraSlots > slots.length) {
+                    Object[] grownSlots = new Object[Math.min(slots.length * 2, 1 << BITS)];
+                    System.arraycopy(slots, 0, grownSlots, 0, count);
+                    slots = grownSlots;
+                }
+                return this;
+            }
+            Object[] copiedSlots = new Object[owner == null ? count + extraSlots : Math.max(4, count + extraSlots)];
+            System.arraycopy(slots, 0, copiedSlots, 0, count);
+            return new Node(owner, bitmap, copiedSlots);
+        }
+
+    }
+
+    /**
+     * Walks the trie depth first, from the first key that is not less than a given one, keeping the node and the next
+     * child of every level on a stack.
+     */
+    private static final class TrieIterator implements Iterator<IndexedContact> {
+
+        private final Node[] nodes = new Node[LEVELS];
+        private final int[] positions = new int[LEVELS];
+        private int depth;
+        private IndexedContact nextContact;
+
+        private TrieIterator(Node root, long fromId) {
+            if (root == null) {
+                depth = -1;
+                return;
+            }
+            long fromKey = key(fromId);
+            nodes[0] = root;
+            for (int level = 0; ; level++) {
+                Node node = nodes[level];
+                int shift = TOP_SHIFT - level * BITS;
+                long bit = 1L << ((int) (fromKey >>> shift) & MASK);
+                int position = Long.bitCount(node.bitmap & (bit - 1));
+                if (shift == 0 || (node.bitmap & bit) == 0) {
+                    positions[level] = position;
+                    depth = level;
+                    break;
+                }
+                positions[level] = position + 1;
+                nodes[level + 1] = (Node) node.slots[position];
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextContact == null && depth >= 0) {
+                Node node = nodes[depth];
+                if (positions[depth] == Long.bitCount(node.bitmap)) {
+                    depth--;
+                } else if (depth == LEVELS - 1) {
+                    nextContact = (IndexedContact) node.slots[positions[depth]++];
+                } else {
+                    nodes[depth + 1] = (Node) node.slots[positions[depth]++];
+                    positions[++depth] = 0;
+                }
+            }
+            return nextContact != null;
+        }
+
+        @Override
+        public IndexedContact next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexedContact contact = nextContact;
+            nextContact = null;
+            return contact;
+        }
+
+    }
+
+}
@@ -1,11 +1,16 @@
 package travelling.with.code.restful.phonebook.persistent.in.memory;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import travelling.with.code.restful.phonebook.dao.Contact;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
 import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
 
 /**
  * Should be implemented to create a collection of initial contacts that will be used by classes,
@@ -33,13 +38,76 @@ public interface ContactsFactory {
      */
     public Map<Long, IndexedContact> createInitContactsMap();
 
+    /**
+     * Passes every initial contact to the given action. Phone books that keep their contacts in their own
+     * structures can use this method to load large sets of contacts without holding all of them in a collection.
+     * <p/>
+     * By default, iterates over {@link #createInitContactsCollection()}.
+     *
+     * @param action - the action to be performed for each initial contact.
+     */
+    public default void forEachInitContact(Consumer<IndexedContact> action) {
+        createInitContactsCollection().forEach(action);
+    }
+
     /**
      * Should be implemented to index a {@link Contact} and transform it
-     * to an {@link IndexedContact}.
+     * to an {@link IndexedContact}. May be called concurrently by many threads,
+     * so implementations should never hand out the same id twice.
      *
      * @param contact - contact to be indexed.
      * @return an {@link IndexedContact} derived from the contact passed as parameter.
      */
     public IndexedContact createIndexedContact(Contact contact);
 
+    /**
+     * Indexes a batch of contacts. Implementations that hand out ids from an {@link IdAllocator} should override it, so that
+     * they allocate the ids of the whole batch at once instead of one id per contact.
+     * <p/>
+     * By default, calls {@link #createIndexedContact(Contact)} for every contact.
+     *
+     * @param contacts - contacts to be indexed.
+     * @return the indexed contacts, in the same order as the contacts passed as parameter.
+     */
+    public default List<IndexedContact> createIndexedContacts(List<? extends Contact> contacts) {
+        return contacts.stream().map(this::createIndexedContact).collect(Collectors.toList());
+    }
+
+    /**
+     * Makes sure that the id of a contact that was put with its own id, for example by a PUT, is never given to a new contact.
+     * Phone books call it for every contact that they are given with an id.
+     * <p/>
+     * By default, does nothing, which only suits the factories that never index contacts themselves.
+     *
+     * @param id - the id of a contact that was put in the phone book.
+     */
+    public default void reserveId(long id) {
+    }
+
+    /**
+     * Sets the {@link IdAllocator} that the ids of new contacts are taken from. The allocator continues past every id that
+     * the factory has given out or reserved so far.
+     * <p/>
+     * By default, ignores the allocator, which suits the factories that never index contacts themselves.
+     *
+     * @param idAllocator - the allocator of the ids of new contacts.
+     */
+    public default void setIdAllocator(IdAllocator idAllocator) {
+    }
+
+    /**
+     * Indexes a batch of contacts with the given ids.
+     *
+     * @param ids - the ids of the contacts.
+     * @param contacts - contacts to be indexed.
+     * @return the indexed contacts, where the contact at position <code>i</code> has the id <code>ids[i]</code>.
+     */
+    public static List<IndexedContact> indexContacts(long[] ids, List<? extends Contact> contacts) {
+        List<IndexedContact> indexedContacts = new ArrayList<>(contacts.size());
+        for (int i = 0; i < contacts.size(); i++) {
+            indexedContacts.add(new IndexedContact(ids[i], contacts.get(i)));
+        }
+        return indexedContacts;
+    }
+
 }
@@ -0,0 +1,92 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * An implementation of the {@link ContactsFactory} interface, that generates any number of contacts.
+ * <p/>
+ * The contacts are derived from their id only, so the same factory size always produces the same phone book:
+ * names and surnames are picked from a few short lists, while phones are unique for the first ten million ids.
+ * This makes the factory useful to fill a phone book with a realistic amount of data, for example
+ * to measure its memory footprint or its performance.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class GeneratedContactsFactory extends AllocatingContactsFactory {
+
+    private static final String[] NAMES = {"Hommer", "Marge", "Bart", "Lisa", "Maggie", "Abraham", "Ned", "Maude", "Rod", "Todd",
+            "Moe", "Barney", "Lenny", "Carl", "Seymour", "Edna", "Milhouse", "Nelson", "Ralph", "Clancy"};
+
+    private static final String[] SURNAMES = {"Simpson", "Flanders", "Szyslak", "Gumble", "Leonard", "Carlson", "Skinner",
+            "Krabappel", "Van Houten", "Muntz", "Wiggum", "Burns", "Smithers", "Hibbert", "Nahasapeemapetilon", "Lovejoy",
+            "Bouvier", "Prince", "Frink", "Brockman"};
+
+    /**
+     * The number of contacts that the initial collection or map will contain.
+     */
+    private final int size;
+
+    /**
+     * @param size - the number of initial contacts, whose ids are 0 to <code>size - 1</code>. New contacts are given the ids after them.
+     */
+    public GeneratedContactsFactory(int size) {
+        super(size);
+        this.size = size;
+    }
+
+    @Override
+    public Collection<IndexedContact> createInitContactsCollection() {
+        Collection<IndexedContact> contacts = new ArrayList<>(size);
+        forEachInitContact(contacts::add);
+        return contacts;
+    }
+
+    @Override
+    public Map<Long, IndexedContact> createInitContactsMap() {
+        Map<Long, IndexedContact> contacts = new HashMap<>(size * 4 / 3 + 1);
+        forEachInitContact(contact -> contacts.put(contact.getId(), contact));
+        return contacts;
+    }
+
+    @Override
+    public void forEachInitContact(Consumer<IndexedContact> action) {
+        for (long id = 0; id < size; id++) {
+            action.accept(createContact(id));
+        }
+    }
+
+    /**
+     * Generates the contact with the specific id.
+     *
+     * @param id - the id of the contact to be generated.
+     * @return the generated contact.
+     */
+    public IndexedContact createContact(long id) {
+        String name = NAMES[(int) (id % NAMES.length)];
+        String surname = SURNAMES[(int) ((id / NAMES.length) % SURNAMES.length)];
+        return new IndexedContact(id, name, surname, createPhone(id));
+    }
+
+    /**
+     * Generates a phone in the form of <code>+1-877-XXX-XXXX</code> that is unique for ids up to ten million.
+     *
+     * @param id - the id of the contact the phone belongs to.
+     * @return the generated phone.
+     */
+    public static String createPhone(long id) {
+        String exchange = String.valueOf(1000 + (id / 10000) % 1000).substring(1);
+        String line = String.valueOf(10000 + id % 10000).substring(1);
+        return "+1-877-" + exchange + "-" + line;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+}
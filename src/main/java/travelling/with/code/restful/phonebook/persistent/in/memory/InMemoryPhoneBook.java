@@ -1,116 +1,692 @@
 package travelling.with.code.restful.phonebook.persistent.in.memory;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.annotation.PostConstruct;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
 import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
 import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.dao.PhoneNumbers;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
 
 /**
- * An implementation of {@link PhoneBook}, that creates a {@link HashMap} of contacts, using a {@link ContactsFactory},
+ * An implementation of {@link PhoneBook}, that creates a map of contacts, using a {@link ContactsFactory},
  * and maintains it in memory as long as the server runs.
  * <p/>
  * By default, the {@link ContactsFactory} that is used is {@link SimpsonsContactsFactory}, an implementation that
  * fills the contacts collection with the main characters of the Simpsons TV show: Hommer, Margie, Bart and Lisa.
  * In order to use this class with different phonebook contacts you can use
  * {@link InMemoryPhoneBook#setContactsFactory(ContactsFactory)} to set your own contact factory.
+ * <p/>
+ * Besides the map of contacts, the phone book maintains an {@link AttributeIndex} for the name and the surname
+ * of the contacts, so that searches do not have to scan the whole phone book, and a {@link PrefixIndex} for each
+ * of them and the phone, which serves the searches of {@link MatchMode#PREFIX}. Phones are indexed by the canonical
+ * keys of {@link PhoneNumbers} in a {@link PhoneKeyIndex}, so an exact search finds a number however it is written,
+ * while the few phones that have no key are indexed as they are written.
+ * <p/>
+ * The phone book is safe to be used by many threads at once. Contacts are kept in a {@link ContactTrie}, an immutable map
+ * that every write replaces with a new version, which shares all but the changed paths with the old one and is published
+ * with a compare-and-set. Reads never lock: a lookup, a search or a listing takes the current version and reads it
+ * for as long as it needs, so however long a listing runs, it returns the contacts of a single version of the phone book.
+ * Searches through the indexes check every candidate against the version that they took. Both the trie and the indexes
+ * are ordered by id, so a page of contacts that starts after a given id is found in O(log n). Writes are serialized per id
+ * with a set of striped locks, which means that writes to different ids rarely contend, while a PUT that replaces a contact
+ * updates the map and the indexes as one step for any other writer of the same id. A batch of writes holds the locks
+ * of all its ids and is published as a single version, so readers see either all of it or none of it.
+ * <p/>
+ * Every stored contact is given the next number of a version counter, while a separate modification counter only
+ * grows once a change is visible, which is what {@link #getModificationCount()} needs to promise. Changes are published
+ * to the {@link ChangeFeed} while the lock of their id is held, and its capacity is set with <code>phonebook.changes.capacity</code>.
+ * <p/>
+ * This is the default phone book. Another implementation can be chosen with the <code>phonebook.store</code> property.
  *
  * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
  */
 @Repository
+@ConditionalOnProperty(name = "phonebook.store", havingValue = "in-memory", matchIfMissing = true)
 public class InMemoryPhoneBook implements PhoneBook {
 
     /**
-     * Holds the contacts that will be available in this phone book.
+     * The number of locks that writes are striped across. Should be a power of two.
+     */
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    /**
+     * The most contacts that a prefix search scans in id order before it merges the posting sets of its prefix instead.
+     */
+    private static final int MAX_PREFIX_SCAN = 1 << 16;
+
+    /**
+     * Holds the current version of the contacts that are available in this phone book.
      */
-    private Map<Long, IndexedContact> indexedContacts;
+    private final AtomicReference<ContactTrie> indexedContacts = new AtomicReference<>(ContactTrie.EMPTY);
+
+    /**
+     * Secondary indexes that map names, surnames and phones to the ids of the contacts that have them. The phone index
+     * only holds the phones that have no canonical key, while the rest are held by the phone key index.
+     */
+    private final AttributeIndex nameIndex = new AttributeIndex();
+    private final AttributeIndex surnameIndex = new AttributeIndex();
+    private final AttributeIndex phoneIndex = new AttributeIndex();
+    private final PhoneKeyIndex phoneKeyIndex = new PhoneKeyIndex();
+
+    /**
+     * Secondary indexes that find the contacts whose name, surname or phone starts with a prefix.
+     */
+    private final PrefixIndex namePrefixIndex = new PrefixIndex(MatchMode::normalizeText);
+    private final PrefixIndex surnamePrefixIndex = new PrefixIndex(MatchMode::normalizeText);
+    private final PrefixIndex phonePrefixIndex = new PrefixIndex(MatchMode::normalizePhone);
 
     /**
      * Is used to create contacts for this phone book.
      */
     private ContactsFactory contactsFactory;
 
+    /**
+     * Is set to the {@link ContactsFactory} on {@link #init()}, unless it is <code>null</code>.
+     */
+    private IdAllocator idAllocator;
+
+    /**
+     * Guard the writes to the phone book. A write to a contact id holds the lock returned by {@link #writeLock(Long)}.
+     */
+    private final Object[] writeLocks;
+
+    /**
+     * Gives every stored contact its version.
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Counts the changes that have become visible.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    private ChangeFeed changeFeed;
+
+    @Value("${phonebook.changes.capacity:65536}")
+    private int changeFeedCapacity = ChangeFeed.DEFAULT_CAPACITY;
+
     public InMemoryPhoneBook() {
         contactsFactory = new SimpsonsContactsFactory();
+        writeLocks = new Object[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
     }
 
     @PostConstruct
     public void init() {
-        indexedContacts = contactsFactory.createInitContactsMap();
+        nameIndex.clear();
+        surnameIndex.clear();
+        phoneIndex.clear();
+        phoneKeyIndex.clear();
+        namePrefixIndex.clear();
+        surnamePrefixIndex.clear();
+        phonePrefixIndex.clear();
+        if (idAllocator != null) {
+            contactsFactory.setIdAllocator(idAllocator);
+        }
+        ContactTrie.Editor initContacts = ContactTrie.EMPTY.edit();
+        long initVersion = versions.incrementAndGet();
+        contactsFactory.createInitContactsMap().values().forEach(contact -> {
+            contact.setVersion(initVersion);
+            index(null, contact);
+            initContacts.put(contact);
+        });
+        indexedContacts.set(initContacts.publish());
+        modifications.incrementAndGet();
+        if (changeFeed == null) {
+            changeFeed = new ChangeFeed(changeFeedCapacity);
+        } else {
+            changeFeed.clear();
+        }
     }
 
     @Override
     public Optional<IndexedContact> findContact(Long id) {
-        return Optional.ofNullable(indexedContacts.get(id));
+        return Optional.ofNullable(indexedContacts.get().get(id));
     }
 
     @Override
     public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
-        Stream<IndexedContact> contactStream = indexedContacts.entrySet().stream().map(Entry::getValue);
+        return streamContacts(name, surname, phone).collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return streamContacts(MatchMode.EXACT, name, surname, phone, Optional.empty());
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return streamContacts(matchMode, name, surname, phone, Optional.empty());
+    }
+
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        return streamContacts(matchMode, name, surname, phone, afterId).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Streams the contacts that match the optional parameters in ascending id order, starting right after the given id,
+     * from the current version of the contacts. Either the version itself or the ids that the indexes find for one of
+     * the present parameters drive the stream, and both of them seek to the first id after <code>afterId</code> in O(log n).
+     * The contacts of the ids are looked up in the version and checked once more against the search values, since
+     * the indexes may already hold the ids of a newer version.
+     *
+     * @param matchMode - the way the search values are compared with the contacts' attributes.
+     * @param name - optional parameter that when not empty will be used to filter contacts by name.
+     * @param surname - optional parameter that when not empty will be used to filter contacts by surname.
+     * @param phone - optional parameter that when not empty will be used to filter contacts by phone.
+     * @param afterId - optional parameter that when not empty means that only contacts with a greater id will be streamed.
+     * @return a stream of the matching contacts, ordered by id.
+     */
+    private Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                                  Optional<Long> afterId) {
+        ContactTrie contacts = indexedContacts.get();
         if (!name.isPresent() && !surname.isPresent() && !phone.isPresent()) {
-            return contactStream.collect(Collectors.toList());
+            return afterId.isPresent() ? contacts.streamAfter(afterId.get()) : contacts.stream();
         }
-        return contactStream.filter(contact -> (filterByAttribute(contact::getName, name) && filterByAttribute(contact::getSurname, surname) && filterByAttribute(contact::getPhone, phone))).collect(Collectors.toList());
+        Stream<IndexedContact> candidates = matchMode == MatchMode.EXACT
+                ? streamExactIds(name, surname, phone, afterId).map(contacts::get)
+                : streamPrefixCandidates(contacts, name, surname, phone, afterId);
+        return candidates.filter(contact -> contact != null && matchMode.matches(contact, name, surname, phone));
+    }
+
+    /**
+     * Streams, in id order, the ids of the smallest posting set of the exact search values that are also in the other posting sets.
+     */
+    private Stream<Long> streamExactIds(Optional<String> name, Optional<String> surname, Optional<String> phone, Optional<Long> afterId) {
+        List<AttributeIndex.PostingSet> postingSets = new ArrayList<>(3);
+        name.ifPresent(value -> postingSets.add(nameIndex.lookup(value)));
+        surname.ifPresent(value -> postingSets.add(surnameIndex.lookup(value)));
+        phone.ifPresent(value -> postingSets.add(lookupPhone(value)));
+        postingSets.sort(Comparator.comparingInt(AttributeIndex.PostingSet::size));
+
+        NavigableSet<Long> smallestSet = postingSets.get(0).ids();
+        List<AttributeIndex.PostingSet> otherSets = postingSets.subList(1, postingSets.size());
+        return (afterId.isPresent() ? smallestSet.tailSet(afterId.get(), false) : smallestSet).stream()
+                .filter(id -> otherSets.stream().allMatch(postingSet -> postingSet.contains(id)));
+    }
+
+    /**
+     * @param phone - a phone to be searched for.
+     * @return the ids of the contacts whose phone has the same canonical key, or, if it has none, is equal to the phone.
+     */
+    private AttributeIndex.PostingSet lookupPhone(String phone) {
+        long key = PhoneNumbers.key(phone);
+        return key == PhoneNumbers.NO_KEY ? phoneIndex.lookup(phone) : phoneKeyIndex.lookup(key);
+    }
+
+    /**
+     * Streams, in id order, the candidates of a prefix search, which may include contacts that do not match it.
+     * <p/>
+     * The prefix with the fewest keys is chosen, and the ids under its keys could be merged in id order, with a cost that
+     * grows with the number of keys. A short prefix, though, has many keys and usually matches contacts all over the phone
+     * book, so a page of its results is found sooner by scanning the contacts in id order. So the candidates are first
+     * scanned from the map of contacts, for at most as many contacts as the prefix has keys, and only if the search goes on
+     * after that, the posting sets of the prefix are merged, starting right after the last scanned contact.
+     */
+    private Stream<IndexedContact> streamPrefixCandidates(ContactTrie contacts,
+                                                          Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                                          Optional<Long> afterId) {
+        List<Collection<AttributeIndex.PostingSet>> prefixPostingSets = new ArrayList<>(3);
+        name.ifPresent(value -> prefixPostingSets.add(namePrefixIndex.lookupPrefix(value)));
+        surname.ifPresent(value -> prefixPostingSets.add(surnamePrefixIndex.lookupPrefix(value)));
+        phone.ifPresent(value -> prefixPostingSets.add(phonePrefixIndex.lookupPrefix(value)));
+        Collection<AttributeIndex.PostingSet> fewestPostingSets = null;
+        int fewestKeys = MAX_PREFIX_SCAN;
+        for (Collection<AttributeIndex.PostingSet> postingSets : prefixPostingSets) {
+            int keys = 0;
+            Iterator<AttributeIndex.PostingSet> postingSetIterator = postingSets.iterator();
+            while (postingSetIterator.hasNext() && keys < fewestKeys) {
+                postingSetIterator.next();
+                keys++;
+            }
+            if (fewestPostingSets == null || keys < fewestKeys) {
+                fewestPostingSets = postingSets;
+                fewestKeys = keys;
+            }
+        }
+
+        Iterator<IndexedContact> candidates = new PrefixCandidatesIterator(contacts, fewestPostingSets, afterId, fewestKeys);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(candidates,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
     }
 
     @Override
     public IndexedContact addContact(Contact contact) {
-        IndexedContact indexedContact = contactsFactory.createIndexedContact(contact);
-        indexedContacts.put(indexedContact.getId(), indexedContact);
-        return indexedContact;
+        return putContact(contactsFactory.createIndexedContact(contact));
     }
 
+    /**
+     * Reserves the id of the contact with the {@link ContactsFactory}, so that it is never given to a new contact, and puts it.
+     */
     @Override
     public IndexedContact addContact(IndexedContact contact) {
-        indexedContacts.put(contact.getId(), contact);
+        contactsFactory.reserveId(contact.getId());
+        return putContact(contact);
+    }
+
+    private IndexedContact putContact(IndexedContact contact) {
+        synchronized (writeLock(contact.getId())) {
+            putContacts(indexedContacts.get(), Collections.singletonList(contact));
+        }
         return contact;
     }
 
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        synchronized (writeLock(contact.getId())) {
+            ContactTrie contacts = indexedContacts.get();
+            IndexedContact oldContact = contacts.get(contact.getId());
+            if (oldContact == null || !expectedVersion.test(oldContact.getVersion())) {
+                return Optional.empty();
+            }
+            putContacts(contacts, Collections.singletonList(contact));
+        }
+        return Optional.of(contact);
+    }
+
+    /**
+     * Indexes the whole batch with a single block of ids from the {@link ContactsFactory} and then puts its contacts.
+     */
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        return putIndexedContacts(contactsFactory.createIndexedContacts(contacts));
+    }
+
+    /**
+     * Reserves the ids of the batch with the {@link ContactsFactory} and then puts it, like {@link #addContact(IndexedContact)}.
+     */
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        contacts.forEach(contact -> contactsFactory.reserveId(contact.getId()));
+        return putIndexedContacts(contacts);
+    }
+
+    /**
+     * Puts the whole batch while the locks of all its ids are held, and publishes it as a single version of the contacts.
+     * A contact whose id is already in the batch starts the next version, so that every contact replaces the one before it.
+     */
+    private List<IndexedContact> putIndexedContacts(List<IndexedContact> contacts) {
+        withWriteLocks(contacts.stream().map(IndexedContact::getId).collect(Collectors.toList()), () -> {
+            Set<Long> versionIds = new HashSet<>();
+            int versionStart = 0;
+            for (int i = 0; i < contacts.size(); i++) {
+                if (!versionIds.add(contacts.get(i).getId())) {
+                    putContacts(indexedContacts.get(), contacts.subList(versionStart, i));
+                    versionIds.clear();
+                    versionIds.add(contacts.get(i).getId());
+                    versionStart = i;
+                }
+            }
+            putContacts(indexedContacts.get(), contacts.subList(versionStart, contacts.size()));
+            return null;
+        });
+        return contacts;
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public long countContacts() {
+        return indexedContacts.get().size();
+    }
+
     @Override
     public void deleteContact(IndexedContact contact) {
-        indexedContacts.remove(contact.getId());
+        deleteContact(contact.getId());
     }
 
     @Override
     public void deleteContact(Long id) {
-        indexedContacts.remove(id);
+        removeContact(id);
     }
 
     /**
-     * Compares a contact's String attribute with another String value, referred as <code>comparingAttribute</code> parameter.
-     * For example, if the attribute you want to compare is name, the method will compare contact's name with the
-     * String contained in <code>comparingAttribute</code>.
-     * <p/>
-     * If comparingAttribute, which is Optional, contains no value, true will be returned.
+     * Deletes the whole batch while the locks of all its ids are held, and publishes it as a single version of the contacts.
+     */
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        return withWriteLocks(ids, () -> removeContacts(ids));
+    }
+
+    /**
+     * Removes a contact from the map and the indexes.
      *
-     * @param getContactAttribute - the getter that will return contact's proper attribute.
-     * @param comparingAttribute - the value that will be checked against contact's attribute.
-     * @return - false if comparingAttribute has a value and is not equal to the contact's attribute, true otherwise.
+     * @param id - the id of the contact to be removed.
+     * @return true if there was a contact with this id, false otherwise.
      */
-    private boolean filterByAttribute(Supplier<String> getContactAttribute, Optional<String> comparingAttribute) {
-        if (comparingAttribute.isPresent()) {
-            if (!comparingAttribute.get().equals(getContactAttribute.get())) {
-                return false;
-            };
+    private boolean removeContact(Long id) {
+        synchronized (writeLock(id)) {
+            return removeContacts(Collections.singletonList(id)).get(0);
         }
-        return true;
     }
 
+    /**
+     * Removes contacts from the map and the indexes, with a single new version of the contacts, while the locks of their ids are held.
+     *
+     * @param ids - the ids of the contacts to be removed.
+     * @return true for every id that had a contact, false for the rest and for the repetitions of an id.
+     */
+    private List<Boolean> removeContacts(List<Long> ids) {
+        ContactTrie contacts = indexedContacts.get();
+        List<Boolean> removed = new ArrayList<>(ids.size());
+        List<IndexedContact> oldContacts = new ArrayList<>();
+        Set<Long> removedIds = new HashSet<>();
+        for (Long id : ids) {
+            IndexedContact oldContact = removedIds.contains(id) ? null : contacts.get(id);
+            if (oldContact != null) {
+                removedIds.add(id);
+                oldContacts.add(oldContact);
+            }
+            removed.add(oldContact != null);
+        }
+        if (oldContacts.isEmpty()) {
+            return removed;
+        }
+        indexedContacts.updateAndGet(currentContacts -> {
+            if (oldContacts.size() == 1) {
+                return currentContacts.remove(oldContacts.get(0).getId());
+            }
+            ContactTrie.Editor editor = currentContacts.edit();
+            oldContacts.forEach(oldContact -> editor.remove(oldContact.getId()));
+            return editor.publish();
+        });
+        for (IndexedContact oldContact : oldContacts) {
+            unindex(oldContact, null);
+            changeFeed.publish(ContactChange.Type.DELETED, oldContact.getId(), null);
+            modifications.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Gives contacts new versions and puts them in the map and the indexes, with a single new version of the contacts,
+     * while the locks of their ids are held. The contacts are indexed before the new version is published, so a reader
+     * that finds them in the map will also find them through the indexes, and the contacts they replace are removed
+     * from the indexes after it.
+     *
+     * @param contacts - the current version of the contacts, which holds the contacts that are going to be replaced.
+     * @param newContacts - the contacts to be put, with distinct ids.
+     */
+    private void putContacts(ContactTrie contacts, List<IndexedContact> newContacts) {
+        List<IndexedContact> oldContacts = new ArrayList<>(newContacts.size());
+        for (IndexedContact contact : newContacts) {
+            IndexedContact oldContact = contacts.get(contact.getId());
+            oldContacts.add(oldContact);
+            contact.setVersion(versions.incrementAndGet());
+            index(oldContact, contact);
+        }
+        indexedContacts.updateAndGet(currentContacts -> {
+            if (newContacts.size() == 1) {
+                return currentContacts.put(newContacts.get(0));
+            }
+            ContactTrie.Editor editor = currentContacts.edit();
+            newContacts.forEach(editor::put);
+            return editor.publish();
+        });
+        for (int i = 0; i < newContacts.size(); i++) {
+            IndexedContact oldContact = oldContacts.get(i);
+            IndexedContact contact = newContacts.get(i);
+            if (oldContact != null) {
+                unindex(oldContact, contact);
+            }
+            changeFeed.publish(oldContact == null ? ContactChange.Type.ADDED : ContactChange.Type.UPDATED, contact.getId(), contact);
+            modifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the contact's name, surname and phone to the secondary indexes. A contact is always indexed before it
+     * is put in the map of contacts, so a reader that finds it in the map will also find it through the indexes.
+     *
+     * @param oldContact - the contact that is going to be replaced, or <code>null</code> if there is no such contact.
+     * @param newContact - the contact to be indexed.
+     */
+    private void index(IndexedContact oldContact, IndexedContact newContact) {
+        indexChangedAttribute(nameIndex, IndexedContact::getName, newContact, oldContact, true);
+        indexChangedAttribute(surnameIndex, IndexedContact::getSurname, newContact, oldContact, true);
+        indexChangedPhone(newContact, oldContact, true);
+        indexChangedAttribute(namePrefixIndex, IndexedContact::getName, newContact, oldContact, true);
+        indexChangedAttribute(surnamePrefixIndex, IndexedContact::getSurname, newContact, oldContact, true);
+        indexChangedAttribute(phonePrefixIndex, IndexedContact::getPhone, newContact, oldContact, true);
+    }
+
+    /**
+     * Removes the contact's name, surname and phone from the secondary indexes. The attributes that the replacing
+     * contact shares with the old one are left untouched, since they are still valid for the contact's id.
+     *
+     * @param oldContact - the contact to be removed from the indexes.
+     * @param newContact - the contact that replaced the old one, or <code>null</code> if the old one was deleted.
+     */
+    private void unindex(IndexedContact oldContact, IndexedContact newContact) {
+        indexChangedAttribute(nameIndex, IndexedContact::getName, oldContact, newContact, false);
+        indexChangedAttribute(surnameIndex, IndexedContact::getSurname, oldContact, newContact, false);
+        indexChangedPhone(oldContact, newContact, false);
+        indexChangedAttribute(namePrefixIndex, IndexedContact::getName, oldContact, newContact, false);
+        indexChangedAttribute(surnamePrefixIndex, IndexedContact::getSurname, oldContact, newContact, false);
+        indexChangedAttribute(phonePrefixIndex, IndexedContact::getPhone, oldContact, newContact, false);
+    }
+
+    /**
+     * Adds or removes the attribute of a contact to an index, unless the other contact's attribute is indexed under the same key.
+     *
+     * @param attributeIndex - the index to be updated.
+     * @param getAttribute - the getter of the indexed attribute.
+     * @param contact - the contact whose attribute will be added or removed.
+     * @param otherContact - the contact that shares the same id, or <code>null</code> if there is no such contact.
+     * @param add - true to add the attribute in the index, false to remove it.
+     */
+    private void indexChangedAttribute(AttributeIndex attributeIndex, Function<IndexedContact, String> getAttribute,
+                                       IndexedContact contact, IndexedContact otherContact, boolean add) {
+        String value = getAttribute.apply(contact);
+        if (otherContact != null && Objects.equals(attributeIndex.key(value), attributeIndex.key(getAttribute.apply(otherContact)))) {
+            return;
+        }
+        if (add) {
+            attributeIndex.add(value, contact.getId());
+        } else {
+            attributeIndex.remove(value, contact.getId());
+        }
+    }
+
+    /**
+     * Adds or removes the phone of a contact to the phone key index, or to the phone index if it has no key, unless the other
+     * contact's phone has the same key.
+     *
+     * @param contact - the contact whose phone will be added or removed.
+     * @param otherContact - the contact that shares the same id, or <code>null</code> if there is no such contact.
+     * @param add - true to add the phone in the index, false to remove it.
+     */
+    private void indexChangedPhone(IndexedContact contact, IndexedContact otherContact, boolean add) {
+        long key = PhoneNumbers.key(contact.getPhone());
+        if (key == PhoneNumbers.NO_KEY) {
+            indexChangedAttribute(phoneIndex, IndexedContact::getPhone, contact, otherContact, add);
+            return;
+        }
+        if (otherContact != null && key == PhoneNumbers.key(otherContact.getPhone())) {
+            return;
+        }
+        if (add) {
+            phoneKeyIndex.add(key, contact.getId());
+        } else {
+            phoneKeyIndex.remove(key, contact.getId());
+        }
+    }
+
+    /**
+     * Returns the lock that guards the writes to a contact id.
+     *
+     * @param id - the id of the contact to be written.
+     * @return the lock stripe of the id.
+     */
+    private Object writeLock(Long id) {
+        return writeLocks[writeLockStripe(id)];
+    }
+
+    private static int writeLockStripe(Long id) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Runs a write while the locks of all the given ids are held. The locks are taken in the order of their stripes,
+     * so writes of overlapping batches never wait for each other in a circle.
+     *
+     * @param ids - the ids of the contacts to be written.
+     * @param write - the write to be run.
+     * @return the result of the write.
+     */
+    private <T> T withWriteLocks(Collection<Long> ids, Supplier<T> write) {
+        BitSet stripes = new BitSet(WRITE_LOCK_STRIPES);
+        ids.forEach(id -> stripes.set(writeLockStripe(id)));
+        return withWriteLocks(stripes, stripes.nextSetBit(0), write);
+    }
+
+    private <T> T withWriteLocks(BitSet stripes, int stripe, Supplier<T> write) {
+        if (stripe < 0) {
+            return write.get();
+        }
+        synchronized (writeLocks[stripe]) {
+            return withWriteLocks(stripes, stripes.nextSetBit(stripe + 1), write);
+        }
+    }
+
+    /**
+     * Yields the candidates of a prefix search in id order, first by scanning the map of contacts and then,
+     * once the scan budget is spent, by merging the posting sets of the prefix.
+     */
+    private static class PrefixCandidatesIterator implements Iterator<IndexedContact> {
+
+        private final ContactTrie contacts;
+        private final Collection<AttributeIndex.PostingSet> postingSets;
+        private final Iterator<IndexedContact> scannedContacts;
+        private int scanBudget;
+        private Long lastScannedId;
+        private Iterator<Long> mergedIds;
+        private IndexedContact nextContact;
+
+        private PrefixCandidatesIterator(ContactTrie contacts,
+                                         Collection<AttributeIndex.PostingSet> postingSets, Optional<Long> afterId, int scanBudget) {
+            this.contacts = contacts;
+            this.postingSets = postingSets;
+            this.scannedContacts = afterId.isPresent() ? contacts.iteratorAfter(afterId.get()) : contacts.iterator();
+            this.scanBudget = scanBudget;
+            this.lastScannedId = afterId.orElse(null);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextContact == null) {
+                if (mergedIds == null) {
+                    if (!scannedContacts.hasNext()) {
+                        return false;
+                    }
+                    if (scanBudget == 0) {
+                        mergedIds = mergePostingSets();
+                        continue;
+                    }
+                    scanBudget--;
+                    nextContact = scannedContacts.next();
+                    lastScannedId = nextContact.getId();
+                } else {
+                    if (!mergedIds.hasNext()) {
+                        return false;
+                    }
+                    nextContact = contacts.get(mergedIds.next());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public IndexedContact next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexedContact contact = nextContact;
+            nextContact = null;
+            return contact;
+        }
+
+        private Iterator<Long> mergePostingSets() {
+            List<Iterator<Long>> idIterators = new ArrayList<>();
+            for (AttributeIndex.PostingSet postingSet : postingSets) {
+                NavigableSet<Long> ids = postingSet.ids();
+                if (lastScannedId == null) {
+                    idIterators.add(ids.iterator());
+                } else if (ids.higher(lastScannedId) != null) {
+                    idIterators.add(ids.tailSet(lastScannedId, false).iterator());
+                }
+            }
+            return new MergedIdsIterator(idIterators);
+        }
+
+    }
+
+    @Autowired(required = false)
     public void setContactsFactory(ContactsFactory contactsFactory) {
         this.contactsFactory = contactsFactory;
     }
 
+    /**
+     * Sets the {@link IdAllocator} that the {@link ContactsFactory} gives the ids of new contacts from, on the next {@link #init()}.
+     */
+    @Autowired(required = false)
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+    /**
+     * Sets the capacity of the {@link ChangeFeed}, which is created on the first {@link #init()}.
+     */
+    public void setChangeFeedCapacity(int changeFeedCapacity) {
+        this.changeFeedCapacity = changeFeedCapacity;
+    }
+
     public class DuplicateContactException extends Exception {
         private static final long serialVersionUID = 1L;
 
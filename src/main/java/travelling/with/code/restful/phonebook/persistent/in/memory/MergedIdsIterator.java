@@ -0,0 +1,73 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges many ascending iterators of ids into a single ascending iterator, without duplicates.
+ * <p/>
+ * Is used to walk the union of the posting sets that a prefix search finds in id order, so that a page of
+ * the union only costs as many steps as the ids it returns, plus a heap of one entry per posting set.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class MergedIdsIterator implements Iterator<Long> {
+
+    /**
+     * The next id of an iterator that is being merged.
+     */
+    private static class Head implements Comparable<Head> {
+        private final Iterator<Long> ids;
+        private long id;
+
+        private Head(Iterator<Long> ids) {
+            this.ids = ids;
+            this.id = ids.next();
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            return Long.compare(id, other.id);
+        }
+    }
+
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+    private Long lastId;
+
+    public MergedIdsIterator(Iterable<Iterator<Long>> iterators) {
+        for (Iterator<Long> ids : iterators) {
+            if (ids.hasNext()) {
+                heads.add(new Head(ids));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!heads.isEmpty() && lastId != null && heads.peek().id == lastId) {
+            advance(heads.poll());
+        }
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public Long next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Head head = heads.poll();
+        lastId = head.id;
+        advance(head);
+        return lastId;
+    }
+
+    private void advance(Head head) {
+        if (head.ids.hasNext()) {
+            head.id = head.ids.next();
+            heads.add(head);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import travelling.with.code.restful.phonebook.dao.PhoneNumbers;
+
+/**
+ * A secondary index from the canonical keys of phones, as {@link PhoneNumbers} computes them, to the ids of the contacts
+ * that have them. It works like an {@link AttributeIndex}, but is keyed by primitive <code>long</code>s, so that a lookup
+ * of any way of writing a number costs a hash of its key and a few probes, without boxing the key or comparing strings.
+ * <p/>
+ * The posting sets are kept in an open-addressing table with linear probing, and every posting set holds its own key,
+ * so a slot is a single reference that is read and written atomically. Removed keys leave a tombstone behind, which is
+ * dropped when the table is rehashed into a new one. Lookups never lock: they probe the table that was published last,
+ * and a posting set that they find is the same object that writers update, even after a rehash. Writers are serialized
+ * by the index, and only hold it for the few probes of a single key.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class PhoneKeyIndex {
+
+    /**
+     * A posting set that knows the key it is indexed under.
+     */
+    private static class KeyedPostingSet extends AttributeIndex.PostingSet {
+
+        private final long key;
+
+        private KeyedPostingSet(long key) {
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * Takes the slot of a removed key. Its key is never the key of a phone, since no canonical key is negative.
+     */
+    private static final KeyedPostingSet REMOVED = new KeyedPostingSet(PhoneNumbers.NO_KEY);
+
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile AtomicReferenceArray<KeyedPostingSet> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+
+    /**
+     * The number of keys in the table. Is only used by writers.
+     */
+    private int size;
+
+    /**
+     * The number of slots that are either taken by a key or by a tombstone. Is only used by writers.
+     */
+    private int usedSlots;
+
+    /**
+     * Returns the ids of the contacts whose phone has the given key.
+     *
+     * @param key - the canonical key of a phone.
+     * @return the posting set of the key, or an empty posting set if no contact has a phone with this key.
+     */
+    public AttributeIndex.PostingSet lookup(long key) {
+        AtomicReferenceArray<KeyedPostingSet> table = slots;
+        int mask = table.length() - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            KeyedPostingSet postingSet = table.get(slot);
+            if (postingSet == null) {
+                return AttributeIndex.PostingSet.EMPTY;
+            }
+            if (postingSet.key == key) {
+                return postingSet;
+            }
+        }
+    }
+
+    /**
+     * Adds the id of a contact under the key of its phone.
+     *
+     * @param key - the canonical key of the contact's phone.
+     * @param id - the id of the contact.
+     */
+    public synchronized void add(long key, Long id) {
+        AtomicReferenceArray<KeyedPostingSet> table = slots;
+        int mask = table.length() - 1;
+        int firstRemovedSlot = -1;
+        int slot = slotOf(key, mask);
+        for (; ; slot = (slot + 1) & mask) {
+            KeyedPostingSet postingSet = table.get(slot);
+            if (postingSet == null) {
+                break;
+            }
+            if (postingSet == REMOVED) {
+                if (firstRemovedSlot < 0) {
+                    firstRemovedSlot = slot;
+                }
+            } else if (postingSet.key == key) {
+                postingSet.add(id);
+                return;
+            }
+        }
+        KeyedPostingSet postingSet = new KeyedPostingSet(key);
+        postingSet.add(id);
+        if (firstRemovedSlot >= 0) {
+            slot = firstRemovedSlot;
+        } else {
+            usedSlots++;
+        }
+        table.set(slot, postingSet);
+        size++;
+        if (usedSlots * 2 > table.length()) {
+            rehash(capacityFor(size));
+        }
+    }
+
+    /**
+     * Removes the id of a contact from the key of its phone. When the last id of a key is removed,
+     * the key is removed from the index too.
+     *
+     * @param key - the canonical key of the contact's phone.
+     * @param id - the id of the contact.
+     */
+    public synchronized void remove(long key, Long id) {
+        AtomicReferenceArray<KeyedPostingSet> table = slots;
+        int mask = table.length() - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            KeyedPostingSet postingSet = table.get(slot);
+            if (postingSet == null) {
+                return;
+            }
+            if (postingSet.key == key) {
+                postingSet.remove(id);
+                if (postingSet.size() == 0) {
+                    table.set(slot, REMOVED);
+                    size--;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes all the keys from the index.
+     */
+    public synchronized void clear() {
+        slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    /**
+     * Copies the posting sets to a new table, without the tombstones, and publishes it.
+     */
+    private void rehash(int capacity) {
+        AtomicReferenceArray<KeyedPostingSet> oldTable = slots;
+        AtomicReferenceArray<KeyedPostingSet> table = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldTable.length(); oldSlot++) {
+            KeyedPostingSet postingSet = oldTable.get(oldSlot);
+            if (postingSet != null && postingSet != REMOVED) {
+                int slot = slotOf(postingSet.key, mask);
+                while (table.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table.set(slot, postingSet);
+            }
+        }
+        usedSlots = size;
+        slots = table;
+    }
+
+    /**
+     * @return a power of two capacity that keeps the given number of keys at a load factor of at most one quarter,
+     * so that the table is not rehashed again right away.
+     */
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size) * 4 - 1) << 1);
+    }
+
+    /**
+     * Spreads the key's bits with the finalizer of MurmurHash3, so that numbers that only differ in their last digits do not cluster.
+     */
+    private static int slotOf(long key, int mask) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+
+}
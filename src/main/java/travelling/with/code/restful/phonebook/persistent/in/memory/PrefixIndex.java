@@ -0,0 +1,46 @@
+package travelling.with.code.restful.phonebook.persistent.in.memory;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * An {@link AttributeIndex} that keeps its keys sorted, so that all the values starting with a prefix can be found,
+ * for example all the surnames starting with "sim".
+ * <p/>
+ * Values are indexed under a normalized key, such as the lower case of a name or the digits of a phone. The keys
+ * that start with a prefix form a single range of the sorted keys, so a prefix lookup costs O(log n) to find the
+ * start of the range, plus the number of keys in it, just like a walk down a trie, but without a node per character.
+ * The index is kept up to date on every add and delete, like any other {@link AttributeIndex}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class PrefixIndex extends AttributeIndex {
+
+    private final ConcurrentNavigableMap<String, PostingSet> sortedPostings;
+
+    private final Function<String, String> normalizer;
+
+    public PrefixIndex(Function<String, String> normalizer) {
+        this(new ConcurrentSkipListMap<>(), normalizer);
+    }
+
+    private PrefixIndex(ConcurrentNavigableMap<String, PostingSet> sortedPostings, Function<String, String> normalizer) {
+        super(sortedPostings, normalizer);
+        this.sortedPostings = sortedPostings;
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Returns the posting sets of all the keys that start with the normalized prefix.
+     *
+     * @param prefix - the prefix to be looked up.
+     * @return a live view of the posting sets whose keys start with the prefix, in key order.
+     */
+    public Collection<PostingSet> lookupPrefix(String prefix) {
+        String key = normalizer.apply(prefix);
+        return sortedPostings.subMap(key, true, key + Character.MAX_VALUE, false).values();
+    }
+
+}
@@ -4,18 +4,23 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 
-import travelling.with.code.restful.phonebook.dao.Contact;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
 
 /**
  * An implementation of the {@link ContactsFactory} interface, that creates a collection
  * of the main Simpsons characters.
+ * <p/>
+ * Identifiers, including the ones of the initial contacts, are handed out by an {@link IdAllocator}, so contacts may be
+ * indexed concurrently.
  *
  * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
  */
-public class SimpsonsContactsFactory implements ContactsFactory {
+public class SimpsonsContactsFactory extends AllocatingContactsFactory {
 
-    private long identifier = 0;
+    public SimpsonsContactsFactory() {
+        super(0);
+    }
 
     @Override
     public Collection<IndexedContact> createInitContactsCollection() {
@@ -46,13 +51,8 @@ public class SimpsonsContactsFactory implements ContactsFactory {
         return simpsons;
     }
 
-    @Override
-    public IndexedContact createIndexedContact(Contact contact) {
-        return new IndexedContact(newUniqueIdentifier(), contact);
-    }
-
     private long newUniqueIdentifier() {
-        return identifier++;
+        return getIdAllocator().allocate();
     }
 
 }
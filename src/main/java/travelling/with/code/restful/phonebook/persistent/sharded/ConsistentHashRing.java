@@ -0,0 +1,81 @@
+package travelling.with.code.restful.phonebook.persistent.sharded;
+
+import java.util.Arrays;
+
+/**
+ * Maps contact ids to shards with consistent hashing. Every shard is placed on a ring of 64-bit hashes at a number of
+ * points, its virtual nodes, and an id belongs to the shard of the first point at or after the id's hash, wrapping
+ * around at the end of the ring. The points of a shard only depend on its position in the list of shards, so when
+ * a shard is appended, it only takes over the ids that fall right before its own points, about <code>1/n</code> of them,
+ * while every other id stays where it was.
+ * <p/>
+ * The points are kept in a sorted array, so finding the shard of an id is a binary search without allocations.
+ * The ring is immutable and safe to be used by many threads.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class ConsistentHashRing {
+
+    /**
+     * The number of points of every shard on the ring, which keeps the shards' shares of the ids within a few percent of each other.
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+
+    private final int[] shards;
+
+    /**
+     * @param shardCount - the number of shards on the ring.
+     */
+    ConsistentHashRing(int shardCount) {
+        long[][] nodes = new long[shardCount * VIRTUAL_NODES][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                nodes[shard * VIRTUAL_NODES + node] = new long[] {pointOf(shard, node), shard};
+            }
+        }
+        Arrays.sort(nodes, (first, second) -> Long.compare(first[0], second[0]));
+        points = new long[nodes.length];
+        shards = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            shards[i] = (int) nodes[i][1];
+        }
+    }
+
+    /**
+     * Places a virtual node on the ring. The shard is hashed on its own before it is mixed with the node, so that the points
+     * are unrelated to the hashes of small ids: hashing <code>(shard << 32) | node</code> would give the points of shard 0 the
+     * very hashes of ids 0 to 127, and send all of those ids to shard 0.
+     */
+    static long pointOf(int shard, int node) {
+        return hash(hash(shard + 1) ^ node * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * @param id - the id of a contact.
+     * @return the position of the shard that the id belongs to.
+     */
+    int shardOf(long id) {
+        int index = Arrays.binarySearch(points, hash(id));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return shards[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Spreads the bits of a value over the whole 64-bit range, with the finalizer of MurmurHash3, so that consecutive ids
+     * land on unrelated points of the ring.
+     */
+    static long hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+}
@@ -0,0 +1,55 @@
+package travelling.with.code.restful.phonebook.persistent.sharded;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+
+/**
+ * Fills an embedded shard of a {@link ShardedPhoneBook} with its part of the initial contacts of the whole phone book.
+ * The initial contacts are created once, by the {@link ContactsFactory} of the whole phone book, and partitioned across
+ * the shards, since a factory may create other contacts, with other ids, every time it is asked for them.
+ * <p/>
+ * The ids of new contacts are allocated by the {@link ShardedPhoneBook}, from the id range of the shard, and put in the shard
+ * with their ids, so the shard never indexes a contact itself.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+class ShardContactsFactory implements ContactsFactory {
+
+    private final Collection<IndexedContact> contacts;
+
+    /**
+     * @param contacts - the initial contacts that belong to the shard.
+     */
+    ShardContactsFactory(Collection<IndexedContact> contacts) {
+        this.contacts = contacts;
+    }
+
+    @Override
+    public Collection<IndexedContact> createInitContactsCollection() {
+        return contacts;
+    }
+
+    @Override
+    public Map<Long, IndexedContact> createInitContactsMap() {
+        Map<Long, IndexedContact> contactsById = new HashMap<>(contacts.size() * 4 / 3 + 1);
+        contacts.forEach(contact -> contactsById.put(contact.getId(), contact));
+        return contactsById;
+    }
+
+    @Override
+    public void forEachInitContact(Consumer<IndexedContact> action) {
+        contacts.forEach(action);
+    }
+
+    @Override
+    public IndexedContact createIndexedContact(Contact contact) {
+        throw new UnsupportedOperationException("The ids of a shard's contacts are allocated by the sharded phone book.");
+    }
+
+}
@@ -0,0 +1,573 @@
+package travelling.with.code.restful.phonebook.persistent.sharded;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.SimpsonsContactsFactory;
+
+/**
+ * A {@link PhoneBook} that partitions its contacts by id across a number of shards, which are phone books themselves,
+ * so that a phone book is no longer bound to the memory and the cores that a single phone book can use.
+ * <p/>
+ * Every shard owns a range of 2<sup>40</sup> ids, the shard at position <code>i</code> the ids from <code>(i + 1) * 2<sup>40</sup></code>
+ * on, and the ids of new contacts are allocated from the range of the shard that stores them, with a counter per shard, so two
+ * shards never hand out the same id. New contacts are spread over the shards in turn. Every other id, such as the ids of the
+ * initial contacts or the ids that clients choose with a PUT, belongs to a shard by the {@link ConsistentHashRing}, so an id
+ * is always found on the same shard. A PUT of an id in a shard's range moves the shard's counter past it, so that the id is
+ * never allocated to another contact later on.
+ * <p/>
+ * Lookups and writes of an id go straight to its shard. Searches are scattered to all shards in parallel, on a pool of
+ * <code>phonebook.sharded.threads</code> threads (the number of processors by default) and on the calling thread, and their
+ * results are merged by id, so the contacts come back in id order and a page is made of the first contacts of every shard's page.
+ * <p/>
+ * The shards are the given phone books, local or remote, or, for the phone book that the <code>phonebook.store</code> property
+ * chooses with <code>sharded</code>, <code>phonebook.sharded.shards</code> embedded {@link InMemoryPhoneBook}s (4 by default),
+ * each filled with the initial contacts of the {@link ContactsFactory} that belong to it. The contacts should only be changed
+ * through the sharded phone book, which publishes every change to its own {@link ChangeFeed}, while it holds the lock of the
+ * changed id, and counts the changes of all its shards as its modifications.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Repository
+@ConditionalOnProperty(name = "phonebook.store", havingValue = "sharded")
+public class ShardedPhoneBook implements PhoneBook {
+
+    /**
+     * The number of bits of the ids in the range of a shard.
+     */
+    public static final int ID_RANGE_BITS = 40;
+
+    /**
+     * The number of locks that writes are striped across. Should be a power of two.
+     */
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    private static final Comparator<IndexedContact> BY_ID = Comparator.comparing(IndexedContact::getId);
+
+    @Value("${phonebook.sharded.shards:4}")
+    private int shardCount = 4;
+
+    @Value("${phonebook.sharded.threads:0}")
+    private int threads;
+
+    @Value("${phonebook.changes.capacity:65536}")
+    private int changeFeedCapacity = ChangeFeed.DEFAULT_CAPACITY;
+
+    private ContactsFactory contactsFactory = new SimpsonsContactsFactory();
+
+    /**
+     * The shards that were given to the phone book, or <code>null</code> if it creates embedded ones.
+     */
+    private final List<PhoneBook> givenShards;
+
+    private List<PhoneBook> shards;
+
+    private ConsistentHashRing ring;
+
+    /**
+     * The next id to be allocated in the range of every shard.
+     */
+    private AtomicLong[] nextIds;
+
+    /**
+     * Chooses the shard of the next new contact.
+     */
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    private final ReentrantLock[] writeLocks;
+
+    private ExecutorService executor;
+
+    private ChangeFeed changeFeed;
+
+    /**
+     * Creates a phone book with embedded shards, on its {@link #init()}.
+     */
+    public ShardedPhoneBook() {
+        this(null);
+    }
+
+    /**
+     * Creates a phone book over the given shards, whose contacts should only be changed through it, on its {@link #init()}.
+     *
+     * @param shards - the shards, in an order that should stay the same for as long as they keep their contacts.
+     */
+    public ShardedPhoneBook(List<PhoneBook> shards) {
+        this.givenShards = shards == null ? null : new ArrayList<>(shards);
+        writeLocks = new ReentrantLock[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int count = givenShards == null ? shardCount : givenShards.size();
+        if (count < 1 || count > (1 << (Long.SIZE - 1 - ID_RANGE_BITS)) - 2) {
+            throw new IllegalStateException("A sharded phone book cannot have " + count + " shards.");
+        }
+        ring = new ConsistentHashRing(count);
+        if (givenShards == null) {
+            List<List<IndexedContact>> initContacts = new ArrayList<>(count);
+            for (int shard = 0; shard < count; shard++) {
+                initContacts.add(new ArrayList<>());
+            }
+            contactsFactory.forEachInitContact(contact -> initContacts.get(shardOf(contact.getId(), count)).add(contact));
+            List<PhoneBook> embeddedShards = new ArrayList<>(count);
+            for (int shard = 0; shard < count; shard++) {
+                InMemoryPhoneBook embeddedShard = new InMemoryPhoneBook();
+                embeddedShard.setContactsFactory(new ShardContactsFactory(initContacts.get(shard)));
+                embeddedShard.setChangeFeedCapacity(1);
+                embeddedShard.init();
+                embeddedShards.add(embeddedShard);
+            }
+            shards = embeddedShards;
+        } else {
+            shards = givenShards;
+        }
+        nextIds = new AtomicLong[count];
+        for (int shard = 0; shard < count; shard++) {
+            nextIds[shard] = new AtomicLong(findNextId(shard));
+        }
+        if (executor == null) {
+            int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable, "phonebook-shard-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (changeFeed == null) {
+            changeFeed = new ChangeFeed(changeFeedCapacity);
+        } else {
+            changeFeed.clear();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Optional<IndexedContact> findContact(Long id) {
+        return shardFor(id).findContact(id);
+    }
+
+    @Override
+    public Collection<IndexedContact> findContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return mergeById(scatter((shard, index) -> sortedById(shard.findContacts(name, surname, phone))), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Stream<IndexedContact> streamContacts(Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return findContacts(name, surname, phone).stream();
+    }
+
+    /**
+     * Collects the contacts of every shard in parallel, so the contacts are only streamed once all shards have been searched.
+     */
+    @Override
+    public Stream<IndexedContact> streamContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone) {
+        return mergeById(scatter((shard, index) -> {
+            try (Stream<IndexedContact> contacts = shard.streamContacts(matchMode, name, surname, phone)) {
+                return sortedById(contacts.collect(Collectors.toList()));
+            }
+        }), Integer.MAX_VALUE).stream();
+    }
+
+    @Override
+    public List<IndexedContact> findContacts(MatchMode matchMode, Optional<String> name, Optional<String> surname, Optional<String> phone,
+                                             Optional<Long> afterId, int limit) {
+        return mergeById(scatter((shard, index) -> shard.findContacts(matchMode, name, surname, phone, afterId, limit)), limit);
+    }
+
+    @Override
+    public IndexedContact addContact(Contact contact) {
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        IndexedContact indexedContact = new IndexedContact(allocateIds(shard, 1), contact);
+        ReentrantLock writeLock = writeLock(indexedContact.getId());
+        writeLock.lock();
+        try {
+            IndexedContact addedContact = shards.get(shard).addContact(indexedContact);
+            changeFeed.publish(ContactChange.Type.ADDED, addedContact.getId(), addedContact);
+            return addedContact;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public IndexedContact addContact(IndexedContact contact) {
+        return putContacts(Collections.singletonList(contact)).get(0);
+    }
+
+    @Override
+    public Optional<IndexedContact> replaceContact(IndexedContact contact, LongPredicate expectedVersion) {
+        ReentrantLock writeLock = writeLock(contact.getId());
+        writeLock.lock();
+        try {
+            Optional<IndexedContact> replacedContact = shardFor(contact.getId()).replaceContact(contact, expectedVersion);
+            replacedContact.ifPresent(addedContact -> changeFeed.publish(ContactChange.Type.UPDATED, addedContact.getId(), addedContact));
+            return replacedContact;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Spreads the batch over the shards in turn, allocates the ids of every shard's part at once and puts the parts in parallel.
+     */
+    @Override
+    public List<IndexedContact> addContacts(List<? extends Contact> contacts) {
+        int firstShard = Math.floorMod(nextShard.getAndAdd(contacts.size()), shards.size());
+        List<List<IndexedContact>> parts = new ArrayList<>(shards.size());
+        long[] partIds = new long[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            int partSize = (contacts.size() + shards.size() - 1 - Math.floorMod(shard - firstShard, shards.size())) / shards.size();
+            parts.add(new ArrayList<>(partSize));
+            partIds[shard] = partSize == 0 ? 0 : allocateIds(shard, partSize);
+        }
+        List<IndexedContact> indexedContacts = new ArrayList<>(contacts.size());
+        for (int i = 0; i < contacts.size(); i++) {
+            int shard = (firstShard + i) % shards.size();
+            IndexedContact indexedContact = new IndexedContact(partIds[shard]++, contacts.get(i));
+            parts.get(shard).add(indexedContact);
+            indexedContacts.add(indexedContact);
+        }
+        return withWriteLocks(indexedContacts.stream().map(IndexedContact::getId).collect(Collectors.toList()), () -> {
+            scatter((shard, index) -> {
+                List<IndexedContact> part = parts.get(index);
+                if (!part.isEmpty()) {
+                    shard.putContacts(part);
+                }
+                return null;
+            });
+            indexedContacts.forEach(contact -> changeFeed.publish(ContactChange.Type.ADDED, contact.getId(), contact));
+            return indexedContacts;
+        });
+    }
+
+    @Override
+    public List<IndexedContact> putContacts(List<IndexedContact> contacts) {
+        List<Long> ids = contacts.stream().map(IndexedContact::getId).collect(Collectors.toList());
+        ids.forEach(this::reserveId);
+        return withWriteLocks(ids, () -> {
+            List<List<Integer>> positions = positionsByShard(ids);
+            IndexedContact[] addedContacts = new IndexedContact[contacts.size()];
+            boolean[] updated = new boolean[contacts.size()];
+            scatter((shard, index) -> {
+                List<Integer> shardPositions = positions.get(index);
+                if (shardPositions.isEmpty()) {
+                    return null;
+                }
+                List<IndexedContact> part = new ArrayList<>(shardPositions.size());
+                Set<Long> putIds = new HashSet<>();
+                for (int position : shardPositions) {
+                    Long id = ids.get(position);
+                    updated[position] = !putIds.add(id) || shard.findContact(id).isPresent();
+                    part.add(contacts.get(position));
+                }
+                List<IndexedContact> addedPart = shard.putContacts(part);
+                for (int i = 0; i < shardPositions.size(); i++) {
+                    addedContacts[shardPositions.get(i)] = addedPart.get(i);
+                }
+                return null;
+            });
+            for (int i = 0; i < addedContacts.length; i++) {
+                changeFeed.publish(updated[i] ? ContactChange.Type.UPDATED : ContactChange.Type.ADDED, addedContacts[i].getId(), addedContacts[i]);
+            }
+            return Arrays.asList(addedContacts);
+        });
+    }
+
+    @Override
+    public List<Boolean> deleteContacts(List<Long> ids) {
+        return withWriteLocks(ids, () -> {
+            List<List<Integer>> positions = positionsByShard(ids);
+            Boolean[] deleted = new Boolean[ids.size()];
+            scatter((shard, index) -> {
+                List<Integer> shardPositions = positions.get(index);
+                if (shardPositions.isEmpty()) {
+                    return null;
+                }
+                List<Boolean> deletedPart = shard.deleteContacts(shardPositions.stream().map(ids::get).collect(Collectors.toList()));
+                for (int i = 0; i < shardPositions.size(); i++) {
+                    deleted[shardPositions.get(i)] = deletedPart.get(i);
+                }
+                return null;
+            });
+            for (int i = 0; i < deleted.length; i++) {
+                if (deleted[i]) {
+                    changeFeed.publish(ContactChange.Type.DELETED, ids.get(i), null);
+                }
+            }
+            return Arrays.asList(deleted);
+        });
+    }
+
+    @Override
+    public void deleteContact(IndexedContact contact) {
+        deleteContact(contact.getId());
+    }
+
+    @Override
+    public void deleteContact(Long id) {
+        deleteContacts(Collections.singletonList(id));
+    }
+
+    /**
+     * @return the sum of the modification counts of the shards, which only grows, since every one of them only grows.
+     */
+    @Override
+    public long getModificationCount() {
+        return shards.stream().mapToLong(PhoneBook::getModificationCount).sum();
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public long countContacts() {
+        return shards.stream().mapToLong(PhoneBook::countContacts).sum();
+    }
+
+    /**
+     * @return the shards of the phone book, in the order of their id ranges.
+     */
+    public List<PhoneBook> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * @param id - the id of a contact.
+     * @return the position of the shard that the id belongs to.
+     */
+    public int shardOf(long id) {
+        return shardOf(id, shards.size());
+    }
+
+    private int shardOf(long id, int count) {
+        long range = (id >>> ID_RANGE_BITS) - 1;
+        return range >= 0 && range < count ? (int) range : ring.shardOf(id);
+    }
+
+    private PhoneBook shardFor(long id) {
+        return shards.get(shardOf(id));
+    }
+
+    /**
+     * Allocates a block of consecutive ids from the range of a shard.
+     *
+     * @return the first id of the block.
+     */
+    private long allocateIds(int shard, int count) {
+        long firstId = nextIds[shard].getAndAdd(count);
+        if (firstId + count > rangeStart(shard + 1)) {
+            throw new IllegalStateException("The ids of shard " + shard + " have run out.");
+        }
+        return firstId;
+    }
+
+    /**
+     * Moves the counter of the shard that owns an id in its range past the id, so that the id is never allocated.
+     */
+    private void reserveId(long id) {
+        long range = (id >>> ID_RANGE_BITS) - 1;
+        if (range >= 0 && range < shards.size()) {
+            nextIds[(int) range].accumulateAndGet(id + 1, Math::max);
+        }
+    }
+
+    /**
+     * Finds the id that follows the greatest id of a shard's range that the shard already holds, with a binary search over
+     * the pages of the shard, so that a shard which kept its contacts does not hand out their ids again.
+     */
+    private long findNextId(int shard) {
+        long low = rangeStart(shard) - 1;
+        long high = rangeStart(shard + 1) - 1;
+        if (!hasIdBetween(shard, low, high + 1)) {
+            return low + 1;
+        }
+        while (high - low > 1) {
+            long middle = low + (high - low) / 2;
+            if (hasIdBetween(shard, middle, rangeStart(shard + 1))) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high + 1;
+    }
+
+    /**
+     * @return true if the shard has a contact with an id greater than <code>afterId</code> and less than <code>beforeId</code>.
+     */
+    private boolean hasIdBetween(int shard, long afterId, long beforeId) {
+        List<IndexedContact> page = shards.get(shard).findContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty(),
+                                                                   Optional.of(afterId), 1);
+        return !page.isEmpty() && page.get(0).getId() < beforeId;
+    }
+
+    private static long rangeStart(int shard) {
+        return (long) (shard + 1) << ID_RANGE_BITS;
+    }
+
+    /**
+     * @return the positions of the ids in the list, grouped by the position of their shard.
+     */
+    private List<List<Integer>> positionsByShard(List<Long> ids) {
+        List<List<Integer>> positions = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            positions.get(shardOf(ids.get(i))).add(i);
+        }
+        return positions;
+    }
+
+    /**
+     * Calls every shard in parallel, the first one on the calling thread and the rest on the pool, and waits for all of them.
+     *
+     * @param request - the call to a shard, which is given the shard and its index.
+     * @return the results of the shards, in the order of the shards.
+     */
+    private <T> List<T> scatter(BiFunction<PhoneBook, Integer, T> request) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(shards.size() - 1);
+        for (int shard = 1; shard < shards.size(); shard++) {
+            int index = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> request.apply(shards.get(index), index), executor));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        results.add(request.apply(shards.get(0), 0));
+        try {
+            futures.forEach(future -> results.add(future.join()));
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Merges lists of contacts that are sorted by id into a single list sorted by id.
+     *
+     * @param lists - the lists to be merged.
+     * @param limit - the maximum number of contacts to be merged.
+     * @return the first <code>limit</code> contacts of all lists.
+     */
+    private static List<IndexedContact> mergeById(List<List<IndexedContact>> lists, int limit) {
+        int size = (int) Math.min(limit, lists.stream().mapToLong(List::size).sum());
+        List<IndexedContact> merged = new ArrayList<>(size);
+        int[] positions = new int[lists.size()];
+        while (merged.size() < size) {
+            int smallest = -1;
+            for (int i = 0; i < lists.size(); i++) {
+                if (positions[i] < lists.get(i).size()
+                        && (smallest < 0 || lists.get(i).get(positions[i]).getId() < lists.get(smallest).get(positions[smallest]).getId())) {
+                    smallest = i;
+                }
+            }
+            merged.add(lists.get(smallest).get(positions[smallest]++));
+        }
+        return merged;
+    }
+
+    private static List<IndexedContact> sortedById(Collection<IndexedContact> contacts) {
+        List<IndexedContact> sortedContacts = new ArrayList<>(contacts);
+        sortedContacts.sort(BY_ID);
+        return sortedContacts;
+    }
+
+    private ReentrantLock writeLock(Long id) {
+        int hash = id.hashCode();
+        return writeLocks[(hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Runs a write while the locks of all the given ids are held. The locks are taken in the order of their stripes,
+     * so writes of overlapping batches never wait for each other in a circle.
+     */
+    private <T> T withWriteLocks(List<Long> ids, Supplier<T> write) {
+        BitSet stripes = new BitSet(WRITE_LOCK_STRIPES);
+        for (Long id : ids) {
+            int hash = id.hashCode();
+            stripes.set((hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1));
+        }
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            writeLocks[stripe].lock();
+        }
+        try {
+            return write.get();
+        } finally {
+            for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+                writeLocks[stripe].unlock();
+            }
+        }
+    }
+
+    @Autowired(required = false)
+    public void setContactsFactory(ContactsFactory contactsFactory) {
+        this.contactsFactory = contactsFactory;
+    }
+
+    /**
+     * Sets the number of embedded shards, when the phone book was not given its shards.
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setChangeFeedCapacity(int changeFeedCapacity) {
+        this.changeFeedCapacity = changeFeedCapacity;
+    }
+
+}
@@ -0,0 +1,126 @@
+package travelling.with.code.restful.phonebook.wire;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * Reads the contacts that a {@link ContactEncoder} wrote, one record at a time, through a buffer of the decoder, so
+ * that decoding a contact allocates only the contact and its strings. The decoder is not thread safe and does not close
+ * the stream.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class ContactDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream input;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    /**
+     * @param input - the stream that the contacts will be read from.
+     */
+    public ContactDecoder(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Reads the next contact of the stream.
+     *
+     * @return the contact, whose id is <code>null</code> if it was written without one, or <code>null</code> at the end of the stream.
+     * @throws EOFException if the stream ends in the middle of a record.
+     * @throws IOException if the stream could not be read or holds a malformed record.
+     */
+    public IndexedContact read() throws IOException {
+        if (position == limit && !fill(1)) {
+            return null;
+        }
+        long encodedId = readVarlong();
+        IndexedContact contact = new IndexedContact();
+        contact.setId(encodedId == 0 ? null : encodedId - 1);
+        contact.setName(readField());
+        contact.setSurname(readField());
+        contact.setPhone(readField());
+        return contact;
+    }
+
+    private String readField() throws IOException {
+        long encodedLength = readVarlong();
+        if (encodedLength == 0) {
+            return null;
+        }
+        if (encodedLength - 1 > Integer.MAX_VALUE) {
+            throw new IOException("A field of " + (encodedLength - 1) + " bytes is too long.");
+        }
+        int length = (int) (encodedLength - 1);
+        if (length <= BUFFER_SIZE) {
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        int copied = limit - position;
+        System.arraycopy(buffer, position, bytes, 0, copied);
+        position = limit;
+        while (copied < length) {
+            int read = input.read(bytes, copied, length - copied);
+            if (read < 0) {
+                throw new EOFException("The stream ended in the middle of a contact.");
+            }
+            copied += read;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readVarlong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            require(1);
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("A varint is longer than 10 bytes.");
+    }
+
+    private void require(int bytes) throws IOException {
+        if (limit - position < bytes && !fill(bytes)) {
+            throw new EOFException("The stream ended in the middle of a contact.");
+        }
+    }
+
+    /**
+     * Reads from the stream until the buffer holds at least the given number of bytes, moving the unread bytes
+     * to the start of the buffer first.
+     *
+     * @return false if the stream ended before that.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < bytes) {
+            int read = input.read(buffer, limit, BUFFER_SIZE - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,150 @@
+package travelling.with.code.restful.phonebook.wire;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * Writes contacts to a stream in the compact binary form of {@link ContactsHttpMessageConverter#APPLICATION_CONTACTS}.
+ * Every contact is written as a record with the following layout:
+ * <p/>
+ * <pre>id | name | surname | phone</pre>
+ * <p/>
+ * where the id is a varint with the contact's id plus one, or zero for a contact without an id, and every other field is a
+ * varint with the field's length plus one, followed by the field's UTF-8 bytes. A zero length stands for a <code>null</code>
+ * field. The records follow each other without a separator or a count, so a stream of contacts can be written as the
+ * contacts are found.
+ * <p/>
+ * The fields are encoded straight into a buffer of the encoder, which is written to the stream whenever it fills up,
+ * so writing a contact allocates nothing. The encoder is not thread safe and does not close the stream.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public final class ContactEncoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The most bytes that a single character, or a pair of surrogates, is encoded into.
+     */
+    private static final int MAX_CHAR_BYTES = 4;
+
+    private final OutputStream output;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int position;
+
+    /**
+     * @param output - the stream that the contacts will be written to.
+     */
+    public ContactEncoder(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Writes the record of a contact. The record may stay in the encoder's buffer until {@link #flush()} is called.
+     *
+     * @param contact - the contact to be written, whose id is written too when it is an {@link IndexedContact}.
+     * @throws IOException if the buffer could not be written to the stream.
+     */
+    public void write(Contact contact) throws IOException {
+        Long id = contact instanceof IndexedContact ? ((IndexedContact) contact).getId() : null;
+        ensureCapacity(10);
+        putVarlong(id == null ? 0 : id + 1);
+        writeField(contact.getName());
+        writeField(contact.getSurname());
+        writeField(contact.getPhone());
+    }
+
+    /**
+     * Writes the buffered records to the stream and flushes it.
+     *
+     * @throws IOException if the records could not be written.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+
+    private void writeField(String value) throws IOException {
+        ensureCapacity(5);
+        if (value == null) {
+            putVarlong(0);
+            return;
+        }
+        putVarlong(utf8Length(value) + 1L);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (position > BUFFER_SIZE - MAX_CHAR_BYTES) {
+                flushBuffer();
+            }
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes that the value is encoded into, where an unpaired surrogate is replaced with a '?',
+     * as {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    private void putVarlong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (position > BUFFER_SIZE - bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package travelling.with.code.restful.phonebook.wire;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+
+/**
+ * Converts contacts from and to {@link #APPLICATION_CONTACTS}, a compact binary form that a service can ask for instead of JSON,
+ * to skip the cost of JSON on both ends. The records are written by a {@link ContactEncoder} and read by a {@link ContactDecoder}.
+ * <p/>
+ * A body holds a single {@link Contact} or {@link IndexedContact}, or any number of them when the type is an array of contacts.
+ * A collection of contacts can be written, but not read, since its type does not tell the type of its contacts. For the same
+ * reason, a collection is only written when its media type has been negotiated explicitly, as the listings of the contacts do,
+ * so that the other handlers that return a list keep writing it as JSON to clients that accept anything. As a component,
+ * the converter is picked up by Spring Boot and placed before the default converters, but only serves the requests that accept
+ * or send its media type.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@Component
+public class ContactsHttpMessageConverter extends AbstractHttpMessageConverter<Object> {
+
+    /**
+     * The media type of the compact binary form of contacts.
+     */
+    public static final String APPLICATION_CONTACTS = "application/x-phonebook-contacts";
+
+    public ContactsHttpMessageConverter() {
+        super(MediaType.valueOf(APPLICATION_CONTACTS));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Contact.class.isAssignableFrom(clazz) || isContactArray(clazz) || Collection.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+        if (Collection.class.isAssignableFrom(clazz)) {
+            return mediaType != null && !mediaType.isWildcardType() && !mediaType.isWildcardSubtype() && super.canWrite(clazz, mediaType);
+        }
+        return super.canWrite(clazz, mediaType);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return !Collection.class.isAssignableFrom(clazz) && super.canRead(clazz, mediaType);
+    }
+
+    @Override
+    protected Object readInternal(Class<? extends Object> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        ContactDecoder decoder = new ContactDecoder(inputMessage.getBody());
+        try {
+            if (clazz.isArray()) {
+                List<IndexedContact> contacts = new ArrayList<>();
+                for (IndexedContact contact = decoder.read(); contact != null; contact = decoder.read()) {
+                    contacts.add(contact);
+                }
+                return contacts.toArray((Object[]) Array.newInstance(clazz.getComponentType(), contacts.size()));
+            }
+            IndexedContact contact = decoder.read();
+            if (contact == null) {
+                throw new HttpMessageNotReadableException("The body has no contact.");
+            }
+            if (decoder.read() != null) {
+                throw new HttpMessageNotReadableException("The body has more than one contact.");
+            }
+            return contact;
+        } catch (IOException e) {
+            throw new HttpMessageNotReadableException("The body is not a valid " + APPLICATION_CONTACTS + " body: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        ContactEncoder encoder = new ContactEncoder(outputMessage.getBody());
+        if (object instanceof Contact) {
+            encoder.write((Contact) object);
+        } else if (object instanceof Collection) {
+            for (Object contact : (Collection<?>) object) {
+                write(encoder, contact);
+            }
+        } else {
+            for (Object contact : (Object[]) object) {
+                write(encoder, contact);
+            }
+        }
+        encoder.flush();
+    }
+
+    private static void write(ContactEncoder encoder, Object contact) throws IOException {
+        if (!(contact instanceof Contact)) {
+            throw new HttpMessageNotWritableException("Only contacts can be written as " + APPLICATION_CONTACTS + ", not " + contact + ".");
+        }
+        encoder.write((Contact) contact);
+    }
+
+    private static boolean isContactArray(Class<?> clazz) {
+        return clazz.isArray() && Contact.class.isAssignableFrom(clazz.getComponentType());
+    }
+
+}
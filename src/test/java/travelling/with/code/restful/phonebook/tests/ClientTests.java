@@ -0,0 +1,116 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.WebIntegrationTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.client.HttpClientErrorException;
+
+import travelling.with.code.restful.phonebook.Application;
+import travelling.with.code.restful.phonebook.client.Client;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+
+/**
+ * End-to-end tests of the {@link Client}, against the phone book served on a random port.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebIntegrationTest("server.port:0")
+public class ClientTests {
+
+    @Value("${local.server.port}")
+    private int port;
+
+    @Autowired
+    private PhoneBook phoneBook;
+
+    private List<IndexedContact> contacts;
+
+    private Client client;
+
+    @Before
+    public void setup() {
+        ResourcesContactsFactory contactsFactory = new ResourcesContactsFactory();
+        ((InMemoryPhoneBook) phoneBook).setContactsFactory(contactsFactory);
+        ((InMemoryPhoneBook) phoneBook).init();
+        contacts = new ArrayList<>(contactsFactory.createInitContactsCollection());
+        client = new Client("http://localhost:" + port + "/phonebook/contacts", 2, 100, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    @Test
+    public void getContact() {
+        IndexedContact expected = contacts.get(0);
+        IndexedContact contact = client.getContact(expected.getId());
+        assertThat(contact.getName(), is(expected.getName()));
+        assertThat(contact.getSurname(), is(expected.getSurname()));
+        assertThat(contact.getPhone(), is(expected.getPhone()));
+    }
+
+    @Test
+    public void getContactsBySurname() {
+        IndexedContact expected = contacts.get(0);
+        Collection<IndexedContact> found = client.getContacts(Optional.empty(), Optional.of(expected.getSurname()), Optional.empty());
+        long expectedCount = contacts.stream().filter(contact -> expected.getSurname().equals(contact.getSurname())).count();
+        assertThat(found, hasSize((int) expectedCount));
+        assertThat(found.stream().map(IndexedContact::getSurname).collect(Collectors.toList()), everyItem(is(expected.getSurname())));
+    }
+
+    @Test
+    public void getContactsServesUnchangedListingsFromTheCache() {
+        Collection<IndexedContact> first = client.getContacts(Optional.empty(), Optional.empty(), Optional.empty());
+        Collection<IndexedContact> second = client.getContacts(Optional.empty(), Optional.empty(), Optional.empty());
+        assertThat(second.iterator().next(), is(sameInstance(first.iterator().next())));
+
+        phoneBook.deleteContact(contacts.get(0).getId());
+        assertThat(client.getContacts(Optional.empty(), Optional.empty(), Optional.empty()), hasSize(contacts.size() - 1));
+    }
+
+    @Test
+    public void getContactAsyncGathersConcurrentLookups() {
+        List<CompletableFuture<IndexedContact>> lookups = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            lookups.add(client.getContactAsync(contacts.get(i % contacts.size()).getId()));
+        }
+        CompletableFuture<IndexedContact> missing = client.getContactAsync(contacts.size() + 1000);
+        for (int i = 0; i < lookups.size(); i++) {
+            assertThat(lookups.get(i).join().getId(), is(contacts.get(i % contacts.size()).getId()));
+        }
+        try {
+            missing.join();
+            fail("A missing contact should not be found.");
+        } catch (CompletionException e) {
+            assertThat(((HttpClientErrorException) e.getCause()).getStatusCode(), is(HttpStatus.NOT_FOUND));
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.persistent.compact.CompactPhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+
+/**
+ * Tests that the parallel scans of the {@link CompactPhoneBook} find the same contacts, in the same order, as its sequential scans.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class CompactPhoneBookTests {
+
+    private static final int SIZE = 20_000;
+
+    private CompactPhoneBook sequentialPhoneBook;
+
+    private CompactPhoneBook parallelPhoneBook;
+
+    private GeneratedContactsFactory contactsFactory;
+
+    @Before
+    public void setup() {
+        contactsFactory = new GeneratedContactsFactory(SIZE);
+        sequentialPhoneBook = createPhoneBook(1, Integer.MAX_VALUE);
+        parallelPhoneBook = createPhoneBook(4, 1);
+    }
+
+    @After
+    public void tearDown() {
+        sequentialPhoneBook.shutdown();
+        parallelPhoneBook.shutdown();
+    }
+
+    @Test
+    public void parallelScansFindTheSameContactsInTheSameOrder() {
+        IndexedContact contact = contactsFactory.createContact(SIZE / 2);
+        assertSameIds(phoneBook -> phoneBook.findContacts(Optional.empty(), Optional.of(contact.getSurname()), Optional.empty()));
+        assertSameIds(phoneBook -> phoneBook.findContacts(Optional.of(contact.getName()), Optional.empty(), Optional.of(contact.getPhone())));
+        assertSameIds(phoneBook -> phoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.empty()));
+        assertSameIds(phoneBook -> streamed(phoneBook.streamContacts(MatchMode.PREFIX, Optional.of(contact.getName().substring(0, 2)),
+                                                                     Optional.empty(), Optional.empty())));
+    }
+
+    @Test
+    public void parallelScansSeeTheLatestWrites() {
+        IndexedContact contact = contactsFactory.createContact(SIZE / 2);
+        parallelPhoneBook.deleteContact(contact.getId());
+        assertThat(parallelPhoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.of(contact.getPhone())).isEmpty(), is(true));
+        parallelPhoneBook.addContact(contact);
+        assertThat(ids(parallelPhoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.of(contact.getPhone()))),
+                   is(Collections.singletonList(contact.getId())));
+    }
+
+    @Test
+    public void phonesAreFoundHoweverTheyAreWritten() {
+        IndexedContact contact = contactsFactory.createContact(SIZE / 3);
+        String digits = contact.getPhone().replaceAll("[^0-9]", "");
+        assertThat(ids(parallelPhoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.of("00" + digits))),
+                   is(Collections.singletonList(contact.getId())));
+        assertThat(ids(sequentialPhoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.of("+" + digits))),
+                   is(Collections.singletonList(contact.getId())));
+    }
+
+    private void assertSameIds(Function<CompactPhoneBook, Collection<IndexedContact>> search) {
+        List<Long> expectedIds = ids(search.apply(sequentialPhoneBook));
+        assertThat(expectedIds.size(), is(greaterThan(0)));
+        assertThat(ids(search.apply(parallelPhoneBook)), is(expectedIds));
+    }
+
+    private CompactPhoneBook createPhoneBook(int scanThreads, int parallelScanThreshold) {
+        CompactPhoneBook phoneBook = new CompactPhoneBook();
+        phoneBook.setContactsFactory(contactsFactory);
+        phoneBook.setScanThreads(scanThreads);
+        phoneBook.setParallelScanThreshold(parallelScanThreshold);
+        phoneBook.init();
+        return phoneBook;
+    }
+
+    private static Collection<IndexedContact> streamed(Stream<IndexedContact> contacts) {
+        return contacts.collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    private static List<Long> ids(Collection<IndexedContact> contacts) {
+        return contacts.stream().map(IndexedContact::getId).collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,134 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import travelling.with.code.restful.phonebook.persistent.ids.HighWaterMarkIdAllocator;
+import travelling.with.code.restful.phonebook.persistent.ids.IdAllocator;
+import travelling.with.code.restful.phonebook.persistent.ids.SequentialIdAllocator;
+import travelling.with.code.restful.phonebook.persistent.ids.SnowflakeIdAllocator;
+import travelling.with.code.restful.phonebook.persistent.ids.StripedIdAllocator;
+
+/**
+ * Tests that every {@link IdAllocator} hands out unique ids to many threads at once, and never hands out an id
+ * that has been reserved.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class IdAllocatorTests {
+
+    private static final int THREADS = 8;
+
+    private static final int IDS_PER_THREAD = 20_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void idsAreUniqueUnderConcurrentAllocations() throws Exception {
+        for (IdAllocator allocator : allocators()) {
+            Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        if (i % 100 == 0) {
+                            for (long id : allocator.allocate(10)) {
+                                ids.add(id);
+                            }
+                        } else {
+                            ids.add(allocator.allocate());
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            int expectedIds = THREADS * (IDS_PER_THREAD + IDS_PER_THREAD / 100 * 9);
+            assertThat(allocator.getClass().getSimpleName(), ids.size(), is(expectedIds));
+            assertThat(allocator.getHighestId(), greaterThanOrEqualTo(ids.stream().mapToLong(Long::longValue).max().getAsLong()));
+        }
+    }
+
+    @Test
+    public void reservedIdsAreNeverAllocated() throws Exception {
+        for (IdAllocator allocator : allocators()) {
+            long firstId = allocator.allocate();
+            long reservedInBlock = firstId + 5;
+            long reservedAhead = firstId + 100_000;
+            allocator.reserve(reservedInBlock);
+            allocator.reserve(reservedAhead);
+            Set<Long> ids = new HashSet<>();
+            for (int i = 0; i < 2000; i++) {
+                ids.add(allocator.allocate());
+            }
+            for (long id : allocator.allocate(2000)) {
+                ids.add(id);
+            }
+            assertThat(allocator.getClass().getSimpleName(), ids.contains(reservedInBlock), is(false));
+            assertThat(allocator.getClass().getSimpleName(), ids.contains(reservedAhead), is(false));
+            assertThat(allocator.getHighestId(), greaterThan(reservedAhead));
+        }
+    }
+
+    @Test
+    public void highWaterMarkSurvivesRestarts() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("ids.hwm");
+        HighWaterMarkIdAllocator allocator = new HighWaterMarkIdAllocator(file, 100);
+        long lastId = 0;
+        for (int i = 0; i < 250; i++) {
+            lastId = allocator.allocate();
+        }
+        allocator.reserve(lastId + 1000);
+
+        HighWaterMarkIdAllocator restarted = new HighWaterMarkIdAllocator(file, 100);
+        assertThat(restarted.allocate(), greaterThan(lastId + 1000));
+    }
+
+    @Test
+    public void snowflakeIdsCarryTheirNodeAndTime() {
+        long before = System.currentTimeMillis();
+        long id = new SnowflakeIdAllocator(42).allocate();
+        long otherNodeId = new SnowflakeIdAllocator(43).allocate();
+        assertThat(SnowflakeIdAllocator.nodeOf(id), is(42));
+        assertThat(SnowflakeIdAllocator.timeOf(id) >= before && SnowflakeIdAllocator.timeOf(id) <= System.currentTimeMillis(), is(true));
+        assertThat(otherNodeId, not(id));
+    }
+
+    private List<IdAllocator> allocators() throws IOException {
+        List<IdAllocator> allocators = new ArrayList<>();
+        allocators.add(new SequentialIdAllocator());
+        allocators.add(new StripedIdAllocator(0, 4, 64));
+        allocators.add(new SnowflakeIdAllocator(7));
+        allocators.add(new HighWaterMarkIdAllocator(folder.newFolder().toPath().resolve("ids.hwm"), 1000));
+        return allocators;
+    }
+
+}
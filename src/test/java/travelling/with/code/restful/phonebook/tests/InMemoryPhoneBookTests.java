@@ -0,0 +1,103 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+
+/**
+ * Tests that the {@link InMemoryPhoneBook} reads versions of its contacts that later writes do not change.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class InMemoryPhoneBookTests {
+
+    private InMemoryPhoneBook phoneBook;
+
+    private List<IndexedContact> contacts;
+
+    @Before
+    public void setup() {
+        ResourcesContactsFactory contactsFactory = new ResourcesContactsFactory();
+        phoneBook = new InMemoryPhoneBook();
+        phoneBook.setContactsFactory(contactsFactory);
+        phoneBook.init();
+        contacts = new ArrayList<>(contactsFactory.createInitContactsCollection());
+    }
+
+    @Test
+    public void listingsReadTheVersionTheyStartedWith() {
+        List<Long> expectedIds = contacts.stream().map(IndexedContact::getId).sorted().collect(Collectors.toList());
+        try (Stream<IndexedContact> listing = phoneBook.streamContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty())) {
+            phoneBook.deleteContact(expectedIds.get(0));
+            phoneBook.addContact(new IndexedContact(expectedIds.get(expectedIds.size() - 1) + 1, "Maggie", "Simpson", "+1-877-555-2505"));
+            assertThat(listing.map(IndexedContact::getId).collect(Collectors.toList()), is(expectedIds));
+        }
+        assertThat(phoneBook.countContacts(), is((long) expectedIds.size()));
+    }
+
+    @Test
+    public void batchesAreAppliedInOrder() {
+        long id = 1000;
+        List<IndexedContact> batch = new ArrayList<>();
+        batch.add(new IndexedContact(id, "Patty", "Bouvier", "+1-877-555-2506"));
+        batch.add(new IndexedContact(id + 1, "Selma", "Bouvier", "+1-877-555-2507"));
+        batch.add(new IndexedContact(id, "Patty", "Simpson", "+1-877-555-2506"));
+        phoneBook.putContacts(batch);
+
+        assertThat(phoneBook.findContact(id).get().getSurname(), is("Simpson"));
+        assertThat(phoneBook.findContacts(Optional.empty(), Optional.of("Bouvier"), Optional.empty()).size(), is(1));
+        assertThat(phoneBook.deleteContacts(Arrays.asList(id, id, id + 2)), is(Arrays.asList(true, false, false)));
+        assertThat(phoneBook.countContacts(), is((long) contacts.size() + 1));
+    }
+
+    @Test
+    public void pagesFollowTheOrderOfTheIds() {
+        Random random = new Random(42);
+        TreeMap<Long, IndexedContact> expected = new TreeMap<>();
+        contacts.forEach(contact -> expected.put(contact.getId(), contact));
+        for (int i = 0; i < 5000; i++) {
+            long id = random.nextBoolean() ? random.nextLong() : random.nextInt(2000) - 1000;
+            if (random.nextInt(4) == 0) {
+                phoneBook.deleteContact(id);
+                expected.remove(id);
+            } else {
+                IndexedContact contact = new IndexedContact(id, "Name" + i, "Surname", "555-" + i);
+                phoneBook.addContact(contact);
+                expected.put(id, contact);
+            }
+        }
+        assertThat(phoneBook.countContacts(), is((long) expected.size()));
+
+        List<Long> pagedIds = new ArrayList<>();
+        Optional<Long> afterId = Optional.empty();
+        List<IndexedContact> page;
+        do {
+            page = phoneBook.findContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty(), afterId, 100);
+            page.forEach(contact -> pagedIds.add(contact.getId()));
+            afterId = page.isEmpty() ? afterId : Optional.of(page.get(page.size() - 1).getId());
+        } while (!page.isEmpty());
+        assertThat(pagedIds, is(new ArrayList<>(expected.keySet())));
+
+        long someId = expected.firstKey();
+        assertThat(phoneBook.findContact(someId).get().getName(), is(expected.get(someId).getName()));
+        assertThat(phoneBook.findContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(Long.MAX_VALUE), 10),
+                   is(Collections.emptyList()));
+    }
+
+}
@@ -0,0 +1,89 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.WebIntegrationTest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import travelling.with.code.restful.phonebook.Application;
+import travelling.with.code.restful.phonebook.client.Client;
+import travelling.with.code.restful.phonebook.client.LoadGenerator;
+import travelling.with.code.restful.phonebook.client.LoadGenerator.Operation;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.in.memory.GeneratedContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+
+/**
+ * Tests that the {@link LoadGenerator} sends every scheduled request of its mix to the phone book served on a random port,
+ * and measures all of them.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebIntegrationTest("server.port:0")
+public class LoadGeneratorTests {
+
+    @Value("${local.server.port}")
+    private int port;
+
+    @Autowired
+    private PhoneBook phoneBook;
+
+    private GeneratedContactsFactory contactsFactory;
+
+    private Client client;
+
+    @Before
+    public void setup() {
+        contactsFactory = new GeneratedContactsFactory(1000);
+        ((InMemoryPhoneBook) phoneBook).setContactsFactory(contactsFactory);
+        ((InMemoryPhoneBook) phoneBook).init();
+        client = new Client("http://localhost:" + port + "/phonebook/contacts", 4, 100, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        ((InMemoryPhoneBook) phoneBook).setContactsFactory(new ResourcesContactsFactory());
+        ((InMemoryPhoneBook) phoneBook).init();
+    }
+
+    @Test
+    public void everyScheduledRequestIsMeasured() throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(client, contactsFactory);
+        generator.setRequestsPerSecond(200);
+        generator.setDuration(1, TimeUnit.SECONDS);
+        generator.setWarmup(0, TimeUnit.SECONDS);
+        generator.setWeight(Operation.LOOKUP, 40);
+        generator.setWeight(Operation.SEARCH, 20);
+        generator.setWeight(Operation.ADD, 20);
+        generator.setWeight(Operation.UPDATE, 10);
+        generator.setWeight(Operation.DELETE, 10);
+        LoadGenerator.Report report = generator.run();
+
+        assertThat(report.getSent(), is(200L));
+        assertThat(report.getUnfinished(), is(0));
+        long completed = 0;
+        for (Operation operation : Operation.values()) {
+            LoadGenerator.OperationReport operationReport = report.getOperation(operation);
+            assertThat(operation + " failures", operationReport.getFailures(), is(0L));
+            assertThat(operation + " requests", operationReport.getCount(), greaterThan(0L));
+            assertThat(operationReport.getMaxLatency(), greaterThan(0L));
+            completed += operationReport.getCount();
+        }
+        assertThat(completed, is(report.getSent()));
+    }
+
+}
@@ -0,0 +1,113 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import travelling.with.code.restful.phonebook.admission.RateLimitFilter;
+import travelling.with.code.restful.phonebook.admission.RateLimiter;
+
+/**
+ * Tests that the {@link RateLimiter} admits every client at its own rate and that the {@link RateLimitFilter} weighs
+ * the requests by the work they ask for and rejects them with a 429.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class RateLimitTests {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void clientsAreAdmittedAtTheirOwnRate() {
+        RateLimiter rateLimiter = new RateLimiter(10, 20, 100);
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            assertThat(rateLimiter.tryAcquire("greedy", 5, now), is(0L));
+        }
+        long waitNanos = rateLimiter.tryAcquire("greedy", 5, now);
+        assertThat(waitNanos, is(SECOND / 2));
+        assertThat(rateLimiter.tryAcquire("polite", 5, now), is(0L));
+
+        assertThat(rateLimiter.tryAcquire("greedy", 5, now + waitNanos), is(0L));
+        assertThat(rateLimiter.tryAcquire("greedy", 1, now + waitNanos), greaterThan(0L));
+        assertThat(rateLimiter.tryAcquire("greedy", 100, now + waitNanos + 2 * SECOND), is(0L));
+        assertThat(rateLimiter.getRejectionCount(), is(2L));
+    }
+
+    @Test
+    public void clientsThatAreNotLimitedAreForgotten() {
+        RateLimiter rateLimiter = new RateLimiter(10, 20, 10);
+        for (int i = 0; i < 100; i++) {
+            rateLimiter.tryAcquire("client-" + i, 20, i * SECOND);
+        }
+        assertThat(rateLimiter.getClientCount(), lessThanOrEqualTo(10));
+        assertThat(rateLimiter.tryAcquire("client-99", 1, 99 * SECOND), greaterThan(0L));
+    }
+
+    @Test
+    public void requestsAreWeighedByTheirWork() {
+        RateLimitFilter filter = new RateLimitFilter(new RateLimiter(1, 100, 100));
+        assertThat(filter.weightOf(request("GET", "/phonebook/contacts/1")), is(1));
+        assertThat(filter.weightOf(request("GET", "/phonebook/contacts/changes")), is(1));
+        MockHttpServletRequest search = request("GET", "/phonebook/contacts");
+        search.setParameter("surname", "Simpson");
+        assertThat(filter.weightOf(search), is(5));
+        assertThat(filter.weightOf(request("GET", "/phonebook/contacts")), is(50));
+        assertThat(filter.weightOf(request("PUT", "/phonebook/contacts/1")), is(2));
+        assertThat(filter.weightOf(request("POST", "/phonebook/contacts/batch")), is(20));
+        assertThat(filter.weightOf(request("GET", "/phonebook/contacts/batch")), is(20));
+    }
+
+    @Test
+    public void rejectedRequestsGetTooManyRequests() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(new RateLimiter(1, 60, 100));
+        MockHttpServletResponse response = filter(filter, request("GET", "/phonebook/contacts"));
+        assertThat(response.getStatus(), is(HttpStatus.OK.value()));
+
+        response = filter(filter, request("GET", "/phonebook/contacts"));
+        assertThat(response.getStatus(), is(HttpStatus.TOO_MANY_REQUESTS.value()));
+        assertThat(Integer.parseInt(response.getHeader(HttpHeaders.RETRY_AFTER)), greaterThan(30));
+
+        MockHttpServletRequest otherClient = request("GET", "/phonebook/contacts/1");
+        otherClient.setRemoteAddr("10.0.0.2");
+        assertThat(filter(filter, otherClient).getStatus(), is(HttpStatus.OK.value()));
+        MockHttpServletResponse metrics = filter(filter, request("GET", "/metrics"));
+        assertThat(metrics.getHeader(HttpHeaders.RETRY_AFTER), is(nullValue()));
+    }
+
+    @Test
+    public void clientsAreToldApartByTheirHeaderOnlyWhenItIsConfigured() {
+        RateLimitFilter filter = new RateLimitFilter(new RateLimiter(1, 100, 100));
+        MockHttpServletRequest request = request("GET", "/phonebook/contacts/1");
+        request.addHeader("X-Client-Id", "other");
+        assertThat(filter.clientOf(request), is("10.0.0.1"));
+
+        filter.setClientHeader("X-Client-Id");
+        assertThat(filter.clientOf(request), is("other"));
+        assertThat(filter.clientOf(request("GET", "/phonebook/contacts/1")), is("10.0.0.1"));
+    }
+
+    private static MockHttpServletRequest request(String method, String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.setRemoteAddr("10.0.0.1");
+        return request;
+    }
+
+    private static MockHttpServletResponse filter(RateLimitFilter filter, MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+}
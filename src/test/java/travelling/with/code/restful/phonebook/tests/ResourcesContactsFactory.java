@@ -8,16 +8,15 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import travelling.with.code.restful.phonebook.dao.Contact;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
-import travelling.with.code.restful.phonebook.persistent.in.memory.ContactsFactory;
+import travelling.with.code.restful.phonebook.persistent.in.memory.AllocatingContactsFactory;
 
 /**
  * Creates a collection of contacts using the src/test/resources/contacts.properties file.
  *
  * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
  */
-public class ResourcesContactsFactory implements ContactsFactory {
+public class ResourcesContactsFactory extends AllocatingContactsFactory {
 
     /**
      * A properties file which contains test contacts in the form of:
@@ -40,10 +39,14 @@ public class ResourcesContactsFactory implements ContactsFactory {
     private static final Pattern contactPattern = Pattern.compile("(?m)^name=(.*?),surname=(.*?),phone=(.*)$");
 
     /**
-     * Will be used to uniquely identify new contacts. Contacts in the properties file should have ids less than this field's value
+     * New contacts are given ids from this one on. Contacts in the properties file should have ids less than it
      * so that no inconsistencies appear in the phone book.
      */
-    private int identifier = 200;
+    private static final long FIRST_NEW_ID = 200;
+
+    public ResourcesContactsFactory() {
+        super(FIRST_NEW_ID);
+    }
 
     @Override
     public Collection<IndexedContact> createInitContactsCollection() {
@@ -61,11 +64,6 @@ public class ResourcesContactsFactory implements ContactsFactory {
         return contacts;
     }
 
-    @Override
-    public IndexedContact createIndexedContact(Contact contact) {
-        return  new IndexedContact(identifier++, contact);
-    }
-
     @Override
     public Map<Long, IndexedContact> createInitContactsMap() {
         return createInitContactsCollection().stream().collect(Collectors.toMap(IndexedContact::getId, contact -> contact));
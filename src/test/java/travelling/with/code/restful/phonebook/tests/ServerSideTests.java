@@ -1,10 +1,16 @@
 package travelling.with.code.restful.phonebook.tests;
 
 import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -14,10 +20,22 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import net.minidev.json.JSONObject;
 
@@ -26,19 +44,32 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import travelling.with.code.restful.phonebook.Application;
+import travelling.with.code.restful.phonebook.BatchResult;
+import travelling.with.code.restful.phonebook.PhoneBookController;
+import travelling.with.code.restful.phonebook.SearchExecutor;
+import travelling.with.code.restful.phonebook.cache.CachingPhoneBook;
+import travelling.with.code.restful.phonebook.cache.EncodedListingCache;
 import travelling.with.code.restful.phonebook.dao.Contact;
 import travelling.with.code.restful.phonebook.dao.IndexedContact;
 import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.exceptions.ServiceUnavailableException;
 import travelling.with.code.restful.phonebook.persistent.in.memory.InMemoryPhoneBook;
+import travelling.with.code.restful.phonebook.wire.ContactDecoder;
+import travelling.with.code.restful.phonebook.wire.ContactEncoder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -57,6 +88,12 @@ public class ServerSideTests {
     @Autowired
     private PhoneBook phoneBook;
 
+    @Autowired
+    private EncodedListingCache listingCache;
+
+    @Autowired
+    private PhoneBookController phoneBookController;
+
     /**
      * The contacts that will be used to fill the phonebook and run the tests.
      */
@@ -126,7 +163,7 @@ public class ServerSideTests {
 
     @Test
     public void getAllContacts() throws Exception {
-        mockMvc.perform(get(phoneBookUrl + "contacts").accept(contentType))
+        perform(get(phoneBookUrl + "contacts").accept(contentType))
                .andExpect(status().isOk())
                .andExpect(content().contentType(contentType))
                .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -134,10 +171,148 @@ public class ServerSideTests {
                .andExpect(result -> jsonContacts.stream().forEach(contact -> jsonPath("$", hasItem(contact))));
     }
 
+    @Test
+    public void getAllContactsWithoutAcceptHeader() throws Exception {
+        perform(get(phoneBookUrl + "contacts"))
+               .andExpect(status().isOk())
+               .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+               .andExpect(jsonPath("$", hasSize(jsonContacts.size())));
+    }
+
+    @Test
+    public void repeatedListingsAreNotSearchedAgainUntilAWrite() throws Exception {
+        long hits = 0;
+        for (int i = 0; i < 2; i++) {
+            hits = listingCache.getStats().getHits();
+            perform(get(phoneBookUrl + "contacts").accept(contentType))
+                   .andExpect(status().isOk())
+                   .andExpect(content().contentType(contentType))
+                   .andExpect(jsonPath("$", hasSize(jsonContacts.size())));
+        }
+        assertThat(listingCache.getStats().getHits(), is(hits + 1));
+
+        phoneBook.deleteContact(contacts.get(0).getId());
+        perform(get(phoneBookUrl + "contacts").accept(contentType))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$", hasSize(jsonContacts.size() - 1)));
+    }
+
+    @Test
+    public void listingsAreCompressedForClientsThatAcceptIt() throws Exception {
+        listingCache.setMinCompressBytes(0);
+        try {
+            String identityETag = perform(get(phoneBookUrl + "contacts").accept(contentType))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            for (String encoding : Arrays.asList("gzip", "deflate")) {
+                MvcResult mvcResult = perform(get(phoneBookUrl + "contacts").accept(contentType).header(HttpHeaders.ACCEPT_ENCODING, encoding))
+                        .andExpect(status().isOk())
+                        .andExpect(content().contentType(contentType))
+                        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_ENCODING, encoding))
+                        .andReturn();
+                ByteArrayInputStream compressed = new ByteArrayInputStream(mvcResult.getResponse().getContentAsByteArray());
+                IndexedContact[] listedContacts = new ObjectMapper().readValue(
+                        encoding.equals("gzip") ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed), IndexedContact[].class);
+                assertThat(listedContacts.length, is(contacts.size()));
+
+                String eTag = mvcResult.getResponse().getHeader(HttpHeaders.ETAG);
+                assertThat(eTag, is(identityETag.substring(0, identityETag.length() - 1) + "-" + encoding + "\""));
+                perform(get(phoneBookUrl + "contacts").accept(contentType).header(HttpHeaders.ACCEPT_ENCODING, encoding).header(HttpHeaders.IF_NONE_MATCH, eTag))
+                        .andExpect(status().isNotModified())
+                        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, eTag));
+            }
+        } finally {
+            listingCache.setMinCompressBytes(1024);
+        }
+        assertThat(EncodedListingCache.negotiateEncoding("gzip;q=0, deflate"), is("deflate"));
+        assertThat(EncodedListingCache.negotiateEncoding("deflate;q=0.5, *"), is("gzip"));
+        assertThat(EncodedListingCache.negotiateEncoding("identity"), is(nullValue()));
+    }
+
+    @Test
+    public void streamAllContacts() throws Exception {
+        MvcResult mvcResult = perform(get(phoneBookUrl + "contacts").accept(PhoneBookController.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(PhoneBookController.APPLICATION_NDJSON + ";charset=UTF-8"))
+                .andReturn();
+
+        String[] lines = mvcResult.getResponse().getContentAsString().split("\n");
+        assertThat(lines.length, is(contacts.size()));
+        for (String line : lines) {
+            IndexedContact contact = convertJsonToPojo(IndexedContact.class, line);
+            assertThat(contacts.stream().anyMatch(expected -> expected.getId().equals(contact.getId())), is(true));
+        }
+    }
+
+    @Test
+    public void streamContactsBySurname() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        MvcResult mvcResult = perform(get(phoneBookUrl + "contacts?surname={surname}", randomContact.getSurname()).accept(PhoneBookController.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        for (String line : mvcResult.getResponse().getContentAsString().split("\n")) {
+            assertThat(convertJsonToPojo(IndexedContact.class, line).getSurname(), is(randomContact.getSurname()));
+        }
+    }
+
+    @Test
+    public void getAllContactsInBinary() throws Exception {
+        MvcResult mvcResult = perform(get(phoneBookUrl + "contacts").accept(PhoneBookController.APPLICATION_CONTACTS))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(PhoneBookController.APPLICATION_CONTACTS))
+                .andReturn();
+
+        ContactDecoder decoder = new ContactDecoder(new ByteArrayInputStream(mvcResult.getResponse().getContentAsByteArray()));
+        List<IndexedContact> decodedContacts = new ArrayList<>();
+        for (IndexedContact contact = decoder.read(); contact != null; contact = decoder.read()) {
+            decodedContacts.add(contact);
+        }
+        assertThat(decodedContacts.size(), is(contacts.size()));
+        for (IndexedContact expected : contacts) {
+            assertThat(decodedContacts.stream().anyMatch(contact -> contact.getId().equals(expected.getId())
+                    && contact.getName().equals(expected.getName())
+                    && contact.getSurname().equals(expected.getSurname())
+                    && contact.getPhone().equals(expected.getPhone())), is(true));
+        }
+    }
+
+    @Test
+    public void otherListsAreWrittenAsJsonToClientsThatAcceptAnything() throws Exception {
+        perform(get("/swagger-resources").accept(MediaType.ALL))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void addContactInBinary() throws Exception {
+        Contact contact = new Contact("Ζωή", "Gruß 🐉 " + String.join("", Collections.nCopies(10_000, "long")), null);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ContactEncoder encoder = new ContactEncoder(body);
+        encoder.write(contact);
+        encoder.flush();
+
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts").contentType(PhoneBookController.APPLICATION_CONTACTS).content(body.toByteArray())
+                    .accept(PhoneBookController.APPLICATION_CONTACTS))
+                .andExpect(status().isCreated())
+                .andExpect(content().contentType(PhoneBookController.APPLICATION_CONTACTS))
+                .andReturn();
+        IndexedContact addedContact = new ContactDecoder(new ByteArrayInputStream(mvcResult.getResponse().getContentAsByteArray())).read();
+        assertThat(addedContact.getName(), is(contact.getName()));
+        assertThat(addedContact.getSurname(), is(contact.getSurname()));
+        assertThat(addedContact.getPhone(), is(nullValue()));
+
+        perform(get(phoneBookUrl + "contacts/{id}", addedContact.getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.surname", is(contact.getSurname())));
+        perform(post(phoneBookUrl + "contacts").contentType(PhoneBookController.APPLICATION_CONTACTS).content(Arrays.copyOf(body.toByteArray(), 100)))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void findContactById() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
                .andExpect(status().isOk())
                .andExpect(content().contentType(contentType))
                .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -147,9 +322,20 @@ public class ServerSideTests {
                .andExpect(jsonPath("$.phone", is(randomContact.getPhone())));
     }
 
+    @Test
+    public void findContactsByIds() throws Exception {
+        IndexedContact firstContact = contacts.get(0);
+        IndexedContact secondContact = contacts.get(contacts.size() - 1);
+        perform(get(phoneBookUrl + "contacts/batch?id={id}&id={id}&id={id}", secondContact.getId(), contacts.size() + 1, firstContact.getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].id", is(secondContact.getId().intValue())))
+                .andExpect(jsonPath("$[1].id", is(firstContact.getId().intValue())));
+    }
+
     @Test
     public void findNotExistingContactById() throws Exception {
-        mockMvc.perform(get(phoneBookUrl + "/contacts/{id}", contacts.size() + 1).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts/{id}", contacts.size() + 1).accept(contentType))
                     .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
                     .andExpect(status().isNotFound());
     }
@@ -157,7 +343,7 @@ public class ServerSideTests {
     @Test
     public void findContactsByName() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(get(phoneBookUrl + "/contacts?name={name}", randomContact.getName()).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts?name={name}", randomContact.getName()).accept(contentType))
                .andExpect(status().isOk())
                .andExpect(content().contentType(contentType))
                .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -167,7 +353,7 @@ public class ServerSideTests {
     @Test
     public void findContactsByNotExistingName() throws Exception {
         String impropableNameToApper = "asdfghjkqwertqewtqadfafdlkhouwe";
-        mockMvc.perform(get(phoneBookUrl + "/contacts?name={name}", impropableNameToApper).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts?name={name}", impropableNameToApper).accept(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
@@ -177,7 +363,7 @@ public class ServerSideTests {
     @Test
     public void findContactsBySurname() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(get(phoneBookUrl + "/contacts?surname={surname}", randomContact.getSurname()).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts?surname={surname}", randomContact.getSurname()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -187,7 +373,7 @@ public class ServerSideTests {
     @Test
     public void findContactsByNameAndSurname() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(get(phoneBookUrl + "/contacts?name={name}&surname={surname}", randomContact.getName(), randomContact.getSurname()).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts?name={name}&surname={surname}", randomContact.getName(), randomContact.getSurname()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -198,17 +384,29 @@ public class ServerSideTests {
     @Test
     public void findContactsByPhone() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(get(phoneBookUrl + "/contacts?phone={phone}", randomContact.getPhone()).accept(contentType))
+        perform(get(phoneBookUrl + "/contacts?phone={phone}", randomContact.getPhone()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
                 .andExpect(jsonPath("$.[*].phone", everyItem(is(randomContact.getPhone()))));
     }
 
+    @Test
+    public void findContactsByPhoneWrittenDifferently() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        perform(get(phoneBookUrl + "/contacts?phone={phone}", randomContact.getPhone().replaceAll("[^+0-9]", "")).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$.[*].phone", everyItem(is(randomContact.getPhone()))));
+        perform(get(phoneBookUrl + "/contacts?phone={phone}", "00" + randomContact.getPhone().replaceAll("[^0-9]", "")).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)));
+    }
+
     @Test
     public void createNotExistingContact() throws Exception {
         Contact demoContact = createDemoContact();
-        mockMvc.perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
+        perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
                 .andExpect(status().isCreated())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -221,7 +419,7 @@ public class ServerSideTests {
     public void createContactTwice() throws Exception {
         Contact demoContact = createDemoContact();
 
-        MvcResult mvcResult = mockMvc.perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
                 .andExpect(status().isCreated())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -232,7 +430,7 @@ public class ServerSideTests {
 
         Long id1 = convertJsonToPojo(IndexedContact.class, mvcResult.getResponse().getContentAsString()).getId();
 
-        mockMvc.perform(get(phoneBookUrl + "contacts/{id}", id1).accept(contentType))
+        perform(get(phoneBookUrl + "contacts/{id}", id1).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -242,7 +440,7 @@ public class ServerSideTests {
                 .andExpect(jsonPath("$.phone", is(demoContact.getPhone())));
 
 
-        mockMvc.perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
+        perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
                 .andExpect(status().isCreated())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -256,7 +454,7 @@ public class ServerSideTests {
     public void putNotExistingContact() throws Exception {
         IndexedContact indexedContact = contactsFactory.createIndexedContact(createDemoContact());
 
-        mockMvc.perform(put(phoneBookUrl + "/contacts/" + indexedContact.getId()).contentType(contentType).content(createJsonObject(indexedContact).toString()).accept(contentType))
+        perform(put(phoneBookUrl + "/contacts/" + indexedContact.getId()).contentType(contentType).content(createJsonObject(indexedContact).toString()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -265,7 +463,7 @@ public class ServerSideTests {
                 .andExpect(jsonPath("$.surname", is(indexedContact.getSurname())))
                 .andExpect(jsonPath("$.phone", is(indexedContact.getPhone())));
 
-        mockMvc.perform(get(phoneBookUrl + "contacts/{id}", indexedContact.getId()).accept(contentType))
+        perform(get(phoneBookUrl + "contacts/{id}", indexedContact.getId()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -275,6 +473,23 @@ public class ServerSideTests {
                 .andExpect(jsonPath("$.phone", is(indexedContact.getPhone())));
     }
 
+    @Test
+    public void putIdsAreNeverGivenToNewContacts() throws Exception {
+        Contact demoContact = createDemoContact();
+        long nextId = contactsFactory.getIdAllocator().getHighestId() + 1;
+        IndexedContact putContact = new IndexedContact(nextId, "putName", demoContact.getSurname(), demoContact.getPhone());
+        perform(put(phoneBookUrl + "contacts/{id}", nextId).contentType(contentType).content(createJsonObject(putContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts").contentType(contentType).content(createJsonObject(demoContact).toString()).accept(contentType))
+                .andExpect(status().isCreated())
+                .andReturn();
+        assertThat(convertJsonToPojo(IndexedContact.class, mvcResult.getResponse().getContentAsString()).getId(), greaterThan(nextId));
+        perform(get(phoneBookUrl + "contacts/{id}", nextId).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("putName")));
+    }
+
     @Test
     public void putExistingContact() throws Exception {
         IndexedContact randomContact = getRandomContact();
@@ -282,7 +497,7 @@ public class ServerSideTests {
         randomContact.setSurname("newSurname");
         randomContact.setPhone("newPhone");
 
-        mockMvc.perform(put(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+        perform(put(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -291,7 +506,7 @@ public class ServerSideTests {
                 .andExpect(jsonPath("$.surname", is(randomContact.getSurname())))
                 .andExpect(jsonPath("$.phone", is(randomContact.getPhone())));
 
-        mockMvc.perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andDo(result -> {System.out.println("Response: " + result.getResponse().getContentAsString());})
@@ -304,13 +519,481 @@ public class ServerSideTests {
     @Test
     public void deleteContact() throws Exception {
         IndexedContact randomContact = getRandomContact();
-        mockMvc.perform(delete(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).accept(contentType))
+        perform(delete(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).accept(contentType))
+                .andExpect(status().isNoContent());
+
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void findContactsAfterPutExistingContact() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        String oldPhone = randomContact.getPhone();
+        randomContact.setPhone("+1-877-555-0000");
+
+        perform(put(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+
+        perform(get(phoneBookUrl + "/contacts?phone={phone}", oldPhone).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)));
+
+        perform(get(phoneBookUrl + "/contacts?name={name}&phone={phone}", randomContact.getName(), randomContact.getPhone()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(Integer.valueOf(randomContact.getId().toString()))));
+    }
+
+    @Test
+    public void findContactsAfterDeleteContact() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        perform(delete(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).accept(contentType))
+                .andExpect(status().isNoContent());
+
+        perform(get(phoneBookUrl + "/contacts?phone={phone}", randomContact.getPhone()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)));
+    }
+
+    @Test
+    public void addContactsConcurrently() throws Exception {
+        int contactsToAdd = 1000;
+        Set<Long> ids = IntStream.range(0, contactsToAdd).parallel()
+                .mapToObj(i -> phoneBook.addContact(createDemoContact()).getId())
+                .collect(Collectors.toSet());
+        assertThat(ids, hasSize(contactsToAdd));
+        assertThat(phoneBook.findContacts(Optional.of("demoName"), Optional.empty(), Optional.empty()), hasSize(contactsToAdd));
+    }
+
+    @Test
+    public void findContactsBySurnamePrefix() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        String prefix = randomContact.getSurname().substring(0, Math.min(3, randomContact.getSurname().length())).toLowerCase();
+        MvcResult mvcResult = perform(get(phoneBookUrl + "/contacts?surname={surname}&match=prefix", prefix).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.[*].id", hasItem(Integer.valueOf(randomContact.getId().toString()))))
+                .andReturn();
+
+        for (IndexedContact contact : convertJsonToPojo(IndexedContact[].class, mvcResult.getResponse().getContentAsString())) {
+            assertThat(contact.getSurname().toLowerCase().startsWith(prefix), is(true));
+        }
+    }
+
+    @Test
+    public void findContactsByPhonePrefixAfterPutExistingContact() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        randomContact.setPhone("+30-210-555-0101");
+        perform(put(phoneBookUrl + "/contacts/" + randomContact.getId()).contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+
+        perform(get(phoneBookUrl + "/contacts?phone={phone}&match=prefix&limit=10", "+30 210").accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(Integer.valueOf(randomContact.getId().toString()))));
+    }
+
+    @Test
+    public void findContactsWithUnknownMatchMode() throws Exception {
+        perform(get(phoneBookUrl + "/contacts?name={name}&match=regex", "B.*").accept(contentType))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void getAllContactsPageByPage() throws Exception {
+        List<Long> pagedIds = new ArrayList<>();
+        String pageUrl = phoneBookUrl + "contacts?limit=2";
+        while (pageUrl != null) {
+            MvcResult mvcResult = perform(get(pageUrl).accept(contentType))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$", hasSize(lessThanOrEqualTo(2))))
+                    .andReturn();
+            IndexedContact[] page = convertJsonToPojo(IndexedContact[].class, mvcResult.getResponse().getContentAsString());
+            Arrays.stream(page).map(IndexedContact::getId).forEach(pagedIds::add);
+            pageUrl = getNextPageUrl(mvcResult);
+        }
+
+        List<Long> expectedIds = contacts.stream().map(IndexedContact::getId).sorted().collect(Collectors.toList());
+        assertThat(pagedIds, is(expectedIds));
+    }
+
+    @Test
+    public void getNextPageAfterDeletingLastContactOfPage() throws Exception {
+        List<Long> sortedIds = contacts.stream().map(IndexedContact::getId).sorted().collect(Collectors.toList());
+        MvcResult mvcResult = perform(get(phoneBookUrl + "contacts?limit=1").accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id", is(Integer.valueOf(sortedIds.get(0).toString()))))
+                .andReturn();
+
+        perform(delete(phoneBookUrl + "/contacts/" + sortedIds.get(0)).contentType(contentType).accept(contentType))
                 .andExpect(status().isNoContent());
 
-        mockMvc.perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+        perform(get(getNextPageUrl(mvcResult)).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(Integer.valueOf(sortedIds.get(1).toString()))));
+    }
+
+    @Test
+    public void getContactsWithInvalidCursor() throws Exception {
+        perform(get(phoneBookUrl + "contacts?cursor={cursor}", "not-a-cursor").accept(contentType))
+                .andExpect(status().isBadRequest());
+
+        perform(get(phoneBookUrl + "contacts?limit=0").accept(contentType))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void createContactsInBatch() throws Exception {
+        Contact demoContact = createDemoContact();
+        String batch = "[" + createJsonObject(demoContact) + ", null, " + createJsonObject(demoContact) + "]";
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts/batch").contentType(contentType).content(batch).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(3)))
+                .andExpect(jsonPath("$[0].status", is(201)))
+                .andExpect(jsonPath("$[1].status", is(400)))
+                .andExpect(jsonPath("$[2].status", is(201)))
+                .andReturn();
+
+        BatchResult[] results = convertJsonToPojo(BatchResult[].class, mvcResult.getResponse().getContentAsString());
+        assertThat(results[2].getId(), is(results[0].getId() + 1));
+        perform(get(phoneBookUrl + "contacts/{id}", results[2].getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is(demoContact.getName())));
+    }
+
+    @Test
+    public void createStreamedContactsInBatch() throws Exception {
+        int contactsToAdd = PhoneBookController.STREAMED_BATCH_SIZE + 10;
+        String batch = IntStream.range(0, contactsToAdd)
+                .mapToObj(i -> createJsonObjectFromContact("streamedName", "streamedSurname" + i, "+1-877-555-" + i).toString())
+                .collect(Collectors.joining("\n")) + "\nnull\n";
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts/batch").contentType(PhoneBookController.APPLICATION_NDJSON).content(batch)
+                    .accept(PhoneBookController.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String[] lines = mvcResult.getResponse().getContentAsString().split("\n");
+        assertThat(lines.length, is(contactsToAdd + 1));
+        for (int i = 0; i < lines.length; i++) {
+            BatchResult result = convertJsonToPojo(BatchResult.class, lines[i]);
+            assertThat(result.getIndex(), is(i));
+            assertThat(result.getStatus(), is(i < contactsToAdd ? 201 : 400));
+        }
+        assertThat(phoneBook.findContacts(Optional.of("streamedName"), Optional.empty(), Optional.empty()), hasSize(contactsToAdd));
+    }
+
+    @Test
+    public void invalidStreamedLineEndsTheBatchAfterApplyingTheLinesBeforeIt() throws Exception {
+        long contactsBefore = phoneBook.countContacts();
+        String batch = createJsonObjectFromContact("validName", "validSurname", "+1-877-555-0001") + "\n"
+                + createJsonObjectFromContact("validName", "validSurname", "+1-877-555-0002") + "\n{bad\n"
+                + createJsonObjectFromContact("validName", "validSurname", "+1-877-555-0003") + "\n";
+        MvcResult mvcResult = perform(post(phoneBookUrl + "contacts/batch").contentType(PhoneBookController.APPLICATION_NDJSON).content(batch)
+                    .accept(PhoneBookController.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String[] lines = mvcResult.getResponse().getContentAsString().split("\n");
+        assertThat(lines.length, is(3));
+        for (int i = 0; i < lines.length; i++) {
+            BatchResult result = convertJsonToPojo(BatchResult.class, lines[i]);
+            assertThat(result.getIndex(), is(i));
+            assertThat(result.getStatus(), is(i < 2 ? 201 : 400));
+        }
+        assertThat(phoneBook.countContacts(), is(contactsBefore + 2));
+    }
+
+    @Test
+    public void putContactsInBatch() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        randomContact.setName("batchName");
+        String batch = "[" + createJsonObject(randomContact) + ", " + createJsonObject((Contact) randomContact) + "]";
+        perform(put(phoneBookUrl + "contacts/batch").contentType(contentType).content(batch).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status", is(200)))
+                .andExpect(jsonPath("$[0].id", is(Integer.valueOf(randomContact.getId().toString()))))
+                .andExpect(jsonPath("$[1].status", is(400)));
+
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("batchName")));
+    }
+
+    @Test
+    public void deleteContactsInBatch() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        long notExistingId = -1;
+        perform(delete(phoneBookUrl + "contacts/batch").contentType(contentType).content("[" + randomContact.getId() + ", " + notExistingId + "]").accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status", is(204)))
+                .andExpect(jsonPath("$[1].status", is(404)));
+
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    public void onlyAdmittedContactsEvictCachedOnes() {
+        CachingPhoneBook cachingPhoneBook = new CachingPhoneBook(phoneBook, 1, 1, 100);
+        cachingPhoneBook.findContact(contacts.get(0).getId());
+        cachingPhoneBook.findContact(contacts.get(1).getId());
+        assertThat(cachingPhoneBook.getContactsCacheStats().getRejections(), is(1L));
+        assertThat(cachingPhoneBook.getContactsCacheStats().getEvictions(), is(0L));
+
+        cachingPhoneBook.findContact(contacts.get(1).getId());
+        assertThat(cachingPhoneBook.getContactsCacheStats().getRejections(), is(1L));
+        assertThat(cachingPhoneBook.getContactsCacheStats().getEvictions(), is(1L));
+        assertThat(cachingPhoneBook.findContact(contacts.get(1).getId()).isPresent(), is(true));
+        assertThat(cachingPhoneBook.getContactsCacheStats().getHits(), is(1L));
+    }
+
+    @Test
+    public void cachedContactsAndSearchesAreInvalidatedByWrites() {
+        CachingPhoneBook cachingPhoneBook = new CachingPhoneBook(phoneBook, 16, 16, 100);
+        IndexedContact randomContact = getRandomContact();
+        Optional<String> surname = Optional.of(randomContact.getSurname());
+        assertThat(cachingPhoneBook.findContact(randomContact.getId()).get().getName(), is(randomContact.getName()));
+        assertThat(cachingPhoneBook.findContact(randomContact.getId()).get().getName(), is(randomContact.getName()));
+        int contactsWithSurname = cachingPhoneBook.findContacts(Optional.empty(), surname, Optional.empty()).size();
+        assertThat(cachingPhoneBook.findContacts(Optional.empty(), surname, Optional.empty()), hasSize(contactsWithSurname));
+        assertThat(cachingPhoneBook.getContactsCacheStats().getHits(), is(1L));
+        assertThat(cachingPhoneBook.getSearchesCacheStats().getHits(), is(1L));
+
+        IndexedContact renamedContact = new IndexedContact(randomContact.getId(), randomContact.getName(), "cachedSurname", randomContact.getPhone());
+        cachingPhoneBook.addContact(renamedContact);
+        assertThat(cachingPhoneBook.findContact(randomContact.getId()).get().getSurname(), is("cachedSurname"));
+        assertThat(cachingPhoneBook.findContacts(Optional.empty(), surname, Optional.empty()), hasSize(contactsWithSurname - 1));
+        assertThat(cachingPhoneBook.findContacts(Optional.empty(), Optional.of("cachedSurname"), Optional.empty()), hasSize(1));
+
+        IndexedContact addedContact = cachingPhoneBook.addContact(new Contact(randomContact.getName(), "cachedSurname", randomContact.getPhone()));
+        assertThat(cachingPhoneBook.findContacts(Optional.empty(), Optional.of("cachedSurname"), Optional.empty()), hasSize(2));
+
+        cachingPhoneBook.deleteContact(addedContact.getId());
+        assertThat(cachingPhoneBook.findContact(addedContact.getId()).isPresent(), is(false));
+        assertThat(cachingPhoneBook.findContacts(Optional.empty(), Optional.of("cachedSurname"), Optional.empty()), hasSize(1));
+    }
+
+    @Test
+    public void getNotModifiedContactWithETag() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        String eTag = perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_NONE_MATCH, eTag).accept(contentType))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        randomContact.setPhone("+1-877-555-0000");
+        perform(put(phoneBookUrl + "contacts/{id}", randomContact.getId()).contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_NONE_MATCH, eTag).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.phone", is("+1-877-555-0000")));
+    }
+
+    @Test
+    public void binaryAndJsonContactsHaveTheirOwnETags() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        String jsonETag = perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        String binaryETag = perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(PhoneBookController.APPLICATION_CONTACTS))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(binaryETag, is(jsonETag.substring(0, jsonETag.length() - 1) + "-bin\""));
+
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_NONE_MATCH, binaryETag)
+                    .accept(PhoneBookController.APPLICATION_CONTACTS))
+                .andExpect(status().isNotModified())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, binaryETag));
+        perform(put(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_MATCH, binaryETag)
+                    .contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+
+        String listingETag = perform(get(phoneBookUrl + "contacts").accept(PhoneBookController.APPLICATION_CONTACTS))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(listingETag.endsWith("-bin\""), is(true));
+    }
+
+    @Test
+    public void getNotModifiedContactsWithETag() throws Exception {
+        String eTag = perform(get(phoneBookUrl + "contacts").accept(contentType))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        perform(get(phoneBookUrl + "contacts").header(HttpHeaders.IF_NONE_MATCH, eTag).accept(contentType))
+                .andExpect(status().isNotModified());
+
+        phoneBook.addContact(createDemoContact());
+        perform(get(phoneBookUrl + "contacts").header(HttpHeaders.IF_NONE_MATCH, eTag).accept(contentType))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(contacts.size() + 1)));
+    }
+
+    @Test
+    public void putContactWithIfMatch() throws Exception {
+        IndexedContact randomContact = getRandomContact();
+        String eTag = perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        randomContact.setName("firstName");
+        String newETag = perform(put(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_MATCH, eTag)
+                    .contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(newETag, not(eTag));
+
+        randomContact.setName("staleName");
+        perform(put(phoneBookUrl + "contacts/{id}", randomContact.getId()).header(HttpHeaders.IF_MATCH, eTag)
+                    .contentType(contentType).content(createJsonObject(randomContact).toString()).accept(contentType))
+                .andExpect(status().isPreconditionFailed());
+        perform(get(phoneBookUrl + "contacts/{id}", randomContact.getId()).accept(contentType))
+                .andExpect(jsonPath("$.name", is("firstName")))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, newETag));
+    }
+
+    @Test
+    public void streamChangesAfterEventId() throws Exception {
+        String events = perform(get(phoneBookUrl + "contacts/changes").param("timeout", "0").accept(PhoneBookController.TEXT_EVENT_STREAM))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String eventId = events.substring("id: ".length(), events.indexOf('\n'));
+
+        IndexedContact updatedContact = contacts.get(0);
+        updatedContact.setName("changedName");
+        perform(put(phoneBookUrl + "contacts/{id}", updatedContact.getId()).contentType(contentType).content(createJsonObject(updatedContact).toString()).accept(contentType))
+                .andExpect(status().isOk());
+        Long deletedId = contacts.get(1).getId();
+        perform(delete(phoneBookUrl + "contacts/{id}", deletedId))
+                .andExpect(status().isNoContent());
+
+        events = perform(get(phoneBookUrl + "contacts/changes").param("timeout", "0").param("after", eventId).accept(PhoneBookController.TEXT_EVENT_STREAM))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertThat(events.contains("event: updated\ndata: {\"sequence\""), is(true));
+        assertThat(events.contains("\"name\":\"changedName\""), is(true));
+        assertThat(events.contains("event: deleted\ndata: {\"sequence\""), is(true));
+        assertThat(events.contains("\"id\":" + deletedId + "}"), is(true));
+        assertThat(events.indexOf("event: updated") < events.indexOf("event: deleted"), is(true));
+        assertThat(events.contains("event: gap"), is(false));
+    }
+
+    @Test
+    public void streamChangesAfterUnknownEventIdStartsWithGap() throws Exception {
+        perform(delete(phoneBookUrl + "contacts/{id}", contacts.get(0).getId()))
+                .andExpect(status().isNoContent());
+
+        String events = perform(get(phoneBookUrl + "contacts/changes").param("timeout", "0").header("Last-Event-ID", "unknown-1")
+                    .accept(PhoneBookController.TEXT_EVENT_STREAM))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertThat(events.contains("event: gap"), is(true));
+        assertThat(events.indexOf("event: gap") < events.indexOf("event: deleted"), is(true));
+    }
+
+    @Test
+    public void streamChangesIsRejectedWhenTooManyRequestsFollowTheFeed() throws Exception {
+        phoneBookController.setMaxChangeSubscribers(1);
+        Thread subscriber = new Thread(() -> {
+            try {
+                perform(get(phoneBookUrl + "contacts/changes").param("timeout", "2").accept(PhoneBookController.TEXT_EVENT_STREAM))
+                        .andExpect(status().isOk());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            subscriber.start();
+            int status = HttpStatus.OK.value();
+            for (int i = 0; i < 150 && status != HttpStatus.SERVICE_UNAVAILABLE.value(); i++) {
+                Thread.sleep(10);
+                status = perform(get(phoneBookUrl + "contacts/changes").param("timeout", "0").accept(PhoneBookController.TEXT_EVENT_STREAM))
+                        .andReturn().getResponse().getStatus();
+            }
+            assertThat(status, is(HttpStatus.SERVICE_UNAVAILABLE.value()));
+            subscriber.join();
+
+            perform(get(phoneBookUrl + "contacts/changes").param("timeout", "0").accept(PhoneBookController.TEXT_EVENT_STREAM))
+                    .andExpect(status().isOk());
+        } finally {
+            phoneBookController.setMaxChangeSubscribers(16);
+        }
+    }
+
+    @Test
+    public void getMetricsAfterSearches() throws Exception {
+        perform(get(phoneBookUrl + "contacts").param("surname", contacts.get(0).getSurname()).accept(contentType))
+                .andExpect(status().isOk());
+
+        String metrics = perform(get("/metrics"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
+                .andReturn().getResponse().getContentAsString();
+        assertThat(metrics.contains("# TYPE phonebook_request_duration_seconds summary\n"), is(true));
+        assertThat(metrics.contains("phonebook_request_duration_seconds{operation=\"getContacts\",quantile=\"0.99\"} "), is(true));
+        assertThat(metrics.contains("phonebook_response_contacts_count{operation=\"getContacts\"} "), is(true));
+        assertThat(metrics.contains("phonebook_searches_total{match=\"exact\",filter=\"surname\"} "), is(true));
+        assertThat(metrics.contains("\nphonebook_contacts " + (double) contacts.size() + "\n"), is(true));
+    }
+
+    @Test
+    public void searchesAreRejectedWhenTheQueueIsFull() throws Exception {
+        SearchExecutor searchExecutor = new SearchExecutor();
+        searchExecutor.setThreads(1);
+        searchExecutor.setQueueCapacity(1);
+        searchExecutor.init();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            DeferredResult<Boolean> running = searchExecutor.submit(() -> release.await(10, TimeUnit.SECONDS));
+            DeferredResult<Boolean> queued = searchExecutor.submit(() -> true);
+            try {
+                searchExecutor.submit(() -> true);
+                fail("The search should have been rejected.");
+            } catch (ServiceUnavailableException e) {
+                assertThat(searchExecutor.getRejectionCount(), is(1L));
+            }
+
+            release.countDown();
+            for (int i = 0; i < 100 && !queued.hasResult(); i++) {
+                Thread.sleep(10);
+            }
+            assertThat(running.getResult(), is(true));
+            assertThat(queued.getResult(), is(true));
+        } finally {
+            searchExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Performs a request and, if its handler completes it asynchronously, waits for the result and performs the async dispatch,
+     * so that the returned actions see the whole response either way. A streamed response has already been written, with its
+     * content type, when the result is set, and MockMvc dispatches to a new response, so the actions of the request itself are returned for it.
+     * Streams have no timeout, which MockMvc would take as no time to wait for their result, so the result is waited for explicitly.
+     */
+    private ResultActions perform(RequestBuilder requestBuilder) throws Exception {
+        ResultActions resultActions = mockMvc.perform(requestBuilder);
+        MvcResult mvcResult = resultActions.andReturn();
+        if (!mvcResult.getRequest().isAsyncStarted()) {
+            return resultActions;
+        }
+        mvcResult.getAsyncResult(TimeUnit.SECONDS.toMillis(10));
+        if (mvcResult.getResponse().getContentType() != null) {
+            return resultActions;
+        }
+        return mockMvc.perform(asyncDispatch(mvcResult));
+    }
+
+    private String getNextPageUrl(MvcResult mvcResult) {
+        String link = mvcResult.getResponse().getHeader(HttpHeaders.LINK);
+        return link == null ? null : link.substring(link.indexOf('<') + 1, link.indexOf('>'));
+    }
+
     private <T extends Object> T convertJsonToPojo(Class<T> clazz, String json) throws Exception {
         ObjectMapper objectMapper = new ObjectMapper();
         return objectMapper.readValue(json, clazz);
@@ -0,0 +1,216 @@
+package travelling.with.code.restful.phonebook.tests;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import travelling.with.code.restful.phonebook.dao.ChangeFeed;
+import travelling.with.code.restful.phonebook.dao.Contact;
+import travelling.with.code.restful.phonebook.dao.ContactChange;
+import travelling.with.code.restful.phonebook.dao.IndexedContact;
+import travelling.with.code.restful.phonebook.dao.MatchMode;
+import travelling.with.code.restful.phonebook.dao.PhoneBook;
+import travelling.with.code.restful.phonebook.persistent.sharded.ShardedPhoneBook;
+
+/**
+ * Tests of the {@link ShardedPhoneBook} over embedded shards, filled with the contacts of the {@link ResourcesContactsFactory}.
+ *
+ * @author <a href="mailto:travelling.with.code@gmail.com">Alex</a>
+ */
+public class ShardedPhoneBookTests {
+
+    private ShardedPhoneBook phoneBook;
+
+    private List<IndexedContact> contacts;
+
+    @Before
+    public void setup() {
+        ResourcesContactsFactory contactsFactory = new ResourcesContactsFactory();
+        phoneBook = new ShardedPhoneBook();
+        phoneBook.setContactsFactory(contactsFactory);
+        phoneBook.setShardCount(3);
+        phoneBook.setThreads(2);
+        phoneBook.init();
+        contacts = new ArrayList<>(contactsFactory.createInitContactsCollection());
+        contacts.sort(Comparator.comparing(IndexedContact::getId));
+    }
+
+    @After
+    public void tearDown() {
+        phoneBook.shutdown();
+    }
+
+    @Test
+    public void contactsAreFoundOnTheirShards() {
+        assertThat(phoneBook.countContacts(), is((long) contacts.size()));
+        for (IndexedContact contact : contacts) {
+            PhoneBook shard = phoneBook.getShards().get(phoneBook.shardOf(contact.getId()));
+            assertThat(shard.findContact(contact.getId()).isPresent(), is(true));
+            assertThat(phoneBook.findContact(contact.getId()).get().getSurname(), is(contact.getSurname()));
+        }
+
+        List<Long> initialCounts = phoneBook.getShards().stream().map(PhoneBook::countContacts).collect(Collectors.toList());
+        for (int i = 0; i < phoneBook.getShards().size(); i++) {
+            IndexedContact added = phoneBook.addContact(new Contact("Maggie", "Simpson", "555-000" + i));
+            assertThat(phoneBook.getShards().get(phoneBook.shardOf(added.getId())).findContact(added.getId()).isPresent(), is(true));
+        }
+        for (int shard = 0; shard < phoneBook.getShards().size(); shard++) {
+            assertThat(phoneBook.getShards().get(shard).countContacts(), is(greaterThan(initialCounts.get(shard))));
+        }
+    }
+
+    @Test
+    public void smallConsecutiveIdsSpreadAcrossTheShards() {
+        for (int shardCount = 2; shardCount <= 8; shardCount++) {
+            ShardedPhoneBook shardedPhoneBook = new ShardedPhoneBook();
+            shardedPhoneBook.setShardCount(shardCount);
+            shardedPhoneBook.setThreads(1);
+            shardedPhoneBook.init();
+            try {
+                Set<Integer> usedShards = new HashSet<>();
+                for (long id = 0; id < 40; id++) {
+                    usedShards.add(shardedPhoneBook.shardOf(id));
+                }
+                assertThat("shards of " + shardCount, usedShards, hasSize(shardCount));
+            } finally {
+                shardedPhoneBook.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void initialContactsAreCreatedOnceAndPartitioned() {
+        ShardedPhoneBook shardedPhoneBook = new ShardedPhoneBook();
+        shardedPhoneBook.setShardCount(4);
+        shardedPhoneBook.setThreads(1);
+        shardedPhoneBook.init();
+        try {
+            Collection<IndexedContact> all = shardedPhoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.empty());
+            assertThat(all, hasSize(4));
+            assertThat(all.stream().map(IndexedContact::getName).collect(Collectors.toSet()), hasSize(4));
+            for (IndexedContact contact : all) {
+                assertThat(shardedPhoneBook.getShards().get(shardedPhoneBook.shardOf(contact.getId())).findContact(contact.getId()).isPresent(), is(true));
+            }
+        } finally {
+            shardedPhoneBook.shutdown();
+        }
+    }
+
+    @Test
+    public void searchesMergeTheShardsByIds() {
+        Collection<IndexedContact> all = phoneBook.findContacts(Optional.empty(), Optional.empty(), Optional.empty());
+        assertThat(ids(all), is(ids(contacts)));
+
+        List<Long> pagedIds = new ArrayList<>();
+        Optional<Long> afterId = Optional.empty();
+        List<IndexedContact> page;
+        do {
+            page = phoneBook.findContacts(MatchMode.EXACT, Optional.empty(), Optional.empty(), Optional.empty(), afterId, 7);
+            assertThat(page.size() <= 7, is(true));
+            pagedIds.addAll(ids(page));
+            afterId = page.isEmpty() ? afterId : Optional.of(page.get(page.size() - 1).getId());
+        } while (!page.isEmpty());
+        assertThat(pagedIds, is(ids(contacts)));
+
+        String surname = contacts.get(0).getSurname();
+        List<Long> expectedIds = ids(contacts.stream().filter(contact -> surname.equals(contact.getSurname())).collect(Collectors.toList()));
+        assertThat(ids(phoneBook.streamContacts(MatchMode.EXACT, Optional.empty(), Optional.of(surname), Optional.empty())
+                .collect(Collectors.toList())), is(expectedIds));
+    }
+
+    @Test
+    public void concurrentAddsNeverShareAnId() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<IndexedContact>>> futures = new ArrayList<>();
+            for (int writer = 0; writer < 4; writer++) {
+                futures.add(writers.submit(() -> {
+                    List<IndexedContact> added = new ArrayList<>();
+                    for (int i = 0; i < 100; i++) {
+                        added.add(phoneBook.addContact(new Contact("Name" + i, "Surname", "555-" + i)));
+                    }
+                    added.addAll(phoneBook.addContacts(Collections.nCopies(10, new Contact("Batch", "Surname", "555"))));
+                    return added;
+                }));
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Future<List<IndexedContact>> future : futures) {
+                for (IndexedContact contact : future.get()) {
+                    assertThat(ids.add(contact.getId()), is(true));
+                    assertThat(phoneBook.findContact(contact.getId()).isPresent(), is(true));
+                }
+            }
+            assertThat(phoneBook.countContacts(), is((long) contacts.size() + ids.size()));
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void putIdsAreNeverAllocatedAgain() {
+        IndexedContact added = phoneBook.addContact(new Contact("Homer", "Simpson", "555-0001"));
+        long putId = added.getId() + 1;
+        phoneBook.addContact(new IndexedContact(putId, "Marge", "Simpson", "555-0002"));
+
+        for (int i = 0; i < 3 * phoneBook.getShards().size(); i++) {
+            IndexedContact next = phoneBook.addContact(new Contact("Bart", "Simpson", "555-0003"));
+            assertThat(next.getId() == putId, is(false));
+        }
+        assertThat(phoneBook.findContact(putId).get().getName(), is("Marge"));
+    }
+
+    @Test
+    public void changesArePublishedInOrder() throws Exception {
+        ChangeFeed changeFeed = phoneBook.getChangeFeed();
+        long fromSequence = changeFeed.getNextSequence();
+        IndexedContact added = phoneBook.addContact(new Contact("Lisa", "Simpson", "555-0004"));
+        phoneBook.addContact(new IndexedContact(added.getId(), "Lisa", "Simpson", "555-0005"));
+        phoneBook.deleteContact(added.getId());
+
+        List<ContactChange> changes = changeFeed.read(fromSequence, 10, 0, TimeUnit.MILLISECONDS).getChanges();
+        assertThat(changes, hasSize(3));
+        assertThat(changes.stream().map(ContactChange::getType).collect(Collectors.toList()),
+                   contains(ContactChange.Type.ADDED, ContactChange.Type.UPDATED, ContactChange.Type.DELETED));
+        assertThat(phoneBook.findContact(added.getId()).isPresent(), is(false));
+    }
+
+    @Test
+    public void anIdPutTwiceInABatchIsAddedAndThenUpdated() throws Exception {
+        ChangeFeed changeFeed = phoneBook.getChangeFeed();
+        long fromSequence = changeFeed.getNextSequence();
+        long id = phoneBook.addContact(new Contact("Bart", "Simpson", "555-0006")).getId() + 1_000;
+        phoneBook.putContacts(Arrays.asList(new IndexedContact(id, "Bart", "Simpson", "555-0007"),
+                                            new IndexedContact(id, "Bart", "Simpson", "555-0008")));
+
+        List<ContactChange> changes = changeFeed.read(fromSequence, 10, 0, TimeUnit.MILLISECONDS).getChanges();
+        assertThat(changes.stream().map(ContactChange::getType).collect(Collectors.toList()),
+                   contains(ContactChange.Type.ADDED, ContactChange.Type.ADDED, ContactChange.Type.UPDATED));
+        assertThat(phoneBook.findContact(id).get().getPhone(), is("555-0008"));
+    }
+
+    private static List<Long> ids(Collection<IndexedContact> contacts) {
+        return contacts.stream().map(IndexedContact::getId).collect(Collectors.toList());
+    }
+
+}